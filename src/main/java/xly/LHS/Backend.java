@@ -0,0 +1,167 @@
+package xly.LHS;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+import xly.doip.client.ServiceInfo;
+import xly.doip.client.transport.DoipConnection;
+
+/**
+ * A backend DOIP repository known to a {@link BackendRegistry}, with the health and latency observed by probing it
+ * and the number of requests currently directed to it.
+ */
+public class Backend {
+    // weight of the newest probe in the latency average
+    private static final double LATENCY_ALPHA = 0.3;
+
+    private final ServiceInfo serviceInfo;
+    private final int weight;
+
+    private volatile boolean healthy = true;
+    private int consecutiveSuccesses;
+    private int consecutiveFailures;
+    private volatile double latencyMs = -1;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger leaseCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Long> leaseExpiries = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder assignments = new LongAdder();
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder probeFailures = new LongAdder();
+
+    // used only by the registry's probes
+    final AtomicBoolean probing = new AtomicBoolean();
+    DoipConnection probeConnection;
+
+    public Backend(ServiceInfo serviceInfo, int weight) {
+        this.serviceInfo = serviceInfo;
+        this.weight = Math.max(1, weight);
+    }
+
+    public ServiceInfo getServiceInfo() {
+        return serviceInfo;
+    }
+
+    public String getServiceId() {
+        return serviceInfo.serviceId;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Returns the moving average of probe round trips in milliseconds, or -1 before the first successful probe.
+     */
+    public double getLatencyMs() {
+        return latencyMs;
+    }
+
+    /**
+     * Returns the number of requests currently directed to this backend: those in flight through a proxy plus the
+     * unexpired leases of {@code Op.GetLHS} answers.
+     */
+    public int getOutstanding() {
+        long now = System.nanoTime();
+        Long expiry;
+        while ((expiry = leaseExpiries.peek()) != null && expiry - now <= 0) {
+            if (leaseExpiries.poll() != null) leaseCount.decrementAndGet();
+        }
+        return inFlight.get() + leaseCount.get();
+    }
+
+    /**
+     * Records that a client was directed to this backend, counting the request as outstanding for the given time.
+     */
+    void lease(long durationMs) {
+        assignments.increment();
+        leaseExpiries.add(System.nanoTime() + durationMs * 1_000_000L);
+        leaseCount.incrementAndGet();
+    }
+
+    /**
+     * Records the start of a request forwarded to this backend.
+     */
+    public void requestStarted() {
+        assignments.increment();
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a request forwarded to this backend.
+     */
+    public void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Records the outcome of a probe.
+     *
+     * @return true if the health of the backend changed
+     */
+    boolean recordProbe(boolean success, long latencyNanos, int healthyThreshold, int unhealthyThreshold) {
+        probes.increment();
+        if (success) {
+            double ms = latencyNanos / 1_000_000.0;
+            latencyMs = latencyMs < 0 ? ms : LATENCY_ALPHA * ms + (1 - LATENCY_ALPHA) * latencyMs;
+            consecutiveFailures = 0;
+            consecutiveSuccesses++;
+            if (!healthy && consecutiveSuccesses >= healthyThreshold) {
+                healthy = true;
+                return true;
+            }
+        } else {
+            probeFailures.increment();
+            consecutiveSuccesses = 0;
+            consecutiveFailures++;
+            if (healthy && consecutiveFailures >= unhealthyThreshold) {
+                healthy = false;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getAssignments() {
+        return assignments.sum();
+    }
+
+    public long getProbes() {
+        return probes.sum();
+    }
+
+    public long getProbeFailures() {
+        return probeFailures.sum();
+    }
+
+    JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("serviceId", serviceInfo.serviceId);
+        json.addProperty("ipAddress", serviceInfo.ipAddress);
+        json.addProperty("port", serviceInfo.port);
+        json.addProperty("weight", weight);
+        json.addProperty("healthy", healthy);
+        json.addProperty("latencyMs", latencyMs);
+        json.addProperty("outstanding", getOutstanding());
+        json.addProperty("assignments", getAssignments());
+        json.addProperty("probes", getProbes());
+        json.addProperty("probeFailures", getProbeFailures());
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return "Backend[" + serviceInfo.serviceId + " " + serviceInfo.ipAddress + ":" + serviceInfo.port + ", weight=" + weight
+            + ", healthy=" + healthy + ", latencyMs=" + String.format("%.2f", latencyMs) + ", outstanding=" + getOutstanding()
+            + ", assignments=" + getAssignments() + ", probes=" + getProbes() + ", probeFailures=" + getProbeFailures() + "]";
+    }
+}
@@ -0,0 +1,190 @@
+package xly.LHS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xly.doip.DoipConstants;
+import xly.doip.DoipRequestHeaders;
+import xly.doip.client.ServiceInfo;
+import xly.doip.client.transport.ConnectionOptions;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.client.transport.DoipConnection;
+import xly.doip.client.transport.TransportDoipClient;
+
+/**
+ * The backend DOIP repositories among which a load balancer chooses, with their health tracked by active probing.
+ * Each backend is periodically sent an {@code Op.Hello} request over a connection kept for the purpose; the round
+ * trip feeds its latency average, and runs of failed or successful probes take it out of or back into the healthy
+ * set offered to the {@link BalancingStrategy}.
+ */
+public class BackendRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(BackendRegistry.class);
+
+    // probes wait on the network, so they run on virtual threads
+    private static final ExecutorService probeExecutor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("lhs-probe-", 1).factory());
+
+    private final LoadBalancerConfig config;
+    private final CopyOnWriteArrayList<Backend> backends = new CopyOnWriteArrayList<>();
+    private volatile List<Backend> healthyBackends = Collections.emptyList();
+    private final TransportDoipClient transportClient = new TransportDoipClient();
+    private ScheduledExecutorService probeScheduler;
+
+    public BackendRegistry(LoadBalancerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Starts probing the registered backends.
+     */
+    public synchronized void start() {
+        if (probeScheduler != null || config.probeIntervalMs <= 0) return;
+        probeScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lhs-probe-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        probeScheduler.scheduleWithFixedDelay(this::probeAll, 0, config.probeIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops probing and closes the probe connections.
+     */
+    public synchronized void shutdown() {
+        if (probeScheduler != null) {
+            probeScheduler.shutdownNow();
+            probeScheduler = null;
+        }
+        for (Backend backend : backends) {
+            closeProbeConnection(backend);
+        }
+        transportClient.close();
+    }
+
+    /**
+     * Registers a backend, replacing any with the same service id.  It is healthy until probes show otherwise.
+     *
+     * @param serviceInfo the service information of the backend, with its address and port
+     * @param weight the relative share of requests for weighted strategies
+     * @return the registered backend
+     */
+    public Backend register(ServiceInfo serviceInfo, int weight) {
+        Backend backend = new Backend(serviceInfo, weight);
+        unregister(serviceInfo.serviceId);
+        backends.add(backend);
+        updateHealthyBackends();
+        return backend;
+    }
+
+    /**
+     * Removes a backend.
+     *
+     * @param serviceId the service id of the backend
+     * @return true if a backend was removed
+     */
+    public boolean unregister(String serviceId) {
+        boolean removed = false;
+        for (Backend backend : backends) {
+            if (backend.getServiceId().equals(serviceId) && backends.remove(backend)) {
+                closeProbeConnection(backend);
+                removed = true;
+            }
+        }
+        if (removed) updateHealthyBackends();
+        return removed;
+    }
+
+    public List<Backend> getBackends() {
+        return Collections.unmodifiableList(new ArrayList<>(backends));
+    }
+
+    /**
+     * Returns the healthy backends.  The list is replaced, never modified, when backends change.
+     */
+    public List<Backend> getHealthyBackends() {
+        return healthyBackends;
+    }
+
+    private synchronized void updateHealthyBackends() {
+        List<Backend> healthy = new ArrayList<>();
+        for (Backend backend : backends) {
+            if (backend.isHealthy()) healthy.add(backend);
+        }
+        healthyBackends = Collections.unmodifiableList(healthy);
+    }
+
+    private void probeAll() {
+        for (Backend backend : backends) {
+            // a probe still waiting on a stalled backend is not doubled up
+            if (backend.probing.compareAndSet(false, true)) {
+                probeExecutor.execute(() -> {
+                    try {
+                        probe(backend);
+                    } finally {
+                        backend.probing.set(false);
+                    }
+                });
+            }
+        }
+    }
+
+    private void probe(Backend backend) {
+        long start = System.nanoTime();
+        boolean success;
+        try {
+            DoipConnection connection = backend.probeConnection;
+            if (connection == null || connection.isClosed()) {
+                connection = transportClient.connect(connectionOptionsFor(backend.getServiceInfo()));
+                backend.probeConnection = connection;
+            }
+            DoipRequestHeaders headers = new DoipRequestHeaders();
+            headers.targetId = backend.getServiceId();
+            headers.operationId = DoipConstants.OP_HELLO;
+            CompletableFuture<DoipClientResponse> future = connection.sendRequestAsync(headers, null);
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(config.probeTimeoutMs) - (System.nanoTime() - start);
+            try (DoipClientResponse response = future.get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS)) {
+                success = DoipConstants.STATUS_OK.equals(response.getStatus());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            logger.debug("Probe of " + backend.getServiceId() + " failed", e);
+            success = false;
+        }
+        if (!success) closeProbeConnection(backend);
+        boolean changed = backend.recordProbe(success, System.nanoTime() - start, config.healthyThreshold, config.unhealthyThreshold);
+        if (changed) {
+            logger.info("Backend " + backend.getServiceId() + " is now " + (backend.isHealthy() ? "healthy" : "unhealthy"));
+            updateHealthyBackends();
+        }
+    }
+
+    private ConnectionOptions connectionOptionsFor(ServiceInfo serviceInfo) {
+        ConnectionOptions options = new ConnectionOptions();
+        options.serverId = serviceInfo.serviceId;
+        options.address = serviceInfo.ipAddress;
+        options.port = serviceInfo.port;
+        options.connectTimeoutMs = (int) config.probeTimeoutMs;
+        if (serviceInfo.publicKey != null) {
+            options.trustedServerPublicKeys = Collections.singletonList(serviceInfo.publicKey);
+        }
+        return options;
+    }
+
+    private static void closeProbeConnection(Backend backend) {
+        DoipConnection connection = backend.probeConnection;
+        backend.probeConnection = null;
+        if (connection != null) connection.close();
+    }
+}
@@ -0,0 +1,47 @@
+package xly.LHS;
+
+import java.util.List;
+
+/**
+ * Chooses the backend DOIP repository to which a request is directed.
+ */
+public interface BalancingStrategy {
+
+    /**
+     * Chooses a backend for a request.  The list is a snapshot of the healthy backends, which is replaced rather than
+     * modified when backends are registered or change health, so strategies may cache state derived from it by
+     * identity.
+     *
+     * @param backends the healthy backends, never empty
+     * @param targetId the target id of the request, possibly null
+     * @return the chosen backend
+     */
+    Backend choose(List<Backend> backends, String targetId);
+
+    /**
+     * Returns the strategy with the given name, or an instance of the named class implementing BalancingStrategy.
+     *
+     * @param name the name of the strategy
+     * @param config the configuration of the load balancer
+     * @return the strategy
+     */
+    static BalancingStrategy forName(String name, LoadBalancerConfig config) {
+        if (name == null) name = "round-robin";
+        switch (name) {
+        case "round-robin":
+            return new RoundRobinStrategy();
+        case "least-outstanding":
+            return new LeastOutstandingStrategy();
+        case "weighted":
+            return new WeightedStrategy();
+        case "consistent-hash":
+            return new ConsistentHashStrategy(config.virtualNodes);
+        default:
+            try {
+                return (BalancingStrategy) Class.forName(name).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new IllegalArgumentException("Unknown balancing strategy " + name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package xly.LHS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Directs all requests for the same target id to the same healthy backend, using a hash ring with a number of
+ * points per backend proportional to its weight.  When a backend becomes unhealthy only the target ids on its
+ * points move, to the backends following them on the ring, so the other backends keep their caches warm.  Requests
+ * without a target id go to a random backend.
+ */
+public class ConsistentHashStrategy implements BalancingStrategy {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final int virtualNodes;
+    private volatile Ring ring;
+
+    public ConsistentHashStrategy(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    @Override
+    public Backend choose(List<Backend> backends, String targetId) {
+        if (targetId == null || targetId.isEmpty()) {
+            return backends.get(ThreadLocalRandom.current().nextInt(backends.size()));
+        }
+        Ring current = ring;
+        if (current == null || current.backends != backends) {
+            current = new Ring(backends, virtualNodes);
+            ring = current;
+        }
+        return current.lookup(hash(targetId));
+    }
+
+    private static long hash(String s) {
+        return HASH.hashString(s, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static class Ring {
+        final List<Backend> backends;
+        final NavigableMap<Long, Backend> points = new TreeMap<>();
+
+        Ring(List<Backend> backends, int virtualNodes) {
+            this.backends = backends;
+            for (Backend backend : backends) {
+                int n = virtualNodes * backend.getWeight();
+                for (int i = 0; i < n; i++) {
+                    // points depend only on the backend, so they stay put as other backends come and go
+                    points.put(hash(backend.getServiceId() + "#" + i), backend);
+                }
+            }
+        }
+
+        Backend lookup(long hash) {
+            Map.Entry<Long, Backend> entry = points.ceilingEntry(hash);
+            if (entry == null) entry = points.firstEntry();
+            return entry.getValue();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package xly.LHS;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Directs requests to the healthy backend with the fewest outstanding requests, preferring the lower probe latency
+ * among equals.  The scan starts at a rotating position so that ties do not always favor the same backend.
+ */
+public class LeastOutstandingStrategy implements BalancingStrategy {
+    private final AtomicInteger start = new AtomicInteger();
+
+    @Override
+    public Backend choose(List<Backend> backends, String targetId) {
+        int size = backends.size();
+        int offset = Math.floorMod(start.getAndIncrement(), size);
+        Backend best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        double bestLatency = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Backend backend = backends.get((offset + i) % size);
+            int outstanding = backend.getOutstanding();
+            double latency = backend.getLatencyMs() < 0 ? Double.MAX_VALUE / 2 : backend.getLatencyMs();
+            if (outstanding < bestOutstanding || (outstanding == bestOutstanding && latency < bestLatency)) {
+                best = backend;
+                bestOutstanding = outstanding;
+                bestLatency = latency;
+            }
+        }
+        return best;
+    }
+}
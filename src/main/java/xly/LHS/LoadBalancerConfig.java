@@ -0,0 +1,97 @@
+package xly.LHS;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration for the load-balancing {@link LocalServer}, read from {@code processorConfig} of the DOIP server.
+ */
+public class LoadBalancerConfig {
+
+    /**
+     * The balancing strategy: {@code round-robin}, {@code least-outstanding}, {@code weighted},
+     * {@code consistent-hash}, or the name of a class implementing {@link BalancingStrategy}.  Defaults to
+     * {@code round-robin}.
+     */
+    public String strategy = "round-robin";
+
+    /**
+     * The backend DOIP repositories registered at startup.
+     */
+    public List<BackendConfig> backends = new ArrayList<>();
+
+    /**
+     * Routes confining the target ids with a given prefix to some of the backends.  The route with the longest
+     * prefix of a target id applies; target ids matching no route, and requests without one, may go to any backend.
+     */
+    public List<RouteConfig> routes = new ArrayList<>();
+
+    /**
+     * Interval in milliseconds at which each backend is probed with an {@code Op.Hello} request.  Zero or negative
+     * disables probing, leaving all backends healthy.  Defaults to 2000.
+     */
+    public long probeIntervalMs = 2000;
+
+    /**
+     * Time in milliseconds after which a probe, including connecting, counts as failed.  Defaults to 1000.
+     */
+    public long probeTimeoutMs = 1000;
+
+    /**
+     * Number of consecutive failed probes after which a healthy backend is no longer chosen.  Defaults to 2.
+     */
+    public int unhealthyThreshold = 2;
+
+    /**
+     * Number of consecutive successful probes after which an unhealthy backend is chosen again.  Defaults to 2.
+     */
+    public int healthyThreshold = 2;
+
+    /**
+     * How long in milliseconds a request directed to a backend by {@code Op.GetLHS} is counted as outstanding there,
+     * at least; backends whose probes are slower count it for their probe latency instead, so that a backend which
+     * answers slowly under load is seen to have more outstanding requests.  Used by the {@code least-outstanding}
+     * strategy.  Defaults to 10.
+     */
+    public long leaseMs = 10;
+
+    /**
+     * Number of points on the {@code consistent-hash} ring for a backend of weight 1.  Defaults to 100.
+     */
+    public int virtualNodes = 100;
+
+    /**
+     * A backend DOIP repository.
+     */
+    public static class BackendConfig {
+        public String serviceId;
+        public String ipAddress;
+        public int port;
+
+        /**
+         * The relative share of requests for the {@code weighted} and {@code consistent-hash} strategies.  Defaults
+         * to 1.
+         */
+        public int weight = 1;
+    }
+
+    /**
+     * A route from a target id prefix to the backends serving it.
+     */
+    public static class RouteConfig {
+        /**
+         * The target id prefix, such as {@code 86.1000/}.
+         */
+        public String prefix;
+
+        /**
+         * The service ids of the backends serving target ids with the prefix.
+         */
+        public List<String> backends = new ArrayList<>();
+
+        /**
+         * The balancing strategy among those backends.  Defaults to {@link LoadBalancerConfig#strategy}.
+         */
+        public String strategy;
+    }
+}
@@ -1,98 +1,181 @@
 package xly.LHS;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import xly.doip.*;
-import xly.doip.client.DigitalObject;
-import xly.doip.client.Element;
+import xly.doip.client.ServiceInfo;
 import xly.doip.server.*;
-import xly.Util;
+import xly.doip.util.GsonUtility;
 
-import java.net.*;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-
+import java.util.List;
 
+/**
+ * The local handle server (LHS) tier: a DOIP processor which balances clients among backend DOIP repositories in
+ * the manner of an LVS director.  {@code Op.GetLHS} answers with the service information of the backend chosen by
+ * the configured {@link BalancingStrategy} for the request's target id, and the client then talks to that backend
+ * directly.  Backends are registered from the configuration or through {@link #getRegistry()}, and probed to keep
+ * unhealthy ones out of the choice; {@link LoadBalancerConfig#routes} can confine target id prefixes to some of them.
+ * {@code Op.Hello} reports the backends with their health, latency and load.  {@link ReverseProxy} instead forwards
+ * the whole exchange to the chosen backend.
+ */
 public class LocalServer implements DoipProcessor {
-    private static class Test {
-        public String tt = "hhhh";
+    private static final JsonArray OPERATIONS = new JsonArray();
+    static {
+        OPERATIONS.add(DoipConstants.OP_HELLO);
+        OPERATIONS.add(DoipConstants.OP_LIST_OPERATIONS);
+        OPERATIONS.add(DoipConstants.OP_GETLHS);
+    }
+
+    private LoadBalancerConfig config;
+    private BackendRegistry registry;
+    private BalancingStrategy strategy;
+    private PrefixRoutes routes;
+
+    /**
+     * Constructs an LHS to be configured by {@link #init(JsonObject)}, as when named by
+     * {@link DoipServerConfig#processorClass}.
+     */
+    public LocalServer() {
+    }
+
+    /**
+     * Constructs and starts an LHS with the given configuration.
+     */
+    public LocalServer(LoadBalancerConfig config) {
+        init(config);
+    }
+
+    @Override
+    public void init(JsonObject config) {
+        init(config == null ? new LoadBalancerConfig() : GsonUtility.getGson().fromJson(config, LoadBalancerConfig.class));
+    }
+
+    final void init(LoadBalancerConfig config) {
+        this.config = config;
+        this.strategy = BalancingStrategy.forName(config.strategy, config);
+        this.routes = new PrefixRoutes(config);
+        this.registry = new BackendRegistry(config);
+        for (LoadBalancerConfig.BackendConfig backend : config.backends) {
+            registry.register(new ServiceInfo(backend.serviceId, backend.ipAddress, backend.port), backend.weight);
+        }
+        registry.start();
+    }
+
+    @Override
+    public void shutdown() {
+        if (registry != null) registry.shutdown();
+    }
+
+    public LoadBalancerConfig getConfig() {
+        return config;
+    }
+
+    public BackendRegistry getRegistry() {
+        return registry;
+    }
+
+    public BalancingStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Sets the strategy used for subsequent requests to which no route applies.
+     */
+    public void setStrategy(BalancingStrategy strategy) {
+        this.strategy = strategy;
     }
 
     @Override
     public void process(DoipServerRequest req, DoipServerResponse resp) throws IOException {
-        System.out.println(req.getClientId());
-        resp.commit();
-        for (InDoipSegment segment : req.getInput()) {
-            if (segment.isJson()) {
-                var json = segment.getJson();
-                System.out.println(json);
-            }else {
-                System.out.print("stream ");
-                InputStream in = segment.getInputStream();
-//                FileOutputStream fos = new FileOutputStream("doip_test.pdf");
-//                byte[] b = new byte[1024];
-//                while ((in.read(b)) != -1) {
-//                    fos.write(b);// 写入数据
-//                }
-                Util.printStream(in);
-                System.out.println("");
-                in.close();
-//                fos.close();// 保存数据
-            }
+        String operationId = req.getOperationId();
+        if (DoipConstants.OP_GETLHS.equals(operationId)) {
+            getLHS(req, resp);
+        } else if (DoipConstants.OP_HELLO.equals(operationId)) {
+            hello(req, resp);
+        } else if (DoipConstants.OP_LIST_OPERATIONS.equals(operationId)) {
+            resp.writeCompactOutput(OPERATIONS);
+        } else {
+            resp.setStatus(DoipConstants.STATUS_DECLINED);
+            resp.setAttribute(DoipConstants.MESSAGE_ATT, "Operation not supported");
         }
-        DigitalObject dobj = new DigitalObject();
-        Element el = new Element();
-        el.id = "from_server";
-//        el.in = Files.newInputStream(Paths.get("DO-IRP.pdf"));
-        el.in = new ByteArrayInputStream("from server".getBytes());
-        dobj.elements = new ArrayList<>();
-        dobj.elements.add(el);
-        Gson gson = new Gson();
-        resp.getOutput().writeJson(gson.toJson(dobj));
-
-        JsonObject elementSegmentJson = new JsonObject();
-        elementSegmentJson.addProperty("id", el.id);
-        resp.getOutput().writeJson(elementSegmentJson);
-        resp.getOutput().writeBytes(el.in);
-//        var out = resp.getOutput().getBytesOutputStream();
-//        out.write("{\"a\":\"b\"}".getBytes(StandardCharsets.UTF_8));
-//        out.flush();
-//        try {
-//            resp.commit();
-//            for (InDoipSegment segment : req.getInput()) {
-//                if (segment.isJson()) {
-////                    var json = segment.getJson();
-////                    System.out.println(json);
-//                    resp.getOutput().writeJson(segment.getJson());
-//                } else {
-//                    try (
-//                            InputStream in = segment.getInputStream();
-//                            OutputStream out = resp.getOutput().getBytesOutputStream();
-//                    ) {
-//                        byte[] buf = new byte[8192];
-//                        int r;
-//                        while ((r = in.read(buf)) > 0) {
-//                            out.write(buf, 0, r);
-//                        }
-//                    }
-//                }
-//            }
-//        } catch (UncheckedIOException e) {
-//            throw e.getCause();
-//        }
     }
 
+    private void getLHS(DoipServerRequest req, DoipServerResponse resp) throws IOException {
+        Backend backend = choose(req.getTargetId());
+        if (backend == null) {
+            resp.setStatus(DoipConstants.STATUS_DECLINED);
+            resp.setAttribute(DoipConstants.MESSAGE_ATT, "No healthy backend");
+            return;
+        }
+        resp.writeCompactOutput(GsonUtility.getGson().toJsonTree(backend.getServiceInfo()));
+    }
+
+    /**
+     * Chooses a backend for a request and counts the request as outstanding there.
+     *
+     * @param targetId the target id of the request
+     * @return the chosen backend, or null if no backend is healthy
+     */
+    public Backend choose(String targetId) {
+        Backend backend = select(targetId);
+        if (backend != null) backend.lease(Math.max(config.leaseMs, (long) backend.getLatencyMs()));
+        return backend;
+    }
+
+    /**
+     * Chooses a backend for a request among the healthy backends serving its target id, without counting the request.
+     *
+     * @return the chosen backend, or null if none is healthy
+     */
+    Backend select(String targetId) {
+        List<Backend> healthy = registry.getHealthyBackends();
+        BalancingStrategy strategy = this.strategy;
+        PrefixRoutes.Route route = routes.match(targetId);
+        if (route != null) {
+            healthy = route.select(healthy);
+            strategy = route.strategy;
+        }
+        if (healthy.isEmpty()) return null;
+        return strategy.choose(healthy, targetId);
+    }
+
+    private void hello(DoipServerRequest req, DoipServerResponse resp) throws IOException {
+        JsonObject attributes = new JsonObject();
+        attributes.addProperty("protocol", "TCP");
+        attributes.addProperty("protocolVersion", "2.0");
+        attributes.addProperty("strategy", config.strategy);
+        JsonArray backends = new JsonArray();
+        for (Backend backend : registry.getBackends()) {
+            backends.add(backend.toJson());
+        }
+        attributes.add("backends", backends);
+        JsonObject dobj = new JsonObject();
+        dobj.addProperty("id", req.getTargetId());
+        dobj.addProperty("type", "0.TYPE/DOIPServiceInfo");
+        dobj.add("attributes", attributes);
+        resp.writeCompactOutput(dobj);
+    }
+
+    /**
+     * Runs an LHS on port 8888, configured by the JSON file named by the first argument, if any.
+     */
     public static void main(String[] args) throws Exception {
         DoipServerConfig config = new DoipServerConfig();
         config.listenAddress = null;
         config.port = 8888;
         config.processorClass = LocalServer.class.getName();
+        if (args.length > 0) {
+            String json = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+            config.processorConfig = GsonUtility.getGson().fromJson(json, JsonElement.class).getAsJsonObject();
+        }
         System.out.println(LocalServer.class.getName());
         DoipServer server = new DoipServer(config);
         server.init();
         Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
     }
-}
\ No newline at end of file
+}
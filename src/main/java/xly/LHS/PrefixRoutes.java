@@ -0,0 +1,76 @@
+package xly.LHS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The {@link LoadBalancerConfig#routes} of a load balancer, each narrowing the healthy backends to those serving a
+ * target id prefix and choosing among them with its own {@link BalancingStrategy}.
+ */
+class PrefixRoutes {
+    // longest prefix first, so the first match is the most specific
+    private final List<Route> routes = new ArrayList<>();
+
+    PrefixRoutes(LoadBalancerConfig config) {
+        for (LoadBalancerConfig.RouteConfig route : config.routes) {
+            if (route.prefix == null) throw new IllegalArgumentException("Route without prefix");
+            String strategy = route.strategy == null ? config.strategy : route.strategy;
+            routes.add(new Route(route.prefix, new HashSet<>(route.backends), BalancingStrategy.forName(strategy, config)));
+        }
+        routes.sort((a, b) -> Integer.compare(b.prefix.length(), a.prefix.length()));
+    }
+
+    /**
+     * Returns the route with the longest prefix of the target id, or null if none applies.
+     */
+    Route match(String targetId) {
+        if (targetId == null) return null;
+        for (Route route : routes) {
+            if (targetId.startsWith(route.prefix)) return route;
+        }
+        return null;
+    }
+
+    static class Route {
+        final String prefix;
+        final Set<String> serviceIds;
+        final BalancingStrategy strategy;
+        private volatile Selection selection;
+
+        Route(String prefix, Set<String> serviceIds, BalancingStrategy strategy) {
+            this.prefix = prefix;
+            this.serviceIds = serviceIds;
+            this.strategy = strategy;
+        }
+
+        /**
+         * Returns those of the healthy backends which serve this route.  The same list is returned for as long as the
+         * same healthy list is passed in, so strategies can key their state on it as they do on the registry's list.
+         */
+        List<Backend> select(List<Backend> healthy) {
+            Selection current = selection;
+            if (current == null || current.healthy != healthy) {
+                List<Backend> backends = new ArrayList<>();
+                for (Backend backend : healthy) {
+                    if (serviceIds.contains(backend.getServiceId())) backends.add(backend);
+                }
+                current = new Selection(healthy, Collections.unmodifiableList(backends));
+                selection = current;
+            }
+            return current.backends;
+        }
+    }
+
+    private static class Selection {
+        final List<Backend> healthy;
+        final List<Backend> backends;
+
+        Selection(List<Backend> healthy, List<Backend> backends) {
+            this.healthy = healthy;
+            this.backends = backends;
+        }
+    }
+}
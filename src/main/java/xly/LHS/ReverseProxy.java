@@ -0,0 +1,300 @@
+package xly.LHS;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xly.doip.*;
+import xly.doip.client.ServiceInfo;
+import xly.doip.client.transport.*;
+import xly.doip.server.*;
+import xly.doip.util.GsonUtility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A load balancer which forwards each DOIP exchange to the backend it chooses, so that clients connect to the proxy
+ * alone.  Every operation is forwarded, over connections pooled per backend, with the client id, target id, operation
+ * id, attributes, authentication and input of the request, and the backend's status, attributes and output are
+ * returned as the response.
+ * <p>
+ * Segments are passed on as they arrive rather than collected first, in both directions at once: bytes segments stream
+ * through a buffer of {@link ReverseProxyConfig#bufferSize} bytes each way, and JSON segments of up to
+ * {@link ReverseProxyConfig#maxJsonSegmentSize} bytes are copied without being parsed.  A request is counted as
+ * outstanding at its backend until its response has been passed on, which is what the {@code least-outstanding}
+ * strategy balances on.
+ */
+public class ReverseProxy extends LocalServer {
+    private static final Logger logger = LoggerFactory.getLogger(ReverseProxy.class);
+
+    // copies request input to the backend alongside the handler copying the response back; both block on sockets
+    private static final ExecutorService uploadExecutor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doip-proxy-upload-", 1).factory());
+
+    private final TransportDoipClient transportClient = new TransportDoipClient();
+    private final ConcurrentMap<Backend, DoipConnectionPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a proxy to be configured by {@link #init(JsonObject)}, as when named by
+     * {@link DoipServerConfig#processorClass}.
+     */
+    public ReverseProxy() {
+    }
+
+    /**
+     * Constructs and starts a proxy with the given configuration.
+     */
+    public ReverseProxy(ReverseProxyConfig config) {
+        super(config);
+    }
+
+    @Override
+    public void init(JsonObject config) {
+        init(config == null ? new ReverseProxyConfig() : GsonUtility.getGson().fromJson(config, ReverseProxyConfig.class));
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        for (DoipConnectionPool pool : pools.values()) {
+            pool.shutdown();
+        }
+        pools.clear();
+        transportClient.close();
+    }
+
+    @Override
+    public ReverseProxyConfig getConfig() {
+        return (ReverseProxyConfig) super.getConfig();
+    }
+
+    @Override
+    public void process(DoipServerRequest req, DoipServerResponse resp) throws IOException {
+        Backend backend = select(req.getTargetId());
+        if (backend == null) {
+            resp.setStatus(DoipConstants.STATUS_DECLINED);
+            resp.setAttribute(DoipConstants.MESSAGE_ATT, "No healthy backend");
+            return;
+        }
+        backend.requestStarted();
+        try {
+            forward(req, resp, backend);
+        } finally {
+            backend.requestFinished();
+        }
+    }
+
+    private void forward(DoipServerRequest req, DoipServerResponse resp, Backend backend) throws IOException {
+        DoipConnectionPool pool = poolFor(backend);
+        DoipConnection connection;
+        try {
+            connection = pool.get();
+        } catch (IOException e) {
+            logger.warn("Could not connect to backend " + backend.getServiceId(), e);
+            resp.setStatus(DoipConstants.STATUS_ERROR);
+            resp.setAttribute(DoipConstants.MESSAGE_ATT, "Backend unavailable");
+            return;
+        }
+        ReverseProxyConfig config = getConfig();
+        Future<?> upload = null;
+        boolean responding = false;
+        boolean reusable = false;
+        try {
+            DoipRequestHeaders headers = new DoipRequestHeaders();
+            headers.clientId = req.getClientId();
+            headers.targetId = req.getTargetId();
+            headers.operationId = req.getOperationId();
+            headers.attributes = req.getAttributes();
+            headers.authentication = req.getAuthentication();
+            InDoipMessage input = req.getInput();
+            DoipClientResponse backendResponse;
+            if (input instanceof InDoipMessageFromJson) {
+                // compact input was parsed along with the request, and stays compact
+                headers.input = input.iterator().next().getJson();
+                backendResponse = connection.sendCompactRequest(headers);
+            } else {
+                DoipExchange exchange = connection.sendRequestToExchange(headers);
+                // the backend may answer while input is still arriving, and stop reading until its answer is taken
+                upload = uploadExecutor.submit(() -> upload(input, exchange.getRequestOutgoingMessage(), connection));
+                backendResponse = exchange.getResponse();
+            }
+            responding = true;
+            resp.setStatus(backendResponse.getStatus());
+            resp.setAttributes(backendResponse.getAttributes());
+            InDoipMessage output = backendResponse.getOutput();
+            if (output instanceof InDoipMessageFromJson) {
+                resp.writeCompactOutput(output.iterator().next().getJson());
+            } else {
+                copy(output, resp.getOutput(), new byte[config.bufferSize], config.maxJsonSegmentSize);
+            }
+            backendResponse.close();
+            if (upload != null) upload.get();
+            reusable = true;
+        } catch (ExecutionException e) {
+            throw new IOException("Error forwarding request input", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (Exception e) {
+            // once the response has begun, failing cuts off the client, which cannot otherwise tell it is incomplete
+            if (responding) throw e instanceof IOException ? (IOException) e : new IOException(e);
+            if (upload != null) {
+                connection.close();
+                Throwable inputFailure = awaitQuietly(upload);
+                if (inputFailure instanceof BadDoipException) throw (BadDoipException) inputFailure;
+            }
+            logger.warn("Error forwarding to backend " + backend.getServiceId(), e);
+            resp.setStatus(DoipConstants.STATUS_ERROR);
+            resp.setAttribute(DoipConstants.MESSAGE_ATT, "Error forwarding to backend");
+        } finally {
+            // a connection left partway through a message cannot carry another
+            if (!reusable) connection.close();
+            // the server drains what is left of the input once this returns, which the upload must not be reading
+            if (upload != null && !reusable) awaitQuietly(upload);
+            try {
+                pool.release(connection);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Void upload(InDoipMessage input, OutDoipMessage requestOut, DoipConnection connection) throws IOException {
+        ReverseProxyConfig config = getConfig();
+        try {
+            copy(input, requestOut, new byte[config.bufferSize], config.maxJsonSegmentSize);
+            requestOut.close();
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // not ending the message, which would have the backend act on truncated input; closing the connection
+            // instead also frees the handler waiting on the response
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for a task to finish, returning its failure if any.
+     */
+    private static Throwable awaitQuietly(Future<?> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return null;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies the segments of a message as they arrive.
+     */
+    private static void copy(InDoipMessage in, OutDoipMessage out, byte[] buffer, int maxJsonSegmentSize) throws IOException {
+        try {
+            for (InDoipSegment segment : in) {
+                if (segment.isJson()) {
+                    out.writeJson(readJson(segment.getInputStream(), buffer, maxJsonSegmentSize));
+                } else {
+                    OutputStream bytesOut = out.getBytesOutputStream();
+                    copyBytes(segment.getInputStream(), bytesOut, buffer);
+                    bytesOut.close();
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static byte[] readJson(InputStream in, byte[] buffer, int maxJsonSegmentSize) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        int r;
+        while ((r = in.read(buffer)) != -1) {
+            if (json.size() + r > maxJsonSegmentSize) {
+                throw new BadDoipException("JSON segment larger than " + maxJsonSegmentSize + " bytes");
+            }
+            json.write(buffer, 0, r);
+        }
+        return json.toByteArray();
+    }
+
+    private static void copyBytes(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int r;
+        while ((r = in.read(buffer)) != -1) {
+            out.write(buffer, 0, r);
+            // pass on what has arrived rather than hold it while the sender is slow
+            if (in.available() <= 0) out.flush();
+        }
+    }
+
+    private DoipConnectionPool poolFor(Backend backend) {
+        DoipConnectionPool pool = pools.get(backend);
+        if (pool != null) return pool;
+        pool = pools.computeIfAbsent(backend, this::newPool);
+        // backends unregistered or replaced since the last new pool leave theirs behind
+        List<Backend> registered = getRegistry().getBackends();
+        for (Map.Entry<Backend, DoipConnectionPool> entry : pools.entrySet()) {
+            if (!registered.contains(entry.getKey()) && pools.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().shutdown();
+            }
+        }
+        return pool;
+    }
+
+    private DoipConnectionPool newPool(Backend backend) {
+        ReverseProxyConfig config = getConfig();
+        ServiceInfo serviceInfo = backend.getServiceInfo();
+        ConnectionOptions options = new ConnectionOptions();
+        options.serverId = serviceInfo.serviceId;
+        options.address = serviceInfo.ipAddress;
+        options.port = serviceInfo.port;
+        options.connectTimeoutMs = config.connectTimeoutMs;
+        options.readTimeoutMs = config.readTimeoutMs;
+        if (serviceInfo.publicKey != null) {
+            options.trustedServerPublicKeys = Collections.singletonList(serviceInfo.publicKey);
+        }
+        return new DoipConnectionPool(config.pool, transportClient, options);
+    }
+
+    /**
+     * Runs a reverse proxy on port 8888, configured by the JSON file named by the first argument, if any.
+     */
+    public static void main(String[] args) throws Exception {
+        DoipServerConfig config = new DoipServerConfig();
+        config.listenAddress = null;
+        config.port = 8888;
+        config.processorClass = ReverseProxy.class.getName();
+        if (args.length > 0) {
+            String json = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+            config.processorConfig = GsonUtility.getGson().fromJson(json, JsonElement.class).getAsJsonObject();
+        }
+        System.out.println(ReverseProxy.class.getName());
+        DoipServer server = new DoipServer(config);
+        server.init();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+    }
+}
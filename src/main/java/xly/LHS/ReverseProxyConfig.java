@@ -0,0 +1,38 @@
+package xly.LHS;
+
+import xly.doip.client.transport.DoipConnectionPoolConfig;
+
+/**
+ * Configuration for the {@link ReverseProxy}: the load balancing of {@link LoadBalancerConfig} plus the connections
+ * to the backends and the memory given to each forwarded request.
+ */
+public class ReverseProxyConfig extends LoadBalancerConfig {
+
+    /**
+     * Configuration of the pool of connections kept to each backend.
+     */
+    public DoipConnectionPoolConfig pool = new DoipConnectionPoolConfig();
+
+    /**
+     * Timeout in milliseconds for connecting to a backend.  Defaults to 5000.
+     */
+    public int connectTimeoutMs = 5000;
+
+    /**
+     * Timeout in milliseconds for reading from a backend; zero means no timeout.  Defaults to 60000.
+     */
+    public int readTimeoutMs = 60_000;
+
+    /**
+     * Size in bytes of the buffer through which each forwarded request copies bytes segments, in both directions.
+     * Bytes segments of any length are streamed through it, so it bounds, along with {@link #maxJsonSegmentSize}, the
+     * memory held by a request in flight.  Defaults to 65536.
+     */
+    public int bufferSize = 64 * 1024;
+
+    /**
+     * Largest JSON segment in bytes which a forwarded request or response may contain.  JSON segments are passed on
+     * whole, so a request exceeding this is refused as a bad request, and a response exceeding it is cut off.  Defaults to 4 MiB.
+     */
+    public int maxJsonSegmentSize = 4 * 1024 * 1024;
+}
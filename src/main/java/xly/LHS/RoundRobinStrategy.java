@@ -0,0 +1,16 @@
+package xly.LHS;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Directs requests to each healthy backend in turn.
+ */
+public class RoundRobinStrategy implements BalancingStrategy {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public Backend choose(List<Backend> backends, String targetId) {
+        return backends.get(Math.floorMod(next.getAndIncrement(), backends.size()));
+    }
+}
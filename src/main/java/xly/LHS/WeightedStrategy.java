@@ -0,0 +1,49 @@
+package xly.LHS;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Directs requests to healthy backends in proportion to their weights, using smooth weighted round-robin: each
+ * choice adds every backend's weight to its running score and picks the highest, which then drops by the total
+ * weight.  A backend of weight 3 next to one of weight 1 is chosen three times in four, but not three times in a row.
+ */
+public class WeightedStrategy implements BalancingStrategy {
+    private final ReentrantLock lock = new ReentrantLock();
+    private List<Backend> lastBackends;
+    private Map<Backend, Integer> scores = new IdentityHashMap<>();
+
+    @Override
+    public Backend choose(List<Backend> backends, String targetId) {
+        lock.lock();
+        try {
+            if (backends != lastBackends) {
+                // keep the scores of backends still present, so a change in health does not restart the cycle
+                Map<Backend, Integer> newScores = new IdentityHashMap<>();
+                for (Backend backend : backends) {
+                    newScores.put(backend, scores.getOrDefault(backend, 0));
+                }
+                scores = newScores;
+                lastBackends = backends;
+            }
+            int total = 0;
+            Backend best = null;
+            int bestScore = Integer.MIN_VALUE;
+            for (Backend backend : backends) {
+                int score = scores.get(backend) + backend.getWeight();
+                scores.put(backend, score);
+                total += backend.getWeight();
+                if (score > bestScore) {
+                    best = backend;
+                    bestScore = score;
+                }
+            }
+            scores.put(best, bestScore - total);
+            return best;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -24,4 +24,40 @@ public class DoipConstants {
     public static final String OP_GETLHS = "Op.GetLHS";
 
     public static final String MESSAGE_ATT = "message";
+    public static final String MULTIPLEX_ATT = "multiplex";
+
+    /**
+     * Attribute of {@code Op.Hello}, sent as the first request on a connection, with which a client asks for the rest
+     * of the connection to use the binary framing {@link #FRAMING_BINARY}; the server echoes it in the response
+     * attributes if it agrees.  See {@link OutDoipMessageImpl} for the framing.
+     */
+    public static final String FRAMING_ATT = "framing";
+    public static final String FRAMING_BINARY = "binary-1";
+
+    /**
+     * Attribute of a request with which a client asks for the segments of the response after the initial one to be
+     * compressed with {@link #COMPRESSION_DEFLATE} where worthwhile; a server which agrees echoes it in the response
+     * attributes, after which the client may compress its own requests on that connection.  See
+     * {@link SegmentCompression}.
+     */
+    public static final String COMPRESSION_ATT = "compression";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    /**
+     * Attribute of an {@code Op.Retrieve} response giving an opaque version of the response, which changes whenever
+     * the object is updated or deleted through the server.  A client holding a response may send its version back in
+     * the request attribute {@link #IF_NONE_MATCH_ATT}; if it is still current and the server has the response cached,
+     * it answers with only the attributes {@code "etag"} and {@code "notModified": true} and no output, and otherwise
+     * with the full response.  See
+     * {@link xly.doip.server.CachingDoipProcessor}.
+     */
+    public static final String ETAG_ATT = "etag";
+    public static final String IF_NONE_MATCH_ATT = "ifNoneMatch";
+    public static final String NOT_MODIFIED_ATT = "notModified";
+
+    /**
+     * Property of a response datagram which, when true, means that the response did not fit in a datagram and the
+     * request should be repeated over TCP.
+     */
+    public static final String UDP_TRUNCATED = "truncated";
 }
@@ -0,0 +1,172 @@
+package xly.doip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import xly.doip.util.GsonUtility;
+
+/**
+ * Decodes the initial segment of a DOIP request or response into its headers in a single pass over the segment's
+ * bytes with a {@link JsonReader}, without first building a JSON tree of the whole segment and then binding it by
+ * reflection.  Only the values of {@code attributes}, {@code authentication}, {@code input} and {@code output},
+ * which the header classes hold as JSON, are built as trees.
+ * <p>
+ * Segments whose JSON has already been parsed (or which were constructed from JSON) are bound from that tree.
+ */
+public class DoipHeadersDecoder {
+
+    private static final Set<String> REQUEST_PROPERTIES = publicFieldNames(DoipRequestHeadersWithRequestId.class);
+
+    private static Set<String> publicFieldNames(Class<?> klass) {
+        return Stream.of(klass.getFields())
+            .filter(field -> !Modifier.isStatic(field.getModifiers()))
+            .map(Field::getName)
+            .collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Decodes request headers, rejecting any property which is not a field of {@link DoipRequestHeadersWithRequestId}.
+     *
+     * @param segment the initial segment of a request, which must be a JSON segment
+     * @return the request headers
+     * @throws BadDoipException if the segment is not a JSON object of request headers
+     * @throws IOException
+     */
+    public static DoipRequestHeadersWithRequestId decodeRequest(InDoipSegment segment) throws IOException {
+        InputStream in = unparsedInputStream(segment);
+        if (in == null) return bindRequest(segment.getJson());
+        DoipRequestHeadersWithRequestId headers = new DoipRequestHeadersWithRequestId(new DoipRequestHeaders());
+        try (JsonReader reader = newReader(in)) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new BadDoipException("Request initial segment must be a JSON object");
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                case "requestId" -> headers.requestId = readString(reader);
+                case "clientId" -> headers.clientId = readString(reader);
+                case "targetId" -> headers.targetId = readString(reader);
+                case "operationId" -> headers.operationId = readString(reader);
+                case "attributes" -> headers.attributes = readObject(reader);
+                case "authentication" -> headers.authentication = JsonParser.parseReader(reader);
+                case "input" -> headers.input = JsonParser.parseReader(reader);
+                default -> throw new BadDoipException("Unexpected request property " + name);
+                }
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) throw new BadDoipException("Did not consume the entire document");
+        } catch (MalformedJsonException | EOFException | JsonParseException | IllegalStateException | NumberFormatException e) {
+            throw new BadDoipException("Error parsing initial JSON of request", e);
+        }
+        return headers;
+    }
+
+    /**
+     * Decodes response headers.  Unknown properties are ignored.
+     *
+     * @param segment the initial segment of a response, which must be a JSON segment
+     * @return the response headers
+     * @throws BadDoipException if the segment is not a JSON object of response headers
+     * @throws IOException
+     */
+    public static DoipResponseHeadersWithRequestId decodeResponse(InDoipSegment segment) throws IOException {
+        InputStream in = unparsedInputStream(segment);
+        if (in == null) return bindResponse(segment.getJson());
+        DoipResponseHeadersWithRequestId headers = new DoipResponseHeadersWithRequestId();
+        try (JsonReader reader = newReader(in)) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new BadDoipException("Response initial segment must be a JSON object");
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                case "requestId" -> headers.requestId = readString(reader);
+                case "status" -> headers.status = readString(reader);
+                case "attributes" -> headers.attributes = readObject(reader);
+                case "output" -> headers.output = JsonParser.parseReader(reader);
+                default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) throw new BadDoipException("Did not consume the entire document");
+        } catch (MalformedJsonException | EOFException | JsonParseException | IllegalStateException | NumberFormatException e) {
+            throw new BadDoipException("Error parsing initial JSON of response", e);
+        }
+        return headers;
+    }
+
+    private static InputStream unparsedInputStream(InDoipSegment segment) {
+        if (!segment.isJson()) throw new IllegalArgumentException("not a JSON segment");
+        if (segment instanceof InDoipSegmentFromInputStream && ((InDoipSegmentFromInputStream) segment).getParsedJson() == null) {
+            return segment.getInputStream();
+        }
+        return null;
+    }
+
+    private static JsonReader newReader(InputStream in) {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        // as lenient as JsonParser, which was used for these segments before
+        reader.setLenient(true);
+        return reader;
+    }
+
+    /**
+     * Reads a string as Gson would bind it to a {@code String} field.
+     */
+    private static String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) return Boolean.toString(reader.nextBoolean());
+        return reader.nextString();
+    }
+
+    private static JsonObject readObject(JsonReader reader) throws IOException {
+        JsonElement el = JsonParser.parseReader(reader);
+        if (!el.isJsonObject()) throw new JsonParseException("Expected a JSON object but was " + el);
+        return el.getAsJsonObject();
+    }
+
+    private static DoipRequestHeadersWithRequestId bindRequest(JsonElement el) throws BadDoipException {
+        if (!el.isJsonObject()) {
+            throw new BadDoipException("Request initial segment must be a JSON object");
+        }
+        for (String key : el.getAsJsonObject().keySet()) {
+            if (!REQUEST_PROPERTIES.contains(key)) {
+                throw new BadDoipException("Unexpected request property " + key);
+            }
+        }
+        try {
+            return GsonUtility.getGson().fromJson(el, DoipRequestHeadersWithRequestId.class);
+        } catch (JsonParseException e) {
+            throw new BadDoipException("Error parsing initial JSON of request", e);
+        }
+    }
+
+    private static DoipResponseHeadersWithRequestId bindResponse(JsonElement el) throws BadDoipException {
+        try {
+            return GsonUtility.getGson().fromJson(el, DoipResponseHeadersWithRequestId.class);
+        } catch (JsonParseException e) {
+            throw new BadDoipException("Error parsing initial JSON of response", e);
+        }
+    }
+}
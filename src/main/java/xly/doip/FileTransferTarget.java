@@ -0,0 +1,74 @@
+package xly.doip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Implemented by connection output streams which can send a region of a file directly from a {@link FileChannel},
+ * letting the kernel move the bytes (for example with sendfile) instead of copying them through a heap buffer.
+ * Used by {@link OutDoipMessageImpl#writeBytes(FileChannel, long, long)}.
+ */
+public interface FileTransferTarget {
+
+    /**
+     * Writes a region of a file, blocking until all of it has been written.  Any bytes buffered in front of
+     * this target must be flushed by the caller first.
+     *
+     * @param channel the file
+     * @param position the position in the file of the first byte to write
+     * @param count the number of bytes to write
+     * @throws EOFException if the file ends before the region does
+     * @throws IOException
+     */
+    void transferFrom(FileChannel channel, long position, long count) throws IOException;
+
+    /**
+     * Copies a region of a file into an output stream through a heap buffer, for destinations which are not
+     * a {@code FileTransferTarget}.  Uses positional reads, so the channel's position is not changed.
+     *
+     * @param channel the file
+     * @param position the position in the file of the first byte to write
+     * @param count the number of bytes to write
+     * @param out the destination
+     * @throws EOFException if the file ends before the region does
+     * @throws IOException
+     */
+    static void copy(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+        while (count > 0) {
+            buf.clear();
+            if (buf.remaining() > count) buf.limit((int) count);
+            int r = channel.read(buf, position);
+            if (r < 0) throw new EOFException("end of file before end of region");
+            out.write(buf.array(), 0, r);
+            position += r;
+            count -= r;
+        }
+    }
+
+    /**
+     * Writes a region of a file into a blocking channel with {@link FileChannel#transferTo}.
+     *
+     * @param channel the file
+     * @param position the position in the file of the first byte to write
+     * @param count the number of bytes to write
+     * @param target a channel in blocking mode
+     * @throws EOFException if the file ends before the region does
+     * @throws IOException
+     */
+    static void transfer(FileChannel channel, long position, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long n = channel.transferTo(position, count, target);
+            if (n <= 0) {
+                if (position >= channel.size()) throw new EOFException("end of file before end of region");
+                continue;
+            }
+            position += n;
+            count -= n;
+        }
+    }
+}
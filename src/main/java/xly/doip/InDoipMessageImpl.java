@@ -2,9 +2,11 @@ package xly.doip;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.io.UncheckedIOException;
 import java.util.Iterator;
+import java.util.Objects;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.Spliterators.AbstractSpliterator;
@@ -15,11 +17,24 @@ import java.util.stream.StreamSupport;
 
 /**
  * An implementation of {@link InDoipMessage} which reads a serialized DOIP message from an {@code InputStream}.
+ * <p>
+ * The message may be in the text framing of the DOIP specification, or in the binary framing which a connection can
+ * switch to after {@code Op.Hello} (see {@link OutDoipMessageImpl}), where segments are read in bulk rather than
+ * scanned a byte at a time for their terminators.  Segments compressed by the sender (see {@link SegmentCompression})
+ * are inflated as they are read.
  */
 public class InDoipMessageImpl implements InDoipMessage {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE_DIGITS = String.valueOf(Integer.MAX_VALUE).length();
+    private static final int MAX_SEGMENT_OPTIONS_LENGTH = 64;
+
     private final PushbackInputStream in;
+    private final boolean binaryFraming;
     private final SpliteratorImpl spliterator;
     private InDoipSegment curr;
+    // the framed content of curr, which may differ from its input stream when it is compressed
+    private InputStream currContent;
+    private SegmentCompression compression;
     private boolean isClosed;
     private BadDoipException terminalException;
     private CompletableFuture<?> completer;
@@ -30,6 +45,18 @@ public class InDoipMessageImpl implements InDoipMessage {
      * @param in the input stream from which to read the serialized DOIP message
      */
     public InDoipMessageImpl(InputStream in) {
+        this(in, false);
+    }
+
+    /**
+     * Constructs an {@link InDoipMessage} using the serialized DOIP message from the supplied {@code InputStream},
+     * in either framing.
+     *
+     * @param in the input stream from which to read the serialized DOIP message
+     * @param binaryFraming if true, the message is in binary framing, otherwise in text framing
+     */
+    public InDoipMessageImpl(InputStream in, boolean binaryFraming) {
+        this.binaryFraming = binaryFraming;
         if (in instanceof PushbackInputStream) {
             this.in = (PushbackInputStream)in;
         } else {
@@ -49,6 +76,25 @@ public class InDoipMessageImpl implements InDoipMessage {
         this.completer = completer;
     }
 
+    /**
+     * Sets the {@code SegmentCompression} in which to record statistics of compressed segments.  Compressed segments
+     * are read whether or not this is called.
+     *
+     * @param compression the compression statistics
+     */
+    public void setCompression(SegmentCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns true if the message is in binary framing.
+     *
+     * @return true if the message is in binary framing
+     */
+    public boolean isBinaryFraming() {
+        return binaryFraming;
+    }
+
     /**
      * If the DOIP message was malformed, retrieves a {@link BadDoipException} indicating how; otherwise returns null.
      *
@@ -89,6 +135,20 @@ public class InDoipMessageImpl implements InDoipMessage {
         return terminalException;
     }
 
+    /**
+     * Reads a big-endian length prefix of binary framing.
+     */
+    private int readLength() throws IOException {
+        int b0 = in.read();
+        int b1 = in.read();
+        int b2 = in.read();
+        int b3 = in.read();
+        if ((b0 | b1 | b2 | b3) < 0) throw terminalException("end of input reading chunk size");
+        int res = (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+        if (res < 0) throw terminalException("negative chunk size");
+        return res;
+    }
+
     private void skipToNewline() throws IOException {
         int ch;
         while (true) {
@@ -100,6 +160,36 @@ public class InDoipMessageImpl implements InDoipMessage {
         }
     }
 
+    /**
+     * Reads the rest of the line starting a bytes segment in text framing, which is blank or says how the segment is
+     * compressed, returning true for a compressed JSON segment, false for a compressed bytes segment and null for
+     * an uncompressed bytes segment.
+     */
+    private Boolean readSegmentOptions() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int ch = in.read();
+            if (ch == -1) throw terminalException("end of input before newline");
+            if (ch == '\n') break;
+            if (sb.length() >= MAX_SEGMENT_OPTIONS_LENGTH) throw terminalException("overlong segment options");
+            sb.append((char) ch);
+        }
+        String options = sb.toString().trim();
+        if (options.isEmpty()) return null;
+        if (options.equals(DoipConstants.COMPRESSION_DEFLATE)) return Boolean.FALSE;
+        if (options.equals(DoipConstants.COMPRESSION_DEFLATE + " json")) return Boolean.TRUE;
+        throw terminalException("unknown segment options " + options);
+    }
+
+    /**
+     * Makes the next segment from its framed content, inflating it if compressed.
+     */
+    private InDoipSegment newSegment(boolean isJson, boolean deflated, InputStream content) {
+        currContent = content;
+        InputStream segmentInput = deflated ? SegmentCompression.inflating(content, compression) : content;
+        return new InDoipSegmentFromInputStream(isJson, segmentInput);
+    }
+
     private class SpliteratorImpl extends AbstractSpliterator<InDoipSegment> {
         public SpliteratorImpl() {
             super(Long.MAX_VALUE, Spliterator.IMMUTABLE | Spliterator.NONNULL | Spliterator.ORDERED);
@@ -111,11 +201,13 @@ public class InDoipMessageImpl implements InDoipMessage {
             if (terminalException != null) throw new UncheckedIOException(terminalException);
             if (isClosed) return false;
             try {
-                while (curr != null && curr.getInputStream().skip(Long.MAX_VALUE) > 0) { }
+                if (curr != null && curr.getInputStream() != currContent) curr.getInputStream().close();
+                while (curr != null && currContent.skip(Long.MAX_VALUE) > 0) { }
                 int ch = in.read();
                 if (ch == -1) {
                     throw terminalException("end of input before terminal empty segment");
                 }
+                if (binaryFraming) return advanceBinary(ch, action);
                 if (ch == '#') {
                     skipToNewline();
                     isClosed = true;
@@ -123,11 +215,11 @@ public class InDoipMessageImpl implements InDoipMessage {
                     return false;
                 }
                 if (ch == '@') {
-                    skipToNewline();
-                    curr = new InDoipSegmentFromInputStream(false, new ChunkedBytesInputStream());
+                    Boolean deflatedJson = readSegmentOptions();
+                    curr = newSegment(deflatedJson == Boolean.TRUE, deflatedJson != null, new ChunkedBytesInputStream());
                 } else {
                     in.unread(ch);
-                    curr = new InDoipSegmentFromInputStream(true, new HashTerminatedInputStream());
+                    curr = newSegment(true, false, new HashTerminatedInputStream());
                 }
                 action.accept(curr);
                 return true;
@@ -135,21 +227,95 @@ public class InDoipMessageImpl implements InDoipMessage {
                 throw new UncheckedIOException(e);
             }
         }
+
+        private boolean advanceBinary(int tag, Consumer<? super InDoipSegment> action) {
+            if (tag == OutDoipMessageImpl.BINARY_END) {
+                isClosed = true;
+                if (completer != null) completer.complete(null);
+                return false;
+            }
+            int type = tag & ~OutDoipMessageImpl.BINARY_DEFLATE;
+            if (type != OutDoipMessageImpl.BINARY_JSON && type != OutDoipMessageImpl.BINARY_BYTES) {
+                throw new UncheckedIOException(terminalException("unknown segment type " + tag));
+            }
+            curr = newSegment(type == OutDoipMessageImpl.BINARY_JSON, (tag & OutDoipMessageImpl.BINARY_DEFLATE) != 0, new ChunkedBytesInputStream());
+            action.accept(curr);
+            return true;
+        }
     }
 
+    /**
+     * The content of a bytes segment, or in binary framing of any segment, which arrives as a series of chunks each
+     * preceded by its size.
+     */
     private class ChunkedBytesInputStream extends InputStream {
         int currentSize = -1;
         boolean isDone;
 
         @Override
         public int read() throws IOException {
+            if (!startChunk()) return -1;
+            int res = in.read();
+            if (res < 0) throw terminalException("end of input while reading chunk");
+            currentSize--;
+            return res;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) return 0;
+            if (!startChunk()) return -1;
+            int n = in.read(b, off, Math.min(len, currentSize));
+            if (n < 0) throw terminalException("end of input while reading chunk");
+            currentSize -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long remaining = n;
+            while (remaining > 0 && startChunk()) {
+                // never more than currentSize, so the cast is exact
+                int skipped = (int) in.skip(Math.min(remaining, currentSize));
+                if (skipped <= 0) {
+                    // the underlying stream may decline to skip; reading a byte distinguishes that from end of input
+                    if (in.read() < 0) throw terminalException("end of input while reading chunk");
+                    skipped = 1;
+                }
+                currentSize -= skipped;
+                remaining -= skipped;
+            }
+            return n - remaining;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            byte[] buf = new byte[TRANSFER_BUFFER_SIZE];
+            long total = 0;
+            int n;
+            while ((n = read(buf, 0, buf.length)) > 0) {
+                out.write(buf, 0, n);
+                total += n;
+            }
+            return total;
+        }
+
+        /**
+         * Positions the input inside a chunk, reading the next chunk size if the current chunk is exhausted.
+         *
+         * @return false if the segment has ended
+         */
+        private boolean startChunk() throws IOException {
             if (terminalException != null) throw terminalException;
-            if (isDone) return -1;
-            if (currentSize > 0) {
-                int res = in.read();
-                currentSize--;
-                if (res < 0) throw terminalException("end of input while reading chunk");
-                return res;
+            if (isDone) return false;
+            if (currentSize > 0) return true;
+            if (binaryFraming) {
+                currentSize = readLength();
+                if (currentSize > 0) return true;
+                curr = null;
+                isDone = true;
+                return false;
             }
             if (currentSize == 0) {
                 skipToNewline();
@@ -160,22 +326,22 @@ public class InDoipMessageImpl implements InDoipMessage {
                 skipToNewline();
                 curr = null;
                 isDone = true;
-                return -1;
+                return false;
             }
             if (ch == '0') throw terminalException("zero at start of chunk size");
-            StringBuilder sb = new StringBuilder();
+            int size = 0;
+            int digits = 0;
             while (true) {
                 if (ch == -1) throw terminalException("end of input reading chunk size");
                 if (ch == '\n' || ch == ' ' || ch == '\t' || ch == '\r') {
-                    if (sb.length() == 0) throw terminalException("missing chunk size");
-                    currentSize = Integer.parseInt(sb.toString());
-                    if (currentSize <= 0) throw terminalException("overlong chunk size");
+                    if (digits == 0) throw terminalException("missing chunk size");
                     if (ch != '\n') skipToNewline();
-                    return read();
+                    currentSize = size;
+                    return true;
                 }
                 if (ch < '0' || ch > '9') throw terminalException("unexpected character in chunk size");
-                sb.append((char)ch);
-                if (sb.length() >= String.valueOf(Integer.MAX_VALUE).length()) throw terminalException("overlong chunk size");
+                if (++digits >= MAX_CHUNK_SIZE_DIGITS) throw terminalException("overlong chunk size");
+                size = size * 10 + (ch - '0');
                 ch = in.read();
             }
         }
@@ -208,6 +374,34 @@ public class InDoipMessageImpl implements InDoipMessage {
             return ch;
         }
 
+        /**
+         * Reads byte by byte from the underlying stream, since reading past the terminator would consume the following
+         * segment, but without per-byte overhead for the caller, and without blocking once some bytes have been read
+         * and no more are available.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) return 0;
+            if (terminalException != null) throw terminalException;
+            if (isDone) return -1;
+            int n = 0;
+            while (n < len) {
+                if (n > 0 && in.available() <= 0) break;
+                int ch = in.read();
+                if (ch == -1) throw terminalException("end of input reading JSON segment");
+                if (ch == '#' && sawNewline) {
+                    skipToNewline();
+                    curr = null;
+                    isDone = true;
+                    break;
+                }
+                sawNewline = ch == '\n';
+                b[off + n++] = (byte) ch;
+            }
+            return n == 0 ? -1 : n;
+        }
+
         @Override
         public void close() throws IOException {
             while (!isDone) skip(Long.MAX_VALUE);
@@ -49,4 +49,11 @@ public class InDoipSegmentFromInputStream implements InDoipSegment {
             throw new BadDoipException("invalid JSON", e);
         }
     }
+
+    /**
+     * Returns the JSON if {@link #getJson()} has already parsed it, otherwise null.
+     */
+    JsonElement getParsedJson() {
+        return json;
+    }
 }
@@ -1,9 +1,14 @@
 package xly.doip;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import com.google.gson.JsonElement;
 
@@ -60,6 +65,37 @@ public interface OutDoipMessage extends AutoCloseable {
      */
     void writeBytes(InputStream in) throws IOException;
 
+    /**
+     * Writes a region of a file as a bytes segment into the outgoing message.  Where the connection allows it,
+     * the bytes are sent directly from the file by the kernel, without being copied through the heap.
+     * By default the region is read with positional reads and written with {@link #writeBytes(InputStream)}.
+     *
+     * @param channel the file
+     * @param position the position in the file of the first byte of the segment
+     * @param count the number of bytes in the segment
+     * @throws IOException
+     */
+    default void writeBytes(FileChannel channel, long position, long count) throws IOException {
+        if (channel == null) throw new NullPointerException();
+        if (position < 0 || count < 0) throw new IllegalArgumentException("negative position or count");
+        writeBytes(regionInputStream(channel, position, count));
+    }
+
+    /**
+     * Writes a region of a file as a bytes segment into the outgoing message.  Where the connection allows it,
+     * the bytes are sent directly from the file by the kernel, without being copied through the heap.
+     *
+     * @param path the file
+     * @param position the position in the file of the first byte of the segment
+     * @param count the number of bytes in the segment
+     * @throws IOException
+     */
+    default void writeBytes(Path path, long position, long count) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            writeBytes(channel, position, count);
+        }
+    }
+
     /**
      * Returns an {@code OutputStream} that can be used to write to a bytes segment.
      *
@@ -68,6 +104,42 @@ public interface OutDoipMessage extends AutoCloseable {
      */
     OutputStream getBytesOutputStream() throws IOException;
 
+    /**
+     * Sends everything written so far, including any buffered part of an open bytes segment.  Implementations may
+     * otherwise hold back output until the message is closed.  By default does nothing.
+     *
+     * @throws IOException
+     */
+    default void flush() throws IOException {
+    }
+
     @Override
     void close() throws IOException;
+
+    /**
+     * Reads a region of a file with positional reads, leaving the channel's position unchanged.
+     */
+    private static InputStream regionInputStream(FileChannel channel, long position, long count) {
+        return new InputStream() {
+            private long next = position;
+            private long remaining = count;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (remaining == 0) return -1;
+                int r = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), next);
+                if (r < 0) throw new EOFException("end of file before end of region");
+                next += r;
+                remaining -= r;
+                return r;
+            }
+        };
+    }
 }
\ No newline at end of file
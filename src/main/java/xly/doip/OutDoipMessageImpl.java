@@ -1,28 +1,77 @@
 package xly.doip;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
 
 import com.google.gson.JsonElement;
 
 /**
  * An implementation of {@link OutDoipMessage} which writes a serialized DOIP message into an {@code OutputStream}.
+ * <p>
+ * By default the stream is flushed after each segment.  In coalescing mode it is only flushed when the message is
+ * closed, when {@link #flush()} is called, or before a file region is handed to a {@link FileTransferTarget}, so
+ * that with a buffered stream a whole response can reach the socket in a few large writes.
+ * <p>
+ * Messages are written in the text framing of the DOIP specification unless binary framing is requested, which a
+ * connection can switch to after {@code Op.Hello} with the attribute {@code "framing": "binary-1"} (see
+ * {@link DoipConstants#FRAMING_ATT}).  In binary framing each segment starts with a type byte, {@value #BINARY_JSON}
+ * for JSON or {@value #BINARY_BYTES} for bytes, followed by chunks each preceded by its size as a 4-byte big-endian
+ * integer, and ends with a size of zero; the message ends with the type byte {@value #BINARY_END}.  Neither the
+ * writer nor the reader then has to scan for terminators or format and parse sizes in decimal.
+ * <p>
+ * With {@link #setCompression(SegmentCompression)}, segments after the initial one may be deflated.  A compressed
+ * segment is sent as a series of chunks, like a bytes segment, starting with {@code @deflate} for bytes or
+ * {@code @deflate json} for JSON in text framing, and in binary framing with the type byte combined with
+ * {@value #BINARY_DEFLATE}.
  */
 public class OutDoipMessageImpl implements OutDoipMessage {
 
     private static final byte[] SEGMENT_TERMINATOR = { '\n', '#', '\n' };
     private static final byte[] EMPTY_SEGMENT = { '#', '\n' };
+    private static final byte[] BINARY_SEGMENT_TERMINATOR = { 0, 0, 0, 0 };
+
+    /**
+     * The type bytes of binary framing, which start each segment or end the message.
+     */
+    public static final int BINARY_END = 0;
+    public static final int BINARY_JSON = 1;
+    public static final int BINARY_BYTES = 2;
+
+    /**
+     * Combined with the type byte of a segment in binary framing whose content is compressed.
+     */
+    public static final int BINARY_DEFLATE = 0x10;
+
+    private static final byte[] DEFLATE_BYTES_START = "@deflate".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEFLATE_JSON_START = "@deflate json".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_FILE_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_CHUNK_SIZE = 8192;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_BUFFERED_CHUNK_SIZE = 64 * 1024;
 
     private final OutputStream out;
+    private final FileTransferTarget transferTarget;
+    private final boolean coalesceFlushes;
+    private final boolean binaryFraming;
+    // '\n', up to 10 digits, '\n'; or 4 bytes in binary framing
+    private final byte[] chunkHeader = new byte[12];
+    private byte[] chunkBuffer;
     private boolean isClosed;
     private Closeable openCloseable;
+    private SegmentCompression compression;
+    private boolean startedInitialSegment;
 
     /**
      * Constructs an {@link OutDoipMessage} which will write a serialized DOIP message into the supplied {@code OutputStream}.
@@ -30,7 +79,69 @@ public class OutDoipMessageImpl implements OutDoipMessage {
      * @param out the stream into which to write the serialized DOIP message
      */
     public OutDoipMessageImpl(OutputStream out) {
+        this(out, null);
+    }
+
+    /**
+     * Constructs an {@link OutDoipMessage} which will write a serialized DOIP message into the supplied {@code OutputStream},
+     * sending file regions written with {@link #writeBytes(FileChannel, long, long)} directly to the supplied target.
+     *
+     * @param out the stream into which to write the serialized DOIP message
+     * @param transferTarget the destination underlying {@code out}, which will be written after {@code out} is flushed; may be null
+     */
+    public OutDoipMessageImpl(OutputStream out, FileTransferTarget transferTarget) {
+        this(out, transferTarget, false);
+    }
+
+    /**
+     * Constructs an {@link OutDoipMessage} which will write a serialized DOIP message into the supplied {@code OutputStream},
+     * optionally in coalescing mode.
+     *
+     * @param out the stream into which to write the serialized DOIP message; should be buffered when coalescing
+     * @param transferTarget the destination underlying {@code out}, which will be written after {@code out} is flushed; may be null
+     * @param coalesceFlushes if true, {@code out} is only flushed when the message is closed or {@link #flush()} is called,
+     *                        rather than after every segment
+     */
+    public OutDoipMessageImpl(OutputStream out, FileTransferTarget transferTarget, boolean coalesceFlushes) {
+        this(out, transferTarget, coalesceFlushes, false);
+    }
+
+    /**
+     * Constructs an {@link OutDoipMessage} which will write a serialized DOIP message into the supplied {@code OutputStream},
+     * optionally in coalescing mode and in binary framing.
+     *
+     * @param out the stream into which to write the serialized DOIP message; should be buffered when coalescing
+     * @param transferTarget the destination underlying {@code out}, which will be written after {@code out} is flushed; may be null
+     * @param coalesceFlushes if true, {@code out} is only flushed when the message is closed or {@link #flush()} is called,
+     *                        rather than after every segment
+     * @param binaryFraming if true, the message is written in binary framing, otherwise in text framing
+     */
+    public OutDoipMessageImpl(OutputStream out, FileTransferTarget transferTarget, boolean coalesceFlushes, boolean binaryFraming) {
         this.out = out;
+        this.transferTarget = transferTarget;
+        this.coalesceFlushes = coalesceFlushes;
+        this.binaryFraming = binaryFraming;
+    }
+
+    /**
+     * Compresses the segments after the initial one which are large enough and compress well, recording statistics in
+     * the supplied {@code SegmentCompression}.  Only to be used when the peer has asked for compressed segments.
+     *
+     * @param compression the compression settings and statistics; null to stop compressing
+     */
+    public void setCompression(SegmentCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns true if the segment about to be written should be considered for compression.
+     */
+    private boolean startSegment() {
+        if (!startedInitialSegment) {
+            startedInitialSegment = true;
+            return false;
+        }
+        return compression != null;
     }
 
     @Override
@@ -52,16 +163,41 @@ public class OutDoipMessageImpl implements OutDoipMessage {
         if (json == null) throw new NullPointerException();
         if (isClosed) throw new IllegalStateException("closed");
         if (openCloseable != null) throw new IllegalStateException("already opened segment output stream or writer");
-        out.write(json);
-        out.write(SEGMENT_TERMINATOR);
-        out.flush();
+        if (startSegment()) {
+            if (json.length >= compression.getThreshold()) {
+                CompressingSegmentOutputStream segment = new CompressingSegmentOutputStream(true);
+                segment.write(json);
+                segment.close();
+                return;
+            }
+            compression.segmentTooSmall();
+        }
+        if (binaryFraming) {
+            out.write(BINARY_JSON);
+            if (json.length > 0) writeChunkString(json.length);
+            out.write(json);
+            out.write(BINARY_SEGMENT_TERMINATOR);
+        } else {
+            out.write(json);
+            out.write(SEGMENT_TERMINATOR);
+        }
+        flushSegment();
     }
 
     @Override
     public Writer getJsonWriter() {
         if (isClosed) throw new IllegalStateException("closed");
         if (openCloseable != null) throw new IllegalStateException("already opened segment output stream or writer");
-        Writer writer = new JsonSegmentWriter(out);
+        JsonSegmentWriter writer;
+        if (startSegment()) {
+            CompressingSegmentOutputStream segment = new CompressingSegmentOutputStream(true);
+            writer = new JsonSegmentWriter(segment, segment);
+        } else if (binaryFraming) {
+            BytesSegmentOutputStream chunks = new BytesSegmentOutputStream(true);
+            writer = new JsonSegmentWriter(chunks, chunks);
+        } else {
+            writer = new JsonSegmentWriter(coalesceFlushes ? new UnflushedOutputStream(out) : out, null);
+        }
         openCloseable = writer;
         return new BufferedWriter(writer);
     }
@@ -71,41 +207,169 @@ public class OutDoipMessageImpl implements OutDoipMessage {
         if (bytes == null) throw new NullPointerException();
         if (isClosed) throw new IllegalStateException("closed");
         if (openCloseable != null) throw new IllegalStateException("already opened segment output stream or writer");
-        out.write('@');
-        writeChunkString(bytes.length);
+        if (startSegment()) {
+            if (bytes.length >= compression.getThreshold()) {
+                CompressingSegmentOutputStream segment = new CompressingSegmentOutputStream(false);
+                segment.write(bytes);
+                segment.close();
+                return;
+            }
+            compression.segmentTooSmall();
+        }
+        writeBytesSegmentStart();
+        if (bytes.length > 0 || !binaryFraming) writeChunkString(bytes.length);
         out.write(bytes);
-        out.write(SEGMENT_TERMINATOR);
-        out.flush();
+        writeSegmentTerminator();
+        flushSegment();
     }
 
     @Override
     public void writeBytes(InputStream in) throws IOException {
         if (isClosed) throw new IllegalStateException("closed");
         if (openCloseable != null) throw new IllegalStateException("already opened segment output stream or writer");
-        out.write('@');
-        byte[] bytes = new byte[8192];
+        if (startSegment()) {
+            CompressingSegmentOutputStream segment = new CompressingSegmentOutputStream(false);
+            in.transferTo(segment);
+            segment.close();
+            return;
+        }
+        writeBytesSegmentStart();
+        if (chunkBuffer == null) chunkBuffer = new byte[INITIAL_CHUNK_SIZE];
         int r;
-        while ((r = in.read(bytes)) > 0) {
+        while ((r = in.read(chunkBuffer)) > 0) {
             writeChunkString(r);
-            out.write(bytes, 0, r);
+            out.write(chunkBuffer, 0, r);
+            // the source keeps filling the buffer, so fewer, larger chunks will do
+            if (r == chunkBuffer.length && chunkBuffer.length < MAX_CHUNK_SIZE) {
+                chunkBuffer = new byte[chunkBuffer.length * 2];
+            }
         }
-        out.write(SEGMENT_TERMINATOR);
-        out.flush();
+        writeSegmentTerminator();
+        flushSegment();
+    }
+
+    @Override
+    public void writeBytes(FileChannel channel, long position, long count) throws IOException {
+        if (channel == null) throw new NullPointerException();
+        if (position < 0 || count < 0) throw new IllegalArgumentException("negative position or count");
+        if (isClosed) throw new IllegalStateException("closed");
+        if (openCloseable != null) throw new IllegalStateException("already opened segment output stream or writer");
+        if (startSegment()) {
+            if (count < compression.getThreshold()) {
+                compression.segmentTooSmall();
+            } else if (sampleCompresses(channel, position, count)) {
+                CompressingSegmentOutputStream segment = new CompressingSegmentOutputStream(false);
+                FileTransferTarget.copy(channel, position, count, segment);
+                segment.close();
+                return;
+            }
+        }
+        writeBytesSegmentStart();
+        long end = position + count;
+        while (position < end) {
+            int chunkSize = (int) Math.min(end - position, MAX_FILE_CHUNK_SIZE);
+            writeChunkString(chunkSize);
+            if (transferTarget != null) {
+                out.flush();
+                transferTarget.transferFrom(channel, position, chunkSize);
+            } else {
+                FileTransferTarget.copy(channel, position, chunkSize, out);
+            }
+            position += chunkSize;
+        }
+        writeSegmentTerminator();
+        flushSegment();
+    }
+
+    /**
+     * Decides whether a file region is worth compressing from its first {@value SegmentCompression#SAMPLE_SIZE}
+     * bytes, so that one which is not can still be sent without copying.
+     */
+    private boolean sampleCompresses(FileChannel channel, long position, long count) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(count, SegmentCompression.SAMPLE_SIZE));
+        while (sample.hasRemaining()) {
+            int r = channel.read(sample, position + sample.position());
+            if (r < 0) break;
+        }
+        long start = SegmentCompression.cpuNanos();
+        Deflater deflater = compression.acquireDeflater();
+        try {
+            if (deflateSample(deflater, sample.array(), sample.position(), new byte[sample.position()]) >= 0) return true;
+        } finally {
+            compression.releaseDeflater(deflater);
+        }
+        compression.segmentIncompressible(SegmentCompression.cpuNanos() - start);
+        return false;
+    }
+
+    /**
+     * Deflates the start of a segment, returning the size of the output, or -1 if it did not shrink enough for the
+     * segment to be worth compressing.  Sync-flushes so that all of the output is available.
+     */
+    private static int deflateSample(Deflater deflater, byte[] sample, int len, byte[] output) {
+        int limit = (int) (len * SegmentCompression.MAX_COMPRESSED_FRACTION);
+        deflater.setInput(sample, 0, len);
+        int n = deflater.deflate(output, 0, limit, Deflater.SYNC_FLUSH);
+        return n < limit ? n : -1;
+    }
+
+    private void writeBytesSegmentStart() throws IOException {
+        out.write(binaryFraming ? BINARY_BYTES : '@');
+    }
+
+    private void writeSegmentTerminator() throws IOException {
+        out.write(binaryFraming ? BINARY_SEGMENT_TERMINATOR : SEGMENT_TERMINATOR);
     }
 
     private void writeChunkString(int size) throws IOException {
-        String chunkString = "\n" + size + "\n";
-        out.write(chunkString.getBytes(StandardCharsets.US_ASCII));
+        if (binaryFraming) {
+            chunkHeader[0] = (byte) (size >>> 24);
+            chunkHeader[1] = (byte) (size >>> 16);
+            chunkHeader[2] = (byte) (size >>> 8);
+            chunkHeader[3] = (byte) size;
+            out.write(chunkHeader, 0, 4);
+            return;
+        }
+        int pos = chunkHeader.length;
+        chunkHeader[--pos] = '\n';
+        do {
+            chunkHeader[--pos] = (byte) ('0' + size % 10);
+            size /= 10;
+        } while (size > 0);
+        chunkHeader[--pos] = '\n';
+        out.write(chunkHeader, pos, chunkHeader.length - pos);
+    }
+
+    private void flushSegment() throws IOException {
+        if (!coalesceFlushes) out.flush();
+    }
+
+    /**
+     * Flushes everything written so far to the underlying stream, including any buffered part of an open bytes segment.
+     * Needed only in coalescing mode, by a writer which wants the peer to see part of the message before it is closed.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (isClosed) throw new IllegalStateException("closed");
+        if (openCloseable instanceof Flushable) ((Flushable) openCloseable).flush();
+        out.flush();
     }
 
     @Override
     public OutputStream getBytesOutputStream() throws IOException {
         if (isClosed) throw new IllegalStateException("closed");
         if (openCloseable != null) throw new IllegalStateException("already opened segment output stream or writer");
-        out.write('@');
-        OutputStream output = new BytesSegmentOutputStream();
+        OutputStream output;
+        if (startSegment()) {
+            output = new CompressingSegmentOutputStream(false);
+        } else {
+            writeBytesSegmentStart();
+            output = new BytesSegmentOutputStream(false);
+        }
         openCloseable = output;
-        return new BufferedOutputStream(output);
+        return output;
     }
 
     /**
@@ -126,13 +390,18 @@ public class OutDoipMessageImpl implements OutDoipMessage {
             openCloseable.close();
         }
         isClosed = true;
-        out.write(EMPTY_SEGMENT);
+        if (binaryFraming) out.write(BINARY_END);
+        else out.write(EMPTY_SEGMENT);
         out.flush();
     }
 
     private class JsonSegmentWriter extends OutputStreamWriter {
-        private JsonSegmentWriter(OutputStream out) {
+        // in binary framing or when compressing, the stream into which the JSON is collected and which ends the segment
+        private final OutputStream chunks;
+
+        private JsonSegmentWriter(OutputStream out, OutputStream chunks) {
             super(out);
+            this.chunks = chunks;
         }
 
         @Override
@@ -193,52 +462,285 @@ public class OutDoipMessageImpl implements OutDoipMessage {
         public void close() throws IOException {
             if (isClosed) throw new IllegalStateException("closed");
             flush();
+            if (chunks != null) {
+                chunks.close();
+                return;
+            }
             out.write(SEGMENT_TERMINATOR);
-            out.flush();
+            flushSegment();
             openCloseable = null;
         }
     }
 
+    /**
+     * Collects small writes into chunks, starting at {@value #INITIAL_CHUNK_SIZE} bytes and growing up to
+     * {@value #MAX_BUFFERED_CHUNK_SIZE} bytes while the writer keeps filling them; larger writes become a single chunk.
+     * In binary framing, also collects the output of {@link #getJsonWriter()}, whose type byte it writes before the
+     * first chunk, since the writer cannot throw when it is opened.
+     */
     private class BytesSegmentOutputStream extends OutputStream {
+        private final boolean json;
+        private boolean started;
+        private byte[] buf = new byte[INITIAL_CHUNK_SIZE];
+        private int count;
+        private boolean segmentClosed;
+
+        BytesSegmentOutputStream(boolean json) {
+            this.json = json;
+            // the bytes segment type was written when the stream was opened
+            this.started = !json;
+        }
+
+        private void start() throws IOException {
+            if (started) return;
+            started = true;
+            out.write(BINARY_JSON);
+        }
+
         @Override
         public void write(int b) throws IOException {
-            if (isClosed) throw new IllegalStateException("closed");
-            writeChunkString(1);
-            out.write(b);
+            ensureOpen();
+            if (count == buf.length) writePendingChunk();
+            buf[count++] = (byte) b;
         }
 
         @Override
-        public void write(byte[] b) throws IOException {
+        public void write(byte[] b, int off, int len) throws IOException {
             if (b == null) throw new NullPointerException();
+            ensureOpen();
+            if (len == 0) return;
+            if (len <= buf.length - count) {
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+                return;
+            }
+            writePendingChunk();
+            if (len < buf.length) {
+                System.arraycopy(b, off, buf, 0, len);
+                count = len;
+            } else {
+                start();
+                writeChunkString(len);
+                out.write(b, off, len);
+            }
+        }
+
+        private void writePendingChunk() throws IOException {
+            if (count == 0) return;
+            start();
+            writeChunkString(count);
+            out.write(buf, 0, count);
+            if (count == buf.length && buf.length < MAX_BUFFERED_CHUNK_SIZE) {
+                buf = new byte[buf.length * 2];
+            }
+            count = 0;
+        }
+
+        private void ensureOpen() {
             if (isClosed) throw new IllegalStateException("closed");
-            if (b.length == 0) return;
-            writeChunkString(b.length);
-            out.write(b);
+            if (segmentClosed) throw new IllegalStateException("segment closed");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            writePendingChunk();
+            // like the text JSON writer, leaves flushing to the message when coalescing
+            if (!json || !coalesceFlushes) out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (segmentClosed) return;
+            if (isClosed) throw new IllegalStateException("closed");
+            start();
+            writePendingChunk();
+            segmentClosed = true;
+            writeSegmentTerminator();
+            flushSegment();
+            openCloseable = null;
+        }
+    }
+
+    /**
+     * Writes a segment which may be compressed.  The first {@value SegmentCompression#SAMPLE_SIZE} bytes are held
+     * back until it is known whether the segment is large enough, and whether they compress well; if not, the
+     * segment is written as it would have been without compression.  In coalescing mode, flushes of a JSON segment are
+     * ignored as they are for the other JSON writers.
+     */
+    private class CompressingSegmentOutputStream extends OutputStream {
+        private final boolean json;
+        // until the segment is known to be worth compressing or not
+        private byte[] sample = new byte[SegmentCompression.SAMPLE_SIZE];
+        private int count;
+        // if not worth compressing: the chunks of a bytes segment or binary JSON segment
+        private BytesSegmentOutputStream raw;
+        // if not worth compressing: a text JSON segment, written directly
+        private boolean rawText;
+        private Deflater deflater;
+        private byte[] deflated;
+        private long nanos;
+        private boolean segmentClosed;
+
+        CompressingSegmentOutputStream(boolean json) {
+            this.json = json;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
             if (b == null) throw new NullPointerException();
-            if (isClosed) throw new IllegalStateException("closed");
+            ensureOpen();
+            if (sample != null) {
+                int n = Math.min(len, sample.length - count);
+                System.arraycopy(b, off, sample, count, n);
+                count += n;
+                if (count < sample.length) return;
+                decide();
+                off += n;
+                len -= n;
+            }
             if (len == 0) return;
-            writeChunkString(len);
-            out.write(b, off, len);
+            if (raw != null) raw.write(b, off, len);
+            else if (rawText) out.write(b, off, len);
+            else deflate(b, off, len);
+        }
+
+        private void decide() throws IOException {
+            byte[] pending = sample;
+            sample = null;
+            if (count < compression.getThreshold()) {
+                compression.segmentTooSmall();
+                startRaw(pending);
+                return;
+            }
+            long start = SegmentCompression.cpuNanos();
+            Deflater candidate = compression.acquireDeflater();
+            byte[] output = new byte[MAX_BUFFERED_CHUNK_SIZE];
+            int n = deflateSample(candidate, pending, count, output);
+            if (n < 0) {
+                compression.releaseDeflater(candidate);
+                compression.segmentIncompressible(SegmentCompression.cpuNanos() - start);
+                startRaw(pending);
+                return;
+            }
+            deflater = candidate;
+            deflated = output;
+            nanos = SegmentCompression.cpuNanos() - start;
+            if (binaryFraming) out.write((json ? BINARY_JSON : BINARY_BYTES) | BINARY_DEFLATE);
+            else out.write(json ? DEFLATE_JSON_START : DEFLATE_BYTES_START);
+            if (n > 0) {
+                writeChunkString(n);
+                out.write(output, 0, n);
+            }
+        }
+
+        private void startRaw(byte[] pending) throws IOException {
+            if (json && !binaryFraming) {
+                rawText = true;
+                out.write(pending, 0, count);
+                return;
+            }
+            if (!json) writeBytesSegmentStart();
+            raw = new BytesSegmentOutputStream(json);
+            raw.write(pending, 0, count);
+        }
+
+        private void deflate(byte[] b, int off, int len) throws IOException {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                writeDeflated(Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Writes the output of one call to the deflater as a chunk, returning true if there may be more.
+         */
+        private boolean writeDeflated(int flush) throws IOException {
+            long start = SegmentCompression.cpuNanos();
+            int n = deflater.deflate(deflated, 0, deflated.length, flush);
+            nanos += SegmentCompression.cpuNanos() - start;
+            if (n > 0) {
+                writeChunkString(n);
+                out.write(deflated, 0, n);
+            }
+            return n == deflated.length;
+        }
+
+        private void ensureOpen() {
+            if (isClosed) throw new IllegalStateException("closed");
+            if (segmentClosed) throw new IllegalStateException("segment closed");
         }
 
         @Override
         public void flush() throws IOException {
-            if (isClosed) throw new IllegalStateException("closed");
-            super.flush();
+            ensureOpen();
+            if (json && coalesceFlushes) {
+                if (raw != null) raw.flush();
+                return;
+            }
+            if (sample != null) decide();
+            if (raw != null) {
+                raw.flush();
+                return;
+            }
+            if (deflater != null) {
+                while (writeDeflated(Deflater.SYNC_FLUSH)) { }
+            }
+            out.flush();
         }
 
         @Override
         public void close() throws IOException {
+            if (segmentClosed) return;
             if (isClosed) throw new IllegalStateException("closed");
-            flush();
-            out.write(SEGMENT_TERMINATOR);
-            out.flush();
-            super.close();
+            if (sample != null) decide();
+            segmentClosed = true;
+            if (raw != null) {
+                raw.close();
+                return;
+            }
+            if (rawText) {
+                out.write(SEGMENT_TERMINATOR);
+            } else {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    writeDeflated(Deflater.NO_FLUSH);
+                }
+                compression.segmentCompressed(deflater.getBytesRead(), deflater.getBytesWritten(), nanos);
+                compression.releaseDeflater(deflater);
+                deflater = null;
+                writeSegmentTerminator();
+            }
+            flushSegment();
             openCloseable = null;
         }
     }
+
+    /**
+     * Passes writes through to the message's stream but ignores flushes, so that the {@code OutputStreamWriter} under
+     * {@link #getJsonWriter()} cannot defeat coalescing.
+     */
+    private static class UnflushedOutputStream extends FilterOutputStream {
+        UnflushedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
@@ -0,0 +1,269 @@
+package xly.doip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import xly.doip.util.PrometheusText;
+
+/**
+ * Settings and statistics for the compression of DOIP segments with {@link Deflater}, shared by the messages of a
+ * server or client.
+ * <p>
+ * A peer which can read compressed segments says so with the attribute {@code "compression": "deflate"} (see
+ * {@link DoipConstants#COMPRESSION_ATT}): a client on its requests, asking for compressed responses, and a server on
+ * its responses, after which the client also compresses its requests on that connection.  Only segments after the
+ * initial one are compressed, so headers always remain readable, and then only those of at least
+ * {@link #getThreshold()} bytes whose first {@value #SAMPLE_SIZE} bytes deflate to less than
+ * {@value #MAX_COMPRESSED_FRACTION} of their size; anything else, such as images or archives, goes out as it is.
+ * {@link InDoipMessageImpl} reads compressed segments whether or not it has been given a {@code SegmentCompression},
+ * which it only needs to record statistics.
+ * <p>
+ * Time spent deflating and inflating is measured as CPU time of the calling thread where the JVM supports it.
+ */
+public class SegmentCompression {
+    /**
+     * The number of bytes of a segment compressed to decide whether it is worth compressing.
+     */
+    public static final int SAMPLE_SIZE = 8192;
+
+    /**
+     * A segment whose sample compresses to more than this fraction of its size is sent uncompressed.
+     */
+    public static final double MAX_COMPRESSED_FRACTION = 0.9;
+
+    private static final int MAX_POOLED = 64;
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+
+    private final int level;
+    private final int threshold;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private final AtomicInteger pooledInflaters = new AtomicInteger();
+
+    private final LongAdder compressedSegments = new LongAdder();
+    private final LongAdder smallSegments = new LongAdder();
+    private final LongAdder incompressibleSegments = new LongAdder();
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+    private final LongAdder bytesAfterCompression = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    private final LongAdder decompressedSegments = new LongAdder();
+    private final LongAdder bytesBeforeDecompression = new LongAdder();
+    private final LongAdder bytesAfterDecompression = new LongAdder();
+    private final LongAdder decompressionNanos = new LongAdder();
+
+    /**
+     * Constructs a {@code SegmentCompression}.
+     *
+     * @param level the {@link Deflater} level, from 1 ({@link Deflater#BEST_SPEED}) to 9
+     *              ({@link Deflater#BEST_COMPRESSION}), or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param threshold the size in bytes below which segments are not compressed, at most {@value #SAMPLE_SIZE}
+     */
+    public SegmentCompression(int level, int threshold) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        this.level = level;
+        this.threshold = Math.max(0, Math.min(threshold, SAMPLE_SIZE));
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    Deflater acquireDeflater() {
+        Deflater res = deflaters.poll();
+        if (res == null) return new Deflater(level);
+        pooledDeflaters.decrementAndGet();
+        return res;
+    }
+
+    void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (pooledDeflaters.incrementAndGet() <= MAX_POOLED) {
+            deflaters.offer(deflater);
+        } else {
+            pooledDeflaters.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private Inflater acquireInflater() {
+        Inflater res = inflaters.poll();
+        if (res == null) return new Inflater();
+        pooledInflaters.decrementAndGet();
+        return res;
+    }
+
+    private void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (pooledInflaters.incrementAndGet() <= MAX_POOLED) {
+            inflaters.offer(inflater);
+        } else {
+            pooledInflaters.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns the CPU time of the current thread, or the wall-clock time if the JVM cannot measure CPU time, in
+     * nanoseconds; only differences between two calls are meaningful.
+     */
+    static long cpuNanos() {
+        return cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    void segmentCompressed(long before, long after, long nanos) {
+        compressedSegments.increment();
+        bytesBeforeCompression.add(before);
+        bytesAfterCompression.add(after);
+        compressionNanos.add(nanos);
+    }
+
+    void segmentTooSmall() {
+        smallSegments.increment();
+    }
+
+    /**
+     * Records a segment sent uncompressed after its sample did not compress well, along with the time spent finding out.
+     */
+    void segmentIncompressible(long nanos) {
+        incompressibleSegments.increment();
+        compressionNanos.add(nanos);
+    }
+
+    /**
+     * Returns a stream inflating a compressed segment, recording statistics in {@code compression} if not null.
+     */
+    static InputStream inflating(InputStream in, SegmentCompression compression) {
+        if (compression == null) return new InflatingInputStream(in, new Inflater(), null);
+        return new InflatingInputStream(in, compression.acquireInflater(), compression);
+    }
+
+    public long getCompressedSegments() {
+        return compressedSegments.sum();
+    }
+
+    /**
+     * Returns the ratio of the size of compressed segments before compression to their size after, or 0 if none have
+     * been compressed.
+     */
+    public double getCompressionRatio() {
+        long after = bytesAfterCompression.sum();
+        return after == 0 ? 0 : (double) bytesBeforeCompression.sum() / after;
+    }
+
+    /**
+     * Returns the counters of compression and decompression, for metrics.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> res = new LinkedHashMap<>();
+        res.put("compressedSegments", compressedSegments.sum());
+        res.put("smallSegments", smallSegments.sum());
+        res.put("incompressibleSegments", incompressibleSegments.sum());
+        res.put("bytesBeforeCompression", bytesBeforeCompression.sum());
+        res.put("bytesAfterCompression", bytesAfterCompression.sum());
+        res.put("compressionNanos", compressionNanos.sum());
+        res.put("decompressedSegments", decompressedSegments.sum());
+        res.put("bytesBeforeDecompression", bytesBeforeDecompression.sum());
+        res.put("bytesAfterDecompression", bytesAfterDecompression.sum());
+        res.put("decompressionNanos", decompressionNanos.sum());
+        return res;
+    }
+
+    /**
+     * Writes the counters in the Prometheus text format, with metric names starting with {@code prefix}.
+     */
+    public void scrape(PrometheusText text, String prefix) {
+        String segments = prefix + "_compression_segments_total";
+        text.family(segments, "counter", "Segments after the initial one which could have been compressed, by outcome.");
+        text.sample(segments, compressedSegments.sum(), "outcome", "compressed");
+        text.sample(segments, smallSegments.sum(), "outcome", "small");
+        text.sample(segments, incompressibleSegments.sum(), "outcome", "incompressible");
+        text.family(prefix + "_compression_bytes_in_total", "counter", "Bytes of compressed segments before compression.")
+            .sample(prefix + "_compression_bytes_in_total", bytesBeforeCompression.sum());
+        text.family(prefix + "_compression_bytes_out_total", "counter", "Bytes of compressed segments after compression.")
+            .sample(prefix + "_compression_bytes_out_total", bytesAfterCompression.sum());
+        text.family(prefix + "_compression_cpu_seconds_total", "counter", "CPU time spent compressing, including samples which did not compress.")
+            .sample(prefix + "_compression_cpu_seconds_total", compressionNanos.sum() / 1e9);
+        text.family(prefix + "_decompression_segments_total", "counter", "Compressed segments received.")
+            .sample(prefix + "_decompression_segments_total", decompressedSegments.sum());
+        text.family(prefix + "_decompression_bytes_in_total", "counter", "Bytes of compressed segments received, as sent.")
+            .sample(prefix + "_decompression_bytes_in_total", bytesBeforeDecompression.sum());
+        text.family(prefix + "_decompression_bytes_out_total", "counter", "Bytes of compressed segments received, after decompression.")
+            .sample(prefix + "_decompression_bytes_out_total", bytesAfterDecompression.sum());
+        text.family(prefix + "_decompression_cpu_seconds_total", "counter", "CPU time spent decompressing.")
+            .sample(prefix + "_decompression_cpu_seconds_total", decompressionNanos.sum() / 1e9);
+    }
+
+    /**
+     * Inflates a compressed segment, returning its inflater to the pool at the end of the segment or when closed.
+     * The segment's own stream is left for {@link InDoipMessageImpl} to drain.
+     */
+    private static class InflatingInputStream extends InflaterInputStream {
+        private final SegmentCompression compression;
+        private boolean released;
+
+        InflatingInputStream(InputStream in, Inflater inflater, SegmentCompression compression) {
+            super(in, inflater, SAMPLE_SIZE);
+            this.compression = compression;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (released) return -1;
+            long start = compression == null ? 0 : cpuNanos();
+            int n = super.read(b, off, len);
+            if (compression != null) compression.decompressionNanos.add(cpuNanos() - start);
+            if (n < 0) release();
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (released) return 0;
+            return super.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (released) return 0;
+            return super.available();
+        }
+
+        private void release() {
+            if (released) return;
+            released = true;
+            if (compression == null) {
+                inf.end();
+                return;
+            }
+            if (inf.finished()) {
+                compression.decompressedSegments.increment();
+                compression.bytesBeforeDecompression.add(inf.getBytesRead());
+                compression.bytesAfterDecompression.add(inf.getBytesWritten());
+            }
+            compression.releaseInflater(inf);
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package xly.doip.client;
+
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+
+import xly.doip.DoipConstants;
+import xly.doip.DoipRequestHeaders;
+import xly.doip.InDoipMessage;
+import xly.doip.InDoipSegment;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.client.transport.DoipConnection;
+import xly.doip.util.GsonUtility;
+import xly.doip.util.InDoipMessageUtil;
+
+/**
+ * An asynchronous counterpart of {@link DoipClient}, whose operations return at once with a {@link CompletableFuture}
+ * and use the connection pools and handle resolution of the wrapped client.  No thread waits for a response: the
+ * response is parsed by the thread reading from the connection, and the returned future is then completed on the
+ * callback executor, so that dependent actions cannot hold up the connection.
+ * <p>
+ * A future failed by the operation fails with a {@link DoipException}.  Completing the returned future before the
+ * response arrives, whether by {@link CompletableFuture#cancel(boolean)}, {@link CompletableFuture#orTimeout} (which
+ * gives per-call timeouts) or otherwise, abandons the request: on a multiplexed connection its stream is reset, and
+ * any other connection is closed, since its remaining responses cannot be skipped without waiting for them.
+ * <pre>
+ * asyncClient.retrieve(id, authInfo).orTimeout(5, TimeUnit.SECONDS).thenAccept(dobj -&gt; ...);
+ * </pre>
+ * Results which hold the response open ({@link SearchResults} and {@link DoipClientResponse}) must be closed, as for
+ * {@link DoipClient}.
+ */
+public class AsyncDoipClient {
+
+    // resolves handles, waits for pooled connections and writes requests; these can block, so they run on virtual threads
+    private static final ExecutorService requestExecutor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doip-async-request-", 1).factory());
+    private static final ExecutorService defaultCallbackExecutor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doip-async-callback-", 1).factory());
+
+    private final DoipClient client;
+    private final Executor callbackExecutor;
+
+    /**
+     * Constructs an asynchronous client using the given client's connections, completing futures on virtual threads.
+     *
+     * @param client the client
+     */
+    public AsyncDoipClient(DoipClient client) {
+        this(client, defaultCallbackExecutor);
+    }
+
+    /**
+     * Constructs an asynchronous client using the given client's connections.
+     *
+     * @param client the client
+     * @param callbackExecutor the executor on which returned futures are completed
+     */
+    public AsyncDoipClient(DoipClient client, Executor callbackExecutor) {
+        this.client = client;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Performs an operation, at a specified service or, if {@code serviceInfo} is null, at the service found by
+     * resolving the target id.  The response must be closed.
+     *
+     * @param headers     the content of the initial segment of the request
+     * @param input       the input to the operation as an InDoipMessage, or null
+     * @param serviceInfo the service at which to perform the operation, or null
+     * @return a future for the response
+     */
+    public CompletableFuture<DoipClientResponse> performOperation(DoipRequestHeaders headers, InDoipMessage input, ServiceInfo serviceInfo) {
+        return perform(headers, input, serviceInfo, response -> response);
+    }
+
+    /**
+     * Creates a digital object at a service.
+     *
+     * @param dobj        the digital object to create
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the service at which to perform the operation
+     * @return a future for the created digital object
+     */
+    public CompletableFuture<DigitalObject> create(DigitalObject dobj, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        if (serviceInfo == null || serviceInfo.serviceId == null) {
+            return CompletableFuture.failedFuture(new DoipException("Missing service id for create"));
+        }
+        return perform(serviceInfo.serviceId, DoipConstants.OP_CREATE, authInfo, null, DoipClient.buildCreateOrUpdateMessageFrom(dobj, false),
+            serviceInfo, digitalObjectHandler(false));
+    }
+
+    /**
+     * Updates a digital object.
+     *
+     * @param dobj     the digital object to update
+     * @param authInfo the authentication to provide
+     * @return a future for the updated digital object
+     */
+    public CompletableFuture<DigitalObject> update(DigitalObject dobj, AuthenticationInfo authInfo) {
+        return update(dobj, authInfo, null);
+    }
+
+    /**
+     * Updates a digital object at a specified service.
+     *
+     * @param dobj        the digital object to update
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the service at which to perform the operation
+     * @return a future for the updated digital object
+     */
+    public CompletableFuture<DigitalObject> update(DigitalObject dobj, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        ResponseHandler<DigitalObject> handler = digitalObjectHandler(false);
+        return perform(dobj.id, DoipConstants.OP_UPDATE, authInfo, null, DoipClient.buildCreateOrUpdateMessageFrom(dobj, true),
+            serviceInfo, response -> {
+                client.invalidateCachedObject(dobj.id);
+                return handler.handle(response);
+            });
+    }
+
+    /**
+     * Retrieves a digital object.
+     *
+     * @param targetId the id of the object to retrieve
+     * @param authInfo the authentication to provide
+     * @return a future for the digital object, or null if not found
+     */
+    public CompletableFuture<DigitalObject> retrieve(String targetId, AuthenticationInfo authInfo) {
+        return retrieve(targetId, false, authInfo, null);
+    }
+
+    /**
+     * Retrieves a digital object from a specified service, possibly including all element data.
+     *
+     * @param targetId           the id of the object to retrieve
+     * @param includeElementData if true, include data for all elements
+     * @param authInfo           the authentication to provide
+     * @param serviceInfo        the service at which to perform the operation, or null
+     * @return a future for the digital object, or null if not found
+     */
+    public CompletableFuture<DigitalObject> retrieve(String targetId, boolean includeElementData, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        JsonObject attributes = new JsonObject();
+        if (includeElementData) {
+            attributes.addProperty("includeElementData", "true");
+        }
+        return perform(targetId, DoipConstants.OP_RETRIEVE, authInfo, attributes, null, serviceInfo, digitalObjectHandler(true));
+    }
+
+    /**
+     * Deletes a digital object.
+     *
+     * @param targetId the id of the object to delete
+     * @param authInfo the authentication to provide
+     * @return a future completed when the object has been deleted
+     */
+    public CompletableFuture<Void> delete(String targetId, AuthenticationInfo authInfo) {
+        return delete(targetId, authInfo, null);
+    }
+
+    /**
+     * Deletes a digital object from a specified service.
+     *
+     * @param targetId    the id of the object to delete
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the service at which to perform the operation, or null
+     * @return a future completed when the object has been deleted
+     */
+    public CompletableFuture<Void> delete(String targetId, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        return perform(targetId, DoipConstants.OP_DELETE, authInfo, null, null, serviceInfo, response -> {
+            client.invalidateCachedObject(targetId);
+            try (DoipClientResponse resp = response) {
+                if (!resp.getStatus().equals(DoipConstants.STATUS_OK)) {
+                    throw DoipClient.doipExceptionFromDoipResponse(resp);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Lists operations available for a digital object at a specified service.
+     *
+     * @param targetId    the id of the digital object
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the service at which to perform the operation, or null
+     * @return a future for the list of available operation ids
+     */
+    public CompletableFuture<List<String>> listOperations(String targetId, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        return perform(targetId, DoipConstants.OP_LIST_OPERATIONS, authInfo, null, null, serviceInfo, response -> {
+            try (DoipClientResponse resp = response) {
+                if (!resp.getStatus().equals(DoipConstants.STATUS_OK)) {
+                    throw DoipClient.doipExceptionFromDoipResponse(resp);
+                }
+                try (InDoipMessage in = resp.getOutput()) {
+                    InDoipSegment firstSegment = InDoipMessageUtil.getFirstSegment(in);
+                    if (firstSegment == null) {
+                        throw new DoipException("Missing first segment in response");
+                    }
+                    return GsonUtility.getGson().fromJson(firstSegment.getJson(), new TypeToken<List<String>>() {
+                    }.getType());
+                }
+            }
+        });
+    }
+
+    /**
+     * Search for digital objects, returning the ids of the results.
+     *
+     * @param targetId the id of the operation target (generally a DOIP service id)
+     * @param query    the query
+     * @param params   the query parameters
+     * @param authInfo the authentication to provide
+     * @return a future for the search results as ids, which must be closed
+     */
+    public CompletableFuture<SearchResults<String>> searchIds(String targetId, String query, QueryParams params, AuthenticationInfo authInfo) {
+        return searchIds(targetId, query, params, authInfo, null);
+    }
+
+    /**
+     * Search for digital objects at a specified service, returning the ids of the results.
+     *
+     * @param targetId    the id of the operation target (generally a DOIP service id)
+     * @param query       the query
+     * @param params      the query parameters
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the service at which to perform the operation, or null
+     * @return a future for the search results as ids, which must be closed
+     */
+    public CompletableFuture<SearchResults<String>> searchIds(String targetId, String query, QueryParams params, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        return searchIdsOrFull("id", String.class, targetId, query, params, authInfo, serviceInfo);
+    }
+
+    /**
+     * Search for digital objects, returning the full results as digital objects.
+     *
+     * @param targetId the id of the operation target (generally a DOIP service id)
+     * @param query    the query
+     * @param params   the query parameters
+     * @param authInfo the authentication to provide
+     * @return a future for the search results as digital objects, which must be closed
+     */
+    public CompletableFuture<SearchResults<DigitalObject>> search(String targetId, String query, QueryParams params, AuthenticationInfo authInfo) {
+        return search(targetId, query, params, authInfo, null);
+    }
+
+    /**
+     * Search for digital objects at a specified service, returning the full results as digital objects.
+     *
+     * @param targetId    the id of the operation target (generally a DOIP service id)
+     * @param query       the query
+     * @param params      the query parameters
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the service at which to perform the operation, or null
+     * @return a future for the search results as digital objects, which must be closed
+     */
+    public CompletableFuture<SearchResults<DigitalObject>> search(String targetId, String query, QueryParams params, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        return searchIdsOrFull("full", DigitalObject.class, targetId, query, params, authInfo, serviceInfo);
+    }
+
+    private <T> CompletableFuture<SearchResults<T>> searchIdsOrFull(String type, Class<T> klass, String targetId, String query, QueryParams params, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        JsonObject attributes = DoipClient.getSearchAttributes(type, query, params);
+        return perform(targetId, DoipConstants.OP_SEARCH, authInfo, attributes, null, serviceInfo, response -> {
+            if (!response.getStatus().equals(DoipConstants.STATUS_OK)) {
+                throw DoipClient.doipExceptionFromDoipResponse(response);
+            }
+            return new DoipSearchResults<>(response, klass);
+        });
+    }
+
+    /**
+     * Performs the "hello" operation.
+     *
+     * @param targetId the id of the operation target (generally a DOIP service id)
+     * @param authInfo the authentication to provide
+     * @return a future for the result of the hello operation as a service info digital object
+     */
+    public CompletableFuture<DigitalObject> hello(String targetId, AuthenticationInfo authInfo) {
+        return hello(targetId, authInfo, null);
+    }
+
+    /**
+     * Performs the "hello" operation at a specified service.
+     *
+     * @param targetId    the id of the operation target (generally a DOIP service id)
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the service at which to perform the operation, or null
+     * @return a future for the result of the hello operation as a service info digital object
+     */
+    public CompletableFuture<DigitalObject> hello(String targetId, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        return perform(targetId, DoipConstants.OP_HELLO, authInfo, null, null, serviceInfo, digitalObjectHandler(false));
+    }
+
+    private ResponseHandler<DigitalObject> digitalObjectHandler(boolean notFoundAsNull) {
+        return response -> {
+            try (DoipClientResponse resp = response) {
+                if (resp.getStatus().equals(DoipConstants.STATUS_OK)) {
+                    try (InDoipMessage in = resp.getOutput()) {
+                        return client.digitalObjectFromSegments(in);
+                    }
+                } else if (notFoundAsNull && resp.getStatus().equals(DoipConstants.STATUS_NOT_FOUND)) {
+                    return null;
+                } else {
+                    throw DoipClient.doipExceptionFromDoipResponse(resp);
+                }
+            }
+        };
+    }
+
+    private <T> CompletableFuture<T> perform(String targetId, String operationId, AuthenticationInfo authInfo, JsonObject attributes,
+                                             InDoipMessage input, ServiceInfo serviceInfo, ResponseHandler<T> handler) {
+        DoipRequestHeaders headers;
+        try {
+            headers = DoipClient.headersFrom(targetId, operationId, authInfo, attributes, (JsonElement) null);
+        } catch (DoipException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return perform(headers, input, serviceInfo, handler);
+    }
+
+    private <T> CompletableFuture<T> perform(DoipRequestHeaders headers, InDoipMessage input, ServiceInfo serviceInfo, ResponseHandler<T> handler) {
+        Call<T> call = new Call<>(handler);
+        call.result.whenComplete((value, e) -> call.onResultCompleted());
+        requestExecutor.execute(() -> call.start(headers, input, serviceInfo));
+        return call.result;
+    }
+
+    private static DoipException toDoipException(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof UncheckedIOException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof DoipException) return (DoipException) e;
+        return new DoipException(e);
+    }
+
+    /**
+     * Turns a response into the result of an operation, closing the response unless the result holds it open.
+     */
+    private interface ResponseHandler<T> {
+        T handle(DoipClientResponse response) throws Exception;
+    }
+
+    /**
+     * One operation: acquires a pooled connection, sends the request, and handles the response when it arrives.
+     */
+    private final class Call<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final ResponseHandler<T> handler;
+        // set once the outcome is known, after which completing the result externally no longer abandons the request
+        final AtomicBoolean handled = new AtomicBoolean();
+        final AtomicBoolean released = new AtomicBoolean();
+        volatile ConnectionAndPool connectionAndPool;
+        volatile CompletableFuture<DoipClientResponse> responseFuture;
+        long startedAt;
+
+        Call(ResponseHandler<T> handler) {
+            this.handler = handler;
+        }
+
+        void start(DoipRequestHeaders headers, InDoipMessage input, ServiceInfo serviceInfo) {
+            if (result.isDone()) return;
+            startedAt = System.nanoTime();
+            try {
+                connectionAndPool = client.connectionAndPoolForOptions(serviceInfo, headers.targetId);
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+            if (result.isDone()) {
+                release();
+                return;
+            }
+            CompletableFuture<DoipClientResponse> future = connectionAndPool.getConnection().sendRequestAsync(headers, input);
+            responseFuture = future;
+            if (result.isDone()) abort();
+            future.whenComplete(this::onResponse);
+        }
+
+        void onResponse(DoipClientResponse response, Throwable e) {
+            ConnectionAndPool cp = connectionAndPool;
+            if (e != null) {
+                if (!(e instanceof CancellationException)) client.getMetrics().requestFailed(cp.service);
+                fail(e);
+                release();
+                return;
+            }
+            client.getMetrics().responseReceived(cp.service, startedAt, cp.acquiredAt, response);
+            response.setOnClose(this::release);
+            if (result.isDone()) {
+                DoipClient.closeQuietly(response);
+                return;
+            }
+            T value;
+            try {
+                value = handler.handle(response);
+            } catch (Exception ex) {
+                DoipClient.closeQuietly(response);
+                fail(ex);
+                return;
+            }
+            succeed(value);
+        }
+
+        void succeed(T value) {
+            handled.set(true);
+            complete(() -> {
+                if (!result.complete(value) && value instanceof AutoCloseable) {
+                    try {
+                        ((AutoCloseable) value).close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            });
+        }
+
+        void fail(Throwable e) {
+            handled.set(true);
+            DoipException ex = toDoipException(e);
+            complete(() -> result.completeExceptionally(ex));
+        }
+
+        private void complete(Runnable completion) {
+            try {
+                callbackExecutor.execute(completion);
+            } catch (RejectedExecutionException e) {
+                completion.run();
+            }
+        }
+
+        void onResultCompleted() {
+            if (!handled.get()) requestExecutor.execute(this::abort);
+        }
+
+        /**
+         * Abandons the request after the result was completed from outside.
+         */
+        void abort() {
+            CompletableFuture<DoipClientResponse> future = responseFuture;
+            ConnectionAndPool cp = connectionAndPool;
+            // before the request is sent, start() sees the completed result and releases the connection itself
+            if (future == null || cp == null) return;
+            // take over releasing the connection: cancelling runs onResponse, which would otherwise hand the
+            // connection back to the pool, and on to another request, before it is closed here
+            if (!released.compareAndSet(false, true)) return;
+            future.cancel(false);
+            // a response which arrived meanwhile may still be being read; either way the connection cannot be reused
+            DoipConnection connection = cp.getConnection();
+            if (!connection.isMultiplexed()) connection.close();
+            releaseConnection(cp);
+        }
+
+        void release() {
+            ConnectionAndPool cp = connectionAndPool;
+            if (cp == null || !released.compareAndSet(false, true)) return;
+            releaseConnection(cp);
+        }
+
+        private void releaseConnection(ConnectionAndPool cp) {
+            try {
+                cp.releaseConnection();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
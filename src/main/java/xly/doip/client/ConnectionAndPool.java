@@ -1,5 +1,7 @@
 package xly.doip.client;
 
+import java.io.IOException;
+
 import xly.doip.client.transport.DoipConnection;
 import xly.doip.client.transport.DoipConnectionPool;
 
@@ -9,9 +11,16 @@ import xly.doip.client.transport.DoipConnectionPool;
 public class ConnectionAndPool {
     private final DoipConnection connection;
     private final DoipConnectionPool pool;
+    // set by DoipClient for its metrics: the service's name, and the System.nanoTime() when the connection was obtained
+    String service;
+    long acquiredAt;
 
-    public ConnectionAndPool(DoipConnectionPool pool) {
-        this.connection = pool.get();
+    public ConnectionAndPool(DoipConnectionPool pool) throws DoipException {
+        try {
+            this.connection = pool.get();
+        } catch (IOException e) {
+            throw new DoipException(e);
+        }
         this.pool = pool;
     }
 
@@ -0,0 +1,468 @@
+package xly.doip.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import xly.doip.DoipConstants;
+import xly.doip.InDoipMessage;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.util.GsonUtility;
+import xly.doip.util.JsonDigest;
+import xly.doip.util.PrometheusText;
+
+/**
+ * Used internally by {@link DoipClient} with {@link DoipClientConfig#objectCache} to keep the digital objects returned
+ * by {@link DoipClient#retrieve(String, boolean, AuthenticationInfo, ServiceInfo)}, keyed by target id, whether
+ * element data was included, and a digest of everything the authentication puts in the request: its client id and
+ * its {@link AuthenticationInfo#getAuthentication()} JSON, including any {@code asUserId}.  An object is therefore
+ * only returned to callers who would have sent the very same credentials, and no credentials are kept in the keys.
+ * <p>
+ * A cached object is returned without a request for {@link DoipClientConfig#objectCacheTtlMs}.  After that, if the
+ * service gave it an etag (see {@link DoipConstants#ETAG_ATT}), it is revalidated by sending the etag back, and
+ * kept for another TTL if the service answers that it has not changed; otherwise it is retrieved again.  Concurrent
+ * retrievals which miss the cache, or revalidate the same entry, share a single request.  Objects updated or deleted
+ * through the same client are dropped at once.
+ * <p>
+ * Every call gets its own copy of the object's JSON.  Element bytes of up to {@value #MAX_HEAP_ELEMENT_BYTES} bytes
+ * are kept on the heap, within {@link DoipClientConfig#objectCacheMaxHeapBytes} along with the JSON; larger ones are
+ * written to one temporary file per object, which is mapped and deleted, so that they live in the page cache within
+ * {@link DoipClientConfig#objectCacheMaxElementBytes}, and each call reads them through its own stream over the
+ * shared mapping.  Least recently used objects are evicted to stay within both bounds.  An object which alone would
+ * take more than a quarter of either is returned but not cached.
+ */
+class DigitalObjectCache {
+    static final int MAX_HEAP_ELEMENT_BYTES = 16 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // rough cost on the heap of an entry besides its JSON and elements
+    private static final long ENTRY_OVERHEAD = 256;
+
+    private final DoipClientConfig config;
+    private final ReentrantLock lock = new ReentrantLock();
+    // in access order, least recently used first; guarded by lock
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long heapBytes;
+    private long elementBytes;
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder uncacheable = new LongAdder();
+
+    DigitalObjectCache(DoipClientConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Returns a digital object from the cache, revalidating or retrieving it as needed.
+     *
+     * @param client the client to send requests with
+     * @return the digital object, or null if not found
+     */
+    DigitalObject retrieve(DoipClient client, String targetId, boolean includeElementData, AuthenticationInfo authInfo, ServiceInfo serviceInfo) throws DoipException {
+        String key = keyFor(targetId, includeElementData, authInfo);
+        Entry entry = get(key);
+        if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+            hits.increment();
+            return entry.toDigitalObject();
+        }
+        if (entry != null && entry.etag != null) revalidations.increment();
+        else misses.increment();
+        Entry loaded = load(client, key, entry, targetId, includeElementData, authInfo, serviceInfo);
+        return loaded == null ? null : loaded.toDigitalObject();
+    }
+
+    private static String keyFor(String targetId, boolean includeElementData, AuthenticationInfo authInfo) throws DoipException {
+        return targetId + "\n" + includeElementData + "\n" + identityOf(authInfo);
+    }
+
+    /**
+     * Returns a digest of the client id and the authentication JSON, with the members of objects sorted so that the
+     * same credentials always give the same digest; empty without authentication.
+     */
+    private static String identityOf(AuthenticationInfo authInfo) throws DoipException {
+        if (authInfo == null) return "";
+        String clientId = authInfo.getClientId();
+        JsonElement authentication = authInfo.getAuthentication();
+        if (clientId == null && authentication == null) return "";
+        StringBuilder sb = new StringBuilder();
+        sb.append(clientId == null ? "" : GsonUtility.getGson().toJson(clientId)).append('\n');
+        if (authentication != null) JsonDigest.appendCanonical(sb, authentication);
+        return JsonDigest.sha256(sb.toString());
+    }
+
+    /**
+     * Retrieves or revalidates an object and caches the result, or waits for a request for the same key already in
+     * progress.
+     */
+    private Entry load(DoipClient client, String key, Entry stale, String targetId, boolean includeElementData, AuthenticationInfo authInfo, ServiceInfo serviceInfo) throws DoipException {
+        CompletableFuture<Entry> future = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof DoipException) throw (DoipException) e.getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+        try {
+            Entry entry = fetch(client, key, stale, targetId, includeElementData, authInfo, serviceInfo);
+            future.complete(entry);
+            return entry;
+        } catch (DoipException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private Entry fetch(DoipClient client, String key, Entry stale, String targetId, boolean includeElementData, AuthenticationInfo authInfo, ServiceInfo serviceInfo) throws DoipException {
+        JsonObject attributes = new JsonObject();
+        if (includeElementData) {
+            attributes.addProperty("includeElementData", "true");
+        }
+        if (stale != null && stale.etag != null) {
+            attributes.addProperty(DoipConstants.IF_NONE_MATCH_ATT, stale.etag);
+        }
+        try (DoipClientResponse response = client.performOperation(targetId, DoipConstants.OP_RETRIEVE, authInfo, attributes, serviceInfo)) {
+            if (response.getStatus().equals(DoipConstants.STATUS_OK)) {
+                long expiresAt = System.currentTimeMillis() + config.objectCacheTtlMs;
+                JsonObject responseAttributes = response.getAttributes();
+                JsonElement notModifiedAtt = responseAttributes == null ? null : responseAttributes.get(DoipConstants.NOT_MODIFIED_ATT);
+                if (stale != null && notModifiedAtt != null && notModifiedAtt.isJsonPrimitive() && notModifiedAtt.getAsBoolean()) {
+                    notModified.increment();
+                    Entry refreshed = new Entry(stale, expiresAt);
+                    store(key, refreshed);
+                    return refreshed;
+                }
+                JsonElement etagAtt = responseAttributes == null ? null : responseAttributes.get(DoipConstants.ETAG_ATT);
+                String etag = etagAtt != null && etagAtt.isJsonPrimitive() ? etagAtt.getAsString() : null;
+                Entry entry;
+                try (InDoipMessage in = response.getOutput()) {
+                    entry = readEntry(in, etag, expiresAt);
+                }
+                if (entry.heapBytes <= config.objectCacheMaxHeapBytes / 4 && entry.elementBytes <= config.objectCacheMaxElementBytes / 4) {
+                    store(key, entry);
+                } else {
+                    uncacheable.increment();
+                    remove(key);
+                }
+                return entry;
+            } else if (response.getStatus().equals(DoipConstants.STATUS_NOT_FOUND)) {
+                remove(key);
+                return null;
+            } else {
+                throw DoipClient.doipExceptionFromDoipResponse(response);
+            }
+        } catch (DoipException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DoipException(e);
+        }
+    }
+
+    /**
+     * Reads a retrieved object, keeping small elements on the heap and mapping the rest from a temporary file.
+     */
+    private Entry readEntry(InDoipMessage in, String etag, long expiresAt) throws IOException, DoipException {
+        DigitalObjectStream stream = new DigitalObjectStream(in, null);
+        DigitalObject dobj = stream.getDigitalObject();
+        Map<String, ElementBytes> data = new HashMap<>();
+        Map<String, long[]> spilled = new HashMap<>();
+        Path file = null;
+        FileChannel channel = null;
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            Element el;
+            while ((el = stream.nextElement()) != null) {
+                byte[] head = el.in.readNBytes(MAX_HEAP_ELEMENT_BYTES + 1);
+                if (head.length <= MAX_HEAP_ELEMENT_BYTES) {
+                    data.put(el.id, new ElementBytes(head));
+                    spilled.remove(el.id);
+                    continue;
+                }
+                if (channel == null) {
+                    file = config.elementSpillDirectory == null ? Files.createTempFile("doip-object", ".tmp")
+                        : Files.createTempFile(Paths.get(config.elementSpillDirectory), "doip-object", ".tmp");
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                long start = channel.position();
+                writeFully(channel, ByteBuffer.wrap(head));
+                int r;
+                while ((r = el.in.read(buf)) > 0) {
+                    writeFully(channel, ByteBuffer.wrap(buf, 0, r));
+                }
+                spilled.put(el.id, new long[] { start, channel.position() - start });
+                data.remove(el.id);
+            }
+            for (Map.Entry<String, long[]> entry : spilled.entrySet()) {
+                long[] range = entry.getValue();
+                data.put(entry.getKey(), new ElementBytes(MappedFileInputStream.map(channel, range[0], range[1]), range[1]));
+            }
+        } finally {
+            if (channel != null) channel.close();
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // some platforms refuse to delete mapped files
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+        if (dobj.elements != null) {
+            for (Element el : dobj.elements) {
+                el.in = null;
+            }
+        }
+        long heap = ENTRY_OVERHEAD + 2L * GsonUtility.getGson().toJson(dobj).length();
+        long mapped = 0;
+        for (ElementBytes bytes : data.values()) {
+            if (bytes.heap != null) heap += bytes.heap.length;
+            else mapped += bytes.length;
+        }
+        return new Entry(dobj, data, etag, expiresAt, heap, mapped);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private Entry get(String key) {
+        lock.lock();
+        try {
+            return entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        lock.lock();
+        try {
+            removeLocked(key);
+            entries.put(key, entry);
+            heapBytes += entry.heapBytes;
+            elementBytes += entry.elementBytes;
+            Iterator<Entry> iter = entries.values().iterator();
+            while ((heapBytes > config.objectCacheMaxHeapBytes || elementBytes > config.objectCacheMaxElementBytes) && iter.hasNext()) {
+                Entry eldest = iter.next();
+                if (eldest == entry) continue;
+                iter.remove();
+                heapBytes -= eldest.heapBytes;
+                elementBytes -= eldest.elementBytes;
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String key) {
+        lock.lock();
+        try {
+            removeLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeLocked(String key) {
+        Entry old = entries.remove(key);
+        if (old == null) return;
+        heapBytes -= old.heapBytes;
+        elementBytes -= old.elementBytes;
+    }
+
+    /**
+     * Drops all cached copies of an object, whatever the authentication they were retrieved with.
+     */
+    void invalidate(String targetId) {
+        String prefix = targetId + "\n";
+        lock.lock();
+        try {
+            for (Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator(); iter.hasNext(); ) {
+                Map.Entry<String, Entry> entry = iter.next();
+                if (!entry.getKey().startsWith(prefix)) continue;
+                iter.remove();
+                heapBytes -= entry.getValue().heapBytes;
+                elementBytes -= entry.getValue().elementBytes;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all cached objects.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            heapBytes = 0;
+            elementBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the counters of the cache, for metrics.
+     */
+    Map<String, Long> snapshot() {
+        Map<String, Long> res = new LinkedHashMap<>();
+        res.put("hits", hits.sum());
+        res.put("misses", misses.sum());
+        res.put("revalidations", revalidations.sum());
+        res.put("notModified", notModified.sum());
+        res.put("coalesced", coalesced.sum());
+        res.put("evictions", evictions.sum());
+        res.put("uncacheable", uncacheable.sum());
+        lock.lock();
+        try {
+            res.put("entries", (long) entries.size());
+            res.put("heapBytes", heapBytes);
+            res.put("elementBytes", elementBytes);
+        } finally {
+            lock.unlock();
+        }
+        return res;
+    }
+
+    /**
+     * Writes the counters in the Prometheus text format, with metric names starting with {@code prefix}.
+     */
+    void scrape(PrometheusText text, String prefix) {
+        Map<String, Long> counters = snapshot();
+        String lookups = prefix + "_object_cache_requests_total";
+        text.family(lookups, "counter", "Retrievals through the object cache, by outcome.");
+        text.sample(lookups, counters.get("hits"), "outcome", "hit");
+        text.sample(lookups, counters.get("misses"), "outcome", "miss");
+        text.sample(lookups, counters.get("revalidations"), "outcome", "revalidation");
+        text.family(prefix + "_object_cache_not_modified_total", "counter", "Revalidations answered as not modified.")
+            .sample(prefix + "_object_cache_not_modified_total", counters.get("notModified"));
+        text.family(prefix + "_object_cache_coalesced_total", "counter", "Retrievals which waited for the same request of another.")
+            .sample(prefix + "_object_cache_coalesced_total", counters.get("coalesced"));
+        text.family(prefix + "_object_cache_evictions_total", "counter", "Objects evicted to make room.")
+            .sample(prefix + "_object_cache_evictions_total", counters.get("evictions"));
+        text.family(prefix + "_object_cache_uncacheable_total", "counter", "Objects too large to cache.")
+            .sample(prefix + "_object_cache_uncacheable_total", counters.get("uncacheable"));
+        text.family(prefix + "_object_cache_entries", "gauge", "Objects cached.").sample(prefix + "_object_cache_entries", counters.get("entries"));
+        text.family(prefix + "_object_cache_heap_bytes", "gauge", "Approximate heap used by cached objects.")
+            .sample(prefix + "_object_cache_heap_bytes", counters.get("heapBytes"));
+        text.family(prefix + "_object_cache_element_bytes", "gauge", "Bytes of cached elements in mapped files.")
+            .sample(prefix + "_object_cache_element_bytes", counters.get("elementBytes"));
+    }
+
+    @Override
+    public String toString() {
+        return "DigitalObjectCache" + snapshot();
+    }
+
+    /**
+     * The bytes of a cached element, either on the heap or mapped from a deleted file.
+     */
+    private static class ElementBytes {
+        final byte[] heap;
+        final MappedByteBuffer[] regions;
+        final long length;
+
+        ElementBytes(byte[] heap) {
+            this.heap = heap;
+            this.regions = null;
+            this.length = heap.length;
+        }
+
+        ElementBytes(MappedByteBuffer[] regions, long length) {
+            this.heap = null;
+            this.regions = regions;
+            this.length = length;
+        }
+
+        InputStream newInputStream() {
+            if (heap != null) return new ByteArrayInputStream(heap);
+            return new MappedFileInputStream(regions, length);
+        }
+    }
+
+    /**
+     * A cached object, whose JSON is never handed out, only copies of it.
+     */
+    private static class Entry {
+        final DigitalObject template;
+        final Map<String, ElementBytes> data;
+        final String etag;
+        final long expiresAt;
+        final long heapBytes;
+        final long elementBytes;
+
+        Entry(DigitalObject template, Map<String, ElementBytes> data, String etag, long expiresAt, long heapBytes, long elementBytes) {
+            this.template = template;
+            this.data = data;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+            this.heapBytes = heapBytes;
+            this.elementBytes = elementBytes;
+        }
+
+        /**
+         * Constructs a copy of a revalidated entry with a new expiry.
+         */
+        Entry(Entry revalidated, long expiresAt) {
+            this(revalidated.template, revalidated.data, revalidated.etag, expiresAt, revalidated.heapBytes, revalidated.elementBytes);
+        }
+
+        DigitalObject toDigitalObject() {
+            DigitalObject res = new DigitalObject();
+            res.id = template.id;
+            res.type = template.type;
+            res.attributes = template.attributes == null ? null : template.attributes.deepCopy();
+            if (template.elements != null) {
+                res.elements = new ArrayList<>(template.elements.size());
+                for (Element el : template.elements) {
+                    Element copy = new Element();
+                    copy.id = el.id;
+                    copy.length = el.length;
+                    copy.type = el.type;
+                    copy.attributes = el.attributes == null ? null : el.attributes.deepCopy();
+                    ElementBytes bytes = data.get(el.id);
+                    if (bytes != null) copy.in = bytes.newInputStream();
+                    res.elements.add(copy);
+                }
+            }
+            return res;
+        }
+    }
+}
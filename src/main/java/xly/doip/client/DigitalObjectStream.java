@@ -0,0 +1,111 @@
+package xly.doip.client;
+
+import xly.doip.BadDoipException;
+import xly.doip.InDoipMessage;
+import xly.doip.InDoipSegment;
+import xly.doip.util.GsonUtility;
+import xly.doip.util.InDoipMessageUtil;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A digital object whose element data is read directly from the still-open response, in the order the elements
+ * arrive on the wire.  Returned by {@link DoipClient#retrieveStreaming(String, AuthenticationInfo, ServiceInfo)}.
+ * <p>
+ * Nothing beyond the object's JSON is held in memory: each element returned by {@link #nextElement()} has its
+ * {@link Element#in} reading from the connection, and it remains readable only until the next call to
+ * {@code nextElement()} or to {@link #close()}.  Any unread bytes of an element are skipped when moving on.
+ * <p>
+ * The user should call {@link #close()} to release the underlying connection.
+ */
+public class DigitalObjectStream implements AutoCloseable {
+    private final InDoipMessage input;
+    private final AutoCloseable resource;
+    private final DigitalObject digitalObject;
+    private final Map<String, Element> elements;
+    private final Iterator<InDoipSegment> segments;
+
+    DigitalObjectStream(InDoipMessage input, AutoCloseable resource) throws IOException, DoipException {
+        this.input = input;
+        this.resource = resource;
+        InDoipSegment firstSegment = InDoipMessageUtil.getFirstSegment(input);
+        if (firstSegment == null) {
+            throw new BadDoipException("Missing input");
+        }
+        digitalObject = GsonUtility.getGson().fromJson(firstSegment.getJson(), DigitalObject.class);
+        if (digitalObject.elements != null) {
+            elements = new HashMap<>();
+            for (Element el : digitalObject.elements) {
+                elements.put(el.id, el);
+            }
+            segments = input.iterator();
+        } else {
+            if (!InDoipMessageUtil.isEmpty(input)) {
+                throw new DoipException("Unexpected input segments");
+            }
+            elements = null;
+            segments = null;
+        }
+    }
+
+    /**
+     * Returns the digital object.  Its elements have no {@link Element#in} until they are reached by {@link #nextElement()}.
+     */
+    public DigitalObject getDigitalObject() {
+        return digitalObject;
+    }
+
+    /**
+     * Advances to the next element sent by the server, setting its {@link Element#in} to a stream of its bytes.
+     *
+     * @return the element, which is also among the elements of {@link #getDigitalObject()}, or null if there are no more
+     * @throws DoipException
+     */
+    public Element nextElement() throws DoipException {
+        try {
+            if (segments == null || !segments.hasNext()) {
+                return null;
+            }
+            InDoipSegment headerSegment = segments.next();
+            String elementId;
+            try {
+                elementId = headerSegment.getJson().getAsJsonObject().get("id").getAsString();
+            } catch (Exception e) {
+                throw new DoipException("Unexpected element header");
+            }
+            if (!segments.hasNext()) {
+                throw new DoipException("Unexpected end of input");
+            }
+            InDoipSegment elementBytesSegment = segments.next();
+            Element el = elements.get(elementId);
+            if (el == null) {
+                throw new DoipException("No such element " + elementId);
+            }
+            el.in = elementBytesSegment.getInputStream();
+            return el;
+        } catch (DoipException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DoipException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            input.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -13,14 +13,17 @@ import xly.doip.util.GsonUtility;
 import xly.doip.util.InDoipMessageUtil;
 import net.handle.hdllib.HandleException;
 import net.handle.hdllib.HandleResolver;
-import net.handle.hdllib.HandleValue;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,21 +42,19 @@ import org.slf4j.LoggerFactory;
  */
 public class DoipClient implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(DoipClient.class);
-
-    private static final String DOIP_SERVICE_INFO = "DOIPServiceInfo";
-    private static final String TYPE_DOIP_SERVICE_INFO = "0.TYPE/DOIPServiceInfo";
-    private static final String DOIP_SERVICE = "DOIPService";
-    private static final String TYPE_DOIP_SERVICE = "0.TYPE/DOIPService";
-
-    // connections per service handle
-    private static final int MAX_POOL_SIZE = 100;
-    private static final int MAX_HOP_COUNT = 20;
+    private static final AtomicInteger clientCount = new AtomicInteger(1);
 
     private final Cache<String, ServiceInfoAndPool> serviceHandleToPoolsMap;
-    private final Cache<String, String> targetIdToServiceHandleMap;
 
     private final TransportDoipClient doipClient;
-    private final HandleResolver resolver;
+    private final HandleResolutionCache handleCache;
+    private final DigitalObjectCache objectCache;
+    private final DoipClientConfig config;
+    // services which have not answered over UDP, with the System.nanoTime() until which they are sent requests over TCP
+    private final Map<String, Long> udpBackoffUntil = new ConcurrentHashMap<>();
+    private final DoipClientMetrics metrics = new DoipClientMetrics();
+    private ObjectName metricsMBeanName;
+    private final SegmentCompression compression;
 
     private boolean closed; // guarded by synchronized methods
 
@@ -61,15 +62,73 @@ public class DoipClient implements AutoCloseable {
      * Constructs a new DoipClient.
      */
     public DoipClient() {
+        this(new DoipClientConfig());
+    }
+
+    /**
+     * Constructs a new DoipClient with the given configuration.
+     *
+     * @param config the configuration
+     */
+    public DoipClient(DoipClientConfig config) {
+        this(config, new HandleResolver());
+    }
+
+    /**
+     * Constructs a new DoipClient with the given configuration, resolving handles with the given resolver.
+     *
+     * @param config the configuration
+     * @param resolver the handle resolver
+     */
+    public DoipClient(DoipClientConfig config, HandleResolver resolver) {
+        this.config = config;
         doipClient = new TransportDoipClient();
-        resolver = new HandleResolver();
+        doipClient.setConnectionListener(metrics);
+        if (config.compression) {
+            compression = new SegmentCompression(config.compressionLevel, config.compressionThreshold);
+            metrics.setCompression(compression);
+        } else {
+            compression = null;
+        }
+        handleCache = new HandleResolutionCache(resolver, config);
+        if (config.objectCache) {
+            objectCache = new DigitalObjectCache(config);
+            metrics.setObjectCache(objectCache);
+        } else {
+            objectCache = null;
+        }
         serviceHandleToPoolsMap = CacheBuilder.newBuilder()
                 .expireAfterWrite(1, TimeUnit.HOURS)
                 .removalListener(new PoolRemovalListener())
                 .build();
-        targetIdToServiceHandleMap = CacheBuilder.newBuilder()
-                .expireAfterWrite(1, TimeUnit.HOURS)
-                .build();
+        if (config.jmxMetrics) {
+            try {
+                metricsMBeanName = new ObjectName("xly.doip:type=DoipClient,name=" + clientCount.getAndIncrement());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsMBeanName);
+            } catch (Exception e) {
+                logger.warn("Could not register client metrics", e);
+                metricsMBeanName = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the metrics of this client.
+     *
+     * @return the metrics
+     */
+    public DoipClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Drops any copies of a digital object kept with {@link DoipClientConfig#objectCache}, so that the next retrieval
+     * asks the service.  Objects updated or deleted through this client are dropped already.
+     *
+     * @param targetId the id of the object
+     */
+    public void invalidateCachedObject(String targetId) {
+        if (objectCache != null) objectCache.invalidate(targetId);
     }
 
     /**
@@ -90,6 +149,14 @@ public class DoipClient implements AutoCloseable {
         } catch (Exception e) {
             logger.warn("Error closing", e);
         }
+        if (metricsMBeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsMBeanName);
+            } catch (Exception e) {
+                logger.warn("Error closing", e);
+            }
+            metricsMBeanName = null;
+        }
     }
 
     /**
@@ -213,23 +280,88 @@ public class DoipClient implements AutoCloseable {
      * @throws DoipException
      */
     public DoipClientResponse performOperation(DoipRequestHeaders headers, InDoipMessage input, ServiceInfo serviceInfo) throws DoipException {
-        ConnectionAndPool connectionAndPool = connectionAndPoolForOptions(serviceInfo, headers.targetId);
-        return performOperationWithConnection(headers, input, connectionAndPool);
+        long startedAt = System.nanoTime();
+        ServiceInfo resolvedServiceInfo = serviceInfoFor(serviceInfo, headers.targetId);
+        if (input == null && isSentOverUdp(headers)) {
+            long writeStartedAt = System.nanoTime();
+            DoipClientResponse response = performOperationOverUdp(headers, resolvedServiceInfo);
+            if (response != null) {
+                metrics.responseReceived(DoipClientMetrics.serviceName(resolvedServiceInfo), startedAt, writeStartedAt, response);
+                return response;
+            }
+        }
+        ConnectionAndPool connectionAndPool = connectionAndPool(resolvedServiceInfo);
+        DoipClientResponse response;
+        try {
+            response = performOperationWithConnection(headers, input, connectionAndPool);
+        } catch (DoipException e) {
+            metrics.requestFailed(connectionAndPool.service);
+            throw e;
+        }
+        metrics.responseReceived(connectionAndPool.service, startedAt, connectionAndPool.acquiredAt, response);
+        return response;
+    }
+
+    ConnectionAndPool connectionAndPoolForOptions(ServiceInfo serviceInfo, String targetId) throws DoipException {
+        return connectionAndPool(serviceInfoFor(serviceInfo, targetId));
     }
 
-    private ConnectionAndPool connectionAndPoolForOptions(ServiceInfo serviceInfo, String targetId) throws DoipException {
-        ConnectionAndPool connectionAndPool;
+    private ConnectionAndPool connectionAndPool(ServiceInfo serviceInfo) throws DoipException {
+        String service = DoipClientMetrics.serviceName(serviceInfo);
+        long start = System.nanoTime();
+        ConnectionAndPool res;
+        try {
+            res = new ConnectionAndPool(getOrCreatePool(serviceInfo).pool);
+        } catch (DoipException | RuntimeException e) {
+            metrics.requestFailed(service);
+            throw e;
+        }
+        res.service = service;
+        res.acquiredAt = System.nanoTime();
+        metrics.connectionAcquired(service, res.acquiredAt - start);
+        return res;
+    }
+
+    private ServiceInfo serviceInfoFor(ServiceInfo serviceInfo, String targetId) throws DoipException {
         if (serviceInfo == null) {
-            connectionAndPool = getConnectionFor(targetId);
+            return resolveServiceInfo(targetId);
         } else if (serviceInfo.ipAddress != null) {
-            ServiceInfoAndPool serviceInfoAndPool = getOrCreatePool(serviceInfo);
-            connectionAndPool = new ConnectionAndPool(serviceInfoAndPool.pool);
+            return serviceInfo;
         } else if (serviceInfo.serviceId != null) {
-            connectionAndPool = getConnectionFor(serviceInfo.serviceId);
+            return resolveServiceInfo(serviceInfo.serviceId);
         } else {
             throw new DoipException("Missing options");
         }
-        return connectionAndPool;
+    }
+
+    private boolean isSentOverUdp(DoipRequestHeaders headers) {
+        // datagrams are not encrypted, so credentials never go in one
+        return config.useUdp && !config.useTls && headers.authentication == null && config.udpOperations.contains(headers.operationId);
+    }
+
+    /**
+     * Sends a compact request over UDP.
+     *
+     * @return the response, or null if the request should be sent over TCP instead
+     */
+    private DoipClientResponse performOperationOverUdp(DoipRequestHeaders headers, ServiceInfo serviceInfo) {
+        String endpoint = serviceInfo.ipAddress + ":" + serviceInfo.port;
+        Long backoffUntil = udpBackoffUntil.get(endpoint);
+        if (backoffUntil != null) {
+            if (System.nanoTime() - backoffUntil < 0) return null;
+            udpBackoffUntil.remove(endpoint, backoffUntil);
+        }
+        try {
+            return doipClient.sendCompactRequestOverUdp(connectionOptionsForServiceInfo(serviceInfo), headers,
+                config.udpRetryIntervalMs, config.udpAttempts);
+        } catch (SocketTimeoutException e) {
+            logger.debug("No UDP response from " + endpoint + "; using TCP", e);
+            udpBackoffUntil.put(endpoint, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.udpBackoffMs));
+            return null;
+        } catch (IOException e) {
+            logger.debug("Error sending over UDP to " + endpoint + "; using TCP", e);
+            return null;
+        }
     }
 
     @SuppressWarnings("resource")
@@ -260,7 +392,7 @@ public class DoipClient implements AutoCloseable {
         return response;
     }
 
-    private static DoipRequestHeaders headersFrom(String targetId, String operationId, AuthenticationInfo authInfo, JsonObject attributes, JsonElement input) throws DoipException {
+    static DoipRequestHeaders headersFrom(String targetId, String operationId, AuthenticationInfo authInfo, JsonObject attributes, JsonElement input) throws DoipException {
         DoipRequestHeaders headers = new DoipRequestHeaders();
         headers.targetId = targetId;
         headers.operationId = operationId;
@@ -343,6 +475,7 @@ public class DoipClient implements AutoCloseable {
                 InDoipMessage inMessage = buildCreateOrUpdateMessageFrom(dobj, true);
                 DoipClientResponse resp = performOperation(dobj.id, DoipConstants.OP_UPDATE, authInfo, null, inMessage, serviceInfo);
         ) {
+            if (objectCache != null) objectCache.invalidate(dobj.id);
             if (resp.getStatus().equals(DoipConstants.STATUS_OK)) {
                 try (InDoipMessage in = resp.getOutput()) {
                     DigitalObject resultDo = digitalObjectFromSegments(in);
@@ -358,7 +491,7 @@ public class DoipClient implements AutoCloseable {
         }
     }
 
-    private InDoipMessage buildCreateOrUpdateMessageFrom(DigitalObject dobj, boolean isUpdate) {
+    static InDoipMessage buildCreateOrUpdateMessageFrom(DigitalObject dobj, boolean isUpdate) {
         JsonObject dobjJson = GsonUtility.getGson().toJsonTree(dobj).getAsJsonObject();
         List<InDoipSegment> segments = new ArrayList<>();
         InDoipSegment dobjSegment = new InDoipSegmentFromJson(dobjJson);
@@ -426,6 +559,9 @@ public class DoipClient implements AutoCloseable {
      * @throws DoipException
      */
     public DigitalObject retrieve(String targetId, boolean includeElementData, AuthenticationInfo authInfo, ServiceInfo serviceInfo) throws DoipException {
+        if (objectCache != null) {
+            return objectCache.retrieve(this, targetId, includeElementData, authInfo, serviceInfo);
+        }
         JsonObject attributes = new JsonObject();
         if (includeElementData) {
             attributes.addProperty("includeElementData", "true");
@@ -448,6 +584,52 @@ public class DoipClient implements AutoCloseable {
         }
     }
 
+    /**
+     * Retrieves a digital object including all element data, without buffering the element data.
+     *
+     * @param targetId the id of the object to retrieve
+     * @param authInfo the authentication to provide
+     * @return the digital object, which must be closed, or null if not found
+     * @throws DoipException
+     * @see #retrieveStreaming(String, AuthenticationInfo, ServiceInfo)
+     */
+    public DigitalObjectStream retrieveStreaming(String targetId, AuthenticationInfo authInfo) throws DoipException {
+        return retrieveStreaming(targetId, authInfo, null);
+    }
+
+    /**
+     * Retrieves a digital object from a specified service including all element data, without buffering the element data.
+     * The elements are delivered by {@link DigitalObjectStream#nextElement()} in the order the server sends them,
+     * each read directly from the connection, which stays open until the returned object is closed.
+     *
+     * @param targetId    the id of the object to retrieve
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the service at which to perform the operation
+     * @return the digital object, which must be closed, or null if not found
+     * @throws DoipException
+     */
+    @SuppressWarnings("resource")
+    public DigitalObjectStream retrieveStreaming(String targetId, AuthenticationInfo authInfo, ServiceInfo serviceInfo) throws DoipException {
+        JsonObject attributes = new JsonObject();
+        attributes.addProperty("includeElementData", "true");
+        DoipClientResponse response = null;
+        try {
+            response = performOperation(targetId, DoipConstants.OP_RETRIEVE, authInfo, attributes, serviceInfo);
+            if (response.getStatus().equals(DoipConstants.STATUS_OK)) {
+                return new DigitalObjectStream(response.getOutput(), response);
+            } else if (response.getStatus().equals(DoipConstants.STATUS_NOT_FOUND)) {
+                closeQuietly(response);
+                return null;
+            } else {
+                throw doipExceptionFromDoipResponse(response);
+            }
+        } catch (Exception e) {
+            closeQuietly(response);
+            if (e instanceof DoipException) throw (DoipException) e;
+            throw new DoipException(e);
+        }
+    }
+
     /**
      * Deletes a digital object.
      *
@@ -470,6 +652,7 @@ public class DoipClient implements AutoCloseable {
     public void delete(String targetId, AuthenticationInfo authInfo, ServiceInfo serviceInfo) throws DoipException {
         JsonElement input = null;
         try (DoipClientResponse resp = performOperation(targetId, DoipConstants.OP_DELETE, authInfo, null, input, serviceInfo)) {
+            if (objectCache != null) objectCache.invalidate(targetId);
             if (resp.getStatus().equals(DoipConstants.STATUS_OK)) {
                 return;
             } else {
@@ -619,7 +802,7 @@ public class DoipClient implements AutoCloseable {
         }
     }
 
-    private static JsonObject getSearchAttributes(String type, String query, QueryParams params) {
+    static JsonObject getSearchAttributes(String type, String query, QueryParams params) {
         if (params == null) params = QueryParams.DEFAULT;
         JsonObject attributes = new JsonObject();
         attributes.addProperty("query", query);
@@ -689,10 +872,25 @@ public class DoipClient implements AutoCloseable {
         }
     }
 
-    public DoipClientResponse getLHS(String targetId, AuthenticationInfo authInfo, ServiceInfo serviceInfo) throws DoipException {
+    /**
+     * Asks a local handle server (LHS) which backend DOIP repository should serve a target id.
+     *
+     * @param targetId    the id of the digital object to be accessed
+     * @param authInfo    the authentication to provide
+     * @param serviceInfo the LHS
+     * @return the service information of the chosen repository
+     * @throws DoipException
+     */
+    public ServiceInfo getLHS(String targetId, AuthenticationInfo authInfo, ServiceInfo serviceInfo) throws DoipException {
         try (DoipClientResponse response = performOperation(targetId, DoipConstants.OP_GETLHS, authInfo, null, (JsonElement) null, serviceInfo)) {
             if (response.getStatus().equals(DoipConstants.STATUS_OK)) {
-                return response;
+                try (InDoipMessage in = response.getOutput()) {
+                    InDoipSegment firstSegment = InDoipMessageUtil.getFirstSegment(in);
+                    if (firstSegment == null) {
+                        throw new DoipException("Missing first segment in response");
+                    }
+                    return GsonUtility.getGson().fromJson(firstSegment.getJson(), ServiceInfo.class);
+                }
             } else {
                 throw doipExceptionFromDoipResponse(response);
             }
@@ -800,7 +998,7 @@ public class DoipClient implements AutoCloseable {
         return new DelegatedCloseableInputStream(doipSegment.getInputStream(), () -> closeQuietly(response));
     }
 
-    private static void closeQuietly(DoipClientResponse response) {
+    static void closeQuietly(DoipClientResponse response) {
         if (response != null) try {
             response.close();
         } catch (Exception ex) {
@@ -808,102 +1006,60 @@ public class DoipClient implements AutoCloseable {
     }
 
     /**
-     * 从InDoipMessage中，解析出各个element，放入DigitalObject中
+     * 从InDoipMessage中，解析出各个element，放入DigitalObject中；较大的element写入临时文件并通过内存映射读取
      */
-    private DigitalObject digitalObjectFromSegments(InDoipMessage input) throws IOException, DoipException {
-        InDoipSegment firstSegment = InDoipMessageUtil.getFirstSegment(input);
-        if (firstSegment == null) {
-            throw new BadDoipException("Missing input");
-        }
-        DigitalObject digitalObject = GsonUtility.getGson().fromJson(firstSegment.getJson(), DigitalObject.class);
-
-        if (digitalObject.elements != null) {
-            Map<String, Element> elements = new HashMap<>();
-            for (Element el : digitalObject.elements) {
-                elements.put(el.id, el);
-            }
-            Iterator<InDoipSegment> segments = input.iterator();
-            while (segments.hasNext()) {
-                InDoipSegment headerSegment = segments.next();
-                String elementId;
-                try {
-                    elementId = headerSegment.getJson().getAsJsonObject().get("id").getAsString();
-                } catch (Exception e) {
-                    throw new DoipException("Unexpected element header");
-                }
-                if (!segments.hasNext()) {
-                    throw new DoipException("Unexpected end of input");
-                }
-                InDoipSegment elementBytesSegment = segments.next();
-                Element el = elements.get(elementId);
-                if (el == null) {
-                    throw new DoipException("No such element " + elementId);
-                }
-                el.in = persistInputStream(elementBytesSegment.getInputStream());
-            }
-        } else {
-            if (!InDoipMessageUtil.isEmpty(input)) {
-                throw new DoipException("Unexpected input segments");
-            }
-        }
-        return digitalObject;
-    }
-
-    private static ByteArrayInputStream persistInputStream(InputStream in) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        byte[] buf = new byte[8192];
-        int r;
-        while ((r = in.read(buf)) > 0) {
-            bout.write(buf, 0, r);
+    DigitalObject digitalObjectFromSegments(InDoipMessage input) throws IOException, DoipException {
+        DigitalObjectStream stream = new DigitalObjectStream(input, null);
+        ElementSpooler spooler = new ElementSpooler(config);
+        Element el;
+        while ((el = stream.nextElement()) != null) {
+            el.in = spooler.persist(el.in);
         }
-        return new ByteArrayInputStream(bout.toByteArray());
+        return stream.getDigitalObject();
     }
 
-    private ConnectionAndPool getConnectionFor(String targetId) throws DoipException {
-        String serviceHandle = targetIdToServiceHandleMap.getIfPresent(targetId);
-        ServiceInfoAndPool serviceInfoAndPool = null;
-        if (serviceHandle == null) {
-            serviceInfoAndPool = getServiceInfoAndPoolFor(targetId);
-            targetIdToServiceHandleMap.put(targetId, serviceInfoAndPool.serviceInfo.serviceId);
-        } else {
-            serviceInfoAndPool = serviceHandleToPoolsMap.getIfPresent(serviceHandle);
-            if (serviceInfoAndPool == null) {
-                serviceInfoAndPool = getServiceInfoAndPoolFor(serviceHandle);
-            }
-        }
-        ConnectionAndPool result = new ConnectionAndPool(serviceInfoAndPool.pool);
-        return result;
-    }
-
-    private ServiceInfoAndPool getServiceInfoAndPoolFor(String handle) throws DoipException {
+    private ServiceInfo resolveServiceInfo(String handle) throws DoipException {
+        long start = System.nanoTime();
+        ServiceInfo serviceInfo;
         try {
-            ServiceInfo serviceInfo = getServiceInfoFor(handle, 0);
-            if (serviceInfo == null) {
-                throw new DoipException("DOIPServiceInfo not found for " + handle);
-            }
-            ServiceInfoAndPool serviceInfoAndPool = getOrCreatePool(serviceInfo);
-            return serviceInfoAndPool;
+            serviceInfo = handleCache.resolve(handle);
         } catch (HandleException he) {
+            metrics.resolutionFailed();
             throw new DoipException(he);
         }
+        if (serviceInfo == null) {
+            metrics.resolutionFailed();
+            throw new DoipException("DOIPServiceInfo not found for " + handle);
+        }
+        metrics.resolved(serviceInfo, System.nanoTime() - start);
+        return serviceInfo;
     }
 
     private synchronized ServiceInfoAndPool getOrCreatePool(ServiceInfo serviceInfo) {
         if (closed) throw new IllegalStateException("closed");
         ServiceInfoAndPool serviceInfoAndPool = serviceHandleToPoolsMap.getIfPresent(serviceInfo.serviceId);
-        if (serviceInfoAndPool == null) {
-            DoipConnectionPool pool = new DoipConnectionPool(MAX_POOL_SIZE, doipClient, connectionOptionsForServiceInfo(serviceInfo));
+        // a re-resolved service may have moved; the replaced pool is shut down by the removal listener
+        if (serviceInfoAndPool == null || !sameEndpoint(serviceInfoAndPool.serviceInfo, serviceInfo)) {
+            DoipConnectionPool pool = new DoipConnectionPool(config.connectionPool, doipClient, connectionOptionsForServiceInfo(serviceInfo));
             serviceInfoAndPool = new ServiceInfoAndPool(serviceInfo, pool);
             serviceHandleToPoolsMap.put(serviceInfo.serviceId, serviceInfoAndPool);
         }
         return serviceInfoAndPool;
     }
 
+    private static boolean sameEndpoint(ServiceInfo a, ServiceInfo b) {
+        return Objects.equals(a.ipAddress, b.ipAddress) && a.port == b.port && Objects.equals(a.publicKey, b.publicKey);
+    }
+
     private ConnectionOptions connectionOptionsForServiceInfo(ServiceInfo serviceInfo) {
         ConnectionOptions res = new ConnectionOptions();
         res.serverId = serviceInfo.serviceId;
         res.address = serviceInfo.ipAddress;
         res.port = serviceInfo.port;
+        res.useTls = config.useTls;
+        res.multiplex = config.multiplex;
+        res.binaryFraming = config.binaryFraming;
+        res.compression = compression;
         if (serviceInfo.publicKey != null) {
             res.trustedServerPublicKeys = Collections.singletonList(serviceInfo.publicKey);
         }
@@ -931,25 +1087,4 @@ public class DoipClient implements AutoCloseable {
             serviceInfoAndPool.pool.shutdown();
         }
     }
-
-    private ServiceInfo getServiceInfoFor(String handle, int hopCount) throws HandleException {
-        HandleValue[] values = resolver.resolveHandle(handle, new String[]{DOIP_SERVICE, TYPE_DOIP_SERVICE, DOIP_SERVICE_INFO, TYPE_DOIP_SERVICE_INFO}, null);
-        for (HandleValue value : values) {
-            String type = value.getTypeAsString();
-            if (DOIP_SERVICE_INFO.equals(type) || TYPE_DOIP_SERVICE_INFO.equals(type)) {
-                String json = value.getDataAsString();
-                DigitalObject dobj = GsonUtility.getGson().fromJson(json, DigitalObject.class);
-                ServiceInfo result = GsonUtility.getGson().fromJson(dobj.attributes, ServiceInfo.class);
-                result.serviceId = handle;
-                return result;
-            } else if (DOIP_SERVICE.equals(type) || TYPE_DOIP_SERVICE.equals(type)) {
-                String doipServiceHandle = value.getDataAsString();
-                if (hopCount >= MAX_HOP_COUNT) {
-                    return null;
-                }
-                return getServiceInfoFor(doipServiceHandle, hopCount + 1);
-            }
-        }
-        return null;
-    }
 }
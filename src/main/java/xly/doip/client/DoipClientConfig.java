@@ -0,0 +1,168 @@
+package xly.doip.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import xly.doip.DoipConstants;
+import xly.doip.client.transport.DoipConnectionPoolConfig;
+
+/**
+ * Configuration for a {@link DoipClient}.
+ */
+public class DoipClientConfig {
+
+    /**
+     * Elements of a retrieved, created or updated digital object larger than this many bytes are spilled to a
+     * temporary file and read back through a memory map, instead of being held on the heap.  Defaults to 8 MB.
+     */
+    public long elementSpillThreshold = 8L * 1024 * 1024;
+
+    /**
+     * The maximum total number of bytes of element data of a single digital object held on the heap.  Once this
+     * is reached, all further elements of the object are spilled to temporary files regardless of their size.
+     * Defaults to 64 MB.
+     */
+    public long maxInMemoryElementBytes = 64L * 1024 * 1024;
+
+    /**
+     * The directory in which temporary files for spilled elements are created.  If null, the default temporary-file
+     * directory is used.
+     */
+    public String elementSpillDirectory;
+
+    /**
+     * If true, {@link DoipClient#retrieve(String, boolean, AuthenticationInfo, ServiceInfo)} keeps the objects it
+     * retrieves and returns copies of them again for {@link #objectCacheTtlMs}, then revalidates them with the service
+     * if it gave them an etag (see {@link xly.doip.server.DoipServerConfig#retrieveCacheMaxBytes}).  Suits reference
+     * objects which rarely change; objects changed by other clients may be seen late by up to the TTL (defaults to
+     * false).
+     */
+    public boolean objectCache;
+
+    /**
+     * The time in milliseconds for which a cached object is returned without asking the service.  Defaults to 60
+     * seconds.
+     */
+    public long objectCacheTtlMs = 60_000;
+
+    /**
+     * The approximate heap used by cached objects: their JSON and elements of up to 16 KB.  Defaults to 32 MB.
+     */
+    public long objectCacheMaxHeapBytes = 32L * 1024 * 1024;
+
+    /**
+     * The total size of larger elements of cached objects, which are kept in memory-mapped temporary files in
+     * {@link #elementSpillDirectory} rather than on the heap.  Defaults to 1 GB.
+     */
+    public long objectCacheMaxElementBytes = 1024L * 1024 * 1024;
+
+    /**
+     * Configuration of the pool of connections kept for each DOIP service.  Defaults to at most 100 connections per
+     * service.
+     */
+    public DoipConnectionPoolConfig connectionPool = new DoipConnectionPoolConfig();
+
+    /**
+     * The longest time in milliseconds for which the service information resolved from a handle is cached, whatever
+     * the TTLs of its handle values.  Defaults to 1 hour.
+     */
+    public long handleCacheMaxTtlMs = 60 * 60_000;
+
+    /**
+     * The time in milliseconds for which a handle which does not exist, or has no DOIP service, is remembered as such.
+     * Defaults to 30 seconds.
+     */
+    public long handleCacheNegativeTtlMs = 30_000;
+
+    /**
+     * A cached handle read within this fraction of its lifetime before it expires is resolved again in the
+     * background.  Zero disables refreshing.  Defaults to 0.2.
+     */
+    public double handleCacheRefreshFraction = 0.2;
+
+    /**
+     * The maximum number of handles whose resolution is cached.  Defaults to 10000.
+     */
+    public int handleCacheMaxEntries = 10_000;
+
+    /**
+     * If true, connections to services use TLS, and a service's certificate must carry its service id and, if its
+     * {@link ServiceInfo} has one, its public key (defaults to false).  Connections to the same service resume TLS sessions,
+     * so that only the first pays for a full handshake.  Requests are then never sent over UDP.
+     */
+    public boolean useTls;
+
+    /**
+     * If true, each new connection asks the service to multiplex it (see
+     * {@link xly.doip.server.DoipServerConfig#allowMultiplexing}), and a connection the service agrees to is shared by
+     * up to {@link DoipConnectionPoolConfig#maxStreamsPerConnection} concurrent requests instead of being used by one
+     * request at a time, so that few sockets carry many concurrent calls.  Costs one {@code Op.Hello} round trip per
+     * connection; a service which does not allow it gets one request per connection as before (defaults to false).
+     */
+    public boolean multiplex;
+
+    /**
+     * If true, each new connection asks the service to switch to binary framing, which is cheaper to parse than text
+     * framing; a service which does not allow it (see {@link xly.doip.server.DoipServerConfig#allowBinaryFraming})
+     * is spoken to in text framing as before.  Costs one {@code Op.Hello} round trip per connection (defaults to false).
+     */
+    public boolean binaryFraming;
+
+    /**
+     * If true, requests ask the service to compress large response segments, such as element bytes, and once a
+     * service has agreed (see {@link xly.doip.server.DoipServerConfig#allowCompression}) large request segments sent to
+     * it on the same connection are compressed too.  Worthwhile on slow links with compressible content; segments which
+     * do not compress are sent as they are (defaults to false).
+     */
+    public boolean compression;
+
+    /**
+     * The {@link java.util.zip.Deflater} level used with {@link #compression}, from 1 (fastest) to 9 (smallest)
+     * (defaults to 1).
+     */
+    public int compressionLevel = 1;
+
+    /**
+     * The size in bytes below which segments are not compressed, at most 8192 (defaults to 1024).
+     */
+    public int compressionThreshold = 1024;
+
+    /**
+     * If true, compact requests for {@link #udpOperations} which carry no authentication are first sent to the service
+     * as UDP datagrams, and sent again over TCP if the response was truncated or none arrived.  The service must listen
+     * for UDP; see {@link xly.doip.server.DoipServerConfig#listenUdp}.  Defaults to false.
+     */
+    public boolean useUdp;
+
+    /**
+     * The operations sent over UDP when {@link #useUdp} is set.  A request whose response is lost is sent again, so
+     * only operations which are safe to repeat belong here.  Defaults to {@code Op.Hello}, {@code Op.ListOperations},
+     * {@code Op.GetLHS} and {@code Op.Search}.
+     */
+    public List<String> udpOperations = new ArrayList<>(Arrays.asList(DoipConstants.OP_HELLO,
+        DoipConstants.OP_LIST_OPERATIONS, DoipConstants.OP_GETLHS, DoipConstants.OP_SEARCH));
+
+    /**
+     * The time in milliseconds to wait for a UDP response before sending the request again, doubled after each
+     * attempt.  Defaults to 250.
+     */
+    public long udpRetryIntervalMs = 250;
+
+    /**
+     * The number of times a request is sent over UDP before it is sent over TCP instead.  Defaults to 3.
+     */
+    public int udpAttempts = 3;
+
+    /**
+     * The time in milliseconds for which requests to a service which has not answered over UDP go straight to TCP.
+     * Defaults to 60 seconds.
+     */
+    public long udpBackoffMs = 60_000;
+
+    /**
+     * If true, the client's {@link DoipClientMetrics} are registered as an MXBean named
+     * {@code xly.doip:type=DoipClient,name=<n>}, numbering clients from 1, until it is closed (defaults to false).
+     */
+    public boolean jmxMetrics;
+}
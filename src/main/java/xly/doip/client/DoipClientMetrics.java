@@ -0,0 +1,243 @@
+package xly.doip.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import xly.doip.DoipConstants;
+import xly.doip.SegmentCompression;
+import xly.doip.client.transport.ConnectionListener;
+import xly.doip.client.transport.ConnectionOptions;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.util.LatencyHistogram;
+import xly.doip.util.LatencySnapshot;
+import xly.doip.util.PrometheusText;
+
+/**
+ * Metrics of a {@link DoipClient}, obtained from {@link DoipClient#getMetrics()}, and exposed through JMX with
+ * {@link DoipClientConfig#jmxMetrics}.  Requests made through an {@link AsyncDoipClient} are counted in the metrics of
+ * its {@code DoipClient}.
+ * <p>
+ * Everything is kept per service, named by its service id (or address and port when it has none), so that a slow
+ * service stands out among those a client fans out to.  The latency of each request is split into phases:
+ * {@code resolve}, resolving the target or service id by handle (only for requests which needed it, cache hits
+ * included); {@code pool_wait}, obtaining a pooled connection; {@code write}, writing the request; and
+ * {@code first_segment}, from the end of the request until the initial segment of the response has been read, which is
+ * the round trip plus the service's processing time.  {@code total} runs from the start of the call to the initial
+ * segment of the response.  Separately, {@code connect} is the time taken to establish each new connection, TLS
+ * handshake included, which happens in the background of {@code pool_wait}.
+ * <p>
+ * Requests answered with a status other than success count as error responses; requests which got no response at
+ * all, for instance because no connection could be had, count as failures.  At most {@value #MAX_SERVICES} services are
+ * kept apart; further ones are counted as {@value #OTHER}.
+ * <p>
+ * With {@link DoipClientConfig#compression}, the compression of segments in both directions is also counted, over all
+ * services (see {@link SegmentCompression}).  With {@link DoipClientConfig#objectCache}, so are the hits, misses and
+ * revalidations of the object cache.
+ */
+public class DoipClientMetrics implements DoipClientMetricsMXBean, ConnectionListener {
+    static final int MAX_SERVICES = 256;
+    static final String OTHER = "other";
+
+    private final ConcurrentMap<String, ServiceMetrics> services = new ConcurrentHashMap<>();
+    private final LongAdder resolutionFailures = new LongAdder();
+    private volatile SegmentCompression compression;
+    private volatile DigitalObjectCache objectCache;
+
+    static String serviceName(ServiceInfo serviceInfo) {
+        return serviceInfo.serviceId != null ? serviceInfo.serviceId : serviceInfo.ipAddress + ":" + serviceInfo.port;
+    }
+
+    private static String serviceName(ConnectionOptions options) {
+        return options.serverId != null ? options.serverId : options.address + ":" + options.port;
+    }
+
+    void setCompression(SegmentCompression compression) {
+        this.compression = compression;
+    }
+
+    void setObjectCache(DigitalObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    void resolved(ServiceInfo serviceInfo, long nanos) {
+        serviceMetrics(serviceName(serviceInfo)).resolve.recordNanos(nanos);
+    }
+
+    void resolutionFailed() {
+        resolutionFailures.increment();
+    }
+
+    void connectionAcquired(String service, long nanos) {
+        serviceMetrics(service).poolWait.recordNanos(nanos);
+    }
+
+    /**
+     * Records a response.  Times are from {@link System#nanoTime()}.
+     *
+     * @param service the service
+     * @param startedAt when the call started
+     * @param writeStartedAt when the request started to be written, once a connection had been obtained
+     * @param response the response
+     */
+    void responseReceived(String service, long startedAt, long writeStartedAt, DoipClientResponse response) {
+        ServiceMetrics metrics = serviceMetrics(service);
+        long sentAt = response.getRequestSentNanos();
+        long receivedAt = response.getReceivedNanos();
+        // the response may have started arriving before the request was written in full
+        if (sentAt != 0 && sentAt - receivedAt <= 0) {
+            metrics.write.recordNanos(sentAt - writeStartedAt);
+            metrics.firstSegment.recordNanos(receivedAt - sentAt);
+        }
+        metrics.total.recordNanos(receivedAt - startedAt);
+        metrics.requests.increment();
+        if (!DoipConstants.STATUS_OK.equals(response.getStatus())) metrics.errorResponses.increment();
+    }
+
+    void requestFailed(String service) {
+        ServiceMetrics metrics = serviceMetrics(service);
+        metrics.requests.increment();
+        metrics.failures.increment();
+    }
+
+    @Override
+    public void connected(ConnectionOptions options, long nanos) {
+        serviceMetrics(serviceName(options)).connect.recordNanos(nanos);
+    }
+
+    @Override
+    public void connectFailed(ConnectionOptions options, long nanos, Exception e) {
+        serviceMetrics(serviceName(options)).connectFailures.increment();
+    }
+
+    private ServiceMetrics serviceMetrics(String service) {
+        ServiceMetrics res = services.get(service);
+        if (res != null) return res;
+        if (services.size() >= MAX_SERVICES) service = OTHER;
+        return services.computeIfAbsent(service, key -> new ServiceMetrics());
+    }
+
+    @Override
+    public long getRequests() {
+        long res = 0;
+        for (ServiceMetrics metrics : services.values()) res += metrics.requests.sum();
+        return res;
+    }
+
+    @Override
+    public long getFailures() {
+        long res = 0;
+        for (ServiceMetrics metrics : services.values()) res += metrics.failures.sum();
+        return res;
+    }
+
+    @Override
+    public long getResolutionFailures() {
+        return resolutionFailures.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByService() {
+        return countsByService(metrics -> metrics.requests);
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByService() {
+        return countsByService(metrics -> metrics.failures);
+    }
+
+    @Override
+    public Map<String, Long> getErrorResponsesByService() {
+        return countsByService(metrics -> metrics.errorResponses);
+    }
+
+    @Override
+    public Map<String, Long> getConnectFailuresByService() {
+        return countsByService(metrics -> metrics.connectFailures);
+    }
+
+    private Map<String, Long> countsByService(Function<ServiceMetrics, LongAdder> counter) {
+        Map<String, Long> res = new TreeMap<>();
+        services.forEach((service, metrics) -> res.put(service, counter.apply(metrics).sum()));
+        return res;
+    }
+
+    /**
+     * Returns the latency of each phase of requests to each service.
+     */
+    @Override
+    public Map<String, Map<String, LatencySnapshot>> getServiceLatencies() {
+        Map<String, Map<String, LatencySnapshot>> res = new TreeMap<>();
+        services.forEach((service, metrics) -> res.put(service, metrics.snapshot()));
+        return res;
+    }
+
+    /**
+     * Returns the counters of segment compression, empty if compression is not enabled.
+     */
+    @Override
+    public Map<String, Long> getCompression() {
+        SegmentCompression compression = this.compression;
+        return compression == null ? new LinkedHashMap<>() : compression.snapshot();
+    }
+
+    /**
+     * Returns the counters of the object cache, empty if it is not enabled.
+     */
+    @Override
+    public Map<String, Long> getObjectCache() {
+        DigitalObjectCache objectCache = this.objectCache;
+        return objectCache == null ? new LinkedHashMap<>() : objectCache.snapshot();
+    }
+
+    @Override
+    public String scrape() {
+        PrometheusText text = new PrometheusText();
+        text.family("doip_client_requests_total", "counter", "Requests, by service.");
+        getRequestsByService().forEach((service, count) -> text.sample("doip_client_requests_total", count, "service", service));
+        text.family("doip_client_failures_total", "counter", "Requests which got no response, by service.");
+        getFailuresByService().forEach((service, count) -> text.sample("doip_client_failures_total", count, "service", service));
+        text.family("doip_client_error_responses_total", "counter", "Responses with a status other than success, by service.");
+        getErrorResponsesByService().forEach((service, count) -> text.sample("doip_client_error_responses_total", count, "service", service));
+        text.family("doip_client_connect_failures_total", "counter", "Failed attempts to connect, by service.");
+        getConnectFailuresByService().forEach((service, count) -> text.sample("doip_client_connect_failures_total", count, "service", service));
+        text.family("doip_client_resolution_failures_total", "counter", "Handles which could not be resolved to a service.")
+            .sample("doip_client_resolution_failures_total", getResolutionFailures());
+        text.family("doip_client_request_duration_seconds", "summary", "Request latency, by service and phase.");
+        getServiceLatencies().forEach((service, phases) -> phases.forEach((phase, snapshot) ->
+            text.summary("doip_client_request_duration_seconds", snapshot, "service", service, "phase", phase)));
+        SegmentCompression compression = this.compression;
+        if (compression != null) compression.scrape(text, "doip_client");
+        DigitalObjectCache objectCache = this.objectCache;
+        if (objectCache != null) objectCache.scrape(text, "doip_client");
+        return text.toString();
+    }
+
+    private static class ServiceMetrics {
+        final LatencyHistogram resolve = new LatencyHistogram();
+        final LatencyHistogram poolWait = new LatencyHistogram();
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram write = new LatencyHistogram();
+        final LatencyHistogram firstSegment = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder errorResponses = new LongAdder();
+        final LongAdder connectFailures = new LongAdder();
+
+        Map<String, LatencySnapshot> snapshot() {
+            Map<String, LatencySnapshot> res = new LinkedHashMap<>();
+            res.put("resolve", resolve.snapshot());
+            res.put("pool_wait", poolWait.snapshot());
+            res.put("connect", connect.snapshot());
+            res.put("write", write.snapshot());
+            res.put("first_segment", firstSegment.snapshot());
+            res.put("total", total.snapshot());
+            return res;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package xly.doip.client;
+
+import java.util.Map;
+
+import xly.doip.util.LatencySnapshot;
+
+/**
+ * The JMX view of {@link DoipClientMetrics}, registered when {@link DoipClientConfig#jmxMetrics} is set.
+ */
+public interface DoipClientMetricsMXBean {
+
+    long getRequests();
+
+    long getFailures();
+
+    long getResolutionFailures();
+
+    Map<String, Long> getRequestsByService();
+
+    Map<String, Long> getFailuresByService();
+
+    Map<String, Long> getErrorResponsesByService();
+
+    Map<String, Long> getConnectFailuresByService();
+
+    Map<String, Map<String, LatencySnapshot>> getServiceLatencies();
+
+    Map<String, Long> getCompression();
+
+    Map<String, Long> getObjectCache();
+
+    /**
+     * Returns all metrics in the Prometheus text format.
+     */
+    String scrape();
+}
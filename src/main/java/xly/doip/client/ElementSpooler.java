@@ -0,0 +1,62 @@
+package xly.doip.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Persists the element streams of one digital object so that they remain readable after the response is closed.
+ * Small elements are kept on the heap; elements above {@link DoipClientConfig#elementSpillThreshold}, and all
+ * elements once {@link DoipClientConfig#maxInMemoryElementBytes} is used up, are spilled to temporary files and
+ * read back through a {@link MappedFileInputStream}.
+ */
+class ElementSpooler {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final DoipClientConfig config;
+    private long inMemoryBytes;
+
+    ElementSpooler(DoipClientConfig config) {
+        this.config = config;
+    }
+
+    InputStream persist(InputStream in) throws IOException {
+        long limit = Math.min(config.elementSpillThreshold, config.maxInMemoryElementBytes - inMemoryBytes);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buf = new byte[BUFFER_SIZE];
+        int r;
+        // read one byte past the limit, to find out whether the element fits
+        while (bout.size() <= limit && (r = in.read(buf, 0, (int) Math.min(buf.length, limit + 1 - bout.size()))) > 0) {
+            bout.write(buf, 0, r);
+        }
+        if (bout.size() <= limit) {
+            inMemoryBytes += bout.size();
+            return new ByteArrayInputStream(bout.toByteArray());
+        }
+        return spill(bout, in);
+    }
+
+    private InputStream spill(ByteArrayOutputStream head, InputStream rest) throws IOException {
+        Path file;
+        if (config.elementSpillDirectory == null) {
+            file = Files.createTempFile("doip-element", ".tmp");
+        } else {
+            file = Files.createTempFile(Paths.get(config.elementSpillDirectory), "doip-element", ".tmp");
+        }
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                head.writeTo(out);
+                rest.transferTo(out);
+            }
+            return new MappedFileInputStream(file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package xly.doip.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import com.google.gson.JsonObject;
+
+import xly.doip.DoipConstants;
+import xly.doip.DoipRequestHeaders;
+
+/**
+ * Searches many DOIP repositories at once, as a broker does when querying cohort data across hospitals.  The
+ * search is sent to every repository in parallel, and their streamed results are merged by the sort fields of
+ * the {@link QueryParams} into a single {@link FederatedSearchResults}, from which the requested page of the union
+ * is returned.
+ * <p>
+ * Each repository has a time budget to respond ({@link FederatedSearchConfig#responseTimeoutMs}).  Repositories
+ * which miss it, or which fail, are left out, so that a slow hospital delays the search by at most its budget;
+ * the results then report themselves as partial, with statistics for each repository.
+ */
+public class FederatedSearch {
+
+    // one producer per repository and search, mostly waiting on the network
+    private static final ExecutorService searchExecutor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doip-federated-search-", 1).factory());
+
+    private static final List<SortField> BY_ID = List.of(new SortField("id"));
+
+    private final DoipClient client;
+    private final FederatedSearchConfig config;
+
+    public FederatedSearch(DoipClient client) {
+        this(client, new FederatedSearchConfig());
+    }
+
+    public FederatedSearch(DoipClient client, FederatedSearchConfig config) {
+        this.client = client;
+        this.config = config;
+    }
+
+    /**
+     * Searches the given repositories, returning the ids of the results.  With sort fields, the full results are
+     * retrieved so that they can be merged, and their ids returned.
+     *
+     * @param services the repositories to search; each search targets the service id
+     * @param query    the query
+     * @param params   the query parameters, applied to the union of the results
+     * @param authInfo the authentication to provide
+     * @return the merged search results as ids
+     * @throws DoipException if the search could not be started
+     */
+    public FederatedSearchResults<String> searchIds(List<ServiceInfo> services, String query, QueryParams params, AuthenticationInfo authInfo) throws DoipException {
+        if (params == null) params = QueryParams.DEFAULT;
+        if (params.getSortFields() == null || params.getSortFields().isEmpty()) {
+            return search(services, query, params, authInfo, "id", String.class, BY_ID, result -> (String) result);
+        }
+        return search(services, query, params, authInfo, "full", DigitalObject.class, withIdTieBreak(params.getSortFields()),
+            result -> ((DigitalObject) result).id);
+    }
+
+    /**
+     * Searches the given repositories, returning the full results as digital objects.
+     *
+     * @param services the repositories to search; each search targets the service id
+     * @param query    the query
+     * @param params   the query parameters, applied to the union of the results
+     * @param authInfo the authentication to provide
+     * @return the merged search results as digital objects
+     * @throws DoipException if the search could not be started
+     */
+    public FederatedSearchResults<DigitalObject> search(List<ServiceInfo> services, String query, QueryParams params, AuthenticationInfo authInfo) throws DoipException {
+        if (params == null) params = QueryParams.DEFAULT;
+        List<SortField> sortFields = params.getSortFields() == null || params.getSortFields().isEmpty() ? BY_ID : withIdTieBreak(params.getSortFields());
+        return search(services, query, params, authInfo, "full", DigitalObject.class, sortFields, result -> (DigitalObject) result);
+    }
+
+    private <T> FederatedSearchResults<T> search(List<ServiceInfo> services, String query, QueryParams params, AuthenticationInfo authInfo,
+                                                 String type, Class<?> klass, List<SortField> mergeSortFields,
+                                                 Function<Object, T> mapper) throws DoipException {
+        long offset = 0;
+        long limit = -1;
+        QueryParams repositoryParams = new QueryParams(0, -1, mergeSortFields);
+        if (params.getPageSize() > 0) {
+            // the page of the union lies within the first (pageNumber + 1) * pageSize results of every repository
+            offset = (long) params.getPageNumber() * params.getPageSize();
+            limit = params.getPageSize();
+            repositoryParams = new QueryParams(0, (int) Math.min(offset + limit, Integer.MAX_VALUE), mergeSortFields);
+        }
+        JsonObject attributes = DoipClient.getSearchAttributes(type, query, repositoryParams);
+        for (ServiceInfo serviceInfo : services) {
+            if (serviceInfo.serviceId == null) throw new DoipException("Missing service id for federated search");
+        }
+        long startNanos = System.nanoTime();
+        List<FederatedSearchSource> sources = new ArrayList<>(services.size());
+        for (ServiceInfo serviceInfo : services) {
+            DoipRequestHeaders headers = DoipClient.headersFrom(serviceInfo.serviceId, DoipConstants.OP_SEARCH, authInfo, attributes, null);
+            FederatedSearchSource source = new FederatedSearchSource(sources.size(), serviceInfo, mergeSortFields, config.prefetch);
+            sources.add(source);
+            searchExecutor.execute(() -> source.run(client, headers, klass, startNanos));
+        }
+        try {
+            for (FederatedSearchSource source : sources) {
+                long remainingNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(responseTimeoutMsFor(source.serviceInfo)) - System.nanoTime();
+                try {
+                    source.responded.get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    source.timeOut();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (FederatedSearchSource source : sources) {
+                source.timeOut();
+            }
+            throw new DoipException(e);
+        } catch (ExecutionException e) {
+            // not reached; responded is only completed normally
+            throw new DoipException(e.getCause());
+        }
+        return new FederatedSearchResults<>(sources, mergeSortFields, mapper, offset, limit, config.resultTimeoutMs);
+    }
+
+    private long responseTimeoutMsFor(ServiceInfo serviceInfo) {
+        Long budget = config.responseTimeoutMsByService.get(serviceInfo.serviceId);
+        return budget != null ? budget : config.responseTimeoutMs;
+    }
+
+    private static List<SortField> withIdTieBreak(List<SortField> sortFields) {
+        List<SortField> result = new ArrayList<>(sortFields);
+        result.add(new SortField("id"));
+        return result;
+    }
+}
@@ -0,0 +1,33 @@
+package xly.doip.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration for a {@link FederatedSearch}.
+ */
+public class FederatedSearchConfig {
+
+    /**
+     * The time in milliseconds, from the start of a search, within which each repository must respond.  Repositories
+     * which have not responded in time are left out of the results and reported as timed out.  Defaults to 10000.
+     */
+    public long responseTimeoutMs = 10_000;
+
+    /**
+     * Response time budgets for particular repositories, by service id, overriding {@link #responseTimeoutMs}.
+     */
+    public Map<String, Long> responseTimeoutMsByService = new HashMap<>();
+
+    /**
+     * The longest time in milliseconds the merge waits for the next result of a repository which has responded.  A
+     * repository exceeding it is dropped, keeping the results it has already contributed, and reported as timed out.
+     * Defaults to 10000.
+     */
+    public long resultTimeoutMs = 10_000;
+
+    /**
+     * The number of results read ahead from each repository while the merge is waiting on others.  Defaults to 256.
+     */
+    public int prefetch = 256;
+}
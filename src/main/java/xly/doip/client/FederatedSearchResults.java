@@ -0,0 +1,190 @@
+package xly.doip.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import xly.doip.client.RepositorySearchStats.Status;
+
+/**
+ * The results of a {@link FederatedSearch}: the results of each repository merged into a single sorted sequence,
+ * with the requested page taken from the union.
+ * <p>
+ * Each repository is expected to return its results sorted by the requested sort fields; the merge keeps one result
+ * from each repository and repeatedly returns the first of them.  A repository which stalls for longer than
+ * {@link FederatedSearchConfig#resultTimeoutMs} while the merge waits on it is dropped, and the results become
+ * partial; {@link #getRepositoryStats()} tells which repositories responded, how quickly, and what they contributed.
+ *
+ * @param <T> either String for searchIds or DigitalObject for full search
+ */
+public class FederatedSearchResults<T> implements SearchResults<T> {
+
+    private final List<FederatedSearchSource> sources;
+    private final List<SortField> sortFields;
+    private final Function<Object, T> mapper;
+    private final long offset;
+    private final long limit;
+    private final long resultTimeoutMs;
+    private final PriorityQueue<Head> heads = new PriorityQueue<>();
+    // held while waiting on a repository, so not a monitor, which would pin a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private boolean started;
+    private long returned;
+    private boolean closed;
+
+    FederatedSearchResults(List<FederatedSearchSource> sources, List<SortField> sortFields, Function<Object, T> mapper,
+                           long offset, long limit, long resultTimeoutMs) {
+        this.sources = sources;
+        this.sortFields = sortFields;
+        this.mapper = mapper;
+        this.offset = offset;
+        this.limit = limit;
+        this.resultTimeoutMs = resultTimeoutMs;
+    }
+
+    /**
+     * Returns the sum of the numbers of results reported by the repositories which responded, or -1 if any of them
+     * did not report one.
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (FederatedSearchSource source : sources) {
+            if (!source.hasResponded()) continue;
+            if (source.getReportedSize() < 0) return -1;
+            size += source.getReportedSize();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns true if any repository timed out or failed, so that results may be missing.
+     */
+    public boolean isPartial() {
+        for (FederatedSearchSource source : sources) {
+            Status status = source.getStatus();
+            if (status == Status.TIMED_OUT || status == Status.FAILED) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns statistics for each repository searched, in the order the services were given.
+     */
+    public List<RepositorySearchStats> getRepositoryStats() {
+        List<RepositorySearchStats> stats = new ArrayList<>(sources.size());
+        for (FederatedSearchSource source : sources) {
+            stats.add(source.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns statistics for the repositories which were dropped for exceeding their time budgets.
+     */
+    public List<RepositorySearchStats> getTimedOutRepositories() {
+        List<RepositorySearchStats> stats = new ArrayList<>();
+        for (FederatedSearchSource source : sources) {
+            if (source.getStatus() == Status.TIMED_OUT) stats.add(source.getStats());
+        }
+        return stats;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new MergingIterator();
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                heads.clear();
+                for (FederatedSearchSource source : sources) {
+                    source.close();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void start() throws InterruptedException {
+        for (FederatedSearchSource source : sources) {
+            advance(source);
+        }
+        for (long i = 0; i < offset && !heads.isEmpty(); i++) {
+            advance(heads.poll().source);
+        }
+        started = true;
+    }
+
+    private void advance(FederatedSearchSource source) throws InterruptedException {
+        FederatedSearchSource.Result result = source.take(resultTimeoutMs);
+        if (result != null) heads.add(new Head(source, result));
+    }
+
+    private class MergingIterator implements Iterator<T> {
+
+        @Override
+        public boolean hasNext() {
+            lock.lock();
+            try {
+                if (closed) return false;
+                if (!started) start();
+                boolean res = !heads.isEmpty() && (limit < 0 || returned < limit);
+                if (!res) close();
+                return res;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new RuntimeException(new DoipException(e));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public T next() {
+            lock.lock();
+            try {
+                if (!hasNext()) throw new NoSuchElementException();
+                Head head = heads.poll();
+                returned++;
+                head.source.countReturned();
+                advance(head.source);
+                return mapper.apply(head.result.value);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new RuntimeException(new DoipException(e));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final class Head implements Comparable<Head> {
+        final FederatedSearchSource source;
+        final FederatedSearchSource.Result result;
+
+        Head(FederatedSearchSource source, FederatedSearchSource.Result result) {
+            this.source = source;
+            this.result = result;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            int cmp = SortKeys.compare(result.keys, other.result.keys, sortFields);
+            if (cmp != 0) return cmp;
+            return Integer.compare(source.index, other.source.index);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package xly.doip.client;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.gson.JsonElement;
+
+import xly.doip.DoipConstants;
+import xly.doip.DoipRequestHeaders;
+import xly.doip.client.RepositorySearchStats.Status;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.client.transport.DoipConnection;
+
+/**
+ * Used internally by {@link FederatedSearch}: the search at one repository.  A producer thread sends the request and
+ * reads the results ahead into a bounded queue, from which the merge in {@link FederatedSearchResults} takes them.
+ */
+class FederatedSearchSource {
+
+    private static final Object END = new Object();
+
+    final int index;
+    final ServiceInfo serviceInfo;
+    // completed when the repository has responded or the search at it has ended
+    final CompletableFuture<Void> responded = new CompletableFuture<>();
+
+    private final BlockingQueue<Object> queue;
+    private final List<SortField> sortFields;
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.PENDING);
+    private final ReentrantLock connectionLock = new ReentrantLock();
+    private volatile boolean closed;
+    private volatile ConnectionAndPool connectionAndPool;
+    private volatile CompletableFuture<DoipClientResponse> responseFuture;
+    private boolean released;
+
+    private volatile long startNanos;
+    private volatile long responseTimeMs = -1;
+    private volatile long completionTimeMs = -1;
+    private volatile int reportedSize = -1;
+    private volatile long resultsReceived;
+    private volatile long resultsReturned;
+    private volatile Throwable error;
+
+    FederatedSearchSource(int index, ServiceInfo serviceInfo, List<SortField> sortFields, int prefetch) {
+        this.index = index;
+        this.serviceInfo = serviceInfo;
+        this.sortFields = sortFields;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, prefetch));
+    }
+
+    /**
+     * Performs the search, putting each result with its sort keys on the queue; run on the producer thread.
+     */
+    void run(DoipClient client, DoipRequestHeaders headers, Class<?> klass, long startNanos) {
+        this.startNanos = startNanos;
+        DoipClientResponse response = null;
+        SearchResults<?> results = null;
+        try {
+            connectionAndPool = client.connectionAndPoolForOptions(serviceInfo, headers.targetId);
+            if (closed) return;
+            CompletableFuture<DoipClientResponse> future = connectionAndPool.getConnection().sendRequestAsync(headers, null);
+            responseFuture = future;
+            if (closed) {
+                // timed out while the request was being sent
+                abort();
+                return;
+            }
+            response = future.join();
+            response.setOnClose(this::release);
+            if (!response.getStatus().equals(DoipConstants.STATUS_OK)) {
+                throw DoipClient.doipExceptionFromDoipResponse(response);
+            }
+            results = new DoipSearchResults<>(response, klass);
+            reportedSize = results.size();
+            responseTimeMs = elapsedMs();
+            status.compareAndSet(Status.PENDING, Status.STREAMING);
+            responded.complete(null);
+            for (Object result : results) {
+                if (closed) return;
+                queue.put(new Result(result, SortKeys.of(result, sortFields)));
+                resultsReceived++;
+            }
+            completionTimeMs = elapsedMs();
+            status.compareAndSet(Status.STREAMING, Status.COMPLETE);
+        } catch (Throwable e) {
+            if (closed) return;
+            error = e instanceof DoipException ? e : new DoipException(e);
+            status.set(Status.FAILED);
+        } finally {
+            if (results != null) {
+                results.close();
+            } else {
+                DoipClient.closeQuietly(response);
+            }
+            release();
+            responded.complete(null);
+            if (!closed) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next result from the queue, waiting at most the given time.
+     *
+     * @return the next result, or null if the repository has no more, failed, or timed out
+     */
+    Result take(long timeoutMs) throws InterruptedException {
+        if (closed) return null;
+        Object next = queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (next == null) {
+            timeOut();
+            return null;
+        }
+        if (next == END) return null;
+        return (Result) next;
+    }
+
+    void countReturned() {
+        resultsReturned++;
+    }
+
+    /**
+     * Drops a repository which exceeded its time budget.
+     */
+    void timeOut() {
+        Status current = status.get();
+        if ((current == Status.PENDING || current == Status.STREAMING) && status.compareAndSet(current, Status.TIMED_OUT)) {
+            abort();
+        }
+    }
+
+    /**
+     * Stops using the repository's results.  Unread results are drained by the producer thread so that the connection
+     * can be reused.
+     */
+    void close() {
+        status.compareAndSet(Status.STREAMING, Status.CLOSED);
+        closed = true;
+        queue.clear();
+    }
+
+    /**
+     * Stops the search at a repository which is not responding.  A connection which is not multiplexed is closed,
+     * since the rest of its response cannot be skipped without waiting for it.
+     */
+    private void abort() {
+        close();
+        CompletableFuture<DoipClientResponse> future = responseFuture;
+        if (future == null) return;
+        future.cancel(false);
+        connectionLock.lock();
+        try {
+            DoipConnection connection = connectionAndPool.getConnection();
+            if (!released && !connection.isMultiplexed()) connection.close();
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    private void release() {
+        ConnectionAndPool cp = connectionAndPool;
+        if (cp == null) return;
+        connectionLock.lock();
+        try {
+            if (released) return;
+            released = true;
+            cp.releaseConnection();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    private long elapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    Status getStatus() {
+        return status.get();
+    }
+
+    boolean hasResponded() {
+        return responseTimeMs >= 0;
+    }
+
+    int getReportedSize() {
+        return reportedSize;
+    }
+
+    RepositorySearchStats getStats() {
+        return new RepositorySearchStats(serviceInfo, status.get(), responseTimeMs, completionTimeMs, reportedSize,
+            resultsReceived, resultsReturned, error);
+    }
+
+    /**
+     * A result with the values of its sort fields, computed by the producer thread.
+     */
+    static final class Result {
+        final Object value;
+        final JsonElement[] keys;
+
+        Result(Object value, JsonElement[] keys) {
+            this.value = value;
+            this.keys = keys;
+        }
+    }
+}
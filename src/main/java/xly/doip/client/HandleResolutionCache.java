@@ -0,0 +1,264 @@
+package xly.doip.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleResolver;
+import net.handle.hdllib.HandleValue;
+import xly.doip.util.GsonUtility;
+
+/**
+ * Used internally by {@link DoipClient} to resolve handles to the {@link ServiceInfo} of the DOIP service at which
+ * they are accessed, following DOIPService references, and to cache the results.
+ * <p>
+ * A result is cached for the smallest TTL of the handle values it was derived from, capped at
+ * {@link DoipClientConfig#handleCacheMaxTtlMs}.  Handles which do not exist or have no DOIP service are cached for
+ * {@link DoipClientConfig#handleCacheNegativeTtlMs}; other resolution errors are not cached.  Concurrent lookups of
+ * the same handle share a single resolution, and an entry read in the last
+ * {@link DoipClientConfig#handleCacheRefreshFraction} of its lifetime is re-resolved in the background, so that
+ * handles in steady use do not expire under their callers.
+ */
+class HandleResolutionCache {
+    private static final Logger logger = LoggerFactory.getLogger(HandleResolutionCache.class);
+
+    private static final String DOIP_SERVICE_INFO = "DOIPServiceInfo";
+    private static final String TYPE_DOIP_SERVICE_INFO = "0.TYPE/DOIPServiceInfo";
+    private static final String DOIP_SERVICE = "DOIPService";
+    private static final String TYPE_DOIP_SERVICE = "0.TYPE/DOIPService";
+    private static final String[] DOIP_TYPES = { DOIP_SERVICE, TYPE_DOIP_SERVICE, DOIP_SERVICE_INFO, TYPE_DOIP_SERVICE_INFO };
+    private static final int MAX_HOP_COUNT = 20;
+
+    // shared by all caches; resolutions block, so they run on virtual threads
+    private static final ExecutorService refreshExecutor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doip-handle-refresh-", 1).factory());
+
+    private final HandleResolver resolver;
+    private final DoipClientConfig config;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder resolutions = new LongAdder();
+
+    HandleResolutionCache(HandleResolver resolver, DoipClientConfig config) {
+        this.resolver = resolver;
+        this.config = config;
+    }
+
+    /**
+     * Returns the service information for a handle.
+     *
+     * @param handle the handle to resolve
+     * @return the service information, or null if the handle has no DOIP service
+     * @throws HandleException if resolution failed, including if the handle does not exist
+     */
+    ServiceInfo resolve(String handle) throws HandleException {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(handle);
+        if (entry != null && now < entry.expiresAt) {
+            hits.increment();
+            if (entry.isInRefreshWindow(now, config.handleCacheRefreshFraction) && !inFlight.containsKey(handle)) {
+                refresh(handle);
+            }
+            return entry.getServiceInfo();
+        }
+        misses.increment();
+        return load(handle).getServiceInfo();
+    }
+
+    /**
+     * Resolves a handle and caches the result, or waits for a resolution of the same handle already in progress.
+     */
+    private Entry load(String handle) throws HandleException {
+        CompletableFuture<Entry> future = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = inFlight.putIfAbsent(handle, future);
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof HandleException) throw (HandleException) e.getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+        try {
+            Entry entry = lookup(handle, 0);
+            future.complete(entry);
+            return entry;
+        } catch (HandleException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(handle, future);
+        }
+    }
+
+    private void refresh(String handle) {
+        refreshes.increment();
+        refreshExecutor.execute(() -> {
+            try {
+                load(handle);
+            } catch (Exception e) {
+                // the current entry is kept until it expires
+                logger.debug("Error refreshing handle " + handle, e);
+            }
+        });
+    }
+
+    /**
+     * Resolves a handle, following DOIPService references, and caches the result for the handle.  Referenced
+     * handles are taken from the cache when fresh, and cached in turn; they are not coalesced, since a chain of
+     * references may loop back to a handle whose resolution is in progress.
+     */
+    private Entry lookup(String handle, int hopCount) throws HandleException {
+        Entry entry = resolveOnce(handle, hopCount);
+        store(handle, entry);
+        return entry;
+    }
+
+    private Entry resolveOnce(String handle, int hopCount) throws HandleException {
+        long now = System.currentTimeMillis();
+        HandleValue[] values;
+        resolutions.increment();
+        try {
+            values = resolver.resolveHandle(handle, DOIP_TYPES, null);
+        } catch (HandleException e) {
+            if (e.getCode() == HandleException.HANDLE_DOES_NOT_EXIST) {
+                return new Entry(null, handle, now, now + Math.min(config.handleCacheNegativeTtlMs, config.handleCacheMaxTtlMs));
+            }
+            throw e;
+        }
+        if (values == null) values = new HandleValue[0];
+        long expiresAt = now + config.handleCacheMaxTtlMs;
+        for (HandleValue value : values) {
+            expiresAt = Math.min(expiresAt, expiryOf(value, now));
+        }
+        for (HandleValue value : values) {
+            String type = value.getTypeAsString();
+            if (DOIP_SERVICE_INFO.equals(type) || TYPE_DOIP_SERVICE_INFO.equals(type)) {
+                String json = value.getDataAsString();
+                DigitalObject dobj = GsonUtility.getGson().fromJson(json, DigitalObject.class);
+                ServiceInfo result = GsonUtility.getGson().fromJson(dobj.attributes, ServiceInfo.class);
+                result.serviceId = handle;
+                return new Entry(result, null, now, expiresAt);
+            } else if (DOIP_SERVICE.equals(type) || TYPE_DOIP_SERVICE.equals(type)) {
+                if (hopCount >= MAX_HOP_COUNT) {
+                    break;
+                }
+                String doipServiceHandle = value.getDataAsString();
+                Entry referenced = entries.get(doipServiceHandle);
+                if (referenced == null || now >= referenced.expiresAt) {
+                    referenced = lookup(doipServiceHandle, hopCount + 1);
+                }
+                return new Entry(referenced.serviceInfo, referenced.missingHandle, now, Math.min(expiresAt, referenced.expiresAt));
+            }
+        }
+        return new Entry(null, null, now, now + Math.min(config.handleCacheNegativeTtlMs, config.handleCacheMaxTtlMs));
+    }
+
+    private static long expiryOf(HandleValue value, long now) {
+        long ttlMs = value.getTTL() * 1000L;
+        if (value.getTTLType() == HandleValue.TTL_TYPE_ABSOLUTE) return ttlMs;
+        return now + Math.max(0, ttlMs);
+    }
+
+    private void store(String handle, Entry entry) {
+        entries.put(handle, entry);
+        if (entries.size() > config.handleCacheMaxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes expired entries, and then arbitrary entries until the cache is back under its maximum size.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> now >= entry.expiresAt);
+        Iterator<String> iter = entries.keySet().iterator();
+        while (entries.size() > config.handleCacheMaxEntries && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    long getResolutions() {
+        return resolutions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "HandleResolutionCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+            + ", coalesced=" + getCoalesced() + ", refreshes=" + getRefreshes() + ", resolutions=" + getResolutions() + "]";
+    }
+
+    /**
+     * A cached result: service information, or none, with the handle which did not exist if that was the result.
+     */
+    private static class Entry {
+        final ServiceInfo serviceInfo;
+        final String missingHandle;
+        final long loadedAt;
+        final long expiresAt;
+
+        Entry(ServiceInfo serviceInfo, String missingHandle, long loadedAt, long expiresAt) {
+            this.serviceInfo = serviceInfo;
+            this.missingHandle = missingHandle;
+            this.loadedAt = loadedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        ServiceInfo getServiceInfo() throws HandleException {
+            if (missingHandle != null) {
+                throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST, missingHandle);
+            }
+            return serviceInfo;
+        }
+
+        boolean isInRefreshWindow(long now, double refreshFraction) {
+            if (refreshFraction <= 0) return false;
+            return now >= expiresAt - (long) ((expiresAt - loadedAt) * refreshFraction);
+        }
+    }
+}
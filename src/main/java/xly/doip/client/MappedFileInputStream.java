@@ -0,0 +1,144 @@
+package xly.doip.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An input stream over the contents of a file, read through read-only memory maps.  The file is mapped and then
+ * deleted on construction, so its pages are managed by the operating system rather than held on the heap, and
+ * nothing is left behind once the stream becomes unreachable.  Supports {@link #mark(int)}, {@link #reset()} and
+ * {@link #position(long)} for random access.
+ */
+class MappedFileInputStream extends InputStream {
+    // a single MappedByteBuffer can address at most Integer.MAX_VALUE bytes
+    private static final long REGION_SIZE = 1L << 30;
+
+    private MappedByteBuffer[] regions;
+    private final long length;
+    private long position;
+    private long mark;
+
+    /**
+     * Maps the given file and deletes it.
+     *
+     * @param file the file, which should not be modified afterwards
+     */
+    MappedFileInputStream(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            length = channel.size();
+            regions = map(channel, 0, length);
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // some platforms refuse to delete mapped files
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Reads through regions mapped earlier by {@link #map(FileChannel, long, long)}, which any number of streams may
+     * share, since they are only read at absolute positions.
+     */
+    MappedFileInputStream(MappedByteBuffer[] regions, long length) {
+        this.regions = regions;
+        this.length = length;
+    }
+
+    /**
+     * Maps part of a file read-only, in as many regions as it takes.
+     */
+    static MappedByteBuffer[] map(FileChannel channel, long position, long length) throws IOException {
+        MappedByteBuffer[] res = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) / REGION_SIZE)];
+        for (int i = 0; i < res.length; i++) {
+            long start = i * REGION_SIZE;
+            res[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start, Math.min(REGION_SIZE, length - start));
+        }
+        return res;
+    }
+
+    /**
+     * Returns the total number of bytes in the stream.
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Moves to the given offset from the start of the stream.
+     */
+    void position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0 || newPosition > length) throw new IOException("position out of range: " + newPosition);
+        position = newPosition;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if (position >= length) return -1;
+        int res = regions[(int) (position / REGION_SIZE)].get((int) (position % REGION_SIZE)) & 0xFF;
+        position++;
+        return res;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) return 0;
+        if (position >= length) return -1;
+        MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+        int offsetInRegion = (int) (position % REGION_SIZE);
+        int n = Math.min(len, region.limit() - offsetInRegion);
+        region.get(offsetInRegion, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0) return 0;
+        long skipped = Math.min(n, length - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        ensureOpen();
+        position = mark;
+    }
+
+    @Override
+    public void close() {
+        // the mapping is released when the buffers are garbage collected
+        regions = null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (regions == null) throw new IOException("closed");
+    }
+}
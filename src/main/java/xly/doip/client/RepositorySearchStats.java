@@ -0,0 +1,113 @@
+package xly.doip.client;
+
+/**
+ * What one repository contributed to a {@link FederatedSearchResults}, as of when the statistics were taken.
+ */
+public class RepositorySearchStats {
+
+    /**
+     * The state of the search at one repository.
+     */
+    public enum Status {
+        /** The repository has not yet responded. */
+        PENDING,
+        /** The repository responded and its results are being read. */
+        STREAMING,
+        /** All results of the repository were read. */
+        COMPLETE,
+        /** The federated results were closed before all results of the repository were read. */
+        CLOSED,
+        /** The repository exceeded its response time budget, or stalled while its results were being read. */
+        TIMED_OUT,
+        /** The search failed at the repository. */
+        FAILED
+    }
+
+    private final ServiceInfo serviceInfo;
+    private final Status status;
+    private final long responseTimeMs;
+    private final long completionTimeMs;
+    private final int reportedSize;
+    private final long resultsReceived;
+    private final long resultsReturned;
+    private final Throwable error;
+
+    RepositorySearchStats(ServiceInfo serviceInfo, Status status, long responseTimeMs, long completionTimeMs,
+                          int reportedSize, long resultsReceived, long resultsReturned, Throwable error) {
+        this.serviceInfo = serviceInfo;
+        this.status = status;
+        this.responseTimeMs = responseTimeMs;
+        this.completionTimeMs = completionTimeMs;
+        this.reportedSize = reportedSize;
+        this.resultsReceived = resultsReceived;
+        this.resultsReturned = resultsReturned;
+        this.error = error;
+    }
+
+    public ServiceInfo getServiceInfo() {
+        return serviceInfo;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns true if the repository was dropped from the search for exceeding its time budget.
+     */
+    public boolean isTimedOut() {
+        return status == Status.TIMED_OUT;
+    }
+
+    /**
+     * Returns the time in milliseconds from the start of the search until the repository responded, or -1 if it
+     * has not.
+     */
+    public long getResponseTimeMs() {
+        return responseTimeMs;
+    }
+
+    /**
+     * Returns the time in milliseconds from the start of the search until all results of the repository were read,
+     * or -1 if they have not been.
+     */
+    public long getCompletionTimeMs() {
+        return completionTimeMs;
+    }
+
+    /**
+     * Returns the number of results the repository reported for the query, or -1 if it did not respond or did not
+     * report one.
+     */
+    public int getReportedSize() {
+        return reportedSize;
+    }
+
+    /**
+     * Returns the number of results read from the repository.
+     */
+    public long getResultsReceived() {
+        return resultsReceived;
+    }
+
+    /**
+     * Returns the number of results of the repository returned by the federated results.
+     */
+    public long getResultsReturned() {
+        return resultsReturned;
+    }
+
+    /**
+     * Returns the error which failed the search at the repository, or null.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "RepositorySearchStats[" + serviceInfo.serviceId + ", status=" + status + ", responseTimeMs=" + responseTimeMs
+            + ", completionTimeMs=" + completionTimeMs + ", reportedSize=" + reportedSize + ", received=" + resultsReceived
+            + ", returned=" + resultsReturned + (error == null ? "" : ", error=" + error) + "]";
+    }
+}
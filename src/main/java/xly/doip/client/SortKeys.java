@@ -0,0 +1,96 @@
+package xly.doip.client;
+
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import xly.doip.util.GsonUtility;
+
+/**
+ * Used internally by {@link FederatedSearch} to order results from different repositories by {@link SortField}s.
+ * <p>
+ * A sort field named {@code id} or {@code type} is the id or type of the digital object; a name starting with
+ * {@code /} is a JSON pointer into the digital object as serialized (such as {@code /attributes/content/age}); any
+ * other name is an attribute of the digital object.  Numbers compare numerically and other values by their string
+ * form; missing values sort after present ones.
+ */
+final class SortKeys {
+
+    private SortKeys() {}
+
+    /**
+     * Returns the values of the sort fields for a search result, which is a DigitalObject or an id.
+     */
+    static JsonElement[] of(Object result, List<SortField> sortFields) {
+        JsonElement[] keys = new JsonElement[sortFields.size()];
+        JsonElement json = null;
+        for (int i = 0; i < keys.length; i++) {
+            String name = sortFields.get(i).getName();
+            if (result instanceof String) {
+                keys[i] = "id".equals(name) ? new JsonPrimitive((String) result) : null;
+                continue;
+            }
+            DigitalObject dobj = (DigitalObject) result;
+            if ("id".equals(name)) {
+                keys[i] = dobj.id == null ? null : new JsonPrimitive(dobj.id);
+            } else if ("type".equals(name)) {
+                keys[i] = dobj.type == null ? null : new JsonPrimitive(dobj.type);
+            } else if (name.startsWith("/")) {
+                if (json == null) json = GsonUtility.getGson().toJsonTree(dobj);
+                keys[i] = atPointer(json, name);
+            } else {
+                keys[i] = dobj.attributes == null ? null : dobj.attributes.get(name);
+            }
+        }
+        return keys;
+    }
+
+    private static JsonElement atPointer(JsonElement json, String pointer) {
+        for (String token : pointer.substring(1).split("/", -1)) {
+            token = token.replace("~1", "/").replace("~0", "~");
+            if (json instanceof JsonObject) {
+                json = ((JsonObject) json).get(token);
+            } else if (json instanceof JsonArray) {
+                JsonArray array = (JsonArray) json;
+                try {
+                    int index = Integer.parseInt(token);
+                    json = index >= 0 && index < array.size() ? array.get(index) : null;
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return json;
+    }
+
+    static int compare(JsonElement[] a, JsonElement[] b, List<SortField> sortFields) {
+        for (int i = 0; i < a.length; i++) {
+            int cmp = compareValues(a[i], b[i]);
+            if (cmp != 0) return sortFields.get(i).isReverse() ? -cmp : cmp;
+        }
+        return 0;
+    }
+
+    private static int compareValues(JsonElement a, JsonElement b) {
+        boolean aMissing = a == null || a.isJsonNull();
+        boolean bMissing = b == null || b.isJsonNull();
+        if (aMissing || bMissing) return aMissing == bMissing ? 0 : (aMissing ? 1 : -1);
+        if (a.isJsonPrimitive() && b.isJsonPrimitive()) {
+            JsonPrimitive pa = a.getAsJsonPrimitive();
+            JsonPrimitive pb = b.getAsJsonPrimitive();
+            if (pa.isNumber() && pb.isNumber()) {
+                return pa.getAsBigDecimal().compareTo(pb.getAsBigDecimal());
+            }
+            if (pa.isBoolean() && pb.isBoolean()) {
+                return Boolean.compare(pa.getAsBoolean(), pb.getAsBoolean());
+            }
+            return pa.getAsString().compareTo(pb.getAsString());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+}
@@ -0,0 +1,25 @@
+package xly.doip.client.transport;
+
+/**
+ * Notified by a {@link TransportDoipClient} of each attempt to connect with {@link TransportDoipClient#connect(ConnectionOptions)},
+ * including any TLS handshake and multiplexing negotiation.  Called on the connecting thread, so should return quickly.
+ */
+public interface ConnectionListener {
+
+    /**
+     * Called when a connection has been established.
+     *
+     * @param options the options of the connection
+     * @param nanos the time taken to connect
+     */
+    void connected(ConnectionOptions options, long nanos);
+
+    /**
+     * Called when connecting failed.
+     *
+     * @param options the options of the connection
+     * @param nanos the time taken until connecting failed
+     * @param e the failure
+     */
+    void connectFailed(ConnectionOptions options, long nanos, Exception e);
+}
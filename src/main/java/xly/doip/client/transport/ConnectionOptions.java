@@ -4,6 +4,8 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.List;
 
+import xly.doip.SegmentCompression;
+
 /**
  * Options for a connection to a DOIP server.
  */
@@ -29,6 +31,33 @@ public class ConnectionOptions {
      */
     public Integer readTimeoutMs;
 
+    /**
+     * If true, the connection will attempt to switch to multiplexed mode on connect, so that many requests can be
+     * in progress on it at once with their segments interleaved (see {@link DoipConnectionImpl#negotiateMultiplexing(String)}).
+     */
+    public boolean multiplex;
+
+    /**
+     * If true, the connection will attempt to switch to binary framing on connect, which is cheaper to parse than the
+     * text framing (see {@link DoipConnectionImpl#negotiateBinaryFraming(String)}).  Not attempted if the connection
+     * was switched to multiplexed mode.
+     */
+    public boolean binaryFraming;
+
+    /**
+     * If not null, requests on the connection ask for compressed responses, and are themselves compressed once the
+     * server has agreed (see {@link DoipConnectionImpl#setCompression(SegmentCompression)}).  May be shared by many
+     * connections, which then share its statistics.
+     */
+    public SegmentCompression compression;
+
+    /**
+     * If true, the connection uses TLS; the server must be listening with
+     * {@link xly.doip.server.DoipServerConfig#useTls}.  The server's certificate is checked against {@link #serverId}
+     * and {@link #trustedServerPublicKeys} if present, and otherwise trusted.
+     */
+    public boolean useTls;
+
     /**
      * The identifier of the server; if present {@link #trustedServerPublicKeys} should also be provided.
      */
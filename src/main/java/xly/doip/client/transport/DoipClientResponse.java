@@ -14,6 +14,8 @@ public class DoipClientResponse implements AutoCloseable {
 
     private final DoipResponseHeaders initialSegment;
     private final InDoipMessage in;
+    private final long receivedNanos = System.nanoTime();
+    private long requestSentNanos;
     private Runnable onClose;
 
     /**
@@ -36,6 +38,30 @@ public class DoipClientResponse implements AutoCloseable {
         this.onClose = onClose;
     }
 
+    /**
+     * Returns the {@link System#nanoTime()} at which this response was constructed, which for responses received by
+     * {@link TransportDoipClient} is when its initial segment had been read.
+     *
+     * @return the time at which the initial segment was read
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the request had been completely written, or 0 if not known,
+     * including when the response started arriving first.
+     *
+     * @return the time at which the request had been written, or 0
+     */
+    public long getRequestSentNanos() {
+        return requestSentNanos;
+    }
+
+    void setRequestSentNanos(long requestSentNanos) {
+        this.requestSentNanos = requestSentNanos;
+    }
+
     /**
      * Returns the status code from the initial segment of the response.
      *
@@ -4,6 +4,7 @@ import xly.doip.DoipRequestHeaders;
 import xly.doip.InDoipMessage;
 import java.net.Socket;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A connection with a DOIP server.
@@ -50,6 +51,32 @@ public interface DoipConnection extends AutoCloseable {
      */
     DoipExchange sendRequestToExchange(DoipRequestHeaders request) throws IOException;
 
+    /**
+     * Sends a request without waiting for the response.  Cancelling the returned future before it completes abandons
+     * the request.  The default implementation sends the request and waits for the response before returning.
+     *
+     * @param request the initial segment of the request (except the requestId which will be generated automatically)
+     * @param in the remaining segments of the request, or null for a "compact" request
+     * @return a future for the response
+     */
+    default CompletableFuture<DoipClientResponse> sendRequestAsync(DoipRequestHeaders request, InDoipMessage in) {
+        try {
+            return CompletableFuture.completedFuture(in == null ? sendCompactRequest(request) : sendRequest(request, in));
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Returns true if requests on this connection have their own streams, so that an abandoned request does not
+     * hold up the ones after it.
+     *
+     * @return true if the connection is multiplexed
+     */
+    default boolean isMultiplexed() {
+        return false;
+    }
+
     Socket getSocket();
 
     @Override
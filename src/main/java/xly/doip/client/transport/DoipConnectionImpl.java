@@ -3,6 +3,7 @@ package xly.doip.client.transport;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.io.UncheckedIOException;
 import java.net.Socket;
@@ -22,7 +23,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
 import xly.doip.BadDoipException;
+import xly.doip.DoipConstants;
+import xly.doip.DoipHeadersDecoder;
 import xly.doip.DoipRequestHeaders;
 import xly.doip.DoipRequestHeadersWithRequestId;
 import xly.doip.DoipResponseHeadersWithRequestId;
@@ -31,7 +37,12 @@ import xly.doip.InDoipMessageImpl;
 import xly.doip.InDoipSegment;
 import xly.doip.OutDoipMessage;
 import xly.doip.OutDoipMessageImpl;
+import xly.doip.SegmentCompression;
+import xly.doip.mux.MultiplexedConnection;
+import xly.doip.mux.MultiplexedStream;
+import xly.doip.util.ByteBufferPool;
 import xly.doip.util.GsonUtility;
+import xly.doip.util.PooledChannelOutputStream;
 
 /**
  * An implementation of {@link DoipConnection}. Generally, instances of DoipConnection should be obtained
@@ -45,15 +56,25 @@ public class DoipConnectionImpl implements DoipConnection {
     private static final Logger logger = LoggerFactory.getLogger(DoipConnectionImpl.class);
 
     private static final AtomicInteger connectionCount = new AtomicInteger(1);
+    // reads the responses to asynchronous requests on multiplexed connections, whose frames are demultiplexed by the monitor thread
+    private static final ExecutorService multiplexedResponseExecutor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doip-mux-response-", 1).factory());
 
     private final Socket socket;
+    private final ByteBufferPool bufferPool;
     private final Semaphore outputLock = new Semaphore(1, true);
-    private final ConcurrentMap<String, CompletableFuture<DoipClientResponse>> outstandingRequests = new ConcurrentHashMap<>();
+    private OutputStream out; // guarded by outputLock
+    private final ConcurrentMap<String, ResponseFuture> outstandingRequests = new ConcurrentHashMap<>();
     private volatile CountDownLatch requestWaitLatch = new CountDownLatch(1);
     private final ExecutorService execServ;
 
     private DoipResponseHeadersWithRequestId initialSegment;
     private CompletableFuture<?> responseReadingCompleter;
+    private volatile MultiplexedConnection mux;
+    private volatile boolean binaryFraming;
+    private volatile SegmentCompression compression;
+    // set once the server has answered a request with the compression attribute
+    private volatile boolean peerDecompresses;
     private volatile boolean isClosed;
 
     /**
@@ -63,7 +84,19 @@ public class DoipConnectionImpl implements DoipConnection {
      * @param socket
      */
     public DoipConnectionImpl(Socket socket) {
+        this(socket, null);
+    }
+
+    /**
+     * Establishes a DoipConnection using the specified Socket.  If the socket is backed by a {@link java.nio.channels.SocketChannel},
+     * requests are written through a direct buffer taken from the supplied pool.
+     *
+     * @param socket
+     * @param bufferPool the pool of output buffers; may be null
+     */
+    public DoipConnectionImpl(Socket socket, ByteBufferPool bufferPool) {
         this.socket = socket;
+        this.bufferPool = bufferPool;
         this.execServ = Executors.newSingleThreadExecutor(r -> new Thread(r, "doip-connection-monitor-" + connectionCount.getAndIncrement()));
         this.execServ.submit(this::monitor);
     }
@@ -73,13 +106,21 @@ public class DoipConnectionImpl implements DoipConnection {
         try {
             PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(socket.getInputStream()));
             int ch;
-            while (waitForRequest() && (ch = in.read()) > -1) {
+            while (waitForRequest()) {
+                if (mux != null) {
+                    mux.readFrames(in);
+                    closeWithoutWaiting();
+                    return;
+                }
+                if ((ch = in.read()) < 0) break;
                 if (isClosed) return;
                 in.unread(ch);
-                InDoipMessageImpl inDoipMessage = new InDoipMessageImpl(in);
+                InDoipMessageImpl inDoipMessage = new InDoipMessageImpl(in, binaryFraming);
+                inDoipMessage.setCompression(compression);
                 boolean found = inDoipMessage.spliterator().tryAdvance(this::handleInitialSegment);
                 if (found) {
-                    CompletableFuture<DoipClientResponse> responseFuture = outstandingRequests.remove(initialSegment.requestId);
+                    checkPeerDecompresses(initialSegment);
+                    ResponseFuture responseFuture = outstandingRequests.remove(initialSegment.requestId);
                     if (outstandingRequests.isEmpty()) {
                         requestWaitLatch = new CountDownLatch(1);
                     }
@@ -88,7 +129,12 @@ public class DoipConnectionImpl implements DoipConnection {
                     }
                     responseReadingCompleter = new CompletableFuture<>();
                     inDoipMessage.setCompleter(responseReadingCompleter);
-                    responseFuture.complete(new DoipClientResponse(initialSegment, inDoipMessage));
+                    DoipClientResponse response = new DoipClientResponse(initialSegment, inDoipMessage);
+                    response.setRequestSentNanos(responseFuture.requestSentNanos);
+                    if (!responseFuture.complete(response)) {
+                        // the request was cancelled; discard its response
+                        inDoipMessage.close();
+                    }
                     if (isClosed) return;
                     responseReadingCompleter.join();
                     responseReadingCompleter = null;
@@ -124,16 +170,186 @@ public class DoipConnectionImpl implements DoipConnection {
     }
 
     private void handleInitialSegment(InDoipSegment segment) {
+        initialSegment = parseInitialSegment(segment);
+    }
+
+    private static DoipResponseHeadersWithRequestId parseInitialSegment(InDoipSegment segment) {
         try {
             if (!segment.isJson()) {
                 throw new BadDoipException("expected JSON segment");
             }
-            initialSegment = GsonUtility.getGson().fromJson(segment.getJson(), DoipResponseHeadersWithRequestId.class);
+            return DoipHeadersDecoder.decodeResponse(segment);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Attempts to switch this connection to multiplexed mode (see {@link MultiplexedConnection}) by sending {@code Op.Hello}
+     * with the {@code multiplex} attribute.  Must be called before any other request is sent on the connection.
+     * If the server does not accept, the connection continues to be used in the ordinary way.
+     *
+     * @param targetId the target of the hello request (generally the service id; may be null)
+     * @return true if the connection is now multiplexed
+     * @throws IOException
+     */
+    public boolean negotiateMultiplexing(String targetId) throws IOException {
+        DoipClientResponse response = sendHello(targetId, DoipConstants.MULTIPLEX_ATT, MultiplexedConnection.VERSION);
+        if (isAccepted(response, DoipConstants.MULTIPLEX_ATT, MultiplexedConnection.VERSION)) {
+            // the monitor thread switches to reading frames once the hello response has been read
+            mux = new MultiplexedConnection(socket.getOutputStream(), true, null);
+        }
+        finishHello(response);
+        return mux != null;
+    }
+
+    /**
+     * Attempts to switch this connection to binary framing (see {@link OutDoipMessageImpl}) by sending {@code Op.Hello}
+     * with the {@code framing} attribute.  Must be called before any other request is sent on the connection.
+     * If the server does not accept, the connection continues to use text framing.
+     *
+     * @param targetId the target of the hello request (generally the service id; may be null)
+     * @return true if the connection now uses binary framing
+     * @throws IOException
+     */
+    public boolean negotiateBinaryFraming(String targetId) throws IOException {
+        DoipClientResponse response = sendHello(targetId, DoipConstants.FRAMING_ATT, DoipConstants.FRAMING_BINARY);
+        if (isAccepted(response, DoipConstants.FRAMING_ATT, DoipConstants.FRAMING_BINARY)) {
+            // the monitor thread reads the next response in binary framing once the hello response has been read
+            binaryFraming = true;
+        }
+        finishHello(response);
+        return binaryFraming;
+    }
+
+    /**
+     * Returns true if this connection has been switched to binary framing.
+     *
+     * @return true if this connection has been switched to binary framing
+     */
+    public boolean isBinaryFraming() {
+        return binaryFraming;
+    }
+
+    private DoipClientResponse sendHello(String targetId, String attribute, String value) throws IOException {
+        DoipRequestHeaders hello = new DoipRequestHeaders();
+        hello.targetId = targetId;
+        hello.operationId = DoipConstants.OP_HELLO;
+        hello.attributes = new JsonObject();
+        hello.attributes.addProperty(attribute, value);
+        return sendCompactRequest(hello);
+    }
+
+    private static boolean isAccepted(DoipClientResponse response, String attribute, String value) {
+        return isAccepted(response.getAttributes(), attribute, value);
+    }
+
+    private static boolean isAccepted(JsonObject attributes, String attribute, String value) {
+        JsonElement accepted = attributes == null ? null : attributes.get(attribute);
+        return accepted != null && accepted.isJsonPrimitive() && value.equals(accepted.getAsString());
+    }
+
+    private void finishHello(DoipClientResponse response) throws IOException {
+        try {
+            response.close();
+        } catch (Exception e) {
+            closeWithoutWaiting();
+            throw new IOException("Error reading hello response", e);
+        }
+        requestWaitLatch.countDown();
+    }
+
+    /**
+     * Asks for compressed responses on every request, by adding the attribute {@code "compression": "deflate"}; once
+     * the server has agreed, requests are compressed too.  See {@link SegmentCompression}.
+     *
+     * @param compression the compression settings and statistics, shared with other connections; null to stop asking
+     */
+    public void setCompression(SegmentCompression compression) {
+        this.compression = compression;
+        if (compression == null) peerDecompresses = false;
+    }
+
+    private void checkPeerDecompresses(DoipResponseHeadersWithRequestId response) {
+        if (!peerDecompresses && compression != null && isAccepted(response.attributes, DoipConstants.COMPRESSION_ATT, DoipConstants.COMPRESSION_DEFLATE)) {
+            peerDecompresses = true;
+        }
+    }
+
+    private void applyCompression(OutDoipMessageImpl outDoipMessage) {
+        SegmentCompression compression = this.compression;
+        if (peerDecompresses && compression != null) outDoipMessage.setCompression(compression);
+    }
+
+    /**
+     * Returns true if this connection has been switched to multiplexed mode.
+     *
+     * @return true if this connection has been switched to multiplexed mode
+     */
+    @Override
+    public boolean isMultiplexed() {
+        return mux != null;
+    }
+
+    @SuppressWarnings("resource")
+    private MultiplexedStream writeMultiplexedRequest(DoipRequestHeadersWithRequestId requestWithRequestId, InDoipMessage in) throws IOException {
+        MultiplexedStream stream = mux.openStream();
+        try {
+            OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(new BufferedOutputStream(stream.getOutputStream()));
+            applyCompression(outDoipMessage);
+            outDoipMessage.writeJson(GsonUtility.getGson().toJson(requestWithRequestId));
+            if (in != null) {
+                for (InDoipSegment segment : in) {
+                    if (segment.isJson()) {
+                        outDoipMessage.writeJson(segment.getJson());
+                    } else {
+                        outDoipMessage.writeBytes(segment.getInputStream());
+                    }
+                }
+            }
+            outDoipMessage.close();
+            stream.getOutputStream().close();
+            return stream;
+        } catch (UncheckedIOException e) {
+            stream.reset();
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            stream.reset();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<DoipClientResponse> readMultiplexedResponseAsync(MultiplexedStream stream, long requestSentNanos) {
+        CompletableFuture<DoipClientResponse> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return readMultiplexedResponse(stream, requestSentNanos);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, multiplexedResponseExecutor);
+        // cancelling the request resets its stream, which tells the server and ends the read
+        future.whenComplete((response, e) -> {
+            if (e instanceof CancellationException) stream.reset();
+        });
+        return future;
+    }
+
+    private DoipClientResponse readMultiplexedResponse(MultiplexedStream stream, long requestSentNanos) throws IOException {
+        InDoipMessageImpl inDoipMessage = new InDoipMessageImpl(new PushbackInputStream(new BufferedInputStream(stream.getInputStream())));
+        inDoipMessage.setCompression(compression);
+        DoipResponseHeadersWithRequestId[] headers = new DoipResponseHeadersWithRequestId[1];
+        try {
+            boolean found = inDoipMessage.spliterator().tryAdvance(segment -> headers[0] = parseInitialSegment(segment));
+            if (!found) throw new BadDoipException("empty response received");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        checkPeerDecompresses(headers[0]);
+        DoipClientResponse response = new DoipClientResponse(headers[0], inDoipMessage);
+        response.setRequestSentNanos(requestSentNanos);
+        return response;
+    }
+
     @Override
     public boolean isClosed() {
         return isClosed;
@@ -141,24 +357,22 @@ public class DoipConnectionImpl implements DoipConnection {
 
     @Override
     public DoipClientResponse sendCompactRequest(DoipRequestHeaders request) throws IOException {
+        return sendRequestAndWait(request, null);
+    }
+
+    @Override
+    public DoipClientResponse sendRequest(DoipRequestHeaders request, InDoipMessage in) throws IOException {
+        return sendRequestAndWait(request, in);
+    }
+
+    private DoipClientResponse sendRequestAndWait(DoipRequestHeaders request, InDoipMessage in) throws IOException {
         if (isClosed) throw new IOException("closed");
-        DoipRequestHeadersWithRequestId requestWithRequestId = new DoipRequestHeadersWithRequestId(request);
-        String requestId = UUID.randomUUID().toString();
-        requestWithRequestId.requestId = requestId;
-        CompletableFuture<DoipClientResponse> completer = new CompletableFuture<>();
-        outstandingRequests.put(requestId, completer);
-        requestWaitLatch.countDown();
-        try {
-            outputLock.acquire();
-        } catch (InterruptedException e) {
-            throw new IOException(e);
-        }
-        if (isClosed) throw new IOException("closed");
-        try (OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(new BufferedOutputStream(socket.getOutputStream()))) {
-            outDoipMessage.writeJson(GsonUtility.getGson().toJson(requestWithRequestId));
-        } finally {
-            outputLock.release();
+        DoipRequestHeadersWithRequestId requestWithRequestId = withNewRequestId(request);
+        if (mux != null) {
+            MultiplexedStream stream = writeMultiplexedRequest(requestWithRequestId, in);
+            return readMultiplexedResponse(stream, System.nanoTime());
         }
+        CompletableFuture<DoipClientResponse> completer = writeRequest(requestWithRequestId, in);
         try {
             return completer.join();
         } catch (Exception e) {
@@ -167,14 +381,52 @@ public class DoipConnectionImpl implements DoipConnection {
         }
     }
 
+    /**
+     * Sends a request without waiting for the response.  The returned future is completed by the thread reading
+     * responses from this connection, and dependent actions which are not explicitly asynchronous run on that thread,
+     * so they must not block on other responses from this connection.
+     * <p>
+     * Cancelling the future before it completes resets the request's stream if this connection is multiplexed;
+     * otherwise the response is read and discarded when it arrives.
+     *
+     * @param request the initial segment of the request (except the requestId which will be generated automatically)
+     * @param in the remaining segments of the request, or null for a compact request
+     * @return a future for the response
+     */
     @Override
-    public DoipClientResponse sendRequest(DoipRequestHeaders request, InDoipMessage in) throws IOException {
-        if (isClosed) throw new IOException("closed");
+    public CompletableFuture<DoipClientResponse> sendRequestAsync(DoipRequestHeaders request, InDoipMessage in) {
+        try {
+            if (isClosed) throw new IOException("closed");
+            DoipRequestHeadersWithRequestId requestWithRequestId = withNewRequestId(request);
+            if (mux != null) {
+                MultiplexedStream stream = writeMultiplexedRequest(requestWithRequestId, in);
+                return readMultiplexedResponseAsync(stream, System.nanoTime());
+            }
+            return writeRequest(requestWithRequestId, in);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private DoipRequestHeadersWithRequestId withNewRequestId(DoipRequestHeaders request) {
         DoipRequestHeadersWithRequestId requestWithRequestId = new DoipRequestHeadersWithRequestId(request);
-        String requestId = UUID.randomUUID().toString();
-        requestWithRequestId.requestId = requestId;
-        CompletableFuture<DoipClientResponse> completer = new CompletableFuture<>();
-        outstandingRequests.put(requestId, completer);
+        requestWithRequestId.requestId = UUID.randomUUID().toString();
+        if (compression != null) {
+            // the caller's attributes are left as they were
+            JsonObject attributes = new JsonObject();
+            if (request.attributes != null) request.attributes.entrySet().forEach(entry -> attributes.add(entry.getKey(), entry.getValue()));
+            attributes.addProperty(DoipConstants.COMPRESSION_ATT, DoipConstants.COMPRESSION_DEFLATE);
+            requestWithRequestId.attributes = attributes;
+        }
+        return requestWithRequestId;
+    }
+
+    /**
+     * Writes a request on a connection which is not multiplexed, and returns the future for its response.
+     */
+    private CompletableFuture<DoipClientResponse> writeRequest(DoipRequestHeadersWithRequestId requestWithRequestId, InDoipMessage in) throws IOException {
+        ResponseFuture completer = new ResponseFuture();
+        outstandingRequests.put(requestWithRequestId.requestId, completer);
         requestWaitLatch.countDown();
         try {
             outputLock.acquire();
@@ -182,36 +434,38 @@ public class DoipConnectionImpl implements DoipConnection {
             throw new IOException(e);
         }
         if (isClosed) throw new IOException("closed");
-        try (OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(new BufferedOutputStream(socket.getOutputStream()))) {
+        // a request without input goes out in one write: with the end of the message sent separately, Nagle holds it
+        // back until the server acknowledges the initial segment, which a server reading ahead does only after a delay
+        try (OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(getOutput(), null, in == null, binaryFraming)) {
+            applyCompression(outDoipMessage);
             outDoipMessage.writeJson(GsonUtility.getGson().toJson(requestWithRequestId));
-            for (InDoipSegment segment : in) {
-                if (isClosed) throw new IOException("closed");
-                if (segment.isJson()) {
-                    outDoipMessage.writeJson(segment.getJson());
-                } else {
-                    outDoipMessage.writeBytes(segment.getInputStream());
+            if (in != null) {
+                for (InDoipSegment segment : in) {
+                    if (isClosed) throw new IOException("closed");
+                    if (segment.isJson()) {
+                        outDoipMessage.writeJson(segment.getJson());
+                    } else {
+                        outDoipMessage.writeBytes(segment.getInputStream());
+                    }
                 }
             }
+            outDoipMessage.close();
+            completer.requestSentNanos = System.nanoTime();
         } catch (UncheckedIOException e) {
             throw e.getCause();
         } finally {
             outputLock.release();
         }
-        try {
-            return completer.join();
-        } catch (Exception e) {
-            unwrapAndThrow(e);
-            throw e;
-        }
+        return completer;
     }
 
     @Override
     public DoipExchange sendRequestToExchange(DoipRequestHeaders request) throws IOException {
         if (isClosed) throw new IOException("closed");
-        DoipRequestHeadersWithRequestId requestWithRequestId = new DoipRequestHeadersWithRequestId(request);
-        String requestId = UUID.randomUUID().toString();
-        requestWithRequestId.requestId = requestId;
-        CompletableFuture<DoipClientResponse> completer = new CompletableFuture<>();
+        DoipRequestHeadersWithRequestId requestWithRequestId = withNewRequestId(request);
+        String requestId = requestWithRequestId.requestId;
+        if (mux != null) return sendMultiplexedRequestToExchange(requestWithRequestId);
+        ResponseFuture completer = new ResponseFuture();
         outstandingRequests.put(requestId, completer);
         requestWaitLatch.countDown();
         try {
@@ -220,13 +474,14 @@ public class DoipConnectionImpl implements DoipConnection {
             throw new IOException(e);
         }
         if (isClosed) throw new IOException("closed");
-        OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(new BufferedOutputStream(socket.getOutputStream())) {
+        OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(getOutput(), null, false, binaryFraming) {
             @Override
             public void close() throws IOException {
                 super.close();
                 outputLock.release();
             }
         };
+        applyCompression(outDoipMessage);
         outDoipMessage.writeJson(GsonUtility.getGson().toJson(requestWithRequestId));
         return new DoipExchange() {
 
@@ -262,6 +517,64 @@ public class DoipConnectionImpl implements DoipConnection {
         };
     }
 
+    @SuppressWarnings("resource")
+    private DoipExchange sendMultiplexedRequestToExchange(DoipRequestHeadersWithRequestId requestWithRequestId) throws IOException {
+        MultiplexedStream stream = mux.openStream();
+        OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(new BufferedOutputStream(stream.getOutputStream())) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                stream.getOutputStream().close();
+            }
+        };
+        applyCompression(outDoipMessage);
+        try {
+            outDoipMessage.writeJson(GsonUtility.getGson().toJson(requestWithRequestId));
+        } catch (IOException e) {
+            stream.reset();
+            throw e;
+        }
+        return new DoipExchange() {
+            private DoipClientResponse response;
+
+            @Override
+            public synchronized DoipClientResponse getResponse() throws IOException {
+                if (response == null) response = readMultiplexedResponse(stream, 0);
+                return response;
+            }
+
+            @Override
+            public OutDoipMessage getRequestOutgoingMessage() {
+                return outDoipMessage;
+            }
+
+            @Override
+            public void close() {
+                try {
+                    outDoipMessage.close();
+                } catch (Exception e) {
+                    logger.warn("Error closing", e);
+                }
+                try {
+                    getResponse().close();
+                } catch (Exception e) {
+                    logger.warn("Error closing", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the buffered connection output, shared by all requests.  Must be called holding {@link #outputLock}.
+     */
+    private OutputStream getOutput() throws IOException {
+        if (out == null) {
+            if (bufferPool != null && socket.getChannel() != null) out = new PooledChannelOutputStream(socket.getChannel(), bufferPool);
+            else out = new BufferedOutputStream(socket.getOutputStream());
+        }
+        return out;
+    }
+
     @Override
     public Socket getSocket() {
         return socket;
@@ -279,6 +592,10 @@ public class DoipConnectionImpl implements DoipConnection {
 
     private void closeWithoutWaiting() {
         isClosed = true;
+        MultiplexedConnection multiplexedConnection = mux;
+        if (multiplexedConnection != null) {
+            multiplexedConnection.close();
+        }
         for (CompletableFuture<?> future : outstandingRequests.values()) {
             future.cancel(false);
         }
@@ -302,6 +619,13 @@ public class DoipConnectionImpl implements DoipConnection {
         }
     }
 
+    /**
+     * The future for the response to a request, noting when the request was written for {@link DoipClientResponse#getRequestSentNanos()}.
+     */
+    private static class ResponseFuture extends CompletableFuture<DoipClientResponse> {
+        volatile long requestSentNanos;
+    }
+
     private void unwrapAndThrow(Exception e) throws IOException {
         if (e instanceof CompletionException) {
             if (e.getCause() instanceof Exception) {
@@ -1,101 +1,708 @@
 package xly.doip.client.transport;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InterruptedIOException;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xly.doip.DoipConstants;
+import xly.doip.DoipRequestHeaders;
 import xly.doip.client.DoipClient;
 
 /**
  * Used internally by {@link DoipClient} to manage pools of connections.
+ * <p>
+ * Checking out and releasing a connection take no locks: each pooled connection carries an atomic state, and
+ * {@link #get()} claims an idle one by compare-and-set.  When none is idle the caller waits, up to
+ * {@link DoipConnectionPoolConfig#maxWaitMs}, for a connection to be handed to it directly by a releasing thread or by
+ * a background thread which has established a new connection; connects never run on, or block, the calling thread.
+ * <p>
+ * In the background the pool keeps {@link DoipConnectionPoolConfig#minIdle} connections open, closes connections which
+ * have been idle or open too long, and probes idle connections with {@code Op.Hello} to find broken ones before a
+ * caller does.  Counters of waits, creations and evictions are exposed for monitoring.
+ * <p>
+ * If the {@link ConnectionOptions#multiplex} option is set and the service agrees to multiplexing, a connection is not
+ * handed out exclusively: up to {@link DoipConnectionPoolConfig#maxStreamsPerConnection} callers share it at once,
+ * each holding one stream, and new connections are established only once every open one is that busy.  Such a
+ * connection is evicted, or closed at shutdown, only when its last stream has been released.
  */
 public class DoipConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(DoipConnectionPool.class);
+
+    private static final int IDLE = 0;
+    private static final int IN_USE = 1;
+    private static final int RESERVED = 2;
+    private static final int REMOVED = 3;
+
+    private static final Object SHUTDOWN = new Object();
+
+    // shared by all pools; connects and probes block, so they run on virtual threads
+    private static final ExecutorService backgroundExecutor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doip-connection-pool-", 1).factory());
+    private static final ScheduledExecutorService housekeepingExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "doip-connection-pool-housekeeper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private final List<DoipConnection> allActiveConnections;
-    private final BlockingQueue<DoipConnection> pool;
+    private final DoipConnectionPoolConfig config;
     private final TransportDoipClient client;
-    private final int maxSize;
     private final ConnectionOptions connectionOptions;
-    private volatile boolean isShutdown = false;
 
+    private final List<PooledConnection> connections = new CopyOnWriteArrayList<>();
+    // connections held plus connections being established; never exceeds config.maxSize
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    // hands a released or new connection, a connect failure, or SHUTDOWN to the longest-waiting thread
+    private final SynchronousQueue<Object> handoff = new SynchronousQueue<>(true);
+    private final AtomicBoolean isShutdown = new AtomicBoolean();
+    private final ScheduledFuture<?> housekeeping;
+    private volatile Throwable lastConnectFailure;
+    // set once a connection asked to multiplex was refused, after which connections are no longer expected to be shared
+    private volatile boolean multiplexRefused;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder creations = new LongAdder();
+    private final LongAdder creationFailures = new LongAdder();
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder lifetimeEvictions = new LongAdder();
+    private final LongAdder brokenConnections = new LongAdder();
+    private final LongAdder validations = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+
+    /**
+     * Constructs a pool with at most {@code maxSize} connections and otherwise default configuration.
+     */
     public DoipConnectionPool(int maxSize, TransportDoipClient client, ConnectionOptions connectionOptions) {
-        this.maxSize = maxSize;
-        this.pool = new LinkedBlockingQueue<>();
+        this(configWithMaxSize(maxSize), client, connectionOptions);
+    }
+
+    private static DoipConnectionPoolConfig configWithMaxSize(int maxSize) {
+        DoipConnectionPoolConfig config = new DoipConnectionPoolConfig();
+        config.maxSize = maxSize;
+        return config;
+    }
+
+    /**
+     * Constructs a pool.  If {@link DoipConnectionPoolConfig#minIdle} is positive, that many connections start being
+     * established in the background immediately.
+     *
+     * @param config the pool configuration
+     * @param client the client used to establish connections
+     * @param connectionOptions the options for each connection
+     */
+    public DoipConnectionPool(DoipConnectionPoolConfig config, TransportDoipClient client, ConnectionOptions connectionOptions) {
+        if (config.maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive");
+        this.config = config;
         this.client = client;
         this.connectionOptions = connectionOptions;
-        this.allActiveConnections = new ArrayList<>();
+        long interval = Math.max(1, config.housekeepingIntervalMs);
+        this.housekeeping = housekeepingExecutor.scheduleWithFixedDelay(this::housekeep, interval, interval, TimeUnit.MILLISECONDS);
+        fillMinIdle();
     }
 
-    private DoipConnection getNewDoipConnection() throws IOException {
-        return client.connect(connectionOptions);
+    /**
+     * Releases a connection obtained from {@link #get()} back into the pool.  Releasing the same connection again has
+     * no effect.  A connection which has been closed, or has outlived {@link DoipConnectionPoolConfig#maxLifetimeMs},
+     * is discarded.
+     *
+     * @param connection the connection
+     */
+    public void release(DoipConnection connection) throws InterruptedException {
+        if (!(connection instanceof ReleaseOnceDoipConnection)) {
+            throw new IllegalStateException("Attempt to release underlying connection");
+        }
+        ReleaseOnceDoipConnection releaseOnceDoipConnection = (ReleaseOnceDoipConnection) connection;
+        PooledConnection entry = releaseOnceDoipConnection.getPooledConnection();
+        if (!releaseOnceDoipConnection.release() || entry == null || entry.pool != this) {
+            return;
+        }
+        if (entry.shared) {
+            releaseStream(entry);
+            return;
+        }
+        if (isShutdown.get()) {
+            retire(entry, null);
+        } else if (entry.connection.isClosed()) {
+            retire(entry, brokenConnections);
+        } else if (isPastLifetime(entry, System.nanoTime())) {
+            retire(entry, lifetimeEvictions);
+        } else {
+            entry.lastUsedNanos = entry.lastCheckedNanos = System.nanoTime();
+            makeAvailable(entry);
+        }
     }
 
-    public void release(DoipConnection connection) throws InterruptedException {
-        if (connection instanceof ReleaseOnceDoipConnection) {
-            ReleaseOnceDoipConnection releaseOnceDoipConnection = (ReleaseOnceDoipConnection)connection;
-            if (isShutdown) {
-                connection.close();
-            } else {
-                releaseOnceDoipConnection.release();
-                pool.put(releaseOnceDoipConnection.getConnection());
+    /**
+     * Obtains a connection from the pool, waiting up to {@link DoipConnectionPoolConfig#maxWaitMs} for one.
+     *
+     * @return a connection, to be released with {@link #release(DoipConnection)}
+     * @throws DoipConnectionPoolTimeoutException if no connection became available in time
+     * @throws IOException if the pool is shut down, establishing a connection for this caller failed, or the thread
+     *                     was interrupted
+     */
+    public DoipConnection get() throws IOException {
+        return get(config.maxWaitMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Obtains a connection from the pool, waiting up to the given time for one.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of {@code timeout}
+     * @return a connection, to be released with {@link #release(DoipConnection)}
+     * @throws DoipConnectionPoolTimeoutException if no connection became available in time
+     * @throws IOException if the pool is shut down, establishing a connection for this caller failed, or the thread
+     *                     was interrupted
+     */
+    public DoipConnection get(long timeout, TimeUnit unit) throws IOException {
+        long start = System.nanoTime();
+        PooledConnection entry = borrow(start, unit.toNanos(timeout));
+        long waited = System.nanoTime() - start;
+        acquisitions.increment();
+        totalWaitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        return new ReleaseOnceDoipConnection(entry);
+    }
+
+    private PooledConnection borrow(long start, long timeoutNanos) throws IOException {
+        checkNotShutdown();
+        PooledConnection entry = claimIdle();
+        if (entry != null) return entry;
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                checkNotShutdown();
+                entry = claimIdle();
+                if (entry != null) return entry;
+                requestConnections();
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                if (remaining <= 0) break;
+                Object handed;
+                try {
+                    handed = handoff.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for connection");
+                }
+                if (handed == null) break;
+                if (handed == SHUTDOWN) throw new IOException("Connection pool is shut down");
+                if (handed instanceof Throwable) {
+                    throw new IOException("Error connecting to " + describeTarget(), (Throwable) handed);
+                }
+                entry = (PooledConnection) handed;
+                if (entry.shared) {
+                    if (claimStream(entry)) return entry;
+                } else if (entry.state.compareAndSet(IDLE, IN_USE)) {
+                    // may already have been claimed by a thread scanning the idle connections
+                    if (isUsable(entry)) return entry;
+                }
             }
+        } finally {
+            waiters.decrementAndGet();
+        }
+        timeouts.increment();
+        throw new DoipConnectionPoolTimeoutException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos)
+            + "ms waiting for a connection to " + describeTarget(), lastConnectFailure);
+    }
+
+    private void checkNotShutdown() throws IOException {
+        if (isShutdown.get()) throw new IOException("Connection pool is shut down");
+    }
+
+    private PooledConnection claimIdle() {
+        for (PooledConnection entry : connections) {
+            if (entry.shared ? claimStream(entry) : entry.state.compareAndSet(IDLE, IN_USE) && isUsable(entry)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes one of the streams of a shared connection, unless all are taken or the connection is being drained.
+     */
+    private boolean claimStream(PooledConnection entry) {
+        if (entry.draining) return false;
+        if (entry.connection.isClosed()) {
+            discardShared(entry, brokenConnections);
+            return false;
+        }
+        if (isPastLifetime(entry, System.nanoTime())) {
+            entry.draining = true;
+            retireIfUnused(entry, lifetimeEvictions);
+            return false;
+        }
+        while (true) {
+            int n = entry.streams.get();
+            if (n < 0 || n >= config.maxStreamsPerConnection) return false;
+            if (entry.streams.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    private void releaseStream(PooledConnection entry) {
+        while (true) {
+            int n = entry.streams.get();
+            if (n <= 0) break;
+            if (entry.streams.compareAndSet(n, n - 1)) break;
+        }
+        entry.lastUsedNanos = entry.lastCheckedNanos = System.nanoTime();
+        if (entry.connection.isClosed()) {
+            discardShared(entry, isShutdown.get() ? null : brokenConnections);
+        } else if (isShutdown.get()) {
+            retireIfUnused(entry, null);
+        } else if (entry.draining || isPastLifetime(entry, System.nanoTime())) {
+            entry.draining = true;
+            retireIfUnused(entry, lifetimeEvictions);
         } else {
-            throw new IllegalStateException("Attempt to release underlying connection");
+            offerShared(entry);
+        }
+    }
+
+    /**
+     * Closes a shared connection once none of its streams is taken; later attempts to take one fail.
+     */
+    private void retireIfUnused(PooledConnection entry, LongAdder reason) {
+        if (entry.streams.compareAndSet(0, -1)) retire(entry, reason);
+    }
+
+    /**
+     * Forgets a shared connection found broken, whose streams cannot be used any more anyway.
+     */
+    private void discardShared(PooledConnection entry, LongAdder reason) {
+        entry.streams.set(-1);
+        retire(entry, reason);
+    }
+
+    /**
+     * Hands a shared connection to waiting threads while it has streams to spare.
+     */
+    private void offerShared(PooledConnection entry) {
+        for (int i = 0; waiters.get() > 0; i++) {
+            int n = entry.streams.get();
+            if (n < 0 || n >= config.maxStreamsPerConnection || entry.draining) return;
+            if (!handoff.offer(entry)) pause(i);
         }
     }
 
     /**
-     * 尝试从池中获得一个连接
+     * Called with the entry claimed (IN_USE or RESERVED); discards it if it cannot be used.
      */
-    @SuppressWarnings("resource")
-    public DoipConnection get() {
-        if (isShutdown) {
-            return null;
+    private boolean isUsable(PooledConnection entry) {
+        if (entry.connection.isClosed()) {
+            retire(entry, brokenConnections);
+            return false;
         }
+        if (isPastLifetime(entry, System.nanoTime())) {
+            retire(entry, lifetimeEvictions);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isPastLifetime(PooledConnection entry, long now) {
+        return config.maxLifetimeMs > 0 && now - entry.createdNanos > TimeUnit.MILLISECONDS.toNanos(config.maxLifetimeMs);
+    }
+
+    /**
+     * Makes a claimed entry idle and, if threads are waiting, hands it to one of them.
+     */
+    private void makeAvailable(PooledConnection entry) {
+        entry.state.set(IDLE);
+        for (int i = 0; waiters.get() > 0; i++) {
+            if (entry.state.get() != IDLE || handoff.offer(entry)) return;
+            pause(i);
+        }
+    }
+
+    private void handOffFailure(Throwable failure) {
+        for (int i = 0; waiters.get() > 0; i++) {
+            if (handoff.offer(failure)) return;
+            pause(i);
+        }
+    }
+
+    private static void pause(int attempt) {
+        if ((attempt & 0xff) == 0xff) LockSupport.parkNanos(10_000);
+        else Thread.yield();
+    }
+
+    /**
+     * Starts establishing connections until there is one on its way for each waiting thread, within the maximum size.
+     */
+    private void requestConnections() {
+        int callersPerConnection = connectionOptions.multiplex && !multiplexRefused ? Math.max(1, config.maxStreamsPerConnection) : 1;
+        while (!isShutdown.get() && (long) pending.get() * callersPerConnection < waiters.get()) {
+            if (!reserveSlot()) return;
+        }
+    }
+
+    private void fillMinIdle() {
+        while (!isShutdown.get() && countUnused() + pending.get() < config.minIdle) {
+            if (!reserveSlot()) return;
+        }
+    }
+
+    private boolean reserveSlot() {
+        int n = size.get();
+        if (n >= config.maxSize) return false;
+        if (size.compareAndSet(n, n + 1)) {
+            pending.incrementAndGet();
+            backgroundExecutor.execute(this::createConnection);
+        }
+        return true;
+    }
+
+    private void createConnection() {
+        DoipConnection connection;
         try {
-            DoipConnection connection = pool.poll();
-            synchronized(this) {
-                if (connection == null && allActiveConnections.size() < maxSize) {
-                    connection = getNewDoipConnection();
-                    allActiveConnections.add(connection);
-                    return new ReleaseOnceDoipConnection(connection);
+            connection = client.connect(connectionOptions);
+        } catch (Exception e) {
+            lastConnectFailure = e;
+            creationFailures.increment();
+            size.decrementAndGet();
+            pending.decrementAndGet();
+            logger.debug("Error connecting to " + describeTarget(), e);
+            handOffFailure(e);
+            return;
+        }
+        boolean shared = connectionOptions.multiplex && connection.isMultiplexed();
+        if (connectionOptions.multiplex && !shared) multiplexRefused = true;
+        PooledConnection entry = new PooledConnection(this, connection, shared);
+        connections.add(entry);
+        pending.decrementAndGet();
+        creations.increment();
+        lastConnectFailure = null;
+        if (isShutdown.get()) {
+            retire(entry, null);
+        } else if (shared) {
+            offerShared(entry);
+        } else {
+            makeAvailable(entry);
+        }
+        // a refused multiplexing request means each waiting thread now needs a connection of its own
+        if (waiters.get() > 0) requestConnections();
+    }
+
+    /**
+     * Closes and forgets a claimed entry, and replaces it if threads are waiting.
+     */
+    private void retire(PooledConnection entry, LongAdder reason) {
+        entry.state.set(REMOVED);
+        if (connections.remove(entry)) {
+            size.decrementAndGet();
+            if (reason != null) reason.increment();
+        }
+        try {
+            entry.connection.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        if (waiters.get() > 0) requestConnections();
+    }
+
+    private void housekeep() {
+        if (isShutdown.get()) return;
+        try {
+            long now = System.nanoTime();
+            int idle = countUnused();
+            for (PooledConnection entry : connections) {
+                if (entry.shared) {
+                    if (housekeepShared(entry, now, idle)) idle--;
+                    continue;
                 }
-            }
-            if (connection == null) {
-                connection = pool.take();
-            }
-            if (isGood(connection)) {
-                return new ReleaseOnceDoipConnection(connection);
-            } else {
-                DoipConnection newConnection;
-                synchronized(this) {
-                    allActiveConnections.remove(connection);
-                    newConnection = getNewDoipConnection();
-                    allActiveConnections.add(newConnection);
+                if (!entry.state.compareAndSet(IDLE, RESERVED)) continue;
+                if (entry.connection.isClosed()) {
+                    retire(entry, brokenConnections);
+                    idle--;
+                } else if (isPastLifetime(entry, now)) {
+                    retire(entry, lifetimeEvictions);
+                    idle--;
+                } else if (config.idleTimeoutMs > 0 && idle > config.minIdle
+                    && now - entry.lastUsedNanos > TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMs)) {
+                    retire(entry, idleEvictions);
+                    idle--;
+                } else if (config.validationIntervalMs > 0
+                    && now - entry.lastCheckedNanos > TimeUnit.MILLISECONDS.toNanos(config.validationIntervalMs)) {
+                    backgroundExecutor.execute(() -> validate(entry));
+                } else {
+                    makeAvailable(entry);
                 }
-                try { connection.close(); } catch (Exception e) {}
-                return new ReleaseOnceDoipConnection(newConnection);
             }
+            fillMinIdle();
         } catch (Exception e) {
-            return null;
+            logger.warn("Error in connection pool housekeeping", e);
         }
     }
 
-    private boolean isGood(DoipConnection connection) {
-        return !connection.isClosed();
+    /**
+     * Evicts or probes a shared connection as {@link #housekeep()} does an idle one.  Only a connection none of whose
+     * streams is taken counts as idle; one in use is probed while it is.
+     *
+     * @return true if an idle connection was evicted
+     */
+    private boolean housekeepShared(PooledConnection entry, long now, int idle) {
+        if (entry.connection.isClosed()) {
+            discardShared(entry, brokenConnections);
+            return false;
+        }
+        if (isPastLifetime(entry, now)) {
+            entry.draining = true;
+            retireIfUnused(entry, lifetimeEvictions);
+            return false;
+        }
+        if (config.idleTimeoutMs > 0 && idle > config.minIdle
+            && now - entry.lastUsedNanos > TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMs)
+            && entry.streams.compareAndSet(0, -1)) {
+            retire(entry, idleEvictions);
+            return true;
+        }
+        if (config.validationIntervalMs > 0 && now - entry.lastCheckedNanos > TimeUnit.MILLISECONDS.toNanos(config.validationIntervalMs)
+            && claimStream(entry)) {
+            entry.lastCheckedNanos = now;
+            backgroundExecutor.execute(() -> validate(entry));
+        }
+        return false;
     }
 
+    /**
+     * Probes a reserved idle connection, or a stream taken of a shared connection, with {@code Op.Hello}.  Any response shows the connection is alive, whatever
+     * its status; if none arrives within {@link DoipConnectionPoolConfig#validationTimeoutMs} the connection is closed.
+     */
+    private void validate(PooledConnection entry) {
+        validations.increment();
+        ScheduledFuture<?> timeout = housekeepingExecutor.schedule(entry.connection::close, config.validationTimeoutMs, TimeUnit.MILLISECONDS);
+        boolean alive;
+        try {
+            DoipRequestHeaders hello = new DoipRequestHeaders();
+            hello.targetId = connectionOptions.serverId;
+            hello.operationId = DoipConstants.OP_HELLO;
+            try (DoipClientResponse response = entry.connection.sendCompactRequest(hello)) {
+                alive = response.getStatus() != null;
+            }
+        } catch (Exception e) {
+            alive = false;
+        } finally {
+            timeout.cancel(false);
+        }
+        if (entry.shared) {
+            if (!alive) discardShared(entry, isShutdown.get() ? null : validationFailures);
+            else releaseStream(entry);
+        } else if (alive && !entry.connection.isClosed() && !isShutdown.get()) {
+            entry.lastCheckedNanos = System.nanoTime();
+            makeAvailable(entry);
+        } else {
+            retire(entry, isShutdown.get() ? null : validationFailures);
+        }
+    }
+
+    private String describeTarget() {
+        return connectionOptions.address + ":" + connectionOptions.port;
+    }
+
+    /**
+     * Closes the idle connections and stops background work.  Threads waiting in {@link #get()} fail, and connections
+     * in use are closed when they are released.
+     */
     public void shutdown() {
-        if (!isShutdown) {
-            for (DoipConnection connection : pool) {
-                try {
-                    connection.close();
-                } catch (Exception e) {
-                }
+        if (!isShutdown.compareAndSet(false, true)) return;
+        housekeeping.cancel(false);
+        for (PooledConnection entry : connections) {
+            if (entry.shared) {
+                retireIfUnused(entry, null);
+            } else if (entry.state.compareAndSet(IDLE, RESERVED)) {
+                retire(entry, null);
             }
-            isShutdown = true;
+        }
+        for (int i = 0; waiters.get() > 0; i++) {
+            if (!handoff.offer(SHUTDOWN)) pause(i);
+        }
+    }
+
+    /**
+     * Counts the idle connections, including those reserved by housekeeping for a probe.
+     */
+    private int countUnused() {
+        int count = 0;
+        for (PooledConnection entry : connections) {
+            int state = entry.state.get();
+            if (entry.shared ? entry.streams.get() == 0 : state == IDLE || state == RESERVED) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of open connections held by the pool, in use or idle.
+     */
+    public int getSize() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of idle connections, counting a shared multiplexed connection as idle while none of its
+     * streams is taken.
+     */
+    public int getIdleConnections() {
+        int count = 0;
+        for (PooledConnection entry : connections) {
+            if (entry.shared ? entry.streams.get() == 0 : entry.state.get() == IDLE) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of streams taken of shared multiplexed connections.
+     */
+    public int getStreamsInUse() {
+        int count = 0;
+        for (PooledConnection entry : connections) {
+            if (entry.shared) count += Math.max(0, entry.streams.get());
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of connections currently being established.
+     */
+    public int getPendingConnections() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of threads waiting in {@link #get()}.
+     */
+    public int getWaitingThreads() {
+        return waiters.get();
+    }
+
+    /**
+     * Returns the number of connections handed out by {@link #get()}.
+     */
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * Returns the total time in nanoseconds spent in successful calls to {@link #get()}.
+     */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    /**
+     * Returns the longest time in nanoseconds spent in a successful call to {@link #get()}.
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * Returns the number of calls to {@link #get()} which timed out.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Returns the number of connections established.
+     */
+    public long getCreations() {
+        return creations.sum();
+    }
+
+    /**
+     * Returns the number of failed attempts to establish a connection.
+     */
+    public long getCreationFailures() {
+        return creationFailures.sum();
+    }
+
+    /**
+     * Returns the number of connections closed for being idle longer than {@link DoipConnectionPoolConfig#idleTimeoutMs}.
+     */
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    /**
+     * Returns the number of connections closed for being open longer than {@link DoipConnectionPoolConfig#maxLifetimeMs}.
+     */
+    public long getLifetimeEvictions() {
+        return lifetimeEvictions.sum();
+    }
+
+    /**
+     * Returns the number of connections discarded because they were found closed.
+     */
+    public long getBrokenConnections() {
+        return brokenConnections.sum();
+    }
+
+    /**
+     * Returns the number of liveness probes sent.
+     */
+    public long getValidations() {
+        return validations.sum();
+    }
+
+    /**
+     * Returns the number of connections closed because a liveness probe failed.
+     */
+    public long getValidationFailures() {
+        return validationFailures.sum();
+    }
+
+    @Override
+    public String toString() {
+        long acquired = getAcquisitions();
+        return "DoipConnectionPool[" + describeTarget() + ", size=" + getSize() + ", idle=" + getIdleConnections()
+            + ", streams=" + getStreamsInUse() + ", pending=" + getPendingConnections() + ", waiting=" + getWaitingThreads() + ", acquisitions=" + acquired
+            + ", avgWaitMs=" + (acquired == 0 ? 0 : getTotalWaitNanos() / acquired / 1e6)
+            + ", maxWaitMs=" + getMaxWaitNanos() / 1e6 + ", timeouts=" + getTimeouts() + ", creations=" + getCreations()
+            + ", creationFailures=" + getCreationFailures() + ", idleEvictions=" + getIdleEvictions()
+            + ", lifetimeEvictions=" + getLifetimeEvictions() + ", broken=" + getBrokenConnections()
+            + ", validationFailures=" + getValidationFailures() + "]";
+    }
+
+    /**
+     * A connection held by the pool, with its state: idle, in use, reserved by housekeeping, or removed.  A shared
+     * multiplexed connection is instead tracked by the number of its streams taken, -1 once it is removed.
+     */
+    static final class PooledConnection {
+        final DoipConnectionPool pool;
+        final DoipConnection connection;
+        final long createdNanos;
+        final AtomicInteger state = new AtomicInteger(IN_USE);
+        final boolean shared;
+        final AtomicInteger streams = new AtomicInteger();
+        // set when a shared connection is to be closed once its streams are released
+        volatile boolean draining;
+        volatile long lastUsedNanos;
+        volatile long lastCheckedNanos;
+
+        PooledConnection(DoipConnectionPool pool, DoipConnection connection, boolean shared) {
+            this.pool = pool;
+            this.connection = connection;
+            this.shared = shared;
+            this.createdNanos = this.lastUsedNanos = this.lastCheckedNanos = System.nanoTime();
         }
     }
 }
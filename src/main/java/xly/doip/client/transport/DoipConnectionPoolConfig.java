@@ -0,0 +1,60 @@
+package xly.doip.client.transport;
+
+/**
+ * Configuration for a {@link DoipConnectionPool}.
+ */
+public class DoipConnectionPoolConfig {
+
+    /**
+     * The maximum number of connections, in use, idle or being established, held by the pool.  Defaults to 100.
+     */
+    public int maxSize = 100;
+
+    /**
+     * The maximum number of callers sharing one connection at once when connections are multiplexed (see
+     * {@link ConnectionOptions#multiplex}).  Defaults to 100.
+     */
+    public int maxStreamsPerConnection = 100;
+
+    /**
+     * The number of idle connections the pool tries to keep open, establishing them in the background when the pool is
+     * created and whenever connections are evicted.  Defaults to 0.
+     */
+    public int minIdle = 0;
+
+    /**
+     * The maximum time in milliseconds {@link DoipConnectionPool#get()} waits for a connection before throwing
+     * {@link DoipConnectionPoolTimeoutException}.  Defaults to 60000.
+     */
+    public long maxWaitMs = 60_000;
+
+    /**
+     * Idle connections beyond {@link #minIdle} which have not been used for this many milliseconds are closed.
+     * Zero or negative disables idle eviction.  Defaults to 10 minutes.
+     */
+    public long idleTimeoutMs = 10 * 60_000;
+
+    /**
+     * Connections open for longer than this many milliseconds are closed once they are idle.  Zero or negative
+     * disables lifetime eviction.  Defaults to 30 minutes.
+     */
+    public long maxLifetimeMs = 30 * 60_000;
+
+    /**
+     * Idle connections which have not been used or probed for this many milliseconds are probed in the background
+     * with an {@code Op.Hello} request, and closed if no response arrives.  Zero or negative disables probing.
+     * Defaults to 30 seconds.
+     */
+    public long validationIntervalMs = 30_000;
+
+    /**
+     * The time in milliseconds a liveness probe waits for its response.  Defaults to 5000.
+     */
+    public long validationTimeoutMs = 5_000;
+
+    /**
+     * How often in milliseconds the pool checks its idle connections for eviction and probing, and tops up
+     * {@link #minIdle}.  Defaults to 5000.
+     */
+    public long housekeepingIntervalMs = 5_000;
+}
@@ -0,0 +1,15 @@
+package xly.doip.client.transport;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link DoipConnectionPool#get()} when no connection becomes available within the configured wait.  If
+ * establishing a connection failed in the meantime, that failure is the cause.
+ */
+public class DoipConnectionPoolTimeoutException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public DoipConnectionPoolTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -8,6 +8,8 @@ import xly.doip.client.transport.DoipExchange;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An implementation of {@link DoipConnection} which is used by {@link DoipConnectionPool} and ensures correct
@@ -17,24 +19,36 @@ import java.net.Socket;
 public class ReleaseOnceDoipConnection implements DoipConnection {
 
     private final DoipConnection conn;
-    private volatile boolean isReleased = false;
+    private final DoipConnectionPool.PooledConnection pooledConnection;
+    private final AtomicBoolean isReleased = new AtomicBoolean();
 
     public ReleaseOnceDoipConnection(DoipConnection conn) {
         this.conn = conn;
+        this.pooledConnection = null;
     }
 
-    public synchronized void release() {
-        if (isReleased) {
-            return;
-        } else {
-            isReleased = true;
-        }
+    ReleaseOnceDoipConnection(DoipConnectionPool.PooledConnection pooledConnection) {
+        this.conn = pooledConnection.connection;
+        this.pooledConnection = pooledConnection;
+    }
+
+    /**
+     * Marks this connection as released.
+     *
+     * @return true if this call released it, false if it had already been released
+     */
+    public boolean release() {
+        return isReleased.compareAndSet(false, true);
     }
 
     DoipConnection getConnection() {
         return conn;
     }
 
+    DoipConnectionPool.PooledConnection getPooledConnection() {
+        return pooledConnection;
+    }
+
     @Override
     public boolean isClosed() {
         return conn.isClosed();
@@ -42,7 +56,7 @@ public class ReleaseOnceDoipConnection implements DoipConnection {
 
     @Override
     public DoipClientResponse sendCompactRequest(DoipRequestHeaders request) throws IOException {
-        if (isReleased) {
+        if (isReleased.get()) {
             throw new IllegalStateException("Attempt to use released connection");
         }
         return conn.sendCompactRequest(request);
@@ -50,7 +64,7 @@ public class ReleaseOnceDoipConnection implements DoipConnection {
 
     @Override
     public DoipClientResponse sendRequest(DoipRequestHeaders request, InDoipMessage in) throws IOException {
-        if (isReleased) {
+        if (isReleased.get()) {
             throw new IllegalStateException("Attempt to use released connection");
         }
         return conn.sendRequest(request, in);
@@ -58,12 +72,25 @@ public class ReleaseOnceDoipConnection implements DoipConnection {
 
     @Override
     public DoipExchange sendRequestToExchange(DoipRequestHeaders request) throws IOException {
-        if (isReleased) {
+        if (isReleased.get()) {
             throw new IllegalStateException("Attempt to use released connection");
         }
         return conn.sendRequestToExchange(request);
     }
 
+    @Override
+    public CompletableFuture<DoipClientResponse> sendRequestAsync(DoipRequestHeaders request, InDoipMessage in) {
+        if (isReleased.get()) {
+            throw new IllegalStateException("Attempt to use released connection");
+        }
+        return conn.sendRequestAsync(request, in);
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+        return conn.isMultiplexed();
+    }
+
     @Override
     public Socket getSocket() {
         return conn.getSocket();
@@ -5,9 +5,14 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -19,6 +24,8 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509KeyManager;
 import javax.net.ssl.X509TrustManager;
 
+import xly.doip.DoipRequestHeaders;
+import xly.doip.util.ByteBufferPool;
 import xly.doip.util.tls.AllTrustingTrustManager;
 import xly.doip.util.tls.AutoSelfSignedKeyManager;
 import xly.doip.util.tls.TlsProtocolAndCipherSuiteConfigurationUtil;
@@ -31,10 +38,28 @@ import xly.doip.util.tls.TrustManagerForSpecifiedServerIdAndKeys;
 public class TransportDoipClient implements AutoCloseable {
 
     private static final int DEFAULT_TIMEOUT_MS = 60_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int MAX_SSL_CONTEXTS = 1024;
 
     private final AtomicLong counter = new AtomicLong();
     private final ConcurrentMap<Long, DoipConnection> openConnections = new ConcurrentHashMap<>();
+    private final ByteBufferPool bufferPool = new ByteBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    // one per combination of server trust and client certificate, holding the sessions that reconnects resume
+    private final ConcurrentMap<TlsContextKey, SSLContext> sslContexts = new ConcurrentHashMap<>();
     private volatile boolean closed;
+    private volatile ConnectionListener connectionListener;
+    private UdpDoipTransport udpTransport;
+
+    /**
+     * Sets a listener to be told how long each connection made with {@link #connect(ConnectionOptions)} took to
+     * establish.
+     *
+     * @param connectionListener the listener, or null for none
+     */
+    public void setConnectionListener(ConnectionListener connectionListener) {
+        this.connectionListener = connectionListener;
+    }
 
     /**
      * Connects to a server by specifying an IP address and port, using default timeouts of one minute, trusting any provided server certificate,
@@ -65,29 +90,53 @@ public class TransportDoipClient implements AutoCloseable {
     }
 
     /**
-     * Connect to a server using the specified connection options.
+     * Connect to a server using the specified connection options.  With {@link ConnectionOptions#useTls}, connections
+     * with the same server id, trusted keys and client identity share an {@code SSLContext}, so that reconnecting
+     * resumes the TLS session rather than repeating the full handshake, and a client certificate is generated once.
      *
      * @param options
      * @return a DOIP connection for communicating with the specified server
      * @throws IOException
      */
     public DoipConnection connect(ConnectionOptions options) throws IOException {
+        ConnectionListener listener = connectionListener;
+        if (listener == null) return connectWithoutListener(options);
+        long start = System.nanoTime();
+        DoipConnection res;
+        try {
+            res = connectWithoutListener(options);
+        } catch (IOException | RuntimeException e) {
+            listener.connectFailed(options, System.nanoTime() - start, e);
+            throw e;
+        }
+        listener.connected(options, System.nanoTime() - start);
+        return res;
+    }
+
+    private DoipConnection connectWithoutListener(ConnectionOptions options) throws IOException {
         InetAddress address = InetAddress.getByName(options.address);
         int port = options.port;
         int connectTimeoutMs = options.connectTimeoutMs == null ? DEFAULT_TIMEOUT_MS : options.connectTimeoutMs;
         if (connectTimeoutMs < 0) connectTimeoutMs = DEFAULT_TIMEOUT_MS;
-        int readTimeoutMs = options.readTimeoutMs == null ? DEFAULT_TIMEOUT_MS : options.connectTimeoutMs;
+        int readTimeoutMs = options.readTimeoutMs == null ? DEFAULT_TIMEOUT_MS : options.readTimeoutMs;
         if (readTimeoutMs < 0) readTimeoutMs = DEFAULT_TIMEOUT_MS;
-        X509TrustManager serverTrustManager = null;
-        /*TODO*/
-//        if (options.serverId != null) {
-//            serverTrustManager = new TrustManagerForSpecifiedServerIdAndKeys(options.serverId, options.trustedServerPublicKeys);
-//        }
-        X509KeyManager clientKeyManager = null;
-//        if (options.clientId != null) {
-//            clientKeyManager = new AutoSelfSignedKeyManager(options.clientId, options.clientPublicKey, options.clientPrivateKey);
-//        }
-        return connect(address, port, serverTrustManager, clientKeyManager, connectTimeoutMs, readTimeoutMs);
+        SSLContext sslContext = options.useTls ? sslContextFor(options) : null;
+        DoipConnection res = connect(address, port, sslContext, connectTimeoutMs, readTimeoutMs);
+        try {
+            if (options.multiplex) {
+                ((DoipConnectionImpl) res).negotiateMultiplexing(options.serverId);
+            }
+            if (options.binaryFraming && !res.isMultiplexed()) {
+                ((DoipConnectionImpl) res).negotiateBinaryFraming(options.serverId);
+            }
+            if (options.compression != null) {
+                ((DoipConnectionImpl) res).setCompression(options.compression);
+            }
+        } catch (IOException | RuntimeException e) {
+            res.close();
+            throw e;
+        }
+        return res;
     }
 
     /**
@@ -96,6 +145,11 @@ public class TransportDoipClient implements AutoCloseable {
      *
      * @param address
      * @param port
+     * If both managers are null the connection does not use TLS.  Each call sets up TLS afresh, with a full handshake;
+     * see {@link #connect(InetAddress, int, SSLContext, int, int)} to resume sessions.
+     *
+     * @param address
+     * @param port
      * @param serverTrustManager a trust manager defining which server certificates to trust; if null trust every server
      * @param clientKeyManager a key manager defining which client certificate to provide; if null provide no client certificate
      * @param connectTimeoutMs
@@ -103,19 +157,43 @@ public class TransportDoipClient implements AutoCloseable {
      * @return a DOIP connection for communicating with the specified server
      * @throws IOException
      */
-    @SuppressWarnings("resource")
     public DoipConnection connect(InetAddress address, int port, X509TrustManager serverTrustManager, X509KeyManager clientKeyManager, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        SSLContext sslContext = null;
+        if (serverTrustManager != null || clientKeyManager != null) sslContext = getSSLContext(serverTrustManager, clientKeyManager);
+        return connect(address, port, sslContext, connectTimeoutMs, readTimeoutMs);
+    }
+
+    /**
+     * Connects to a server by specifying an IP address and port, using the specified timeouts and TLS according to the
+     * specified {@code SSLContext}.  Connections made with the same context may resume its TLS sessions.
+     *
+     * @param address
+     * @param port
+     * @param sslContext the context for TLS; if null the connection does not use TLS
+     * @param connectTimeoutMs
+     * @param readTimeoutMs
+     * @return a DOIP connection for communicating with the specified server
+     * @throws IOException
+     */
+    @SuppressWarnings("resource")
+    public DoipConnection connect(InetAddress address, int port, SSLContext sslContext, int connectTimeoutMs, int readTimeoutMs) throws IOException {
         if (closed) throw new IOException("closed");
-        /*TODO*/
-//        SSLContext sslContext = getSSLContext(serverTrustManager, clientKeyManager);
-//        SocketFactory socketFactory = sslContext.getSocketFactory();
-//        Socket socket = socketFactory.createSocket();
-//        TlsProtocolAndCipherSuiteConfigurationUtil.configureEnabledProtocolsAndCipherSuites(socket);
-        Socket socket = new Socket();
+        Socket socket;
+        if (sslContext != null) {
+            SocketFactory socketFactory = sslContext.getSocketFactory();
+            socket = socketFactory.createSocket();
+            TlsProtocolAndCipherSuiteConfigurationUtil.configureEnabledProtocolsAndCipherSuites(socket);
+        } else {
+            // backed by a channel so that requests can be written from pooled direct buffers
+            socket = SocketChannel.open().socket();
+        }
+        // requests are written whole or flushed at segment boundaries; Nagle would only hold back their ends (and TLS
+        // handshake flights) until the server's delayed ACK
+        socket.setTcpNoDelay(true);
         socket.setSoTimeout(readTimeoutMs);
         socket.connect(new InetSocketAddress(address, port), connectTimeoutMs);
         long count = counter.getAndIncrement();
-        DoipConnection res = new DoipConnectionImpl(socket) {
+        DoipConnection res = new DoipConnectionImpl(socket, bufferPool) {
             @Override
             public void close() {
                 super.close();
@@ -126,6 +204,50 @@ public class TransportDoipClient implements AutoCloseable {
         return res;
     }
 
+    /**
+     * Sends a compact request to the server specified by the connection options as a single UDP datagram, and waits for
+     * the response, sending the request again if none arrives.  The server must listen for UDP; see
+     * {@link UdpDoipTransport}.  Only the address and port of the options are used.
+     *
+     * @param options the connection options giving the server's address and port
+     * @param request the initial segment of the request, with any input inline (the requestId will be generated automatically)
+     * @param retryIntervalMs the time to wait for a response before sending the request again, doubled after each attempt
+     * @param attempts the number of times to send the request
+     * @return the response, or null if the server truncated it or the request does not fit in a datagram, in which
+     *         case the request should be sent over a connection
+     * @throws java.net.SocketTimeoutException if no response arrived after the last attempt
+     * @throws IOException
+     */
+    public DoipClientResponse sendCompactRequestOverUdp(ConnectionOptions options, DoipRequestHeaders request, long retryIntervalMs, int attempts) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(options.address), options.port);
+        return getUdpTransport().sendCompactRequest(address, request, retryIntervalMs, attempts);
+    }
+
+    private synchronized UdpDoipTransport getUdpTransport() throws IOException {
+        if (closed) throw new IOException("closed");
+        if (udpTransport == null) udpTransport = new UdpDoipTransport();
+        return udpTransport;
+    }
+
+    private SSLContext sslContextFor(ConnectionOptions options) {
+        TlsContextKey key = new TlsContextKey(options);
+        SSLContext sslContext = sslContexts.get(key);
+        if (sslContext != null) return sslContext;
+        X509TrustManager serverTrustManager = null;
+        if (options.serverId != null) {
+            serverTrustManager = new TrustManagerForSpecifiedServerIdAndKeys(options.serverId, options.trustedServerPublicKeys);
+        }
+        X509KeyManager clientKeyManager = null;
+        if (options.clientId != null) {
+            clientKeyManager = new AutoSelfSignedKeyManager(options.clientId, options.clientPublicKey, options.clientPrivateKey);
+        }
+        sslContext = getSSLContext(serverTrustManager, clientKeyManager);
+        // a client connecting to ever more servers starts over rather than keep every context
+        if (sslContexts.size() >= MAX_SSL_CONTEXTS) sslContexts.clear();
+        SSLContext existing = sslContexts.putIfAbsent(key, sslContext);
+        return existing != null ? existing : sslContext;
+    }
+
     private SSLContext getSSLContext(X509TrustManager serverTrustManager, X509KeyManager clientKeyManager) {
         try {
             SSLContext sslContext = SSLContext.getInstance("TLS");
@@ -146,12 +268,25 @@ public class TransportDoipClient implements AutoCloseable {
         }
     }
 
+    /**
+     * Returns the pool of direct buffers used to write requests on connections from this client, whose counters
+     * show how well buffers are being reused.
+     *
+     * @return the buffer pool
+     */
+    public ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     /**
      * Closes all connections.
      */
     @Override
     public void close() {
         closed = true;
+        synchronized (this) {
+            if (udpTransport != null) udpTransport.close();
+        }
         boolean found = true;
         while (found) {
             found = false;
@@ -162,4 +297,38 @@ public class TransportDoipClient implements AutoCloseable {
             }
         }
     }
+
+    /**
+     * The connection options which determine an {@code SSLContext}.
+     */
+    private static class TlsContextKey {
+        private final String serverId;
+        private final List<PublicKey> trustedServerPublicKeys;
+        private final String clientId;
+        private final PublicKey clientPublicKey;
+        private final PrivateKey clientPrivateKey;
+
+        TlsContextKey(ConnectionOptions options) {
+            this.serverId = options.serverId;
+            this.trustedServerPublicKeys = options.trustedServerPublicKeys;
+            this.clientId = options.clientId;
+            this.clientPublicKey = options.clientPublicKey;
+            this.clientPrivateKey = options.clientPrivateKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serverId, trustedServerPublicKeys, clientId, clientPublicKey, clientPrivateKey);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof TlsContextKey)) return false;
+            TlsContextKey other = (TlsContextKey) obj;
+            return Objects.equals(serverId, other.serverId) && Objects.equals(trustedServerPublicKeys, other.trustedServerPublicKeys)
+                && Objects.equals(clientId, other.clientId) && Objects.equals(clientPublicKey, other.clientPublicKey)
+                && Objects.equals(clientPrivateKey, other.clientPrivateKey);
+        }
+    }
 }
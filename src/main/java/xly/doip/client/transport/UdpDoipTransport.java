@@ -0,0 +1,176 @@
+package xly.doip.client.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import xly.doip.DoipConstants;
+import xly.doip.DoipHeadersDecoder;
+import xly.doip.DoipRequestHeaders;
+import xly.doip.DoipRequestHeadersWithRequestId;
+import xly.doip.DoipResponseHeaders;
+import xly.doip.InDoipMessageFromCollection;
+import xly.doip.InDoipSegmentFromJson;
+import xly.doip.util.GsonUtility;
+
+/**
+ * Sends compact requests to DOIP servers as UDP datagrams, for servers listening with
+ * {@link xly.doip.server.DoipServerConfig#listenUdp}.  All requests share one socket, and responses are matched to
+ * their requests by request id and by the address they come from.  A request is sent again if no response has
+ * arrived within the retry interval, which doubles with each attempt.
+ * <p>
+ * Datagrams are neither encrypted nor tied to a server identity, so requests carrying credentials, or needing a
+ * verified server, should be sent over TCP.  Generally this class is used through
+ * {@link TransportDoipClient#sendCompactRequestOverUdp(ConnectionOptions, DoipRequestHeaders, long, int)}.
+ */
+public class UdpDoipTransport implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(UdpDoipTransport.class);
+
+    // the largest UDP payload over IPv4
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final AtomicInteger transportCount = new AtomicInteger(1);
+
+    private final DatagramChannel channel;
+    private final ConcurrentMap<String, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Opens a socket on an ephemeral port, and starts a thread receiving responses on it.
+     *
+     * @throws IOException
+     */
+    public UdpDoipTransport() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(null);
+        Thread receiver = new Thread(this::receive, "doip-udp-receiver-" + transportCount.getAndIncrement());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Sends a compact request and waits for its response.
+     *
+     * @param address the address of the server
+     * @param request the initial segment of the request, with any input inline (the requestId will be generated automatically)
+     * @param retryIntervalMs the time to wait for a response before sending the request again, doubled after each attempt
+     * @param attempts the number of times to send the request
+     * @return the response, or null if the server truncated it or the request does not fit in a datagram, in which
+     *         case the request should be sent over TCP
+     * @throws SocketTimeoutException if no response arrived after the last attempt
+     * @throws IOException
+     */
+    public DoipClientResponse sendCompactRequest(InetSocketAddress address, DoipRequestHeaders request, long retryIntervalMs, int attempts) throws IOException {
+        if (closed) throw new IOException("closed");
+        DoipRequestHeadersWithRequestId requestWithRequestId = new DoipRequestHeadersWithRequestId(request);
+        requestWithRequestId.requestId = UUID.randomUUID().toString();
+        byte[] datagram = GsonUtility.getGson().toJson(requestWithRequestId).getBytes(StandardCharsets.UTF_8);
+        if (datagram.length > MAX_DATAGRAM_SIZE) return null;
+        PendingRequest pendingRequest = new PendingRequest(address);
+        pendingRequests.put(requestWithRequestId.requestId, pendingRequest);
+        try {
+            long waitMs = retryIntervalMs;
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                channel.send(ByteBuffer.wrap(datagram), address);
+                long sentAt = System.nanoTime();
+                try {
+                    DoipClientResponse response = toClientResponse(pendingRequest.response.get(waitMs, TimeUnit.MILLISECONDS));
+                    if (response != null) response.setRequestSentNanos(sentAt);
+                    return response;
+                } catch (TimeoutException e) {
+                    waitMs *= 2;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pendingRequests.remove(requestWithRequestId.requestId);
+        }
+        throw new SocketTimeoutException("No response over UDP from " + address + " after " + attempts + " attempts");
+    }
+
+    private static DoipClientResponse toClientResponse(JsonObject response) throws IOException {
+        JsonElement truncated = response.get(DoipConstants.UDP_TRUNCATED);
+        if (truncated != null && truncated.isJsonPrimitive() && truncated.getAsBoolean()) return null;
+        DoipResponseHeaders headers = DoipHeadersDecoder.decodeResponse(new InDoipSegmentFromJson(response));
+        return new DoipClientResponse(headers, new InDoipMessageFromCollection(Collections.emptyList()));
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        while (!closed) {
+            SocketAddress sender;
+            try {
+                buffer.clear();
+                sender = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed) logger.warn("Error receiving UDP response", e);
+                continue;
+            }
+            buffer.flip();
+            try {
+                JsonObject response = JsonParser.parseString(StandardCharsets.UTF_8.decode(buffer).toString()).getAsJsonObject();
+                JsonElement requestId = response.get("requestId");
+                if (requestId == null || !requestId.isJsonPrimitive()) continue;
+                PendingRequest pendingRequest = pendingRequests.get(requestId.getAsString());
+                // a datagram from anywhere else cannot pass for the server's response
+                if (pendingRequest != null && pendingRequest.address.equals(sender)) {
+                    pendingRequest.response.complete(response);
+                }
+            } catch (RuntimeException e) {
+                logger.debug("Ignoring malformed UDP response from " + sender, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the socket, failing requests awaiting responses.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Error closing", e);
+        }
+        for (PendingRequest pendingRequest : pendingRequests.values()) {
+            pendingRequest.response.completeExceptionally(new IOException("closed"));
+        }
+    }
+
+    private static class PendingRequest {
+        final InetSocketAddress address;
+        final CompletableFuture<JsonObject> response = new CompletableFuture<>();
+
+        PendingRequest(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+}
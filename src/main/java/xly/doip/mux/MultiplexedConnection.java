@@ -0,0 +1,229 @@
+package xly.doip.mux;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import xly.doip.BadDoipException;
+
+/**
+ * A DOIP connection in multiplexed mode.  Multiplexed mode is negotiated by sending an {@code Op.Hello} request
+ * with the attribute {@code "multiplex": "1"} as the first request on a connection; if the response carries the same
+ * attribute, both sides switch the connection to frames after the hello response.
+ * <p>
+ * Each request/response exchange is carried by a stream, whose bytes in each direction are exactly the ordinary
+ * serialized DOIP message.  Frames of different streams may interleave on the wire.  A frame is
+ * <pre>
+ *   streamId (4 bytes) | type (1 byte) | length (4 bytes) | payload (length bytes)
+ * </pre>
+ * with types DATA, END (the sender has finished its half of the stream), WINDOW_UPDATE (payload is a 4-byte
+ * increment to the sender's window) and RESET (the stream is abandoned).  Streams are opened by the client, using
+ * odd stream ids in increasing order, with an empty DATA frame.  Each direction of each stream has a flow-control window; a sender may only have as many
+ * unacknowledged bytes outstanding as the window allows, so a slow reader of one stream holds back only that stream.
+ */
+public class MultiplexedConnection implements AutoCloseable {
+
+    /**
+     * The value of the {@code multiplex} attribute for the version of multiplexing implemented here.
+     */
+    public static final String VERSION = "1";
+
+    static final int FRAME_DATA = 0;
+    static final int FRAME_END = 1;
+    static final int FRAME_WINDOW_UPDATE = 2;
+    static final int FRAME_RESET = 3;
+
+    static final int MAX_FRAME_SIZE = 16 * 1024;
+    static final int WINDOW_SIZE = 256 * 1024;
+
+    private final DataOutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final boolean isClient;
+    private final Consumer<MultiplexedStream> onRemoteStream;
+    private final ConcurrentMap<Integer, MultiplexedStream> streams = new ConcurrentHashMap<>();
+    private int nextStreamId = 1; // guarded by writeLock
+    private int highestRemoteStreamId; // only used by the frame-reading thread
+    private volatile boolean closed;
+
+    /**
+     * Constructs a multiplexed connection.
+     *
+     * @param out the connection output
+     * @param isClient true for the side which opens streams
+     * @param onRemoteStream called (on the frame-reading thread) for each stream opened by the other side; may be null for clients
+     */
+    public MultiplexedConnection(OutputStream out, boolean isClient, Consumer<MultiplexedStream> onRemoteStream) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, MAX_FRAME_SIZE + 9));
+        this.isClient = isClient;
+        this.onRemoteStream = onRemoteStream;
+    }
+
+    /**
+     * Opens a new stream, used by the client for a single request/response exchange.
+     *
+     * @return the new stream
+     * @throws IOException if the connection is closed
+     */
+    public MultiplexedStream openStream() throws IOException {
+        if (!isClient) throw new IllegalStateException("only clients open streams");
+        if (closed) throw new IOException("closed");
+        MultiplexedStream stream;
+        writeLock.lock();
+        try {
+            // stream ids must appear on the wire in increasing order, so allocate and announce atomically
+            int id = nextStreamId;
+            nextStreamId += 2;
+            stream = new MultiplexedStream(this, id);
+            streams.put(id, stream);
+            try {
+                writeFrame(id, FRAME_DATA, null, 0, 0);
+            } catch (IOException e) {
+                stream.abort();
+                throw e;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (closed) {
+            stream.abort();
+            throw new IOException("closed");
+        }
+        return stream;
+    }
+
+    /**
+     * Returns the number of open streams.
+     *
+     * @return the number of open streams
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Reads frames from the connection input and delivers them to streams until the input ends or an error occurs;
+     * the connection is closed on return.
+     *
+     * @param in the connection input
+     * @throws IOException
+     */
+    public void readFrames(InputStream in) throws IOException {
+        try {
+            while (!closed) {
+                int first;
+                try {
+                    first = in.read();
+                } catch (SocketTimeoutException e) {
+                    // the client keeps idle connections; the server treats idleness as the end of the connection
+                    if (isClient && streams.isEmpty()) continue;
+                    throw e;
+                }
+                if (first < 0) return;
+                int streamId = (first << 24) | readUnsignedBytes(in, 3);
+                int type = readUnsignedBytes(in, 1);
+                int length = readUnsignedBytes(in, 4);
+                if (length < 0 || length > MAX_FRAME_SIZE) throw new BadDoipException("invalid frame length " + length);
+                byte[] payload = new byte[length];
+                readFully(in, payload);
+                handleFrame(streamId, type, payload);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void handleFrame(int streamId, int type, byte[] payload) throws IOException {
+        MultiplexedStream stream = streams.get(streamId);
+        if (stream == null) {
+            boolean remotelyInitiated = isClient ? streamId % 2 == 0 : streamId % 2 == 1;
+            if (type != FRAME_DATA || !remotelyInitiated || onRemoteStream == null || streamId <= highestRemoteStreamId) return;
+            highestRemoteStreamId = streamId;
+            stream = new MultiplexedStream(this, streamId);
+            streams.put(streamId, stream);
+            onRemoteStream.accept(stream);
+        }
+        switch (type) {
+        case FRAME_DATA:
+            stream.receive(payload);
+            break;
+        case FRAME_END:
+            stream.receiveEnd();
+            break;
+        case FRAME_WINDOW_UPDATE:
+            if (payload.length != 4) throw new BadDoipException("invalid window update");
+            stream.receiveWindowUpdate(((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF));
+            break;
+        case FRAME_RESET:
+            stream.abort();
+            break;
+        default:
+            throw new BadDoipException("unknown frame type " + type);
+        }
+    }
+
+    void writeFrame(int streamId, int type, byte[] payload, int off, int len) throws IOException {
+        if (closed) throw new IOException("closed");
+        writeLock.lock();
+        try {
+            out.writeInt(streamId);
+            out.writeByte(type);
+            out.writeInt(len);
+            if (len > 0) out.write(payload, off, len);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = { (byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8), (byte) increment };
+        writeFrame(streamId, FRAME_WINDOW_UPDATE, payload, 0, 4);
+    }
+
+    void removeStream(MultiplexedStream stream) {
+        streams.remove(stream.getId(), stream);
+    }
+
+    /**
+     * Closes the connection for multiplexing purposes, failing all open streams.  The underlying socket is not closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (MultiplexedStream stream : streams.values()) {
+            stream.abort();
+        }
+        streams.clear();
+    }
+
+    private static int readUnsignedBytes(InputStream in, int count) throws IOException {
+        int res = 0;
+        for (int i = 0; i < count; i++) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("end of input inside frame header");
+            res = (res << 8) | b;
+        }
+        return res;
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int r = in.read(b, off, b.length - off);
+            if (r < 0) throw new EOFException("end of input inside frame");
+            off += r;
+        }
+    }
+}
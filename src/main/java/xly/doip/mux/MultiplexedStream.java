@@ -0,0 +1,242 @@
+package xly.doip.mux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single stream of a {@link MultiplexedConnection}, carrying one DOIP message in each direction.
+ * The input stream blocks until the other side sends data; the output stream blocks while the other side's
+ * flow-control window is exhausted.  Closing the output stream ends this side of the stream.
+ * <p>
+ * Waiting uses {@code java.util.concurrent} locks rather than monitors, so that waiting virtual threads do not pin
+ * their carrier threads.
+ */
+public class MultiplexedStream {
+    private final MultiplexedConnection connection;
+    private final int id;
+    private final StreamInput input = new StreamInput();
+    private final StreamOutput output = new StreamOutput();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // guarded by lock
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private int headOffset;
+    private int buffered;
+    private int consumedSinceUpdate;
+    private int sendWindow = MultiplexedConnection.WINDOW_SIZE;
+    private boolean remoteEnded;
+    private boolean localEnded;
+    private boolean aborted;
+
+    MultiplexedStream(MultiplexedConnection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Abandons the stream, informing the other side.
+     */
+    public void reset() {
+        boolean wasAborted;
+        lock.lock();
+        try {
+            wasAborted = aborted;
+        } finally {
+            lock.unlock();
+        }
+        abort();
+        if (!wasAborted) {
+            try {
+                connection.writeFrame(id, MultiplexedConnection.FRAME_RESET, null, 0, 0);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    void receive(byte[] payload) throws IOException {
+        lock.lock();
+        try {
+            if (aborted || remoteEnded) return;
+            if (buffered + payload.length > MultiplexedConnection.WINDOW_SIZE) {
+                throw new IOException("flow-control window exceeded on stream " + id);
+            }
+            if (payload.length == 0) return;
+            received.add(payload);
+            buffered += payload.length;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void receiveEnd() {
+        lock.lock();
+        try {
+            remoteEnded = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        removeIfDone();
+    }
+
+    void receiveWindowUpdate(int increment) {
+        lock.lock();
+        try {
+            sendWindow += increment;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            received.clear();
+            buffered = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        connection.removeStream(this);
+    }
+
+    private void removeIfDone() {
+        boolean done;
+        lock.lock();
+        try {
+            done = remoteEnded && localEnded;
+        } finally {
+            lock.unlock();
+        }
+        if (done) connection.removeStream(this);
+    }
+
+    private void awaitChange() throws IOException {
+        try {
+            changed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private class StreamInput extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int r = read(b, 0, 1);
+            return r < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = 0;
+            int windowUpdate = 0;
+            lock.lock();
+            try {
+                while (buffered == 0) {
+                    if (aborted) throw new IOException("stream reset");
+                    if (remoteEnded) return -1;
+                    awaitChange();
+                }
+                while (n < len && !received.isEmpty()) {
+                    byte[] head = received.peek();
+                    int count = Math.min(len - n, head.length - headOffset);
+                    System.arraycopy(head, headOffset, b, off + n, count);
+                    n += count;
+                    headOffset += count;
+                    if (headOffset == head.length) {
+                        received.poll();
+                        headOffset = 0;
+                    }
+                }
+                buffered -= n;
+                consumedSinceUpdate += n;
+                if (consumedSinceUpdate >= MultiplexedConnection.WINDOW_SIZE / 2 && !remoteEnded) {
+                    windowUpdate = consumedSinceUpdate;
+                    consumedSinceUpdate = 0;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (windowUpdate > 0) connection.writeWindowUpdate(id, windowUpdate);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return buffered;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private class StreamOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n;
+                lock.lock();
+                try {
+                    while (sendWindow <= 0) {
+                        if (aborted) throw new IOException("stream reset");
+                        awaitChange();
+                    }
+                    if (aborted) throw new IOException("stream reset");
+                    if (localEnded) throw new IOException("stream closed");
+                    n = Math.min(Math.min(len, sendWindow), MultiplexedConnection.MAX_FRAME_SIZE);
+                    sendWindow -= n;
+                } finally {
+                    lock.unlock();
+                }
+                connection.writeFrame(id, MultiplexedConnection.FRAME_DATA, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                if (localEnded || aborted) return;
+                localEnded = true;
+            } finally {
+                lock.unlock();
+            }
+            connection.writeFrame(id, MultiplexedConnection.FRAME_END, null, 0, 0);
+            removeIfDone();
+        }
+    }
+}
@@ -0,0 +1,639 @@
+package xly.doip.repository;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An embedded log-structured store of digital objects, used by {@link RepositoryProcessor}.
+ * <p>
+ * Every create, update and delete appends a record to a {@link Segment} file; nothing is written in place.  A record
+ * is laid out as
+ * <pre>
+ *   header:  magic (4) | type (1) | sequence (8) | data length (8) | head length (4) | CRC32C of the above (4)
+ *   data:    the bytes of the elements, one after another
+ *   head:    id length (4) | id | JSON length (4) | JSON | element count (4)
+ *            | per element: id length (4) | id | offset in data (8) | length (8) | CRC32C of its bytes (4)
+ *   trailer: CRC32C of the head (4) | end magic (4)
+ * </pre>
+ * in big-endian order, where the type is {@link #PUT} or {@link #DELETE} and the JSON is the object's as returned by
+ * {@code Op.Retrieve}.  Records contain no positions outside themselves, so compaction can move them with
+ * {@link FileChannel#transferTo}.  The sequence number orders all changes, so the order of segments on disk does not
+ * matter.
+ * <p>
+ * An in-memory hash index maps each id to its latest record, deletions included, so that a read costs one positional
+ * read of the head, after which element bytes are sent straight from the segment file.  Small changes are appended to
+ * a shared segment, which is sealed at {@link RepositoryConfig#segmentSizeBytes}; an object whose elements exceed
+ * {@link RepositoryConfig#maxBufferedBytes} gets a segment of its own, written as it is received (see
+ * {@link PendingRecord}).
+ * <p>
+ * On opening, the index is rebuilt by replaying every segment.  Segments not sealed when the store stopped are
+ * checked in full, element CRCs included, and truncated after their last intact record; sealed segments were forced
+ * to disk when sealed, so only their headers and heads are checked.  Compaction copies the records still current out
+ * of sealed segments which are mostly garbage and, once the copies and the directory are forced to disk, deletes
+ * them, keeping deletions only while an older segment might still hold the deleted object.
+ */
+class LogStore {
+    private static final Logger logger = LoggerFactory.getLogger(LogStore.class);
+
+    static final int MAGIC = 0x444f4950; // "DOIP"
+    static final int END_MAGIC = 0x454e4421; // "END!"
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final int HEADER_SIZE = 29;
+    static final int TRAILER_SIZE = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RepositoryConfig config;
+    private final Path directory;
+    private final ConcurrentMap<String, Pointer> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong segmentIds = new AtomicLong();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private Segment active; // guarded by writeLock
+    private long sequence; // guarded by writeLock
+    private volatile boolean closed; // written under writeLock
+
+    private final LongAdder compactedSegments = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    private long recoveredRecords;
+    private long truncatedBytes;
+
+    LogStore(RepositoryConfig config) throws IOException {
+        if (config.directory == null) throw new IllegalArgumentException("no directory configured");
+        this.config = config;
+        this.directory = Paths.get(config.directory);
+        Files.createDirectories(directory);
+        recover();
+        active = newSegment();
+    }
+
+    /**
+     * The location of the latest record of an object, read without locking.
+     */
+    static final class Pointer {
+        final Segment segment;
+        final long offset;
+        final long seq;
+        final long dataLength;
+        final int headLength;
+        final boolean deleted;
+
+        Pointer(Segment segment, long offset, long seq, long dataLength, int headLength, boolean deleted) {
+            this.segment = segment;
+            this.offset = offset;
+            this.seq = seq;
+            this.dataLength = dataLength;
+            this.headLength = headLength;
+            this.deleted = deleted;
+        }
+
+        long length() {
+            return HEADER_SIZE + dataLength + headLength + TRAILER_SIZE;
+        }
+    }
+
+    /**
+     * A record as read back: the parsed head, with element offsets relative to the start of the data.
+     */
+    static final class RecordHead {
+        final byte type;
+        final long seq;
+        final long dataLength;
+        final int headLength;
+        final String id;
+        final byte[] json;
+        final List<StoredObject.StoredElement> elements;
+
+        RecordHead(byte type, long seq, long dataLength, int headLength, String id, byte[] json, List<StoredObject.StoredElement> elements) {
+            this.type = type;
+            this.seq = seq;
+            this.dataLength = dataLength;
+            this.headLength = headLength;
+            this.id = id;
+            this.json = json;
+            this.elements = elements;
+        }
+
+        long length() {
+            return HEADER_SIZE + dataLength + headLength + TRAILER_SIZE;
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(Segment.LOG_SUFFIX) || name.endsWith(Segment.SEALED_SUFFIX)) files.add(file);
+            }
+        }
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long id = Long.parseUnsignedLong(name.substring(0, name.indexOf('.')), 16);
+            boolean sealed = name.endsWith(Segment.SEALED_SUFFIX);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, file, channel, sealed);
+            segmentIds.set(Math.max(segmentIds.get(), id + 1));
+            replay(segment);
+            if (segment.size == 0) {
+                segment.retire();
+                continue;
+            }
+            segments.put(id, segment);
+            segment.seal();
+        }
+        if (recoveredRecords > 0 || truncatedBytes > 0) {
+            logger.info("Recovered " + countObjects() + " objects from " + recoveredRecords + " records in " + segments.size()
+                + " segments of " + directory + (truncatedBytes > 0 ? ", truncating " + truncatedBytes + " bytes of incomplete writes" : ""));
+        }
+    }
+
+    private void replay(Segment segment) throws IOException {
+        long size = segment.channel.size();
+        long position = 0;
+        boolean verifyData = !segment.isSealed();
+        while (position < size) {
+            RecordHead head = readRecordHead(segment.channel, position, size);
+            if (head == null || (verifyData && !elementsIntact(segment.channel, position, head))) break;
+            recoveredRecords++;
+            Pointer pointer = new Pointer(segment, position, head.seq, head.dataLength, head.headLength, head.type == DELETE);
+            segment.noteSeq(head.seq);
+            Pointer current = index.get(head.id);
+            if (current == null || current.seq < head.seq) {
+                index.put(head.id, pointer);
+                segment.liveBytes.addAndGet(pointer.length());
+                if (current != null) current.segment.liveBytes.addAndGet(-current.length());
+            }
+            sequence = Math.max(sequence, head.seq);
+            position += head.length();
+        }
+        if (position < size) {
+            if (segment.isSealed()) {
+                logger.error("Ignoring " + (size - position) + " unreadable bytes at " + position + " of sealed segment " + segment);
+            } else {
+                logger.warn("Truncating " + segment + " at " + position + " after an incomplete write");
+                segment.channel.truncate(position);
+                truncatedBytes += size - position;
+            }
+        }
+        segment.size = position;
+    }
+
+    /**
+     * Reads and checks the header, head and trailer of the record at a position, or returns null if there is no
+     * intact record there.
+     */
+    static RecordHead readRecordHead(FileChannel channel, long position, long size) throws IOException {
+        if (size - position < HEADER_SIZE + TRAILER_SIZE) return null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, position);
+        header.flip();
+        if (header.getInt(0) != MAGIC) return null;
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, HEADER_SIZE - 4);
+        if ((int) crc.getValue() != header.getInt(HEADER_SIZE - 4)) return null;
+        byte type = header.get(4);
+        long seq = header.getLong(5);
+        long dataLength = header.getLong(13);
+        int headLength = header.getInt(21);
+        if (dataLength < 0 || headLength < 0 || size - position - HEADER_SIZE - TRAILER_SIZE < dataLength + headLength) return null;
+        ByteBuffer headAndTrailer = ByteBuffer.allocate(headLength + TRAILER_SIZE);
+        readFully(channel, headAndTrailer, position + HEADER_SIZE + dataLength);
+        crc.reset();
+        crc.update(headAndTrailer.array(), 0, headLength);
+        if ((int) crc.getValue() != headAndTrailer.getInt(headLength) || headAndTrailer.getInt(headLength + 4) != END_MAGIC) return null;
+        headAndTrailer.flip().limit(headLength);
+        return decodeHead(type, seq, dataLength, headLength, headAndTrailer);
+    }
+
+    private static RecordHead decodeHead(byte type, long seq, long dataLength, int headLength, ByteBuffer buf) {
+        String id = new String(readBytes(buf), StandardCharsets.UTF_8);
+        byte[] json = readBytes(buf);
+        int count = buf.getInt();
+        List<StoredObject.StoredElement> elements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String elementId = new String(readBytes(buf), StandardCharsets.UTF_8);
+            elements.add(new StoredObject.StoredElement(elementId, buf.getLong(), buf.getLong(), buf.getInt()));
+        }
+        return new RecordHead(type, seq, dataLength, headLength, id, json, elements);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        byte[] res = new byte[buf.getInt()];
+        buf.get(res);
+        return res;
+    }
+
+    private static boolean elementsIntact(FileChannel channel, long position, RecordHead head) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        CRC32C crc = new CRC32C();
+        for (StoredObject.StoredElement element : head.elements) {
+            if (element.position < 0 || element.length < 0 || element.position + element.length > head.dataLength) return false;
+            crc.reset();
+            long start = position + HEADER_SIZE + element.position;
+            for (long done = 0; done < element.length; ) {
+                buf.clear();
+                if (buf.remaining() > element.length - done) buf.limit((int) (element.length - done));
+                int r = channel.read(buf, start + done);
+                if (r < 0) return false;
+                crc.update(buf.array(), 0, r);
+                done += r;
+            }
+            if ((int) crc.getValue() != element.crc) return false;
+        }
+        return true;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) throw new EOFException("end of segment");
+        }
+    }
+
+    static ByteBuffer encodeHeader(byte type, long seq, long dataLength, int headLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put(type).putLong(seq).putLong(dataLength).putInt(headLength);
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, HEADER_SIZE - 4);
+        header.putInt((int) crc.getValue());
+        header.flip();
+        return header;
+    }
+
+    static byte[] encodeHead(String id, byte[] json, Map<String, StoredObject.StoredElement> elements) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> elementIds = new ArrayList<>(elements.size());
+        int size = 4 + idBytes.length + 4 + json.length + 4;
+        for (String elementId : elements.keySet()) {
+            byte[] bytes = elementId.getBytes(StandardCharsets.UTF_8);
+            elementIds.add(bytes);
+            size += 4 + bytes.length + 8 + 8 + 4;
+        }
+        ByteBuffer head = ByteBuffer.allocate(size);
+        head.putInt(idBytes.length).put(idBytes).putInt(json.length).put(json).putInt(elements.size());
+        int i = 0;
+        for (StoredObject.StoredElement element : elements.values()) {
+            byte[] bytes = elementIds.get(i++);
+            head.putInt(bytes.length).put(bytes).putLong(element.position).putLong(element.length).putInt(element.crc);
+        }
+        return head.array();
+    }
+
+    static ByteBuffer encodeTrailer(byte[] head) {
+        CRC32C crc = new CRC32C();
+        crc.update(head);
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putInt((int) crc.getValue()).putInt(END_MAGIC);
+        trailer.flip();
+        return trailer;
+    }
+
+    private Segment newSegment() throws IOException {
+        long id = segmentIds.getAndIncrement();
+        Path path = directory.resolve(Segment.fileName(id, false));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel, false);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Returns the path of a new segment of its own for a large object, whose id orders it among the others.
+     */
+    Path newSegmentPath() {
+        return directory.resolve(Segment.fileName(segmentIds.getAndIncrement(), false));
+    }
+
+    long getMaxBufferedBytes() {
+        return config.maxBufferedBytes;
+    }
+
+    boolean exists(String id) {
+        Pointer pointer = index.get(id);
+        return pointer != null && !pointer.deleted;
+    }
+
+    /**
+     * Returns the latest version of an object, which must be closed, or null if there is none.
+     */
+    StoredObject get(String id) throws IOException {
+        for (;;) {
+            Pointer pointer = index.get(id);
+            if (pointer == null || pointer.deleted) return null;
+            if (!pointer.segment.retain()) {
+                // compaction has just moved the record, in which case the index has moved on too, or the store is closed
+                if (closed) throw new IOException("repository closed");
+                continue;
+            }
+            try {
+                ByteBuffer head = ByteBuffer.allocate(pointer.headLength);
+                readFully(pointer.segment.channel, head, pointer.offset + HEADER_SIZE + pointer.dataLength);
+                head.flip();
+                RecordHead decoded = decodeHead(PUT, pointer.seq, pointer.dataLength, pointer.headLength, head);
+                return new StoredObject(pointer.segment, pointer.offset + HEADER_SIZE, decoded.json, decoded.elements);
+            } catch (IOException | RuntimeException e) {
+                pointer.segment.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes a new version of an object.
+     *
+     * @param mustExist if true, the object must already exist; if false, it must not
+     * @return whether the object was written, which it is not if {@code mustExist} was not met
+     */
+    boolean commit(PendingRecord record, String id, byte[] json, boolean mustExist) throws IOException {
+        byte[] head = encodeHead(id, json, record.elements);
+        ByteBuffer trailer = encodeTrailer(head);
+        if (record.channel != null) return commitOwnSegment(record, id, head, trailer, mustExist);
+        writeLock.lock();
+        try {
+            ensureOpen();
+            if (exists(id) != mustExist) return false;
+            long seq = ++sequence;
+            List<ByteBuffer> buffers = new ArrayList<>(record.buffered.size() + 3);
+            buffers.add(encodeHeader(PUT, seq, record.dataLength, head.length));
+            buffers.addAll(record.buffered);
+            buffers.add(ByteBuffer.wrap(head));
+            buffers.add(trailer);
+            append(id, buffers, new Pointer(active, active.size, seq, record.dataLength, head.length, false));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean commitOwnSegment(PendingRecord record, String id, byte[] head, ByteBuffer trailer, boolean mustExist) throws IOException {
+        FileChannel channel = record.channel;
+        long position = HEADER_SIZE + record.dataLength;
+        writeFully(channel, ByteBuffer.wrap(head), position);
+        writeFully(channel, trailer, position + head.length);
+        // the bulk of the data is forced outside the lock
+        channel.force(false);
+        writeLock.lock();
+        try {
+            ensureOpen();
+            if (exists(id) != mustExist) return false;
+            long seq = ++sequence;
+            writeFully(channel, encodeHeader(PUT, seq, record.dataLength, head.length), 0);
+            Segment segment = new Segment(record.segmentId, record.path, channel, false);
+            record.channel = null;
+            segment.seal();
+            segments.put(segment.id, segment);
+            updateIndex(id, new Pointer(segment, 0, seq, record.dataLength, head.length, false));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Records the deletion of an object.
+     *
+     * @return false if there was no such object
+     */
+    boolean delete(String id) throws IOException {
+        byte[] head = encodeHead(id, new byte[0], new LinkedHashMap<>());
+        writeLock.lock();
+        try {
+            ensureOpen();
+            if (!exists(id)) return false;
+            long seq = ++sequence;
+            List<ByteBuffer> buffers = new ArrayList<>(3);
+            buffers.add(encodeHeader(DELETE, seq, 0, head.length));
+            buffers.add(ByteBuffer.wrap(head));
+            buffers.add(encodeTrailer(head));
+            append(id, buffers, new Pointer(active, active.size, seq, 0, head.length, true));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void append(String id, List<ByteBuffer> buffers, Pointer pointer) throws IOException {
+        FileChannel channel = active.channel;
+        channel.position(active.size);
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+        long remaining = pointer.length();
+        while (remaining > 0) {
+            remaining -= channel.write(array);
+        }
+        if (config.syncWrites) channel.force(false);
+        active.size += pointer.length();
+        updateIndex(id, pointer);
+        rotateIfFull();
+    }
+
+    private void updateIndex(String id, Pointer pointer) {
+        Pointer old = index.put(id, pointer);
+        pointer.segment.liveBytes.addAndGet(pointer.length());
+        pointer.segment.noteSeq(pointer.seq);
+        if (old != null) old.segment.liveBytes.addAndGet(-old.length());
+    }
+
+    private void rotateIfFull() throws IOException {
+        if (active.size < config.segmentSizeBytes) return;
+        active.seal();
+        active = newSegment();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("repository closed");
+    }
+
+    /**
+     * Compacts every sealed segment whose garbage ratio is at least {@link RepositoryConfig#compactionGarbageRatio}.
+     *
+     * @return the number of segments compacted
+     */
+    int compact() throws IOException {
+        compactionLock.lock();
+        try {
+            int res = 0;
+            for (Segment segment : segments.values()) {
+                if (!segment.isSealed() || segment.garbageRatio() < config.compactionGarbageRatio) continue;
+                compact(segment);
+                res++;
+            }
+            return res;
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long size = segment.size;
+        long moved = 0;
+        for (long position = 0; position < size; ) {
+            RecordHead head = readRecordHead(segment.channel, position, size);
+            if (head == null) {
+                logger.error("Stopping compaction of " + segment + " at unreadable record at " + position);
+                return;
+            }
+            Pointer pointer = index.get(head.id);
+            if (pointer != null && pointer.segment == segment && pointer.offset == position) {
+                moved += move(head.id, pointer);
+            }
+            position += head.length();
+        }
+        // the copies must be durable before the only other copy is deleted
+        syncMoved();
+        segments.remove(segment.id);
+        segment.retire();
+        compactedSegments.increment();
+        reclaimedBytes.add(size - moved);
+        logger.debug("Compacted " + segment + ", keeping " + moved + " of " + size + " bytes");
+    }
+
+    /**
+     * Copies the latest record of an object to the active segment, or drops it if it is a deletion no longer needed.
+     *
+     * @return the number of bytes copied
+     */
+    private long move(String id, Pointer pointer) throws IOException {
+        writeLock.lock();
+        try {
+            ensureOpen();
+            if (index.get(id) != pointer) return 0;
+            if (pointer.deleted && !olderSegmentExists(pointer)) {
+                index.remove(id, pointer);
+                pointer.segment.liveBytes.addAndGet(-pointer.length());
+                return 0;
+            }
+            long length = pointer.length();
+            FileChannel target = active.channel;
+            target.position(active.size);
+            for (long done = 0; done < length; ) {
+                done += pointer.segment.channel.transferTo(pointer.offset + done, length - done, target);
+            }
+            if (config.syncWrites) target.force(false);
+            Pointer moved = new Pointer(active, active.size, pointer.seq, pointer.dataLength, pointer.headLength, pointer.deleted);
+            active.size += length;
+            updateIndex(id, moved);
+            rotateIfFull();
+            return length;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Forces records moved into the active segment, which {@link #move(String, Pointer)} leaves to the page cache
+     * without {@link RepositoryConfig#syncWrites}, and the directory, so that segments created or sealed while moving
+     * them are found after a crash.  Segments sealed since were forced when sealed.
+     */
+    private void syncMoved() throws IOException {
+        writeLock.lock();
+        try {
+            ensureOpen();
+            if (!config.syncWrites) active.channel.force(false);
+        } finally {
+            writeLock.unlock();
+        }
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // some platforms cannot open or force a directory; their file systems make renames durable by themselves
+            logger.debug("Could not force directory " + directory, e);
+        }
+    }
+
+    /**
+     * Returns whether a segment other than that of a deletion holds records older than it, one of which might be of
+     * the deleted object and would come back to life were the deletion dropped.
+     */
+    private boolean olderSegmentExists(Pointer deletion) {
+        for (Segment segment : segments.values()) {
+            if (segment != deletion.segment && segment.minSeq < deletion.seq) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Seals the active segment and closes all segments.
+     */
+    void close() throws IOException {
+        compactionLock.lock();
+        writeLock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            if (active.size == 0) {
+                segments.remove(active.id);
+                active.retire();
+            } else {
+                active.seal();
+            }
+            for (Segment segment : segments.values()) {
+                segment.release();
+            }
+            segments.clear();
+        } finally {
+            writeLock.unlock();
+            compactionLock.unlock();
+        }
+    }
+
+    private long countObjects() {
+        long res = 0;
+        for (Pointer pointer : index.values()) {
+            if (!pointer.deleted) res++;
+        }
+        return res;
+    }
+
+    /**
+     * Returns counters and sizes of the store, for metrics.
+     */
+    Map<String, Long> snapshot() {
+        long objects = countObjects();
+        long bytes = 0;
+        long liveBytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.size;
+            liveBytes += segment.liveBytes.get();
+        }
+        Map<String, Long> res = new LinkedHashMap<>();
+        res.put("objects", objects);
+        res.put("segments", (long) segments.size());
+        res.put("bytes", bytes);
+        res.put("liveBytes", liveBytes);
+        res.put("compactedSegments", compactedSegments.sum());
+        res.put("reclaimedBytes", reclaimedBytes.sum());
+        res.put("recoveredRecords", recoveredRecords);
+        res.put("truncatedBytes", truncatedBytes);
+        return res;
+    }
+}
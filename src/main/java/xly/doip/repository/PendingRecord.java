@@ -0,0 +1,130 @@
+package xly.doip.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The element bytes of a record being written, gathered before it is committed with
+ * {@link LogStore#commit(PendingRecord, String, byte[], boolean)}.
+ * <p>
+ * Bytes are buffered in memory up to {@link LogStore#getMaxBufferedBytes()}; beyond that they are moved to, and the
+ * rest written straight into, a new segment file of the record's own, which the commit seals.  If the record is
+ * closed without being committed, that file is deleted.
+ */
+class PendingRecord implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PendingRecord.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final LogStore store;
+    final Map<String, StoredObject.StoredElement> elements = new LinkedHashMap<>();
+    final List<ByteBuffer> buffered = new ArrayList<>();
+    long dataLength;
+    // set once the record has a segment of its own
+    long segmentId;
+    Path path;
+    FileChannel channel;
+
+    PendingRecord(LogStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Adds an element read to the end of a stream.  A later element with the same id replaces it.
+     */
+    void addElement(String elementId, InputStream in) throws IOException {
+        long start = dataLength;
+        CRC32C crc = new CRC32C();
+        byte[] buf = new byte[BUFFER_SIZE];
+        int r;
+        while ((r = in.read(buf)) > 0) {
+            crc.update(buf, 0, r);
+            append(buf, r);
+        }
+        elements.put(elementId, new StoredObject.StoredElement(elementId, start, dataLength - start, (int) crc.getValue()));
+    }
+
+    /**
+     * Adds an element copied unchanged from a stored version of the object.
+     */
+    void copyElement(StoredObject from, StoredObject.StoredElement element) throws IOException {
+        long start = dataLength;
+        long position = from.positionOf(element);
+        if (channel == null && dataLength + element.length <= store.getMaxBufferedBytes()) {
+            ByteBuffer buf = ByteBuffer.allocate((int) element.length);
+            LogStore.readFully(from.segment.channel, buf, position);
+            buf.flip();
+            buffered.add(buf);
+            dataLength += element.length;
+        } else {
+            spill();
+            channel.position(LogStore.HEADER_SIZE + dataLength);
+            for (long done = 0; done < element.length; ) {
+                done += from.segment.channel.transferTo(position + done, element.length - done, channel);
+            }
+            dataLength += element.length;
+        }
+        elements.put(element.id, new StoredObject.StoredElement(element.id, start, element.length, element.crc));
+    }
+
+    private void append(byte[] buf, int length) throws IOException {
+        if (channel == null && dataLength + length <= store.getMaxBufferedBytes()) {
+            buffered.add(ByteBuffer.wrap(Arrays.copyOf(buf, length)));
+        } else {
+            spill();
+            writeFully(ByteBuffer.wrap(buf, 0, length), LogStore.HEADER_SIZE + dataLength);
+        }
+        dataLength += length;
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        long start = position - buf.position();
+        while (buf.hasRemaining()) {
+            channel.write(buf, start + buf.position());
+        }
+    }
+
+    /**
+     * Moves the record to a segment of its own, leaving room for the header, which is written at commit.
+     */
+    private void spill() throws IOException {
+        if (channel != null) return;
+        path = store.newSegmentPath();
+        String name = path.getFileName().toString();
+        segmentId = Long.parseUnsignedLong(name.substring(0, name.indexOf('.')), 16);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long position = LogStore.HEADER_SIZE;
+        for (ByteBuffer buf : buffered) {
+            int length = buf.remaining();
+            writeFully(buf, position);
+            position += length;
+        }
+        buffered.clear();
+    }
+
+    @Override
+    public void close() {
+        buffered.clear();
+        if (channel == null) return;
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Error removing uncommitted segment " + path, e);
+        }
+        channel = null;
+    }
+}
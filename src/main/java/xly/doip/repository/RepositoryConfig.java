@@ -0,0 +1,47 @@
+package xly.doip.repository;
+
+/**
+ * Configuration for a {@link RepositoryProcessor}, given as {@link xly.doip.server.DoipServerConfig#processorConfig}
+ * or to the constructor.
+ */
+public class RepositoryConfig {
+
+    /**
+     * The directory holding the segment files, created if it does not exist.  Required.
+     */
+    public String directory;
+
+    /**
+     * The service id reported by {@code Op.Hello}, and the prefix, followed by "/" and a random UUID, of the ids given to
+     * objects created without one (defaults to "repository").
+     */
+    public String serviceId = "repository";
+
+    /**
+     * The size in bytes at which the segment being appended to is sealed and a new one started (defaults to 256 MB).
+     */
+    public long segmentSizeBytes = 256L * 1024 * 1024;
+
+    /**
+     * An object whose elements come to more than this many bytes is written, while it is received, to a segment of
+     * its own instead of being buffered in memory and appended to the shared segment (defaults to 4 MB).
+     */
+    public long maxBufferedBytes = 4L * 1024 * 1024;
+
+    /**
+     * If true, every write is forced to disk before it is acknowledged; otherwise segments are forced when they are
+     * sealed, so that a crash may lose the latest writes but never damages earlier ones (defaults to false).
+     */
+    public boolean syncWrites;
+
+    /**
+     * Sealed segments in which at least this fraction of the bytes belong to objects since updated or deleted are
+     * compacted (defaults to 0.5).
+     */
+    public double compactionGarbageRatio = 0.5;
+
+    /**
+     * The interval in milliseconds between background compaction passes; 0 disables them (defaults to 30 seconds).
+     */
+    public long compactionIntervalMs = 30_000;
+}
@@ -0,0 +1,373 @@
+package xly.doip.repository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import xly.doip.DoipConstants;
+import xly.doip.InDoipMessage;
+import xly.doip.InDoipSegment;
+import xly.doip.OutDoipMessage;
+import xly.doip.server.DoipProcessor;
+import xly.doip.server.DoipServerConfig;
+import xly.doip.server.DoipServerRequest;
+import xly.doip.server.DoipServerResponse;
+import xly.doip.util.GsonUtility;
+
+/**
+ * A DOIP repository keeping digital objects on disk in a {@link LogStore}: {@code Op.Create}, {@code Op.Retrieve},
+ * {@code Op.Update} and {@code Op.Delete} as sent by {@link xly.doip.client.DoipClient}, and {@code Op.Hello} and
+ * {@code Op.ListOperations}.
+ * <p>
+ * An object is stored as its JSON, with the {@code length} of each element filled in, followed by the bytes of its
+ * elements.  A retrieve sends the stored JSON as it is, and element bytes straight from the segment file with
+ * {@link OutDoipMessage#writeBytes(java.nio.channels.FileChannel, long, long)}.  An update replaces the object's JSON
+ * and the elements whose bytes it sends; elements still listed but not sent keep their bytes, which are copied into
+ * the new version, and elements no longer listed are dropped.
+ * <p>
+ * Configured by {@link RepositoryConfig}, as {@link DoipServerConfig#processorConfig} or through the constructor.
+ * Segments mostly holding superseded versions are compacted in the background every
+ * {@link RepositoryConfig#compactionIntervalMs}, or on demand by {@link #compact()}.
+ */
+public class RepositoryProcessor implements DoipProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(RepositoryProcessor.class);
+
+    private static final JsonArray OPERATIONS = new JsonArray();
+    static {
+        OPERATIONS.add(DoipConstants.OP_HELLO);
+        OPERATIONS.add(DoipConstants.OP_LIST_OPERATIONS);
+        OPERATIONS.add(DoipConstants.OP_CREATE);
+        OPERATIONS.add(DoipConstants.OP_RETRIEVE);
+        OPERATIONS.add(DoipConstants.OP_UPDATE);
+        OPERATIONS.add(DoipConstants.OP_DELETE);
+    }
+
+    private RepositoryConfig config;
+    private LogStore store;
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Constructs a repository to be configured by {@link #init(JsonObject)}, as when named by
+     * {@link DoipServerConfig#processorClass}.
+     */
+    public RepositoryProcessor() {
+    }
+
+    /**
+     * Constructs a repository with the given configuration, recovering any objects already in its directory.
+     */
+    public RepositoryProcessor(RepositoryConfig config) throws IOException {
+        init(config);
+    }
+
+    @Override
+    public void init(JsonObject config) {
+        try {
+            init(config == null ? new RepositoryConfig() : GsonUtility.getGson().fromJson(config, RepositoryConfig.class));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    final void init(RepositoryConfig config) throws IOException {
+        this.config = config;
+        this.store = new LogStore(config);
+        if (config.compactionIntervalMs > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "doip-repository-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(this::compactQuietly, config.compactionIntervalMs, config.compactionIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (compactor != null) compactor.shutdownNow();
+        if (store == null) return;
+        try {
+            store.close();
+        } catch (IOException e) {
+            logger.warn("Error closing repository", e);
+        }
+    }
+
+    public RepositoryConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Compacts now the segments which are mostly garbage.
+     *
+     * @return the number of segments compacted
+     */
+    public int compact() throws IOException {
+        return store.compact();
+    }
+
+    private void compactQuietly() {
+        try {
+            store.compact();
+        } catch (Exception e) {
+            logger.warn("Error compacting repository", e);
+        }
+    }
+
+    /**
+     * Returns the number of objects, the number and total size of segments, the bytes of these still current, and
+     * counters of compaction and recovery.
+     */
+    public Map<String, Long> snapshot() {
+        return store.snapshot();
+    }
+
+    @Override
+    public void process(DoipServerRequest req, DoipServerResponse resp) throws IOException {
+        String operationId = req.getOperationId();
+        try {
+            if (DoipConstants.OP_RETRIEVE.equals(operationId)) {
+                retrieve(req, resp);
+            } else if (DoipConstants.OP_CREATE.equals(operationId)) {
+                createOrUpdate(req, resp, false);
+            } else if (DoipConstants.OP_UPDATE.equals(operationId)) {
+                createOrUpdate(req, resp, true);
+            } else if (DoipConstants.OP_DELETE.equals(operationId)) {
+                delete(req, resp);
+            } else if (DoipConstants.OP_HELLO.equals(operationId)) {
+                hello(resp);
+            } else if (DoipConstants.OP_LIST_OPERATIONS.equals(operationId)) {
+                resp.writeCompactOutput(OPERATIONS);
+            } else {
+                resp.setStatus(DoipConstants.STATUS_DECLINED);
+                resp.setAttribute(DoipConstants.MESSAGE_ATT, "Operation not supported");
+            }
+        } catch (JsonParseException | IllegalStateException | ClassCastException e) {
+            respond(resp, DoipConstants.STATUS_BAD_REQUEST, "Malformed input: " + e.getMessage());
+        }
+    }
+
+    private static void respond(DoipServerResponse resp, String status, String message) {
+        resp.setStatus(status);
+        resp.setAttribute(DoipConstants.MESSAGE_ATT, message);
+    }
+
+    private void hello(DoipServerResponse resp) throws IOException {
+        JsonObject attributes = new JsonObject();
+        attributes.addProperty("protocol", "TCP");
+        attributes.addProperty("protocolVersion", "2.0");
+        JsonObject dobj = new JsonObject();
+        dobj.addProperty("id", config.serviceId);
+        dobj.addProperty("type", "0.TYPE/DOIPServiceInfo");
+        dobj.add("attributes", attributes);
+        resp.writeCompactOutput(dobj);
+    }
+
+    private void retrieve(DoipServerRequest req, DoipServerResponse resp) throws IOException {
+        String elementId = req.getAttributeAsString("element");
+        try (StoredObject object = store.get(req.getTargetId())) {
+            if (object == null) {
+                respond(resp, DoipConstants.STATUS_NOT_FOUND, "No such object");
+                return;
+            }
+            if (elementId != null) {
+                retrieveElement(req, resp, object, elementId);
+                return;
+            }
+            OutDoipMessage out = resp.getOutput();
+            out.writeJson(object.json);
+            if (!"true".equals(req.getAttributeAsString("includeElementData"))) return;
+            for (StoredObject.StoredElement element : object.elements) {
+                JsonObject header = new JsonObject();
+                header.addProperty("id", element.id);
+                out.writeJson(header);
+                out.writeBytes(object.segment.channel, object.positionOf(element), element.length);
+            }
+        }
+    }
+
+    private void retrieveElement(DoipServerRequest req, DoipServerResponse resp, StoredObject object, String elementId) throws IOException {
+        StoredObject.StoredElement element = object.getElement(elementId);
+        if (element == null) {
+            if (!isListed(object.json, elementId)) {
+                respond(resp, DoipConstants.STATUS_BAD_REQUEST, "No such element");
+                return;
+            }
+            element = new StoredObject.StoredElement(elementId, 0, 0, 0);
+        }
+        long first = 0;
+        long last = element.length - 1;
+        JsonElement range = req.getAttribute("range");
+        if (range != null && range.isJsonObject()) {
+            Long start = getLong(range.getAsJsonObject(), "start");
+            Long end = getLong(range.getAsJsonObject(), "end");
+            if (start != null) {
+                first = start;
+                if (end != null) last = Math.min(end, last);
+            } else if (end != null) {
+                first = Math.max(0, element.length - end);
+            }
+            if (first < 0 || (first > last && first != element.length)) {
+                respond(resp, DoipConstants.STATUS_BAD_REQUEST, "Range not satisfiable");
+                return;
+            }
+        }
+        long count = Math.max(0, last - first + 1);
+        resp.getOutput().writeBytes(object.segment.channel, object.positionOf(element) + first, count);
+    }
+
+    private static Long getLong(JsonObject obj, String name) {
+        JsonElement el = obj.get(name);
+        if (el == null || el.isJsonNull()) return null;
+        return el.getAsLong();
+    }
+
+    private static boolean isListed(byte[] json, String elementId) {
+        JsonObject dobj = GsonUtility.getGson().fromJson(new String(json, StandardCharsets.UTF_8), JsonObject.class);
+        JsonElement elements = dobj.get("elements");
+        if (elements == null || !elements.isJsonArray()) return false;
+        for (JsonElement el : elements.getAsJsonArray()) {
+            JsonElement id = el.getAsJsonObject().get("id");
+            if (id != null && elementId.equals(id.getAsString())) return true;
+        }
+        return false;
+    }
+
+    private void createOrUpdate(DoipServerRequest req, DoipServerResponse resp, boolean isUpdate) throws IOException {
+        InDoipMessage input = req.getInput();
+        Iterator<InDoipSegment> segments = input.iterator();
+        if (!segments.hasNext()) {
+            respond(resp, DoipConstants.STATUS_BAD_REQUEST, "Missing input");
+            return;
+        }
+        InDoipSegment first = segments.next();
+        if (!first.isJson() || !first.getJson().isJsonObject()) {
+            respond(resp, DoipConstants.STATUS_BAD_REQUEST, "Expected a digital object");
+            return;
+        }
+        JsonObject dobj = first.getJson().getAsJsonObject();
+        String id = isUpdate ? req.getTargetId() : getString(dobj, "id");
+        if (isUpdate) {
+            String given = getString(dobj, "id");
+            if (given != null && !given.equals(id)) {
+                respond(resp, DoipConstants.STATUS_BAD_REQUEST, "Object id does not match target id");
+                return;
+            }
+            if (!store.exists(id)) {
+                respond(resp, DoipConstants.STATUS_NOT_FOUND, "No such object");
+                return;
+            }
+        } else if (id == null) {
+            id = config.serviceId + "/" + UUID.randomUUID();
+        } else if (store.exists(id)) {
+            respond(resp, DoipConstants.STATUS_CONFLICT, "Object already exists");
+            return;
+        }
+        dobj.addProperty("id", id);
+        try (PendingRecord record = new PendingRecord(store)) {
+            while (segments.hasNext()) {
+                InDoipSegment header = segments.next();
+                String elementId = header.isJson() && header.getJson().isJsonObject() ? getString(header.getJson().getAsJsonObject(), "id") : null;
+                if (elementId == null || !segments.hasNext()) {
+                    respond(resp, DoipConstants.STATUS_BAD_REQUEST, "Expected an element header followed by bytes");
+                    return;
+                }
+                InDoipSegment bytes = segments.next();
+                if (bytes.isJson()) {
+                    respond(resp, DoipConstants.STATUS_BAD_REQUEST, "Expected bytes of element " + elementId);
+                    return;
+                }
+                record.addElement(elementId, bytes.getInputStream());
+            }
+            JsonArray elements = listElements(dobj, record);
+            if (isUpdate && !keepUnsentElements(id, elements, record)) {
+                respond(resp, DoipConstants.STATUS_NOT_FOUND, "No such object");
+                return;
+            }
+            setLengths(elements, record);
+            byte[] json = GsonUtility.getGson().toJson(dobj).getBytes(StandardCharsets.UTF_8);
+            if (!store.commit(record, id, json, isUpdate)) {
+                if (isUpdate) respond(resp, DoipConstants.STATUS_NOT_FOUND, "No such object");
+                else respond(resp, DoipConstants.STATUS_CONFLICT, "Object already exists");
+                return;
+            }
+            resp.getOutput().writeJson(json);
+        }
+    }
+
+    private static String getString(JsonObject obj, String name) {
+        JsonElement el = obj.get(name);
+        if (el == null || el.isJsonNull()) return null;
+        return el.getAsString();
+    }
+
+    /**
+     * Returns the elements listed by the object, adding those sent but not listed.
+     */
+    private static JsonArray listElements(JsonObject dobj, PendingRecord record) {
+        JsonElement listed = dobj.get("elements");
+        JsonArray elements = listed != null && listed.isJsonArray() ? listed.getAsJsonArray() : new JsonArray();
+        Map<String, JsonObject> byId = new LinkedHashMap<>();
+        for (JsonElement el : elements) {
+            String id = getString(el.getAsJsonObject(), "id");
+            if (id == null) throw new JsonParseException("element without id");
+            byId.put(id, el.getAsJsonObject());
+        }
+        for (String id : record.elements.keySet()) {
+            if (byId.containsKey(id)) continue;
+            JsonObject el = new JsonObject();
+            el.addProperty("id", id);
+            elements.add(el);
+        }
+        if (elements.size() > 0 || listed != null) dobj.add("elements", elements);
+        return elements;
+    }
+
+    /**
+     * Copies into the record the current bytes of the listed elements which the update did not send; returns false
+     * if the object no longer exists.
+     */
+    private boolean keepUnsentElements(String id, JsonArray elements, PendingRecord record) throws IOException {
+        try (StoredObject current = store.get(id)) {
+            if (current == null) return false;
+            for (JsonElement el : elements) {
+                String elementId = getString(el.getAsJsonObject(), "id");
+                if (record.elements.containsKey(elementId)) continue;
+                StoredObject.StoredElement stored = current.getElement(elementId);
+                if (stored != null) record.copyElement(current, stored);
+            }
+            return true;
+        }
+    }
+
+    private static void setLengths(JsonArray elements, PendingRecord record) {
+        for (JsonElement el : elements) {
+            JsonObject obj = el.getAsJsonObject();
+            StoredObject.StoredElement stored = record.elements.get(getString(obj, "id"));
+            obj.addProperty("length", stored == null ? 0 : stored.length);
+        }
+    }
+
+    private void delete(DoipServerRequest req, DoipServerResponse resp) throws IOException {
+        if (!store.delete(req.getTargetId())) {
+            respond(resp, DoipConstants.STATUS_NOT_FOUND, "No such object");
+            return;
+        }
+        resp.commit();
+    }
+}
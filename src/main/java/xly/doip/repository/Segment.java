@@ -0,0 +1,117 @@
+package xly.doip.repository;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only segment file of a {@link LogStore}, named by its id in hex: {@code .log} while it may still be
+ * written to, and {@code .seg} once sealed and forced to disk.
+ * <p>
+ * The store holds one reference, and each reader of a record takes another with {@link #retain()}, so that a
+ * segment retired by compaction stays open, and its file in place, until the last reader is done.
+ */
+class Segment {
+    private static final Logger logger = LoggerFactory.getLogger(Segment.class);
+
+    static final String LOG_SUFFIX = ".log";
+    static final String SEALED_SUFFIX = ".seg";
+
+    final long id;
+    final FileChannel channel;
+    private volatile Path path;
+    private volatile boolean sealed;
+    // written under the store's write lock, or during recovery
+    volatile long size;
+    final AtomicLong liveBytes = new AtomicLong();
+    // the lowest sequence number of any record in the segment
+    volatile long minSeq = Long.MAX_VALUE;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private volatile boolean deleteWhenReleased;
+
+    Segment(long id, Path path, FileChannel channel, boolean sealed) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.sealed = sealed;
+        this.size = channel.size();
+    }
+
+    static String fileName(long id, boolean sealed) {
+        return String.format("%016x", id) + (sealed ? SEALED_SUFFIX : LOG_SUFFIX);
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Returns the fraction of the segment's bytes no longer needed.
+     */
+    double garbageRatio() {
+        long size = this.size;
+        return size == 0 ? 1 : 1 - (double) liveBytes.get() / size;
+    }
+
+    void noteSeq(long seq) {
+        if (seq < minSeq) minSeq = seq;
+    }
+
+    /**
+     * Forces the segment to disk and renames it as sealed.  It is not written to afterwards.
+     */
+    void seal() throws IOException {
+        if (sealed) return;
+        channel.force(true);
+        Path sealedPath = path.resolveSibling(fileName(id, true));
+        Files.move(path, sealedPath, StandardCopyOption.ATOMIC_MOVE);
+        path = sealedPath;
+        sealed = true;
+    }
+
+    /**
+     * Takes a reference for reading, or returns false if the segment has been closed.
+     */
+    boolean retain() {
+        for (;;) {
+            int current = refs.get();
+            if (current == 0) return false;
+            if (refs.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    void release() {
+        if (refs.decrementAndGet() != 0) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Error closing segment " + path, e);
+        }
+        if (!deleteWhenReleased) return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Error deleting segment " + path, e);
+        }
+    }
+
+    /**
+     * Drops the store's reference to a segment no longer needed, deleting it once no reader holds it.
+     */
+    void retire() {
+        deleteWhenReleased = true;
+        release();
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
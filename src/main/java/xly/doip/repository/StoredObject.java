@@ -0,0 +1,60 @@
+package xly.doip.repository;
+
+import java.util.List;
+
+/**
+ * A version of an object read from a {@link LogStore}: its JSON as stored, and where its element bytes lie.  Holds a
+ * reference to its segment, so that its elements stay readable until it is closed even if compaction moves them.
+ */
+class StoredObject implements AutoCloseable {
+    final Segment segment;
+    final long dataPosition;
+    final byte[] json;
+    final List<StoredElement> elements;
+    private boolean closed;
+
+    StoredObject(Segment segment, long dataPosition, byte[] json, List<StoredElement> elements) {
+        this.segment = segment;
+        this.dataPosition = dataPosition;
+        this.json = json;
+        this.elements = elements;
+    }
+
+    /**
+     * The bytes of an element: {@link #position} is relative to the start of the record's data.
+     */
+    static final class StoredElement {
+        final String id;
+        final long position;
+        final long length;
+        final int crc;
+
+        StoredElement(String id, long position, long length, int crc) {
+            this.id = id;
+            this.position = position;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    StoredElement getElement(String elementId) {
+        for (StoredElement element : elements) {
+            if (element.id.equals(elementId)) return element;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the position of an element's first byte in the segment file.
+     */
+    long positionOf(StoredElement element) {
+        return dataPosition + element.position;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        segment.release();
+    }
+}
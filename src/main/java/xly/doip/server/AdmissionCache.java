@@ -0,0 +1,240 @@
+package xly.doip.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A cache bounded by the total weight of its values, with admission in the style of W-TinyLFU, used by
+ * {@link CachingDoipProcessor}.
+ * <p>
+ * New entries go into a small LRU window, about 1% of the capacity, which lets bursts through.  An entry leaving the
+ * window is admitted to the main LRU region only if there is room, or if it has been asked for more often than each
+ * entry which would have to be evicted to make room, as estimated by a count-min sketch of recent lookups which is
+ * halved periodically so that old popularity fades.  A scan of keys seen once therefore cannot flush out entries
+ * which are in steady demand.
+ * <p>
+ * Entries the cache drops by itself, when evicting them or turning them away, are reported to a listener, so that a
+ * caller can keep its own index of the keys.
+ */
+class AdmissionCache<K, V> {
+    private final long maxWeight;
+    private final long maxWindowWeight;
+    private final ReentrantLock lock = new ReentrantLock();
+    // both in access order, least recently used first
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Node<K, V>> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private final Consumer<K> onDrop;
+    private long windowWeight;
+    private long mainWeight;
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Constructs an {@code AdmissionCache}.
+     *
+     * @param maxWeight the total weight of values to keep
+     * @param typicalWeight the weight of a typical value, to size the frequency sketch
+     * @param onDrop called, possibly with the cache's lock held, with the key of each entry evicted or not admitted
+     */
+    AdmissionCache(long maxWeight, long typicalWeight, Consumer<K> onDrop) {
+        this.maxWeight = maxWeight;
+        this.onDrop = onDrop;
+        this.maxWindowWeight = Math.max(1, maxWeight / 100);
+        long expectedEntries = maxWeight / Math.max(1, typicalWeight);
+        this.sketch = new FrequencySketch((int) Math.max(256, Math.min(expectedEntries, 1 << 20)));
+    }
+
+    V get(K key) {
+        lock.lock();
+        try {
+            sketch.increment(key.hashCode());
+            Node<K, V> node = window.get(key);
+            if (node == null) node = main.get(key);
+            return node == null ? null : node.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces an entry.  A value heavier than the whole cache is not kept.
+     */
+    void put(K key, V value, long weight) {
+        if (weight > maxWeight - maxWindowWeight) {
+            onDrop.accept(key);
+            return;
+        }
+        lock.lock();
+        try {
+            removeLocked(key);
+            window.put(key, new Node<>(key, value, weight));
+            windowWeight += weight;
+            while (windowWeight > maxWindowWeight && !window.isEmpty()) {
+                Iterator<Node<K, V>> iter = window.values().iterator();
+                Node<K, V> candidate = iter.next();
+                iter.remove();
+                windowWeight -= candidate.weight;
+                admit(candidate);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void admit(Node<K, V> candidate) {
+        long room = maxWeight - maxWindowWeight - mainWeight;
+        if (candidate.weight > room) {
+            int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+            List<Node<K, V>> victims = new ArrayList<>();
+            for (Node<K, V> victim : main.values()) {
+                if (room >= candidate.weight) break;
+                if (sketch.frequency(victim.key.hashCode()) >= candidateFrequency) {
+                    rejections.increment();
+                    onDrop.accept(candidate.key);
+                    return;
+                }
+                victims.add(victim);
+                room += victim.weight;
+            }
+            for (Node<K, V> victim : victims) {
+                main.remove(victim.key);
+                mainWeight -= victim.weight;
+                evictions.increment();
+                onDrop.accept(victim.key);
+            }
+        }
+        main.put(candidate.key, candidate);
+        mainWeight += candidate.weight;
+    }
+
+    void remove(K key) {
+        lock.lock();
+        try {
+            removeLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeLocked(K key) {
+        Node<K, V> node = window.remove(key);
+        if (node != null) {
+            windowWeight -= node.weight;
+            return;
+        }
+        node = main.remove(key);
+        if (node != null) mainWeight -= node.weight;
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            window.clear();
+            main.clear();
+            windowWeight = 0;
+            mainWeight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return window.size() + main.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long weight() {
+        lock.lock();
+        try {
+            return windowWeight + mainWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of entries turned away from the main region because the entries they would have displaced
+     * were in more demand.
+     */
+    long getRejections() {
+        return rejections.sum();
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final long weight;
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A count-min sketch of four rows of counters saturating at 15.  After ten increments per counter in a row, all
+     * counters are halved.
+     */
+    static class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+        private final byte[] counters;
+        private final int width;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            this.width = Integer.highestOneBit(Math.max(expectedEntries - 1, 1)) << 1;
+            this.counters = new byte[ROWS * width];
+            this.sampleSize = 10 * width;
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 32;
+            return row * width + ((int) h & (width - 1));
+        }
+
+        int frequency(int hash) {
+            int res = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                res = Math.min(res, counters[indexOf(hash, row)]);
+            }
+            return res;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                int index = indexOf(hash, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+    }
+}
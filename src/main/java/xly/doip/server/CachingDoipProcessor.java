@@ -0,0 +1,656 @@
+package xly.doip.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import xly.doip.DoipConstants;
+import xly.doip.OutDoipMessage;
+import xly.doip.util.GsonUtility;
+import xly.doip.util.JsonDigest;
+import xly.doip.util.PrometheusText;
+
+/**
+ * A {@link DoipProcessor} which wraps another and keeps the responses to {@code Op.Retrieve} in memory, so that
+ * objects which are read often and rarely change are served without asking the wrapped processor.
+ * <p>
+ * Responses are cached already serialized: the initial segment's status, attributes and compact output, and any
+ * further segments, as long as the whole response is at most {@code maxEntryBytes}.  Larger responses, such as those
+ * with big elements, always go to the wrapped processor.  Entries are keyed by target and by the request attributes,
+ * the client id, the authentication and the connection's client id, so that a response is only ever replayed to a
+ * request the wrapped processor would have answered the same way.  Keys and etags hold a SHA-256 digest of all of
+ * these rather than the credentials themselves.  The cache is bounded by the total size of its
+ * entries and admits new entries in the manner of W-TinyLFU (see {@link AdmissionCache}).
+ * <p>
+ * Each successful {@code Op.Retrieve} response carries the attribute {@code "etag"}
+ * ({@link DoipConstants#ETAG_ATT}), which changes whenever the target is updated or deleted through this processor.
+ * A request with the attribute {@code "ifNoneMatch"} equal to the current etag is answered with just
+ * {@code "etag"} and {@code "notModified": true} when the response to that same request, from the same client, is
+ * cached; otherwise it goes to the wrapped processor like any other, so that its authorization and errors apply.
+ * This assumes that objects only change through {@code Op.Update} and {@code Op.Delete} requests to this processor, or that whatever else
+ * changes them calls {@link #invalidate(String)}, and that the wrapped processor's responses depend on nothing but
+ * the request and the object.
+ */
+public class CachingDoipProcessor implements DoipProcessor {
+    /**
+     * The number of targets whose versions are tracked; past this all versions, and so all etags and cached entries,
+     * are discarded together.
+     */
+    static final int MAX_TRACKED_VERSIONS = 100_000;
+    private static final long ENTRY_OVERHEAD = 128;
+    private static final long TYPICAL_ENTRY_BYTES = 2048;
+    // 96 bits of the variant digest, in base64url
+    private static final int ETAG_DIGEST_LENGTH = 16;
+
+    private final DoipProcessor delegate;
+    private final long maxEntryBytes;
+    private final AdmissionCache<Key, CachedResponse> cache;
+    // the keys cached for each target, so that invalidating one does not look at every entry
+    private final ConcurrentMap<String, Set<Key>> keysByTarget = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> versions = new ConcurrentHashMap<>();
+    private final AtomicLong versionCounter = new AtomicLong();
+    private volatile String epoch = newEpoch();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder uncacheable = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Constructs a {@code CachingDoipProcessor}.
+     *
+     * @param delegate the processor answering requests not served from the cache
+     * @param maxBytes the total size in bytes of the cached responses
+     * @param maxEntryBytes the size in bytes of the largest response to cache
+     */
+    public CachingDoipProcessor(DoipProcessor delegate, long maxBytes, long maxEntryBytes) {
+        this.delegate = delegate;
+        this.maxEntryBytes = maxEntryBytes;
+        this.cache = new AdmissionCache<>(maxBytes, Math.min(TYPICAL_ENTRY_BYTES, maxEntryBytes), this::unindex);
+    }
+
+    public DoipProcessor getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void init(JsonObject config) {
+        delegate.init(config);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public void process(DoipServerRequest req, DoipServerResponse resp) throws IOException {
+        String operationId = req.getOperationId();
+        String targetId = req.getTargetId();
+        if (targetId == null) {
+            delegate.process(req, resp);
+        } else if (DoipConstants.OP_RETRIEVE.equals(operationId)) {
+            retrieve(req, resp, targetId);
+        } else if (DoipConstants.OP_UPDATE.equals(operationId) || DoipConstants.OP_DELETE.equals(operationId)) {
+            try {
+                delegate.process(req, resp);
+            } finally {
+                // even a failed request may have changed the object
+                invalidate(targetId);
+            }
+        } else {
+            delegate.process(req, resp);
+        }
+    }
+
+    private void retrieve(DoipServerRequest req, DoipServerResponse resp, String targetId) throws IOException {
+        Key key = new Key(targetId, variantOf(req));
+        // read before asking the wrapped processor, so that an update racing with this request changes the version
+        // and the response is not replayed later
+        String etag = currentEtag(key);
+        CachedResponse cached = cache.get(key);
+        if (cached != null && cached.etag.equals(etag)) {
+            // the wrapped processor gave this response to this request, so it would allow it again
+            if (etag.equals(req.getAttributeAsString(DoipConstants.IF_NONE_MATCH_ATT))) {
+                notModified.increment();
+                resp.setStatus(DoipConstants.STATUS_OK);
+                JsonObject attributes = new JsonObject();
+                attributes.addProperty(DoipConstants.ETAG_ATT, etag);
+                attributes.addProperty(DoipConstants.NOT_MODIFIED_ATT, true);
+                resp.setAttributes(attributes);
+                resp.commit();
+                return;
+            }
+            hits.increment();
+            cached.replay(resp);
+            return;
+        }
+        misses.increment();
+        RecordingResponse recording = new RecordingResponse(resp, etag);
+        delegate.process(req, recording);
+        recording.prepare();
+        CachedResponse entry = recording.toCachedResponse();
+        if (entry == null) {
+            uncacheable.increment();
+            return;
+        }
+        if (!etag.equals(currentEtag(key))) return;
+        // indexed first, so that the key is unindexed if the cache drops the entry straight away
+        keysByTarget.computeIfAbsent(targetId, t -> ConcurrentHashMap.newKeySet()).add(key);
+        cache.put(key, entry, entry.weight + key.weight());
+    }
+
+    private void unindex(Key key) {
+        keysByTarget.computeIfPresent(key.targetId, (t, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * Marks an object as changed: its etag changes, and its cached responses are no longer served.  Called for every
+     * {@code Op.Update} and {@code Op.Delete}; call it too when an object changes by other means.
+     */
+    public void invalidate(String targetId) {
+        invalidations.increment();
+        if (versions.size() >= MAX_TRACKED_VERSIONS && !versions.containsKey(targetId)) {
+            // the epoch is replaced before the versions are cleared, and read after them in currentEtag, so no etag
+            // issued before can be issued again
+            epoch = newEpoch();
+            versions.clear();
+            cache.clear();
+            keysByTarget.clear();
+        }
+        versions.put(targetId, versionCounter.incrementAndGet());
+        // entries for the old version would not be served anyway, but would hold their space until evicted
+        Set<Key> keys = keysByTarget.remove(targetId);
+        if (keys == null) return;
+        for (Key key : keys) {
+            cache.remove(key);
+        }
+    }
+
+    private String currentEtag(Key key) {
+        Long version = versions.get(key.targetId);
+        return epoch + "." + (version == null ? 0 : version) + "." + key.variant.substring(0, ETAG_DIGEST_LENGTH);
+    }
+
+    private static String newEpoch() {
+        return Long.toString(ThreadLocalRandom.current().nextLong() >>> 16, 36);
+    }
+
+    /**
+     * Returns everything about a request other than its target which may affect the response.
+     */
+    private static String variantOf(DoipServerRequest req) {
+        StringBuilder sb = new StringBuilder();
+        JsonObject attributes = req.getAttributes();
+        if (attributes != null) {
+            JsonObject relevant = new JsonObject();
+            for (Entry<String, JsonElement> entry : attributes.entrySet()) {
+                String name = entry.getKey();
+                // affect only how the response is sent
+                if (name.equals(DoipConstants.IF_NONE_MATCH_ATT) || name.equals(DoipConstants.COMPRESSION_ATT)) continue;
+                relevant.add(name, entry.getValue());
+            }
+            sb.append(relevant);
+        }
+        sb.append('\n').append(req.getClientId());
+        sb.append('\n').append(req.getConnectionClientId());
+        JsonElement authentication = req.getAuthentication();
+        sb.append('\n');
+        if (authentication != null) sb.append(JsonDigest.sha256(authentication));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the counters of the cache, for metrics.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> res = new LinkedHashMap<>();
+        res.put("hits", hits.sum());
+        res.put("misses", misses.sum());
+        res.put("notModified", notModified.sum());
+        res.put("uncacheable", uncacheable.sum());
+        res.put("invalidations", invalidations.sum());
+        res.put("evictions", cache.getEvictions());
+        res.put("rejections", cache.getRejections());
+        res.put("entries", (long) cache.size());
+        res.put("bytes", cache.weight());
+        return res;
+    }
+
+    /**
+     * Writes the counters in the Prometheus text format, with metric names starting with {@code prefix}.
+     */
+    public void scrape(PrometheusText text, String prefix) {
+        String lookups = prefix + "_retrieve_cache_requests_total";
+        text.family(lookups, "counter", "Op.Retrieve requests seen by the response cache, by outcome.");
+        text.sample(lookups, hits.sum(), "outcome", "hit");
+        text.sample(lookups, misses.sum(), "outcome", "miss");
+        text.sample(lookups, notModified.sum(), "outcome", "not_modified");
+        text.family(prefix + "_retrieve_cache_uncacheable_total", "counter", "Responses not cached because of their status or size.")
+            .sample(prefix + "_retrieve_cache_uncacheable_total", uncacheable.sum());
+        text.family(prefix + "_retrieve_cache_invalidations_total", "counter", "Objects updated or deleted.")
+            .sample(prefix + "_retrieve_cache_invalidations_total", invalidations.sum());
+        text.family(prefix + "_retrieve_cache_evictions_total", "counter", "Responses evicted to make room.")
+            .sample(prefix + "_retrieve_cache_evictions_total", cache.getEvictions());
+        text.family(prefix + "_retrieve_cache_rejections_total", "counter", "Responses not admitted because those they would displace were in more demand.")
+            .sample(prefix + "_retrieve_cache_rejections_total", cache.getRejections());
+        text.family(prefix + "_retrieve_cache_entries", "gauge", "Responses cached.").sample(prefix + "_retrieve_cache_entries", cache.size());
+        text.family(prefix + "_retrieve_cache_bytes", "gauge", "Approximate size of the responses cached.").sample(prefix + "_retrieve_cache_bytes", cache.weight());
+    }
+
+    private static final class Key {
+        final String targetId;
+        // a digest of the variant, so that neither the key nor the etag derived from it holds credentials
+        final String variant;
+        private final int hash;
+
+        Key(String targetId, String variant) {
+            this.targetId = targetId;
+            this.variant = JsonDigest.sha256(variant);
+            this.hash = 31 * targetId.hashCode() + this.variant.hashCode();
+        }
+
+        long weight() {
+            return 2L * (targetId.length() + variant.length());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return hash == other.hash && targetId.equals(other.targetId) && variant.equals(other.variant);
+        }
+    }
+
+    private static final class Segment {
+        final boolean json;
+        final byte[] data;
+
+        Segment(boolean json, byte[] data) {
+            this.json = json;
+            this.data = data;
+        }
+    }
+
+    private static final class CachedResponse {
+        final String etag;
+        final String status;
+        final String attributesJson;
+        final String outputJson;
+        final List<Segment> segments;
+        final long weight;
+
+        CachedResponse(String etag, String status, String attributesJson, String outputJson, List<Segment> segments) {
+            this.etag = etag;
+            this.status = status;
+            this.attributesJson = attributesJson;
+            this.outputJson = outputJson;
+            this.segments = segments;
+            long size = ENTRY_OVERHEAD + 2L * (etag.length() + status.length());
+            if (attributesJson != null) size += 2L * attributesJson.length();
+            if (outputJson != null) size += 2L * outputJson.length();
+            for (Segment segment : segments) {
+                size += 32 + segment.data.length;
+            }
+            this.weight = size;
+        }
+
+        void replay(DoipServerResponse resp) throws IOException {
+            if (resp instanceof DoipServerResponseImpl) {
+                ((DoipServerResponseImpl) resp).writeSerializedInitialSegment(status, attributesJson, outputJson);
+            } else {
+                resp.setStatus(status);
+                if (attributesJson != null) resp.setAttributes(JsonParser.parseString(attributesJson).getAsJsonObject());
+                if (outputJson != null) resp.writeCompactOutput(JsonParser.parseString(outputJson));
+                else resp.commit();
+            }
+            if (segments.isEmpty()) return;
+            OutDoipMessage out = resp.getOutput();
+            for (Segment segment : segments) {
+                if (segment.json) out.writeJson(segment.data);
+                else out.writeBytes(segment.data);
+            }
+        }
+    }
+
+    /**
+     * Passes a response through to the real one, adding the etag to its attributes, while keeping a copy of what is
+     * written as long as it stays within {@link #maxEntryBytes}.
+     */
+    private class RecordingResponse implements DoipServerResponse {
+        private final DoipServerResponse resp;
+        private final String etag;
+        private String status = DoipConstants.STATUS_OK;
+        private JsonObject attributes;
+        private JsonObject finalAttributes;
+        private boolean prepared;
+        private JsonElement compactOutput;
+        private RecordingOutDoipMessage output;
+
+        RecordingResponse(DoipServerResponse resp, String etag) {
+            this.resp = resp;
+            this.etag = etag;
+        }
+
+        @Override
+        public void setStatus(String status) {
+            this.status = status;
+            resp.setStatus(status);
+        }
+
+        @Override
+        public void setAttribute(String key, JsonElement value) {
+            if (attributes == null) attributes = new JsonObject();
+            attributes.add(key, value);
+        }
+
+        @Override
+        public void setAttribute(String key, String value) {
+            if (attributes == null) attributes = new JsonObject();
+            attributes.addProperty(key, value);
+        }
+
+        @Override
+        public void setAttributes(JsonObject attributes) {
+            this.attributes = attributes;
+        }
+
+        /**
+         * Hands the attributes, with the etag on success, to the real response; later changes are ignored, as they
+         * would be once the real response is committed.
+         */
+        void prepare() {
+            if (prepared) return;
+            prepared = true;
+            if (!DoipConstants.STATUS_OK.equals(status)) {
+                finalAttributes = attributes;
+            } else {
+                finalAttributes = new JsonObject();
+                if (attributes != null) {
+                    for (Entry<String, JsonElement> entry : attributes.entrySet()) {
+                        finalAttributes.add(entry.getKey(), entry.getValue());
+                    }
+                }
+                finalAttributes.addProperty(DoipConstants.ETAG_ATT, etag);
+            }
+            resp.setAttributes(finalAttributes);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            prepare();
+            resp.commit();
+        }
+
+        @Override
+        public void writeCompactOutput(JsonElement output) throws IOException {
+            prepare();
+            resp.writeCompactOutput(output);
+            compactOutput = output;
+        }
+
+        @Override
+        public OutDoipMessage getOutput() throws IOException {
+            prepare();
+            OutDoipMessage out = resp.getOutput();
+            if (output == null) output = new RecordingOutDoipMessage(out);
+            return output;
+        }
+
+        CachedResponse toCachedResponse() {
+            if (!DoipConstants.STATUS_OK.equals(status)) return null;
+            List<Segment> segments = new ArrayList<>();
+            if (output != null) {
+                if (!output.isComplete()) return null;
+                segments = output.segments;
+            }
+            String attributesJson = GsonUtility.getGson().toJson(finalAttributes);
+            String outputJson = compactOutput == null ? null : GsonUtility.getGson().toJson(compactOutput);
+            CachedResponse res = new CachedResponse(etag, status, attributesJson, outputJson, segments);
+            if (res.weight > maxEntryBytes + ENTRY_OVERHEAD) return null;
+            return res;
+        }
+    }
+
+    private class RecordingOutDoipMessage implements OutDoipMessage {
+        private final OutDoipMessage out;
+        final List<Segment> segments = new ArrayList<>();
+        private long recorded;
+        private boolean overflowed;
+        private int openStreams;
+
+        RecordingOutDoipMessage(OutDoipMessage out) {
+            this.out = out;
+        }
+
+        /**
+         * Returns whether every segment written has been recorded.
+         */
+        boolean isComplete() {
+            return !overflowed && openStreams == 0;
+        }
+
+        boolean hasRoom(long count) {
+            return !overflowed && recorded + count <= maxEntryBytes;
+        }
+
+        void record(boolean json, byte[] data) {
+            if (!hasRoom(data.length)) {
+                overflow();
+                return;
+            }
+            recorded += data.length;
+            segments.add(new Segment(json, data));
+        }
+
+        void overflow() {
+            overflowed = true;
+            segments.clear();
+        }
+
+        @Override
+        public void writeJson(JsonElement json) throws IOException {
+            out.writeJson(json);
+            if (!overflowed) record(true, GsonUtility.getGson().toJson(json).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void writeJson(String json) throws IOException {
+            out.writeJson(json);
+            if (!overflowed) record(true, json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void writeJson(byte[] json) throws IOException {
+            out.writeJson(json);
+            if (hasRoom(json.length)) record(true, json.clone());
+            else overflow();
+        }
+
+        @Override
+        public Writer getJsonWriter() throws IOException {
+            Writer writer = out.getJsonWriter();
+            openStreams++;
+            return new Writer() {
+                private StringBuilder sb = new StringBuilder();
+                private boolean closed;
+
+                @Override
+                public void write(char[] cbuf, int off, int len) throws IOException {
+                    writer.write(cbuf, off, len);
+                    if (sb == null) return;
+                    if (hasRoom(sb.length() + (long) len)) {
+                        sb.append(cbuf, off, len);
+                    } else {
+                        sb = null;
+                        overflow();
+                    }
+                }
+
+                @Override
+                public void write(String str, int off, int len) throws IOException {
+                    writer.write(str, off, len);
+                    if (sb == null) return;
+                    if (hasRoom(sb.length() + (long) len)) {
+                        sb.append(str, off, off + len);
+                    } else {
+                        sb = null;
+                        overflow();
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    writer.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.close();
+                    if (closed) return;
+                    closed = true;
+                    openStreams--;
+                    if (sb != null) record(true, sb.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            };
+        }
+
+        @Override
+        public void writeBytes(byte[] bytes) throws IOException {
+            out.writeBytes(bytes);
+            if (hasRoom(bytes.length)) record(false, bytes.clone());
+            else overflow();
+        }
+
+        @Override
+        public void writeBytes(InputStream in) throws IOException {
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            boolean[] fits = { !overflowed };
+            out.writeBytes(new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) copy(new byte[] { (byte) b }, 0, 1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) copy(b, off, n);
+                    return n;
+                }
+
+                private void copy(byte[] b, int off, int len) {
+                    if (!fits[0]) return;
+                    if (hasRoom(copy.size() + (long) len)) {
+                        copy.write(b, off, len);
+                    } else {
+                        fits[0] = false;
+                    }
+                }
+            });
+            if (fits[0]) record(false, copy.toByteArray());
+            else overflow();
+        }
+
+        @Override
+        public void writeBytes(FileChannel channel, long position, long count) throws IOException {
+            if (!hasRoom(count)) {
+                // too large to cache: keep the zero-copy path
+                overflow();
+                out.writeBytes(channel, position, count);
+                return;
+            }
+            byte[] bytes = new byte[(int) count];
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) throw new EOFException();
+            }
+            writeBytes(bytes);
+        }
+
+        @Override
+        public OutputStream getBytesOutputStream() throws IOException {
+            OutputStream stream = out.getBytesOutputStream();
+            openStreams++;
+            return new OutputStream() {
+                private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+                private boolean closed;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    stream.write(b, off, len);
+                    if (copy == null) return;
+                    if (hasRoom(copy.size() + (long) len)) {
+                        copy.write(b, off, len);
+                    } else {
+                        copy = null;
+                        overflow();
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    stream.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    stream.close();
+                    if (closed) return;
+                    closed = true;
+                    openStreams--;
+                    if (copy != null) record(false, copy.toByteArray());
+                }
+            };
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package xly.doip.server;
+
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import xly.doip.util.tls.X509IdParser;
+
+/**
+ * The client certificate of a connection, as passed to the {@link DoipProcessor} with each request.  It is worked out
+ * once per TLS session and kept on the session, so that neither each message nor each connection resuming the
+ * session parses the certificate again.
+ */
+class ClientIdentity {
+    /**
+     * The identity of connections without TLS.
+     */
+    static final ClientIdentity NONE = new ClientIdentity("", null, null);
+
+    private static final String SESSION_KEY = ClientIdentity.class.getName();
+
+    final String id;
+    final PublicKey publicKey;
+    final X509Certificate[] certChain;
+
+    private ClientIdentity(String id, PublicKey publicKey, X509Certificate[] certChain) {
+        this.id = id;
+        this.publicKey = publicKey;
+        this.certChain = certChain;
+    }
+
+    /**
+     * Returns the identity of the client on a socket whose handshake has completed.
+     */
+    static ClientIdentity of(SSLSocket socket) {
+        SSLSession session = socket.getSession();
+        Object cached = session.getValue(SESSION_KEY);
+        if (cached instanceof ClientIdentity) return (ClientIdentity) cached;
+        X509Certificate[] certChain = getCertChain(session);
+        PublicKey publicKey = certChain == null ? null : certChain[0].getPublicKey();
+        ClientIdentity identity = new ClientIdentity(X509IdParser.parseIdentityHandle(certChain), publicKey, certChain);
+        session.putValue(SESSION_KEY, identity);
+        return identity;
+    }
+
+    private static X509Certificate[] getCertChain(SSLSession session) {
+        try {
+            Certificate[] certs = session.getPeerCertificates();
+            if (certs == null || certs.length == 0) return null;
+            X509Certificate[] res = new X509Certificate[certs.length];
+            for (int i = 0; i < certs.length; i++) {
+                if (!(certs[i] instanceof X509Certificate)) return null;
+                res[i] = (X509Certificate) certs[i];
+            }
+            return res;
+        } catch (SSLPeerUnverifiedException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package xly.doip.server;
+
+/**
+ * What {@link DoipServer} carries from one message on a connection to the next, for both the blocking and the NIO
+ * listener: the client certificate, whether the first message has been handled, and the framing negotiated by it.
+ */
+class ConnectionState {
+    final ClientIdentity identity;
+    // only used by the request-processing thread
+    boolean isFirstMessage = true;
+    // also read by the NIO selector thread, to tell when a request is ready
+    volatile boolean binaryFraming;
+
+    ConnectionState(ClientIdentity identity) {
+        this.identity = identity;
+    }
+}
@@ -3,53 +3,61 @@ package xly.doip.server;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.cert.Certificate;
-import java.security.cert.X509Certificate;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.ObjectName;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import xly.doip.BadDoipException;
 import xly.doip.DoipConstants;
 import xly.doip.DoipResponseHeadersWithRequestId;
+import xly.doip.FileTransferTarget;
 import xly.doip.InDoipMessage;
 import xly.doip.InDoipMessageImpl;
 import xly.doip.OutDoipMessageImpl;
+import xly.doip.SegmentCompression;
+import xly.doip.mux.MultiplexedConnection;
+import xly.doip.mux.MultiplexedStream;
 import xly.doip.server.DoipServerConfig.TlsConfig;
+import xly.doip.util.ByteBufferPool;
 import xly.doip.util.GsonUtility;
+import xly.doip.util.PooledChannelOutputStream;
 import xly.doip.util.tls.AllTrustingTrustManager;
 import xly.doip.util.tls.AutoSelfSignedKeyManager;
 import xly.doip.util.tls.TlsProtocolAndCipherSuiteConfigurationUtil;
-import xly.doip.util.tls.X509IdParser;
 
 /**
  * A DOIP server.  It is constructed via a {@link DoipServerConfig} and a {@link DoipProcessor} which
@@ -68,9 +76,16 @@ public class DoipServer {
     private final DoipServerConfig config;
     private final boolean willShutdownDoipProcessorLifecycle;
     private ServerSocket serverSocket;
+    private NioDoipListener nioListener;
+    private UdpDoipListener udpListener;
     private DoipProcessor doipProcessor;
     private ExecutorService execServ;
+    private ByteBufferPool bufferPool;
+    private SegmentCompression compression;
     private int port;
+    private final DoipServerMetrics metrics = new DoipServerMetrics();
+    private MetricsHttpEndpoint metricsEndpoint;
+    private ObjectName metricsMBeanName;
 
     private volatile boolean keepServing;
     private final ConcurrentMap<Long, Socket> activeSockets = new ConcurrentHashMap<>();
@@ -118,30 +133,106 @@ public class DoipServer {
             doipProcessor = (DoipProcessor) Class.forName(config.processorClass).newInstance();
             doipProcessor.init(config.processorConfig);
         }
-        initServerSocket();
+        if (config.retrieveCacheMaxBytes > 0) {
+            CachingDoipProcessor retrieveCache = new CachingDoipProcessor(doipProcessor, config.retrieveCacheMaxBytes, config.retrieveCacheMaxEntryBytes);
+            metrics.setRetrieveCache(retrieveCache);
+            doipProcessor = retrieveCache;
+        }
         AtomicInteger threadCount = new AtomicInteger(1);
         int thisServerCount = serverCount.getAndIncrement();
-        execServ = Executors.newFixedThreadPool(config.numThreads, r -> new Thread(r, "doip-server-" + thisServerCount + "-" + threadCount.getAndIncrement()));
+        if (config.useVirtualThreads) {
+            execServ = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doip-server-" + thisServerCount + "-", 1).factory());
+        } else {
+            execServ = Executors.newFixedThreadPool(config.numThreads, r -> new Thread(r, "doip-server-" + thisServerCount + "-" + threadCount.getAndIncrement()));
+        }
+        bufferPool = new ByteBufferPool(config.connectionBufferSize, config.maxPooledBuffers);
+        if (config.allowCompression) {
+            compression = new SegmentCompression(config.compressionLevel, config.compressionThreshold);
+            metrics.setCompression(compression);
+        }
         keepServing = true;
-        new Thread(this::serveRequests, "DOIP-Socket-Accept-Thread").start();
+        if (config.useNio && config.useTls) {
+            throw new IllegalArgumentException("TLS is not supported by the NIO listener");
+        }
+        if (config.listenUdp && config.useTls) {
+            throw new IllegalArgumentException("TLS is not supported by the UDP listener");
+        }
+        if (config.useNio) {
+            nioListener = new NioDoipListener(this, config, execServ);
+            this.port = nioListener.bind();
+            nioListener.start(thisServerCount);
+        } else {
+            initServerSocket();
+            new Thread(this::serveRequests, "DOIP-Socket-Accept-Thread").start();
+        }
+        if (config.listenUdp) {
+            udpListener = new UdpDoipListener(this, config, execServ);
+            udpListener.bind(port);
+            udpListener.start(thisServerCount);
+        }
+        if (config.jmxMetrics) {
+            metricsMBeanName = new ObjectName("xly.doip:type=DoipServer,name=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsMBeanName);
+        }
+        if (config.metricsPort >= 0) {
+            metricsEndpoint = new MetricsHttpEndpoint(metrics, config.metricsListenAddress, config.metricsPort);
+            metricsEndpoint.start();
+        }
     }
 
     public int getPort() {
         return port;
     }
 
+    /**
+     * Returns the metrics of this server.
+     *
+     * @return the metrics
+     */
+    public DoipServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the port of the metrics endpoint, or -1 if there is none; see {@link DoipServerConfig#metricsPort}.
+     *
+     * @return the port
+     */
+    public int getMetricsPort() {
+        return metricsEndpoint == null ? -1 : metricsEndpoint.getPort();
+    }
+
+    /**
+     * Returns the pool of direct buffers used for connection input and output, whose counters show how well
+     * buffers are being reused.  Null until {@link #init()} is called.
+     *
+     * @return the buffer pool
+     */
+    public ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     private void initServerSocket() throws KeyManagementException, IOException, UnknownHostException {
-        /*TODO*/
-//        String ephemeralDHKeySize = System.getProperty("jdk.tls.ephemeralDHKeySize");
-//        if (ephemeralDHKeySize == null) {
-//            System.setProperty("jdk.tls.ephemeralDHKeySize", "2048");
-//        }
-//        SSLContext sslContext = getServerSSLContext(config.tlsConfig);
-//        SSLServerSocketFactory serverSocketFactory = sslContext.getServerSocketFactory();
-//        serverSocket = serverSocketFactory.createServerSocket();
-//        ((SSLServerSocket) serverSocket).setWantClientAuth(true);
-//        TlsProtocolAndCipherSuiteConfigurationUtil.configureEnabledProtocolsAndCipherSuites(serverSocket);
-        serverSocket = new ServerSocket();
+        if (config.useTls) {
+            String ephemeralDHKeySize = System.getProperty("jdk.tls.ephemeralDHKeySize");
+            if (ephemeralDHKeySize == null) {
+                System.setProperty("jdk.tls.ephemeralDHKeySize", "2048");
+            }
+            if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+                System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(config.tlsSessionTickets));
+            }
+            SSLContext sslContext = getServerSSLContext(config.tlsConfig);
+            SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+            sessionContext.setSessionCacheSize(config.tlsSessionCacheSize);
+            sessionContext.setSessionTimeout(config.tlsSessionTimeoutSeconds);
+            SSLServerSocketFactory serverSocketFactory = sslContext.getServerSocketFactory();
+            serverSocket = serverSocketFactory.createServerSocket();
+            ((SSLServerSocket) serverSocket).setWantClientAuth(true);
+            TlsProtocolAndCipherSuiteConfigurationUtil.configureEnabledProtocolsAndCipherSuites(serverSocket);
+        } else {
+            // backed by a channel, so that accepted sockets can send files with FileChannel.transferTo
+            serverSocket = ServerSocketChannel.open().socket();
+        }
         if (config.listenAddress == null) serverSocket.bind(new InetSocketAddress(config.port), config.backlog);
         else
             serverSocket.bind(new InetSocketAddress(InetAddress.getByName(config.listenAddress), config.port), config.backlog);
@@ -151,7 +242,7 @@ public class DoipServer {
     private static SSLContext getServerSSLContext(TlsConfig tlsConfig) throws KeyManagementException {
         try {
             SSLContext sslContext = SSLContext.getInstance("TLS");
-            KeyManager km;
+            AutoSelfSignedKeyManager km;
             try {
                 if (tlsConfig == null) {
                     km = new AutoSelfSignedKeyManager(null);
@@ -162,6 +253,8 @@ public class DoipServer {
                 } else {
                     km = new AutoSelfSignedKeyManager(tlsConfig.id);
                 }
+                // generate any certificate now rather than during the first handshake
+                km.getCertificate();
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -181,7 +274,17 @@ public class DoipServer {
                 @SuppressWarnings("resource")
                 Socket socket = serverSocket.accept();
                 socket.setSoTimeout(config.maxIdleTimeMillis);
-                execServ.execute(() -> handle(socket));
+                long queuedAt = metrics.taskQueued();
+                try {
+                    execServ.execute(() -> {
+                        metrics.taskStarted(queuedAt);
+                        handle(socket);
+                    });
+                } catch (RejectedExecutionException e) {
+                    metrics.taskRejected();
+                    closeQuietly(socket);
+                    throw e;
+                }
             } catch (Exception e) {
                 if (keepServing) {
                     logger.error("Exception accepting request", e);
@@ -191,15 +294,29 @@ public class DoipServer {
     }
 
     private void handle(Socket socket) {
-        activeSockets.put(Thread.currentThread().getId(), socket);
+        activeSockets.put(Thread.currentThread().threadId(), socket);
+        metrics.connectionOpened();
         try {
             if (keepServing) {
-                handleMessagesThrowing(socket);
+                // output is buffered and flushed at segment boundaries, so Nagle would only hold back the end of a
+                // response (and TLS handshake flights) until the client's delayed ACK
+                socket.setTcpNoDelay(true);
+                ClientIdentity identity = ClientIdentity.NONE;
+                if (socket instanceof SSLSocket) {
+                    // handshake here rather than on the accept thread, so that slow or resuming clients never
+                    // hold up accepting others, and under its own timeout rather than the idle timeout
+                    socket.setSoTimeout(config.tlsHandshakeTimeoutMillis);
+                    ((SSLSocket) socket).startHandshake();
+                    socket.setSoTimeout(config.maxIdleTimeMillis);
+                    identity = ClientIdentity.of((SSLSocket) socket);
+                }
+                handleMessagesThrowing(socket, identity);
             }
         } catch (Exception e) {
             // ignore
         } finally {
-            activeSockets.remove(Thread.currentThread().getId());
+            activeSockets.remove(Thread.currentThread().threadId());
+            metrics.connectionClosed();
         }
         try {
             socket.close();
@@ -209,98 +326,264 @@ public class DoipServer {
     }
 
     @SuppressWarnings("resource")
-    private void handleMessagesThrowing(Socket socket) throws IOException {
-        PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(socket.getInputStream()));
-        /*TODO*/
-//        int n;
-//        // 读取文件，并将内容转换为字符输出
-//        while ((n = in.read()) != -1){
-//            System.out.print((char)n);
-//        }
+    private void handleMessagesThrowing(Socket socket, ClientIdentity identity) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(metrics.countingInput(socket.getInputStream())));
+        OutputStream out;
+        if (socket.getChannel() != null) out = new PooledChannelOutputStream(socket.getChannel(), bufferPool, metrics.getBytesOutCounter());
+        else out = metrics.countingOutput(socket.getOutputStream());
+        PipelinedConnection pipeline = newPipelinedConnection(out, () -> closeQuietly(socket), identity);
+        ConnectionState state = new ConnectionState(identity);
         int ch;
         while ((ch = in.read()) > -1) {
             in.unread(ch);
-            InDoipMessage inDoipMessage = new InDoipMessageImpl(in);
-            OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(new BufferedOutputStream(socket.getOutputStream()));
-            String requestId = null;
+            if (!handleNextMessage(in, out, pipeline, state)) return;
+        }
+        if (pipeline != null) pipeline.awaitInFlightRequests();
+    }
+
+    /**
+     * Handles the next message on a connection.  Used by both the blocking listener and the NIO listener.
+     *
+     * @param in the connection input, positioned at the start of a message
+     * @param out the connection output
+     * @param pipeline the connection's {@link PipelinedConnection}, or null
+     * @param state what is known of the connection from its previous messages
+     * @return false if the connection was switched to multiplexed mode and has been served until it ended
+     * @throws IOException if the connection should be closed
+     */
+    boolean handleNextMessage(PushbackInputStream in, OutputStream out, PipelinedConnection pipeline, ConnectionState state) throws IOException {
+        boolean isFirstMessage = state.isFirstMessage;
+        state.isFirstMessage = false;
+        if (isFirstMessage && (acceptsMultiplexing() || config.allowBinaryFraming)) {
+            return !handleFirstMessage(in, out, state);
+        }
+        if (pipeline != null) pipeline.handleMessage(in, state.binaryFraming);
+        else handleMessage(in, out, state.identity, state.binaryFraming);
+        return true;
+    }
+
+    private boolean handleFirstMessage(PushbackInputStream in, OutputStream out, ConnectionState state) throws IOException {
+        InDoipMessageImpl inDoipMessage = newInDoipMessage(in, false);
+        DoipServerRequestImpl req = readRequest(inDoipMessage, out, state.identity);
+        boolean hello = DoipConstants.OP_HELLO.equals(req.getOperationId());
+        boolean multiplex = acceptsMultiplexing() && hello && hasAttribute(req, DoipConstants.MULTIPLEX_ATT, MultiplexedConnection.VERSION);
+        boolean binaryFraming = !multiplex && config.allowBinaryFraming && hello && hasAttribute(req, DoipConstants.FRAMING_ATT, DoipConstants.FRAMING_BINARY);
+        processRequest(req, inDoipMessage, out, multiplex, binaryFraming);
+        // the hello and its response are in text framing; everything after them in binary
+        if (binaryFraming) state.binaryFraming = true;
+        if (!multiplex) return false;
+        serveMultiplexed(in, out, state.identity);
+        return true;
+    }
+
+    private boolean acceptsMultiplexing() {
+        // a multiplexed connection is read by a blocking loop, which would hold an NIO processing thread for good
+        return config.allowMultiplexing && !config.useNio;
+    }
+
+    private static boolean hasAttribute(DoipServerRequestImpl req, String name, String value) {
+        JsonElement att = req.getAttribute(name);
+        return att != null && att.isJsonPrimitive() && value.equals(att.getAsString());
+    }
+
+    private void serveMultiplexed(InputStream in, OutputStream out, ClientIdentity identity) throws IOException {
+        MultiplexedConnection mux = new MultiplexedConnection(out, false, stream -> {
+            long queuedAt = metrics.taskQueued();
             try {
-                // get cert for each message in order to support TLS renegotiation to change client id?
-//                X509Certificate[] clientCertChain = getClientCertChain(socket);
-//                String clientCertId = X509IdParser.parseIdentityHandle(clientCertChain);
-//                PublicKey clientCertPublicKey = null;
-//                if (clientCertChain != null && clientCertChain.length > 0) {
-//                    clientCertPublicKey = clientCertChain[0].getPublicKey();
-//                }
-//                DoipServerRequestImpl req = new DoipServerRequestImpl(inDoipMessage, clientCertId, clientCertPublicKey, clientCertChain);
-                /*TODO*/
-                DoipServerRequestImpl req = new DoipServerRequestImpl(inDoipMessage, "", null, null);
-                requestId = req.getRequestId();
-                DoipServerResponseImpl resp = new DoipServerResponseImpl(requestId, outDoipMessage);
-                try {
-                    doipProcessor.process(req, resp);
-                    resp.commit();
-                    outDoipMessage.close();
-                    inDoipMessage.close();
-                } catch (UncheckedIOException e) {
-                    throw e.getCause();
-                }
-            } catch (BadDoipException e) {
-                outDoipMessage.closeSegmentOutput();
-                writeBadDoipException(requestId, socket.getOutputStream(), e.getMessage());
-                throw e;
-            } catch (SocketTimeoutException e) {
-                outDoipMessage.closeSegmentOutput();
-                writeBadDoipException(requestId, socket.getOutputStream(), e.getMessage());
-                throw e;
-            } catch (Exception e) {
-                if (keepServing) {
-                    logger.warn("Exception handling message", e);
-                }
-                outDoipMessage.closeSegmentOutput();
-                writeServerException(requestId, socket.getOutputStream(), "An unexpected server error occurred");
+                execServ.execute(() -> {
+                    metrics.taskStarted(queuedAt);
+                    handleStream(stream, identity);
+                });
+            } catch (RejectedExecutionException e) {
+                metrics.taskRejected();
                 throw e;
             }
+        });
+        mux.readFrames(in);
+    }
+
+    @SuppressWarnings("resource")
+    private void handleStream(MultiplexedStream stream, ClientIdentity identity) {
+        OutputStream out = stream.getOutputStream();
+        try {
+            handleMessage(new PushbackInputStream(stream.getInputStream()), out, identity, false);
+        } catch (Exception e) {
+            // the error response has been written; discard any remaining request input
+            try {
+                stream.getInputStream().skip(Long.MAX_VALUE);
+            } catch (Exception ex) {
+                // ignore
+            }
         }
+        try {
+            out.close();
+        } catch (Exception e) {
+            stream.reset();
+        }
+    }
+
+    /**
+     * Returns a {@link PipelinedConnection} for a new connection if {@link DoipServerConfig#maxInFlightRequestsPerConnection}
+     * allows more than one request in flight, otherwise null.
+     */
+    PipelinedConnection newPipelinedConnection(OutputStream out, Runnable closer, ClientIdentity identity) {
+        if (config.maxInFlightRequestsPerConnection <= 1) return null;
+        return new PipelinedConnection(this, execServ, out, config.maxInFlightRequestsPerConnection, closer, identity);
     }
 
-    private X509Certificate[] getClientCertChain(Socket socket) {
-        if (!(socket instanceof SSLSocket)) return null;
+    /**
+     * Reads a single request message from the connection input, processes it, and writes the response.
+     * Used by both the blocking listener and the NIO listener.
+     *
+     * @param in the connection input, positioned at the start of a message
+     * @param out the connection output
+     * @param identity the client certificate of the connection
+     * @param binaryFraming whether the connection has switched to binary framing
+     * @throws IOException if the connection should be closed
+     */
+    void handleMessage(PushbackInputStream in, OutputStream out, ClientIdentity identity, boolean binaryFraming) throws IOException {
+        InDoipMessageImpl inDoipMessage = newInDoipMessage(in, binaryFraming);
+        DoipServerRequestImpl req = readRequest(inDoipMessage, out, identity);
+        processRequest(req, inDoipMessage, out);
+    }
+
+    /**
+     * Returns a reader for the next request on a connection, which records statistics of any compressed segments.
+     */
+    InDoipMessageImpl newInDoipMessage(PushbackInputStream in, boolean binaryFraming) {
+        InDoipMessageImpl res = new InDoipMessageImpl(in, binaryFraming);
+        res.setCompression(compression);
+        return res;
+    }
+
+    /**
+     * Reads the initial segment of a request.  On failure an error response is written and the exception is rethrown.
+     */
+    DoipServerRequestImpl readRequest(InDoipMessage inDoipMessage, OutputStream out) throws IOException {
+        return readRequest(inDoipMessage, out, ClientIdentity.NONE);
+    }
+
+    /**
+     * Reads the initial segment of a request from a client with the given certificate.  On failure an error response
+     * is written and the exception is rethrown.
+     */
+    DoipServerRequestImpl readRequest(InDoipMessage inDoipMessage, OutputStream out, ClientIdentity identity) throws IOException {
+        long receivedAt = System.nanoTime();
         try {
-            Certificate[] certs = ((SSLSocket) socket).getSession().getPeerCertificates();
-            if (certs == null || certs.length == 0) return null;
-            X509Certificate[] res = new X509Certificate[certs.length];
-            for (int i = 0; i < certs.length; i++) {
-                if (!(certs[i] instanceof X509Certificate)) return null;
-                res[i] = (X509Certificate) certs[i];
+            DoipServerRequestImpl req = new DoipServerRequestImpl(inDoipMessage, identity.id, identity.publicKey, identity.certChain);
+            req.receivedAt = receivedAt;
+            req.parsedAt = System.nanoTime();
+            return req;
+        } catch (Exception e) {
+            metrics.requestFailed(null, writeErrorResponse(e, null, null, out, isBinaryFraming(inDoipMessage)), receivedAt);
+            throw e;
+        }
+    }
+
+    /**
+     * Passes a request to the {@link DoipProcessor} and writes the response, in the framing of the request.  On failure
+     * an error response is written and the exception is rethrown.
+     */
+    void processRequest(DoipServerRequestImpl req, InDoipMessage inDoipMessage, OutputStream out) throws IOException {
+        processRequest(req, inDoipMessage, out, false, false);
+    }
+
+    @SuppressWarnings("resource")
+    private void processRequest(DoipServerRequestImpl req, InDoipMessage inDoipMessage, OutputStream out, boolean acceptMultiplexing, boolean acceptBinaryFraming) throws IOException {
+        FileTransferTarget transferTarget = out instanceof FileTransferTarget ? (FileTransferTarget) out : null;
+        OutputStream messageOut = isBuffered(out) ? out : new BufferedOutputStream(out);
+        boolean binaryFraming = isBinaryFraming(inDoipMessage);
+        OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(messageOut, transferTarget, config.coalesceResponseWrites, binaryFraming);
+        String requestId = req.getRequestId();
+        try {
+            DoipServerResponseImpl resp = new DoipServerResponseImpl(requestId, outDoipMessage);
+            if (acceptMultiplexing) {
+                resp.setTransportAttribute(DoipConstants.MULTIPLEX_ATT, MultiplexedConnection.VERSION);
+            }
+            if (acceptBinaryFraming) {
+                resp.setTransportAttribute(DoipConstants.FRAMING_ATT, DoipConstants.FRAMING_BINARY);
+            }
+            if (compression != null && hasAttribute(req, DoipConstants.COMPRESSION_ATT, DoipConstants.COMPRESSION_DEFLATE)) {
+                outDoipMessage.setCompression(compression);
+                resp.setTransportAttribute(DoipConstants.COMPRESSION_ATT, DoipConstants.COMPRESSION_DEFLATE);
+            }
+            try {
+                long processStartedAt = System.nanoTime();
+                doipProcessor.process(req, resp);
+                long processedAt = System.nanoTime();
+                resp.commit();
+                outDoipMessage.close();
+                inDoipMessage.close();
+                metrics.requestCompleted(req.getOperationId(), resp.getStatus(), req.receivedAt, req.parsedAt, processStartedAt, processedAt, System.nanoTime());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } catch (Exception e) {
+            metrics.requestFailed(req.getOperationId(), writeErrorResponse(e, requestId, outDoipMessage, out, binaryFraming), req.receivedAt);
+            throw e;
+        }
+    }
+
+    private static boolean isBinaryFraming(InDoipMessage inDoipMessage) {
+        return inDoipMessage instanceof InDoipMessageImpl && ((InDoipMessageImpl) inDoipMessage).isBinaryFraming();
+    }
+
+    /**
+     * Connection outputs backed by a pooled buffer need no further buffering per message.
+     */
+    private static boolean isBuffered(OutputStream out) {
+        if (out instanceof PipelinedConnection.ResponseOutputStream) out = ((PipelinedConnection.ResponseOutputStream) out).getConnectionOutput();
+        return out instanceof PooledChannelOutputStream;
+    }
+
+    /**
+     * Writes the error response for a failed request, returning its status.
+     */
+    private String writeErrorResponse(Exception e, String requestId, OutDoipMessageImpl outDoipMessage, OutputStream out, boolean binaryFraming) throws IOException {
+        if (outDoipMessage != null) outDoipMessage.closeSegmentOutput();
+        if (e instanceof BadDoipException || e instanceof SocketTimeoutException) {
+            writeBadDoipException(requestId, out, e.getMessage(), binaryFraming);
+            return DoipConstants.STATUS_BAD_REQUEST;
+        } else {
+            if (keepServing) {
+                logger.warn("Exception handling message", e);
             }
-            return res;
-        } catch (SSLPeerUnverifiedException e) {
-            return null;
+            writeServerException(requestId, out, "An unexpected server error occurred", binaryFraming);
+            return DoipConstants.STATUS_ERROR;
         }
     }
 
-    private void writeBadDoipException(String requestId, OutputStream out, String message) throws IOException {
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    private void writeBadDoipException(String requestId, OutputStream out, String message, boolean binaryFraming) throws IOException {
         DoipResponseHeadersWithRequestId segment = new DoipResponseHeadersWithRequestId();
         segment.requestId = requestId;
         segment.status = DoipConstants.STATUS_BAD_REQUEST;
         segment.attributes = new JsonObject();
         segment.attributes.addProperty("message", message);
-        String resp = GsonUtility.getGson().toJson(segment);
-        resp += "\n#\n#\n";
-        out.write(resp.getBytes(StandardCharsets.UTF_8));
-        out.flush();
+        writeCompactResponse(segment, out, binaryFraming);
     }
 
-    private void writeServerException(String requestId, OutputStream out, String message) throws IOException {
+    private void writeServerException(String requestId, OutputStream out, String message, boolean binaryFraming) throws IOException {
         DoipResponseHeadersWithRequestId segment = new DoipResponseHeadersWithRequestId();
         segment.requestId = requestId;
         segment.status = DoipConstants.STATUS_ERROR;
         segment.attributes = new JsonObject();
         segment.attributes.addProperty("message", message);
-        String resp = GsonUtility.getGson().toJson(segment);
-        resp += "\n#\n#\n";
-        out.write(resp.getBytes(StandardCharsets.UTF_8));
-        out.flush();
+        writeCompactResponse(segment, out, binaryFraming);
+    }
+
+    @SuppressWarnings("resource")
+    private static void writeCompactResponse(DoipResponseHeadersWithRequestId segment, OutputStream out, boolean binaryFraming) throws IOException {
+        OutDoipMessageImpl outDoipMessage = new OutDoipMessageImpl(out, null, true, binaryFraming);
+        outDoipMessage.writeJson(GsonUtility.getGson().toJson(segment).getBytes(StandardCharsets.UTF_8));
+        outDoipMessage.close();
     }
 
     /**
@@ -312,15 +595,32 @@ public class DoipServer {
      */
     public void shutdown() {
         keepServing = false;
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (metricsMBeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsMBeanName);
+            } catch (Exception e) {
+                logger.error("Shutdown error", e);
+            }
+        }
         try {
             execServ.shutdown();
         } catch (Exception e) {
             logger.error("Shutdown error", e);
         }
-        try {
-            serverSocket.close();
-        } catch (Exception e) {
-            logger.error("Shutdown error", e);
+        if (udpListener != null) {
+            udpListener.shutdown();
+        }
+        if (nioListener != null) {
+            nioListener.shutdown();
+        } else {
+            try {
+                serverSocket.close();
+            } catch (Exception e) {
+                logger.error("Shutdown error", e);
+            }
         }
         for (Socket socket : activeSockets.values()) {
             try {
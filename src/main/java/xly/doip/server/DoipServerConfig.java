@@ -38,6 +38,137 @@ public class DoipServerConfig {
      */
     public int numThreads = 200;
 
+    /**
+     * Maximum number of requests from a single connection which may be processed concurrently (defaults to 1).
+     * If greater than 1, the server reads ahead on each connection and dispatches requests without input segments
+     * to request-processing threads; responses are written back in completion order and correlated by requestId.
+     */
+    public int maxInFlightRequestsPerConnection = 1;
+
+    /**
+     * If true, a client may switch a connection to multiplexed mode by sending {@code Op.Hello} with the attribute
+     * {@code "multiplex": "1"} as its first request; many requests and responses can then be interleaved on the
+     * connection (see {@link xly.doip.mux.MultiplexedConnection}) (defaults to false).  Ignored with {@link #useNio}.
+     */
+    public boolean allowMultiplexing;
+
+    /**
+     * If true, a client may switch a connection to binary framing by sending {@code Op.Hello} with the attribute
+     * {@code "framing": "binary-1"} as its first request; the remaining messages on the connection are then framed with
+     * length prefixes rather than terminators (see {@link xly.doip.OutDoipMessageImpl}), which are cheaper to parse.
+     * A hello asking for both multiplexing and binary framing is only granted multiplexing (defaults to false).
+     */
+    public boolean allowBinaryFraming;
+
+    /**
+     * If true, a client may ask for compressed responses with the request attribute {@code "compression": "deflate"};
+     * segments after the initial one of at least {@link #compressionThreshold} bytes are then deflated unless they turn
+     * out not to compress, and the client may compress its own requests in turn (see {@link xly.doip.SegmentCompression})
+     * (defaults to false).
+     */
+    public boolean allowCompression;
+
+    /**
+     * The {@link java.util.zip.Deflater} level used with {@link #allowCompression}, from 1 (fastest) to 9 (smallest)
+     * (defaults to 1).
+     */
+    public int compressionLevel = 1;
+
+    /**
+     * The size in bytes below which segments are not compressed, at most 8192 (defaults to 1024).
+     */
+    public int compressionThreshold = 1024;
+
+    /**
+     * If positive, responses to {@code Op.Retrieve} are cached in memory up to this total size in bytes, and carry an
+     * etag with which clients may ask whether their copy is still current; the {@link DoipProcessor} is wrapped in a
+     * {@link CachingDoipProcessor}, which sees objects change only through {@code Op.Update} and {@code Op.Delete}
+     * (defaults to 0, no cache).
+     */
+    public long retrieveCacheMaxBytes;
+
+    /**
+     * The size in bytes of the largest {@code Op.Retrieve} response cached with {@link #retrieveCacheMaxBytes}
+     * (defaults to 256KB).
+     */
+    public long retrieveCacheMaxEntryBytes = 256 * 1024;
+
+    /**
+     * If true, responses are written in coalescing mode: output is buffered and only flushed when the response
+     * is complete (or when the {@link DoipProcessor} calls {@link xly.doip.OutDoipMessage#flush()}), instead of after
+     * every segment, so that most responses reach the socket in a single write.  Processors which stream output to the
+     * client over a long time should call {@code flush()} themselves (defaults to false).
+     */
+    public boolean coalesceResponseWrites;
+
+    /**
+     * If true, each connection (and, with {@link #useNio}, each request) is handled on its own virtual thread
+     * instead of on a fixed pool of {@link #numThreads} platform threads, which is then ignored (defaults to false).
+     */
+    public boolean useVirtualThreads;
+
+    /**
+     * If true, the listener uses non-blocking NIO channels served by {@link #numSelectorThreads} selector threads.
+     * A request-processing thread is then only in use while a request is being processed, rather than for the
+     * whole life of a connection, so that idle connections do not exhaust {@link #numThreads} (defaults to false).
+     * Reading multiplexed frames would hold a thread for the life of the connection, so with NIO the server never
+     * accepts {@link #allowMultiplexing multiplexing}; clients asking for it carry on unmultiplexed, which a
+     * non-blocking connection already handles without a thread of its own.
+     */
+    public boolean useNio;
+
+    /**
+     * Number of selector threads used when {@link #useNio} is true (defaults to 2).
+     */
+    public int numSelectorThreads = 2;
+
+    /**
+     * Capacity in bytes of the direct buffers used for connection input and output (defaults to 64 KB).  Buffers are
+     * taken from a pool shared by all connections while there are bytes to hold, and given back once drained.
+     */
+    public int connectionBufferSize = 64 * 1024;
+
+    /**
+     * Maximum number of free connection buffers kept for reuse (defaults to 256); see {@link #connectionBufferSize}.
+     */
+    public int maxPooledBuffers = 256;
+
+    /**
+     * If true, compact requests are also served as UDP datagrams, on the port with the same number as the TCP listener
+     * (defaults to false).  Each datagram holds the initial segment of a request, and is answered by a datagram holding
+     * the initial segment of the response, with any output inline.  Responses which do not fit in
+     * {@link #maxUdpResponseSize} bytes, or are not compact, are answered with a truncated response instead, upon which
+     * the client repeats the request over TCP.  So are requests carrying authentication, and requests for operations
+     * other than {@code Op.Hello}, {@code Op.ListOperations}, {@code Op.GetLHS}, {@code Op.Search} and
+     * {@code Op.Retrieve} without element data, which are not processed over UDP.  Datagrams are not encrypted, so
+     * this cannot be combined with {@link #useTls}.
+     */
+    public boolean listenUdp;
+
+    /**
+     * Largest response datagram in bytes sent by the UDP listener (defaults to 1232, which avoids IP fragmentation on
+     * almost all paths); see {@link #listenUdp}.
+     */
+    public int maxUdpResponseSize = 1232;
+
+    /**
+     * If true, the server's {@link DoipServerMetrics} are registered as an MXBean named
+     * {@code xly.doip:type=DoipServer,name=<port>} while it runs (defaults to false).
+     */
+    public boolean jmxMetrics;
+
+    /**
+     * Port on which the server's {@link DoipServerMetrics} are served over HTTP at {@code /metrics}, in the Prometheus
+     * text format; 0 chooses a free port, and a negative value serves none (defaults to -1).
+     */
+    public int metricsPort = -1;
+
+    /**
+     * IP address to which to bind the metrics endpoint (defaults to {@code 127.0.0.1}, so that metrics are only
+     * available locally); see {@link #metricsPort}.
+     */
+    public String metricsListenAddress = "127.0.0.1";
+
     /**
      * Class name of a {@link DoipProcessor}, which will be automatically instantiated, initialized, and later shut down
      * by a {@link DoipServer} when constructed using {@link DoipServer#DoipServer(DoipServerConfig)}.
@@ -49,11 +180,44 @@ public class DoipServerConfig {
      */
     public JsonObject processorConfig;
 
+    /**
+     * If true, the listener accepts TLS connections only, with a server certificate according to {@link #tlsConfig}
+     * (defaults to false).  Clients may present certificates, which are passed on to the {@link DoipProcessor} with
+     * each request.  Handshakes run on the request-processing threads, not the thread accepting connections.  Not
+     * supported with {@link #useNio}.
+     */
+    public boolean useTls;
+
     /**
      * TLS configuration for a {@link DoipServer}.
      */
     public TlsConfig tlsConfig;
 
+    /**
+     * Maximum number of TLS sessions kept for clients to resume with an abbreviated handshake, or 0 for no limit
+     * (defaults to 20480).
+     */
+    public int tlsSessionCacheSize = 20480;
+
+    /**
+     * Time in seconds for which a TLS session may be resumed, which is also the lifetime of session tickets
+     * (defaults to 24 hours).
+     */
+    public int tlsSessionTimeoutSeconds = 24 * 60 * 60;
+
+    /**
+     * If true, TLS sessions may also be resumed from session tickets held by clients, so that resumption does not
+     * depend on the session still being in the server's cache (defaults to true).  This sets the system property
+     * {@code jdk.tls.server.enableSessionTicketExtension} unless it is already set, and so applies only if no TLS has
+     * been used by the JVM before the server starts.
+     */
+    public boolean tlsSessionTickets = true;
+
+    /**
+     * Time in ms allowed for the TLS handshake of a new connection (defaults to 10 seconds).
+     */
+    public int tlsHandshakeTimeoutMillis = 10_000;
+
     /**
      * TLS configuration for a {@link DoipServer}.
      */
@@ -102,7 +266,7 @@ public class DoipServerConfig {
 
     @Override
     public int hashCode() {
-        return Objects.hash(backlog, listenAddress, maxIdleTimeMillis, numThreads, port, processorClass, processorConfig, tlsConfig);
+        return Objects.hash(backlog, listenAddress, maxIdleTimeMillis, numThreads, maxInFlightRequestsPerConnection, allowMultiplexing, allowBinaryFraming, allowCompression, compressionLevel, compressionThreshold, retrieveCacheMaxBytes, retrieveCacheMaxEntryBytes, coalesceResponseWrites, useVirtualThreads, useNio, numSelectorThreads, connectionBufferSize, maxPooledBuffers, listenUdp, maxUdpResponseSize, jmxMetrics, metricsPort, metricsListenAddress, port, processorClass, processorConfig, useTls, tlsConfig, tlsSessionCacheSize, tlsSessionTimeoutSeconds, tlsSessionTickets, tlsHandshakeTimeoutMillis);
     }
 
     @Override
@@ -111,7 +275,15 @@ public class DoipServerConfig {
         if (obj == null) return false;
         if (getClass() != obj.getClass()) return false;
         DoipServerConfig other = (DoipServerConfig) obj;
-        return backlog == other.backlog && Objects.equals(listenAddress, other.listenAddress) && maxIdleTimeMillis == other.maxIdleTimeMillis && numThreads == other.numThreads && port == other.port
-            && Objects.equals(processorClass, other.processorClass) && Objects.equals(processorConfig, other.processorConfig) && Objects.equals(tlsConfig, other.tlsConfig);
+        return backlog == other.backlog && Objects.equals(listenAddress, other.listenAddress) && maxIdleTimeMillis == other.maxIdleTimeMillis && numThreads == other.numThreads && maxInFlightRequestsPerConnection == other.maxInFlightRequestsPerConnection
+            && allowMultiplexing == other.allowMultiplexing && allowBinaryFraming == other.allowBinaryFraming && coalesceResponseWrites == other.coalesceResponseWrites && useVirtualThreads == other.useVirtualThreads
+            && allowCompression == other.allowCompression && compressionLevel == other.compressionLevel && compressionThreshold == other.compressionThreshold
+            && retrieveCacheMaxBytes == other.retrieveCacheMaxBytes && retrieveCacheMaxEntryBytes == other.retrieveCacheMaxEntryBytes
+            && useNio == other.useNio && numSelectorThreads == other.numSelectorThreads && connectionBufferSize == other.connectionBufferSize
+            && maxPooledBuffers == other.maxPooledBuffers && listenUdp == other.listenUdp && maxUdpResponseSize == other.maxUdpResponseSize
+            && jmxMetrics == other.jmxMetrics && metricsPort == other.metricsPort && Objects.equals(metricsListenAddress, other.metricsListenAddress) && port == other.port
+            && Objects.equals(processorClass, other.processorClass) && Objects.equals(processorConfig, other.processorConfig)
+            && useTls == other.useTls && Objects.equals(tlsConfig, other.tlsConfig) && tlsSessionCacheSize == other.tlsSessionCacheSize
+            && tlsSessionTimeoutSeconds == other.tlsSessionTimeoutSeconds && tlsSessionTickets == other.tlsSessionTickets && tlsHandshakeTimeoutMillis == other.tlsHandshakeTimeoutMillis;
     }
 }
@@ -0,0 +1,317 @@
+package xly.doip.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import xly.doip.SegmentCompression;
+import xly.doip.util.LatencyHistogram;
+import xly.doip.util.LatencySnapshot;
+import xly.doip.util.PrometheusText;
+
+/**
+ * Metrics of a {@link DoipServer}, obtained from {@link DoipServer#getMetrics()}, and exposed through JMX with
+ * {@link DoipServerConfig#jmxMetrics} and in the Prometheus text format at {@link DoipServerConfig#metricsPort}.
+ * <p>
+ * The latency of each request is split into phases: {@code parse}, from the first byte of the request until its
+ * initial segment has been read; {@code process}, the {@link DoipProcessor}, including any output it writes as it goes;
+ * and {@code write}, committing and flushing the response.  {@code total} runs from the first byte to the last, and
+ * so also includes time spent waiting for a thread after parsing, when requests are pipelined.  Each is kept per
+ * operation and over all operations.  Separately, {@code queue} is the time tasks wait for a request-processing thread,
+ * whether a new connection (blocking listener) or a connection with a request ready (NIO listener), and the executor
+ * queue depth is the number of tasks waiting.
+ * <p>
+ * Recording allocates nothing once an operation or status has been seen.  At most {@value #MAX_KEYS} operations and
+ * statuses are kept apart; further ones, and requests whose operation could not be read, are counted as
+ * {@value #OTHER}.
+ * <p>
+ * With {@link DoipServerConfig#allowCompression}, the compression of segments in both directions is also counted:
+ * segments compressed or left alone, bytes before and after, and CPU time spent (see {@link SegmentCompression}).
+ * With {@link DoipServerConfig#retrieveCacheMaxBytes}, so are the hits, misses and not-modified answers of the
+ * {@code Op.Retrieve} response cache (see {@link CachingDoipProcessor}).
+ */
+public class DoipServerMetrics implements DoipServerMetricsMXBean {
+    static final int MAX_KEYS = 64;
+    static final String OTHER = "other";
+
+    private final LatencyHistogram queue = new LatencyHistogram();
+    private final OperationMetrics allOperations = new OperationMetrics();
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder queuedTasks = new LongAdder();
+    private volatile SegmentCompression compression;
+    private volatile CachingDoipProcessor retrieveCache;
+
+    /**
+     * Notes a task handed to the executor, returning the time to pass to {@link #taskStarted(long)}.
+     */
+    long taskQueued() {
+        queuedTasks.increment();
+        return System.nanoTime();
+    }
+
+    void taskStarted(long queuedAt) {
+        queuedTasks.decrement();
+        queue.recordNanos(System.nanoTime() - queuedAt);
+    }
+
+    void taskRejected() {
+        queuedTasks.decrement();
+    }
+
+    void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void setCompression(SegmentCompression compression) {
+        this.compression = compression;
+    }
+
+    void setRetrieveCache(CachingDoipProcessor retrieveCache) {
+        this.retrieveCache = retrieveCache;
+    }
+
+    void bytesIn(long count) {
+        bytesIn.add(count);
+    }
+
+    LongAdder getBytesOutCounter() {
+        return bytesOut;
+    }
+
+    InputStream countingInput(InputStream in) {
+        return new CountingInputStream(in, bytesIn);
+    }
+
+    OutputStream countingOutput(OutputStream out) {
+        return new CountingOutputStream(out, bytesOut);
+    }
+
+    /**
+     * Records a request whose response has been written.  Times are from {@link System#nanoTime()}.
+     */
+    void requestCompleted(String operationId, String status, long receivedAt, long parsedAt, long processStartedAt, long processedAt, long writtenAt) {
+        allOperations.record(receivedAt, parsedAt, processStartedAt, processedAt, writtenAt);
+        operationMetrics(operationId).record(receivedAt, parsedAt, processStartedAt, processedAt, writtenAt);
+        statusCounter(status).increment();
+    }
+
+    /**
+     * Records a request answered with an error response after failing, which counts towards its total latency only.
+     */
+    void requestFailed(String operationId, String status, long receivedAt) {
+        long now = System.nanoTime();
+        allOperations.total.recordNanos(now - receivedAt);
+        operationMetrics(operationId).total.recordNanos(now - receivedAt);
+        statusCounter(status).increment();
+    }
+
+    private OperationMetrics operationMetrics(String operationId) {
+        OperationMetrics res = operationId == null ? null : operations.get(operationId);
+        if (res != null) return res;
+        if (operationId == null || operations.size() >= MAX_KEYS) operationId = OTHER;
+        return operations.computeIfAbsent(operationId, key -> new OperationMetrics());
+    }
+
+    private LongAdder statusCounter(String status) {
+        LongAdder res = status == null ? null : statuses.get(status);
+        if (res != null) return res;
+        if (status == null || statuses.size() >= MAX_KEYS) status = OTHER;
+        return statuses.computeIfAbsent(status, key -> new LongAdder());
+    }
+
+    @Override
+    public long getRequests() {
+        return allOperations.total.getCount();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getExecutorQueueDepth() {
+        return Math.max(0, queuedTasks.sum());
+    }
+
+    @Override
+    public Map<String, Long> getResponsesByStatus() {
+        Map<String, Long> res = new TreeMap<>();
+        statuses.forEach((status, count) -> res.put(status, count.sum()));
+        return res;
+    }
+
+    /**
+     * Returns the latency of each phase over all operations, and the time tasks waited for a thread as {@code queue}.
+     */
+    @Override
+    public Map<String, LatencySnapshot> getPhaseLatencies() {
+        Map<String, LatencySnapshot> res = new LinkedHashMap<>();
+        res.put("queue", queue.snapshot());
+        res.putAll(allOperations.snapshot());
+        return res;
+    }
+
+    /**
+     * Returns the latency of each phase of each operation.
+     */
+    @Override
+    public Map<String, Map<String, LatencySnapshot>> getOperationLatencies() {
+        Map<String, Map<String, LatencySnapshot>> res = new TreeMap<>();
+        operations.forEach((operationId, metrics) -> res.put(operationId, metrics.snapshot()));
+        return res;
+    }
+
+    /**
+     * Returns the counters of segment compression, empty if compression is not allowed.
+     */
+    @Override
+    public Map<String, Long> getCompression() {
+        SegmentCompression compression = this.compression;
+        return compression == null ? new LinkedHashMap<>() : compression.snapshot();
+    }
+
+    /**
+     * Returns the counters of the {@code Op.Retrieve} response cache, empty if there is none.
+     */
+    @Override
+    public Map<String, Long> getRetrieveCache() {
+        CachingDoipProcessor retrieveCache = this.retrieveCache;
+        return retrieveCache == null ? new LinkedHashMap<>() : retrieveCache.snapshot();
+    }
+
+    @Override
+    public String scrape() {
+        PrometheusText text = new PrometheusText();
+        Map<String, Map<String, LatencySnapshot>> operationLatencies = getOperationLatencies();
+        text.family("doip_server_requests_total", "counter", "Requests answered, by operation.");
+        operationLatencies.forEach((operationId, phases) ->
+            text.sample("doip_server_requests_total", phases.get("total").getCount(), "operation", operationId));
+        text.family("doip_server_request_duration_seconds", "summary", "Request latency, by operation and phase.");
+        operationLatencies.forEach((operationId, phases) -> phases.forEach((phase, snapshot) ->
+            text.summary("doip_server_request_duration_seconds", snapshot, "operation", operationId, "phase", phase)));
+        text.family("doip_server_queue_wait_seconds", "summary", "Time tasks waited for a request-processing thread.");
+        text.summary("doip_server_queue_wait_seconds", queue.snapshot());
+        text.family("doip_server_responses_total", "counter", "Responses, by status.");
+        getResponsesByStatus().forEach((status, count) -> text.sample("doip_server_responses_total", count, "status", status));
+        text.family("doip_server_bytes_in_total", "counter", "Bytes received.").sample("doip_server_bytes_in_total", getBytesIn());
+        text.family("doip_server_bytes_out_total", "counter", "Bytes sent.").sample("doip_server_bytes_out_total", getBytesOut());
+        text.family("doip_server_connections_accepted_total", "counter", "Connections accepted.")
+            .sample("doip_server_connections_accepted_total", getAcceptedConnections());
+        text.family("doip_server_connections_active", "gauge", "Open connections.").sample("doip_server_connections_active", getActiveConnections());
+        text.family("doip_server_executor_queue_depth", "gauge", "Tasks waiting for a request-processing thread.")
+            .sample("doip_server_executor_queue_depth", getExecutorQueueDepth());
+        SegmentCompression compression = this.compression;
+        if (compression != null) compression.scrape(text, "doip_server");
+        CachingDoipProcessor retrieveCache = this.retrieveCache;
+        if (retrieveCache != null) retrieveCache.scrape(text, "doip_server");
+        return text.toString();
+    }
+
+    private static class OperationMetrics {
+        final LatencyHistogram parse = new LatencyHistogram();
+        final LatencyHistogram process = new LatencyHistogram();
+        final LatencyHistogram write = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+
+        void record(long receivedAt, long parsedAt, long processStartedAt, long processedAt, long writtenAt) {
+            parse.recordNanos(parsedAt - receivedAt);
+            process.recordNanos(processedAt - processStartedAt);
+            write.recordNanos(writtenAt - processedAt);
+            total.recordNanos(writtenAt - receivedAt);
+        }
+
+        Map<String, LatencySnapshot> snapshot() {
+            Map<String, LatencySnapshot> res = new LinkedHashMap<>();
+            res.put("parse", parse.snapshot());
+            res.put("process", process.snapshot());
+            res.put("write", write.snapshot());
+            res.put("total", total.snapshot());
+            return res;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final LongAdder counter;
+
+        CountingInputStream(InputStream in, LongAdder counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int res = in.read();
+            if (res >= 0) counter.increment();
+            return res;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int res = in.read(b, off, len);
+            if (res > 0) counter.add(res);
+            return res;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long res = in.skip(n);
+            if (res > 0) counter.add(res);
+            return res;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder counter;
+
+        CountingOutputStream(OutputStream out, LongAdder counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+}
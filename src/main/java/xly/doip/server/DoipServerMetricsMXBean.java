@@ -0,0 +1,38 @@
+package xly.doip.server;
+
+import java.util.Map;
+
+import xly.doip.util.LatencySnapshot;
+
+/**
+ * The JMX view of {@link DoipServerMetrics}, registered when {@link DoipServerConfig#jmxMetrics} is set.
+ */
+public interface DoipServerMetricsMXBean {
+
+    long getRequests();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getAcceptedConnections();
+
+    long getActiveConnections();
+
+    long getExecutorQueueDepth();
+
+    Map<String, Long> getResponsesByStatus();
+
+    Map<String, LatencySnapshot> getPhaseLatencies();
+
+    Map<String, Map<String, LatencySnapshot>> getOperationLatencies();
+
+    Map<String, Long> getCompression();
+
+    Map<String, Long> getRetrieveCache();
+
+    /**
+     * Returns all metrics in the Prometheus text format, as served at {@link DoipServerConfig#metricsPort}.
+     */
+    String scrape();
+}
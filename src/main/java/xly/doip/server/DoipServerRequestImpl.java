@@ -4,20 +4,16 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
 
 import xly.doip.BadDoipException;
+import xly.doip.DoipHeadersDecoder;
 import xly.doip.DoipRequestHeadersWithRequestId;
 import xly.doip.InDoipMessage;
 import xly.doip.InDoipMessageFromJson;
 import xly.doip.InDoipSegment;
-import xly.doip.util.GsonUtility;
 
 /**
  * An implementation of {@link DoipServerRequest} used internally by {@link DoipServer}.
@@ -30,6 +26,9 @@ public class DoipServerRequestImpl implements DoipServerRequest {
     private final X509Certificate[] clientCertChain;
     private DoipRequestHeadersWithRequestId doipRequestHeaders;
     private InDoipMessage inputFromHeadersJson;
+    // System.nanoTime() when reading the request began and when its initial segment had been read, for metrics
+    long receivedAt;
+    long parsedAt;
 
     public DoipServerRequestImpl(InDoipMessage inDoipMessage, String clientCertId, PublicKey clientCertPublicKey, X509Certificate[] clientCertChain) throws IOException {
         this.inDoipMessage = inDoipMessage;
@@ -56,16 +55,7 @@ public class DoipServerRequestImpl implements DoipServerRequest {
         if (!segment.isJson()) {
             throw new BadDoipException("Request initial segment must be JSON");
         }
-        JsonElement el = segment.getJson();
-        try {
-            if (!el.isJsonObject()) {
-                throw new BadDoipException("Request initial segment must be a JSON object");
-            }
-            checkProperties(el.getAsJsonObject());
-            doipRequestHeaders = GsonUtility.getGson().fromJson(el, DoipRequestHeadersWithRequestId.class);
-        } catch (JsonParseException e) {
-            throw new BadDoipException("Error parsing initial JSON of request", e);
-        }
+        doipRequestHeaders = DoipHeadersDecoder.decodeRequest(segment);
         if (doipRequestHeaders.input != null) {
             boolean found = inDoipMessage.spliterator().tryAdvance(nextSegment -> {});
             if (found) throw new BadDoipException("Extra segments after initial JSON with compact input");
@@ -73,22 +63,6 @@ public class DoipServerRequestImpl implements DoipServerRequest {
         }
     }
 
-    private static final List<String> acceptableRequestProperties;
-    static {
-        java.lang.reflect.Field[] fields = DoipRequestHeadersWithRequestId.class.getFields();
-        acceptableRequestProperties = Stream.of(fields)
-        .map(field -> field.getName())
-        .collect(Collectors.toList());
-    }
-
-    private void checkProperties(JsonObject obj) throws BadDoipException {
-        for (String key : obj.keySet()) {
-            if (!acceptableRequestProperties.contains(key)) {
-                throw new BadDoipException("Unexpected request property " + key);
-            }
-        }
-    }
-
     public String getRequestId() {
         return doipRequestHeaders.requestId;
     }
@@ -1,7 +1,6 @@
 package xly.doip.server;
 
 import java.io.IOException;
-import java.io.Writer;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -21,6 +20,7 @@ public class DoipServerResponseImpl implements DoipServerResponse {
     private final String requestId;
     private String status = DoipConstants.STATUS_OK;
     private JsonObject attributes;
+    private JsonObject transportAttributes;
     private boolean wroteCompactOutput;
     private boolean committed;
 
@@ -34,6 +34,10 @@ public class DoipServerResponseImpl implements DoipServerResponse {
         this.status = status;
     }
 
+    String getStatus() {
+        return status;
+    }
+
     @Override
     public void setAttribute(String key, JsonElement value) {
         if (this.attributes == null) this.attributes = new JsonObject();
@@ -51,6 +55,15 @@ public class DoipServerResponseImpl implements DoipServerResponse {
         this.attributes = attributes;
     }
 
+    /**
+     * Sets an attribute used by the server itself (for example to accept connection-level negotiation), which is
+     * merged into the attributes written in the initial segment regardless of what the {@link DoipProcessor} sets.
+     */
+    void setTransportAttribute(String key, String value) {
+        if (this.transportAttributes == null) this.transportAttributes = new JsonObject();
+        this.transportAttributes.addProperty(key, value);
+    }
+
     @Override
     public void commit() throws IOException {
         if (wroteCompactOutput || committed) return;
@@ -63,12 +76,62 @@ public class DoipServerResponseImpl implements DoipServerResponse {
         segment.requestId = requestId;
         segment.status = status;
         segment.attributes = attributes;
+        if (transportAttributes != null) {
+            segment.attributes = attributes == null ? new JsonObject() : attributes.deepCopy();
+            for (String key : transportAttributes.keySet()) {
+                segment.attributes.add(key, transportAttributes.get(key));
+            }
+        }
         segment.output = output;
-        try (Writer writer = outDoipMessage.getJsonWriter()) {
-            GsonUtility.getGson().toJson(segment, writer);
+        // serialized up front rather than through getJsonWriter(), whose Writer holds a monitor while writing to the
+        // connection, which would pin a virtual thread blocked on a slow client
+        String json;
+        try {
+            json = GsonUtility.getGson().toJson(segment);
         } catch (JsonParseException e) {
             throw new IOException("Error writing initial segment", e);
         }
+        outDoipMessage.writeJson(json);
+    }
+
+    /**
+     * Writes an initial segment whose attributes and output were serialized earlier, as by
+     * {@link CachingDoipProcessor}, so that replaying a response does not serialize it again.  Transport attributes
+     * are still merged in.  If {@code outputJson} is not null the response is then complete, as after
+     * {@link #writeCompactOutput(JsonElement)}; otherwise further segments may follow through {@link #getOutput()}.
+     *
+     * @param attributesJson a serialized JSON object, or null
+     * @param outputJson serialized JSON, or null
+     */
+    void writeSerializedInitialSegment(String status, String attributesJson, String outputJson) throws IOException {
+        if (wroteCompactOutput) throw new IllegalStateException("already wrote compact output");
+        if (committed) throw new IllegalStateException("already committed");
+        this.status = status;
+        StringBuilder sb = new StringBuilder(64 + (attributesJson == null ? 0 : attributesJson.length()) + (outputJson == null ? 0 : outputJson.length()));
+        sb.append('{');
+        if (requestId != null) sb.append("\"requestId\":").append(GsonUtility.getGson().toJson(requestId)).append(',');
+        sb.append("\"status\":").append(GsonUtility.getGson().toJson(status));
+        if (transportAttributes != null) {
+            String transportJson = transportAttributes.toString();
+            sb.append(",\"attributes\":");
+            if (attributesJson == null || attributesJson.equals("{}")) {
+                sb.append(transportJson);
+            } else {
+                // splice the transport attributes in before the closing brace; a later duplicate key wins when parsed
+                sb.append(attributesJson, 0, attributesJson.lastIndexOf('}')).append(',').append(transportJson, 1, transportJson.length());
+            }
+        } else if (attributesJson != null) {
+            sb.append(",\"attributes\":").append(attributesJson);
+        }
+        if (outputJson != null) sb.append(",\"output\":").append(outputJson);
+        sb.append('}');
+        outDoipMessage.writeJson(sb.toString());
+        if (outputJson != null) {
+            wroteCompactOutput = true;
+            outDoipMessage.close();
+        } else {
+            committed = true;
+        }
     }
 
     @Override
@@ -0,0 +1,53 @@
+package xly.doip.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link DoipServerMetrics#scrape()} over HTTP at {@code /metrics}, for {@link DoipServerConfig#metricsPort}.
+ * Requests are answered one at a time on a single thread, which is plenty for scrapers.
+ */
+class MetricsHttpEndpoint {
+    private final HttpServer httpServer;
+
+    MetricsHttpEndpoint(DoipServerMetrics metrics, String address, int port) throws IOException {
+        InetSocketAddress socketAddress = address == null ? new InetSocketAddress(port) : new InetSocketAddress(InetAddress.getByName(address), port);
+        httpServer = HttpServer.create(socketAddress, 0);
+        httpServer.createContext("/metrics", exchange -> serve(metrics, exchange));
+    }
+
+    void start() {
+        httpServer.start();
+    }
+
+    int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    void stop() {
+        httpServer.stop(0);
+    }
+
+    private static void serve(DoipServerMetrics metrics, HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
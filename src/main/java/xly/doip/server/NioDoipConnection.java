@@ -0,0 +1,450 @@
+package xly.doip.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import xly.doip.OutDoipMessageImpl;
+import xly.doip.util.ByteBufferPool;
+import xly.doip.util.PooledChannelOutputStream;
+
+/**
+ * A connection accepted by {@link NioDoipListener}.
+ * <p>
+ * The selector thread reads incoming bytes straight into a direct buffer taken from the server's {@link ByteBufferPool};
+ * the request-processing thread reads from that buffer through a blocking {@code InputStream}, so that {@link DoipServer}
+ * can process messages exactly as for the blocking listener.  Reading from the channel pauses while the buffer is full,
+ * and the buffer goes back to the pool whenever it has been drained, so idle connections hold no buffer.  Output is
+ * likewise collected in a pooled direct buffer and written to the channel from there.
+ * <p>
+ * Waiting uses {@code java.util.concurrent} locks rather than monitors, so that request-processing virtual threads
+ * waiting for input or for the channel to become writable do not pin their carrier threads.
+ */
+class NioDoipConnection {
+    private final NioDoipListener listener;
+    private final NioDoipListener.EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final int maxIdleTimeMillis;
+    private final PushbackInputStream in;
+    private final OutputStream out;
+    private final PipelinedConnection pipeline;
+    private final ByteBufferPool bufferPool;
+    private final DoipServerMetrics metrics;
+    private volatile SelectionKey key;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataChanged = lock.newCondition();
+
+    // guarded by lock; buf is null while empty, otherwise holds unread bytes between the absolute indices start and end
+    private ByteBuffer buf;
+    private int start;
+    private int end;
+    private int scanned;
+    private boolean eof;
+    private boolean busy;
+    private boolean readPaused;
+    private long lastActivity;
+
+    private final ConnectionState state = new ConnectionState(ClientIdentity.NONE);
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition writableChanged = writeLock.newCondition();
+    private boolean writable; // guarded by writeLock
+
+    private volatile boolean closed;
+
+    NioDoipConnection(NioDoipListener listener, NioDoipListener.EventLoop eventLoop, SocketChannel channel, int maxIdleTimeMillis) {
+        this.listener = listener;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.maxIdleTimeMillis = maxIdleTimeMillis;
+        this.bufferPool = listener.getServer().getBufferPool();
+        this.metrics = listener.getServer().getMetrics();
+        this.in = new PushbackInputStream(new BufferInputStream());
+        this.out = new ChannelOutputStream();
+        this.pipeline = listener.getServer().newPipelinedConnection(out, this::close, ClientIdentity.NONE);
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+        if (closed) key.cancel();
+    }
+
+    /**
+     * Called on the selector thread.
+     */
+    void onReadable() throws IOException {
+        boolean closeNow = false;
+        lock.lock();
+        try {
+            if (closed) return;
+            if (buf == null) buf = bufferPool.acquire();
+            else if (end == buf.capacity()) compact();
+            buf.limit(buf.capacity()).position(end);
+            int n = channel.read(buf);
+            if (n < 0) {
+                eof = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                dataChanged.signalAll();
+                if (start == end) releaseBuffer();
+                closeNow = !busy;
+                return;
+            }
+            if (n == 0) {
+                if (start == end) releaseBuffer();
+                return;
+            }
+            end += n;
+            metrics.bytesIn(n);
+            lastActivity = System.currentTimeMillis();
+            dataChanged.signalAll();
+            if (end - start == buf.capacity()) {
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if (!busy && isRequestReady()) {
+                busy = true;
+                listener.dispatch(this);
+            }
+        } finally {
+            lock.unlock();
+            if (closeNow) close();
+        }
+    }
+
+    /**
+     * Called on the selector thread.
+     */
+    void onWritable() {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeLock.lock();
+        try {
+            writable = true;
+            writableChanged.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void closeIfIdle(long now) {
+        boolean idle;
+        lock.lock();
+        try {
+            idle = !busy && now - lastActivity > maxIdleTimeMillis;
+        } finally {
+            lock.unlock();
+        }
+        if (idle) close();
+    }
+
+    /**
+     * Runs on a request-processing thread; processes requests as long as complete ones are available.
+     */
+    void serve() {
+        try {
+            do {
+                if (!listener.getServer().handleNextMessage(in, out, pipeline, state)) {
+                    close();
+                    return;
+                }
+            } while (continueServing());
+        } catch (Exception e) {
+            close();
+            return;
+        }
+        boolean atEof;
+        lock.lock();
+        try {
+            atEof = eof && !busy;
+        } finally {
+            lock.unlock();
+        }
+        if (atEof) {
+            if (pipeline != null) pipeline.awaitInFlightRequests();
+            close();
+        }
+    }
+
+    private boolean continueServing() {
+        lock.lock();
+        try {
+            lastActivity = System.currentTimeMillis();
+            if (closed) return false;
+            if (isRequestReady()) return true;
+            busy = false;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer.
+     */
+    private void compact() {
+        int size = end - start;
+        buf.limit(end).position(start);
+        buf.compact();
+        scanned = Math.max(0, scanned - start);
+        end = size;
+        start = 0;
+    }
+
+    private void releaseBuffer() {
+        bufferPool.release(buf);
+        buf = null;
+        start = 0;
+        end = 0;
+        scanned = 0;
+    }
+
+    /**
+     * A request is ready once its initial JSON segment (terminated by a line starting with '#', or in binary framing
+     * by a chunk size of zero) has arrived, or once the buffer is full so that the processing thread must start
+     * draining it.
+     */
+    private boolean isRequestReady() {
+        if (buf == null) return false;
+        if (end - start == buf.capacity()) return true;
+        if (state.binaryFraming) return isBinaryRequestReady();
+        if (scanned < start) scanned = start;
+        int i = Math.max(scanned, start + 1);
+        for (; i < end; i++) {
+            if (buf.get(i) == '#' && buf.get(i - 1) == '\n') {
+                for (int j = i + 1; j < end; j++) {
+                    if (buf.get(j) == '\n') return true;
+                }
+                break;
+            }
+        }
+        scanned = Math.max(start, i - 1);
+        return false;
+    }
+
+    /**
+     * Follows the chunk sizes of the initial segment, so needs no scanning state: there are few chunks to skip.
+     * Anything malformed counts as ready, for the processing thread to report.
+     */
+    private boolean isBinaryRequestReady() {
+        if (start == end) return false;
+        if (buf.get(start) != OutDoipMessageImpl.BINARY_JSON) return true;
+        long i = start + 1;
+        while (i + 4 <= end) {
+            int size = buf.getInt((int) i);
+            if (size <= 0) return true;
+            i += 4 + (long) size;
+        }
+        return false;
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            if (buf != null) releaseBuffer();
+            dataChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        writeLock.lock();
+        try {
+            writableChanged.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+        SelectionKey k = key;
+        if (k != null) k.cancel();
+        try {
+            channel.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        listener.connectionClosed(this);
+    }
+
+    private class BufferInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            lock.lock();
+            try {
+                if (!awaitData()) return -1;
+                int res = buf.get(start++) & 0xFF;
+                afterConsume();
+                return res;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            lock.lock();
+            try {
+                if (!awaitData()) return -1;
+                int n = Math.min(len, end - start);
+                buf.get(start, b, off, n);
+                start += n;
+                afterConsume();
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return end - start;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean awaitData() throws IOException {
+            long deadline = System.currentTimeMillis() + maxIdleTimeMillis;
+            while (start == end) {
+                if (closed) throw new IOException("closed");
+                if (eof) return false;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new SocketTimeoutException("Read timed out");
+                try {
+                    dataChanged.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            return true;
+        }
+
+        private void afterConsume() {
+            if (start == end) releaseBuffer();
+            if (readPaused && end - start <= bufferPool.getBufferSize() / 2) {
+                readPaused = false;
+                eventLoop.execute(() -> {
+                    SelectionKey k = key;
+                    if (k != null && k.isValid()) k.interestOps(k.interestOps() | SelectionKey.OP_READ);
+                });
+            }
+        }
+    }
+
+    private class ChannelOutputStream extends PooledChannelOutputStream {
+        ChannelOutputStream() {
+            super(channel, bufferPool, metrics.getBytesOutCounter());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writeLock.lock();
+            try {
+                if (closed) throw new IOException("closed");
+                super.write(b);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeLock.lock();
+            try {
+                if (closed) throw new IOException("closed");
+                super.write(b, off, len);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeLock.lock();
+            try {
+                super.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            writeLock.lock();
+            try {
+                super.transferFrom(file, position, count);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the connection itself is closed by NioDoipConnection.close()
+            writeLock.lock();
+            try {
+                if (!closed) super.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        protected void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (closed) throw new IOException("closed");
+                if (channel.write(src) == 0) awaitWritable();
+            }
+        }
+
+        @Override
+        protected void transferFully(FileChannel file, long position, long count) throws IOException {
+            while (count > 0) {
+                if (closed) throw new IOException("closed");
+                long n = file.transferTo(position, count, channel);
+                if (n == 0) {
+                    if (position >= file.size()) throw new EOFException("end of file before end of region");
+                    awaitWritable();
+                }
+                position += n;
+                count -= n;
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            writable = false;
+            eventLoop.execute(() -> {
+                SelectionKey k = key;
+                if (k != null && k.isValid()) k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+            });
+            long deadline = System.currentTimeMillis() + maxIdleTimeMillis;
+            while (!writable) {
+                if (closed) throw new IOException("closed");
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new SocketTimeoutException("Write timed out");
+                try {
+                    writableChanged.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+}
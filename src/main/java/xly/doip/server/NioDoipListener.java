@@ -0,0 +1,210 @@
+package xly.doip.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking listener used by {@link DoipServer} when {@link DoipServerConfig#useNio} is set.
+ * <p>
+ * Accepted connections are distributed over a small number of selector threads, which read incoming bytes
+ * into a per-connection buffer taken from the server's buffer pool.  A request-processing thread is only taken from the server's executor once the
+ * initial segment of a request has arrived, and is given back when no further request is ready on the connection;
+ * idle connections therefore hold no request-processing thread.
+ */
+class NioDoipListener {
+    private static final Logger logger = LoggerFactory.getLogger(NioDoipListener.class);
+
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final DoipServer server;
+    private final DoipServerConfig config;
+    private final ExecutorService execServ;
+    private final Set<NioDoipConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private ServerSocketChannel serverSocketChannel;
+    private EventLoop[] eventLoops;
+    private volatile boolean running;
+
+    NioDoipListener(DoipServer server, DoipServerConfig config, ExecutorService execServ) {
+        this.server = server;
+        this.config = config;
+        this.execServ = execServ;
+    }
+
+    int bind() throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        if (config.listenAddress == null) serverSocketChannel.bind(new InetSocketAddress(config.port), config.backlog);
+        else serverSocketChannel.bind(new InetSocketAddress(InetAddress.getByName(config.listenAddress), config.port), config.backlog);
+        return serverSocketChannel.socket().getLocalPort();
+    }
+
+    void start(int serverNumber) throws IOException {
+        running = true;
+        int numSelectorThreads = Math.max(1, config.numSelectorThreads);
+        eventLoops = new EventLoop[numSelectorThreads];
+        for (int i = 0; i < numSelectorThreads; i++) {
+            eventLoops[i] = new EventLoop();
+            new Thread(eventLoops[i], "doip-server-" + serverNumber + "-selector-" + (i + 1)).start();
+        }
+        new Thread(this::serveRequests, "DOIP-Socket-Accept-Thread").start();
+    }
+
+    private void serveRequests() {
+        while (running) {
+            try {
+                SocketChannel channel = serverSocketChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+                NioDoipConnection conn = new NioDoipConnection(this, eventLoop, channel, config.maxIdleTimeMillis);
+                connections.add(conn);
+                server.getMetrics().connectionOpened();
+                eventLoop.execute(() -> eventLoop.register(conn));
+            } catch (Exception e) {
+                if (running) {
+                    logger.error("Exception accepting request", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands a connection with a ready request to a request-processing thread.
+     */
+    void dispatch(NioDoipConnection conn) {
+        DoipServerMetrics metrics = server.getMetrics();
+        long queuedAt = metrics.taskQueued();
+        try {
+            execServ.execute(() -> {
+                metrics.taskStarted(queuedAt);
+                conn.serve();
+            });
+        } catch (Exception e) {
+            metrics.taskRejected();
+            if (running) {
+                logger.error("Exception dispatching request", e);
+            }
+            conn.close();
+        }
+    }
+
+    DoipServer getServer() {
+        return server;
+    }
+
+    void connectionClosed(NioDoipConnection conn) {
+        connections.remove(conn);
+        server.getMetrics().connectionClosed();
+    }
+
+    void shutdown() {
+        running = false;
+        try {
+            serverSocketChannel.close();
+        } catch (Exception e) {
+            logger.error("Shutdown error", e);
+        }
+        for (NioDoipConnection conn : connections) {
+            conn.close();
+        }
+        if (eventLoops != null) {
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * A selector thread.  All changes to the interest set of a connection happen on this thread via {@link #execute(Runnable)}.
+     */
+    class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void register(NioDoipConnection conn) {
+            try {
+                conn.setKey(conn.getChannel().register(selector, SelectionKey.OP_READ, conn));
+            } catch (Exception e) {
+                conn.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            try {
+                while (running) {
+                    try {
+                        selector.select(IDLE_CHECK_INTERVAL_MILLIS);
+                        Runnable task;
+                        while ((task = tasks.poll()) != null) {
+                            task.run();
+                        }
+                        Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                        while (iter.hasNext()) {
+                            SelectionKey key = iter.next();
+                            iter.remove();
+                            handleKey(key);
+                        }
+                        long now = System.currentTimeMillis();
+                        if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL_MILLIS) {
+                            lastIdleCheck = now;
+                            for (SelectionKey key : selector.keys()) {
+                                ((NioDoipConnection) key.attachment()).closeIfIdle(now);
+                            }
+                        }
+                    } catch (Exception e) {
+                        if (running) {
+                            logger.error("Exception in DOIP selector loop", e);
+                        }
+                    }
+                }
+            } finally {
+                try {
+                    selector.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            NioDoipConnection conn = (NioDoipConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    conn.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    conn.onWritable();
+                }
+            } catch (Exception e) {
+                conn.close();
+            }
+        }
+    }
+}
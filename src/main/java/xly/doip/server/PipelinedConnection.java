@@ -0,0 +1,179 @@
+package xly.doip.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import xly.doip.FileTransferTarget;
+import xly.doip.InDoipMessageImpl;
+import xly.doip.OutDoipMessageImpl;
+
+/**
+ * Used internally by {@link DoipServer} to process several requests from a single connection concurrently,
+ * when {@link DoipServerConfig#maxInFlightRequestsPerConnection} is greater than one.
+ * <p>
+ * The connection's reading thread parses each request's initial segment.  A request with no further input
+ * segments is handed to the executor and reading continues with the next request; a request with input segments
+ * is processed on the reading thread itself, since its input must be consumed before the next request can be read.
+ * When the in-flight limit is reached, requests are likewise processed on the reading thread.
+ * <p>
+ * Responses are written back in the order in which they start to be written; each response holds the connection
+ * output from its first byte until it is complete, so responses never interleave on the wire.  Clients correlate
+ * responses to requests by requestId.
+ */
+class PipelinedConnection {
+    private final DoipServer server;
+    private final ExecutorService execServ;
+    private final OutputStream out;
+    private final int dispatchPermits;
+    private final Semaphore inFlight;
+    private final Semaphore outputLock = new Semaphore(1, true);
+    private final Runnable closer;
+    private final ClientIdentity identity;
+
+    PipelinedConnection(DoipServer server, ExecutorService execServ, OutputStream out, int maxInFlightRequests, Runnable closer, ClientIdentity identity) {
+        this.server = server;
+        this.execServ = execServ;
+        this.out = out;
+        // the reading thread may itself be processing one request
+        this.dispatchPermits = maxInFlightRequests - 1;
+        this.inFlight = new Semaphore(dispatchPermits);
+        this.closer = closer;
+        this.identity = identity;
+    }
+
+    /**
+     * Reads the next request from the connection and either dispatches it or processes it in the current thread.
+     *
+     * @param in the connection input, positioned at the start of a message
+     * @param binaryFraming whether the connection has switched to binary framing
+     * @throws IOException if the connection should be closed
+     */
+    @SuppressWarnings("resource")
+    void handleMessage(PushbackInputStream in, boolean binaryFraming) throws IOException {
+        InDoipMessageImpl inDoipMessage = server.newInDoipMessage(in, binaryFraming);
+        ResponseOutputStream responseOut = new ResponseOutputStream();
+        try {
+            DoipServerRequestImpl req = server.readRequest(inDoipMessage, responseOut, identity);
+            if (isAtEndOfMessage(in, binaryFraming)) {
+                inDoipMessage.close();
+                if (inFlight.tryAcquire()) {
+                    dispatch(req, inDoipMessage, responseOut);
+                    return;
+                }
+            }
+            server.processRequest(req, inDoipMessage, responseOut);
+        } finally {
+            responseOut.release();
+        }
+    }
+
+    private void dispatch(DoipServerRequestImpl req, InDoipMessageImpl inDoipMessage, ResponseOutputStream responseOut) {
+        ResponseOutputStream dispatchedOut = responseOut.handOff();
+        DoipServerMetrics metrics = server.getMetrics();
+        long queuedAt = metrics.taskQueued();
+        try {
+            execServ.execute(() -> {
+                metrics.taskStarted(queuedAt);
+                try {
+                    server.processRequest(req, inDoipMessage, dispatchedOut);
+                } catch (Exception e) {
+                    closer.run();
+                } finally {
+                    dispatchedOut.release();
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            metrics.taskRejected();
+            dispatchedOut.release();
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private static boolean isAtEndOfMessage(PushbackInputStream in, boolean binaryFraming) throws IOException {
+        int ch = in.read();
+        if (ch < 0) return false;
+        in.unread(ch);
+        return binaryFraming ? ch == OutDoipMessageImpl.BINARY_END : ch == '#';
+    }
+
+    /**
+     * Waits until all dispatched requests have been processed and their responses written.
+     */
+    void awaitInFlightRequests() {
+        inFlight.acquireUninterruptibly(dispatchPermits);
+        inFlight.release(dispatchPermits);
+    }
+
+    /**
+     * The output for a single response.  Acquires the connection output on first use and holds it until released.
+     */
+    class ResponseOutputStream extends OutputStream implements FileTransferTarget {
+        private boolean locked;
+        private boolean handedOff;
+
+        private void lock() throws IOException {
+            if (locked) return;
+            try {
+                outputLock.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            locked = true;
+        }
+
+        ResponseOutputStream handOff() {
+            handedOff = true;
+            return new ResponseOutputStream();
+        }
+
+        void release() {
+            if (handedOff || !locked) return;
+            try {
+                // a buffered connection output must not carry bytes of this response into the next one
+                out.flush();
+            } catch (IOException e) {
+                closer.run();
+            }
+            locked = false;
+            outputLock.release();
+        }
+
+        OutputStream getConnectionOutput() {
+            return out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            lock();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            lock();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (locked) out.flush();
+        }
+
+        @Override
+        public void transferFrom(FileChannel channel, long position, long count) throws IOException {
+            lock();
+            if (out instanceof FileTransferTarget) {
+                ((FileTransferTarget) out).transferFrom(channel, position, count);
+            } else {
+                FileTransferTarget.copy(channel, position, count, out);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package xly.doip.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import xly.doip.DoipConstants;
+import xly.doip.InDoipMessage;
+import xly.doip.InDoipMessageFromCollection;
+import xly.doip.InDoipSegmentFromInputStream;
+
+/**
+ * Serves compact requests sent as UDP datagrams, for a {@link DoipServer} with {@link DoipServerConfig#listenUdp} set.
+ * A datagram holds the initial segment of a request, which is processed as if it had come over TCP; the serialized
+ * response is collected up to {@link DoipServerConfig#maxUdpResponseSize} bytes and, if it consists of the initial
+ * segment alone, that segment is sent back.  Otherwise the client is sent a truncated response, holding just the
+ * request id and {@link DoipConstants#UDP_TRUNCATED}, and repeats the request over TCP, in the manner of DNS.
+ * <p>
+ * Datagrams are neither encrypted nor tied to a connection, so whatever the client chose, only requests without
+ * authentication for {@code Op.Hello}, {@code Op.ListOperations}, {@code Op.GetLHS}, {@code Op.Search}, or
+ * {@code Op.Retrieve} without element data, are processed; any other request is answered with a truncated response
+ * without being processed.
+ * <p>
+ * Datagrams arriving while {@value #MAX_IN_FLIGHT} are being processed are dropped, to be retried by their senders,
+ * rather than queued without bound.
+ */
+class UdpDoipListener {
+    private static final Logger logger = LoggerFactory.getLogger(UdpDoipListener.class);
+
+    // the largest UDP payload over IPv4
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final int MAX_IN_FLIGHT = 1024;
+    private static final byte[] SEGMENT_TERMINATOR = { '\n', '#', '\n' };
+    // the terminator of the initial segment followed by the empty segment ending the message
+    private static final int MESSAGE_END_LENGTH = 5;
+    private static final Set<String> UDP_OPERATIONS = Set.of(DoipConstants.OP_HELLO, DoipConstants.OP_LIST_OPERATIONS,
+        DoipConstants.OP_GETLHS, DoipConstants.OP_SEARCH, DoipConstants.OP_RETRIEVE);
+
+    private final DoipServer server;
+    private final DoipServerConfig config;
+    private final ExecutorService execServ;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private DatagramChannel channel;
+    private volatile boolean running;
+
+    UdpDoipListener(DoipServer server, DoipServerConfig config, ExecutorService execServ) {
+        this.server = server;
+        this.config = config;
+        this.execServ = execServ;
+    }
+
+    void bind(int port) throws IOException {
+        channel = DatagramChannel.open();
+        if (config.listenAddress == null) channel.bind(new InetSocketAddress(port));
+        else channel.bind(new InetSocketAddress(InetAddress.getByName(config.listenAddress), port));
+    }
+
+    void start(int serverNumber) {
+        running = true;
+        new Thread(this::receive, "DOIP-UDP-Receive-Thread-" + serverNumber).start();
+    }
+
+    void shutdown() {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Shutdown error", e);
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        while (running) {
+            SocketAddress client;
+            try {
+                buffer.clear();
+                client = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running) logger.warn("Error receiving UDP request", e);
+                continue;
+            }
+            server.getMetrics().bytesIn(buffer.position());
+            if (!inFlight.tryAcquire()) continue;
+            byte[] datagram = Arrays.copyOf(buffer.array(), buffer.position());
+            long queuedAt = server.getMetrics().taskQueued();
+            try {
+                execServ.execute(() -> {
+                    server.getMetrics().taskStarted(queuedAt);
+                    handle(datagram, client);
+                });
+            } catch (RejectedExecutionException e) {
+                server.getMetrics().taskRejected();
+                inFlight.release();
+            }
+        }
+    }
+
+    private void handle(byte[] datagram, SocketAddress client) {
+        try {
+            BoundedOutputStream out = new BoundedOutputStream(config.maxUdpResponseSize + MESSAGE_END_LENGTH);
+            InDoipMessage in = new InDoipMessageFromCollection(Collections.singletonList(
+                new InDoipSegmentFromInputStream(true, new ByteArrayInputStream(datagram))));
+            String requestId = null;
+            try {
+                DoipServerRequestImpl req = server.readRequest(in, out);
+                requestId = req.getRequestId();
+                if (isServedOverUdp(req)) server.processRequest(req, in, out);
+                else out.overflowed = true;
+            } catch (IOException e) {
+                // the error response has been written to out, and is sent like any other
+                logger.debug("Error handling UDP request", e);
+            }
+            server.getMetrics().getBytesOutCounter().add(channel.send(ByteBuffer.wrap(responseDatagram(out, requestId)), client));
+        } catch (IOException e) {
+            if (running) logger.warn("Error sending UDP response", e);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private static boolean isServedOverUdp(DoipServerRequestImpl req) {
+        JsonElement authentication = req.getAuthentication();
+        if (authentication != null && !authentication.isJsonNull()) return false;
+        if (!UDP_OPERATIONS.contains(req.getOperationId())) return false;
+        if (!DoipConstants.OP_RETRIEVE.equals(req.getOperationId())) return true;
+        return !"true".equals(req.getAttributeAsString("includeElementData")) && req.getAttribute("element") == null;
+    }
+
+    /**
+     * Returns the initial segment of the collected response, if the response fitted and consisted of nothing else, or
+     * else a truncated response.
+     */
+    private byte[] responseDatagram(BoundedOutputStream out, String requestId) {
+        int end = out.count - MESSAGE_END_LENGTH;
+        if (!out.overflowed && end >= 0 && indexOfTerminator(out.buf, out.count) == end) {
+            return Arrays.copyOf(out.buf, end);
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("requestId", requestId);
+        response.addProperty(DoipConstants.UDP_TRUNCATED, true);
+        return response.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the first segment terminator, which ends the initial segment; JSON cannot contain one.
+     */
+    private static int indexOfTerminator(byte[] buf, int count) {
+        outer:
+        for (int i = 0; i <= count - SEGMENT_TERMINATOR.length; i++) {
+            for (int j = 0; j < SEGMENT_TERMINATOR.length; j++) {
+                if (buf[i + j] != SEGMENT_TERMINATOR[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Collects output up to a limit, past which it only notes that there was more.
+     */
+    private static class BoundedOutputStream extends OutputStream {
+        final byte[] buf;
+        int count;
+        boolean overflowed;
+
+        BoundedOutputStream(int limit) {
+            buf = new byte[limit];
+        }
+
+        @Override
+        public void write(int b) {
+            if (count < buf.length) buf[count++] = (byte) b;
+            else overflowed = true;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len > buf.length - count) {
+                overflowed = true;
+                return;
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package xly.doip.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of direct {@link ByteBuffer}s of a single size, used for connection input and output buffers.
+ * Connections take a buffer while they have bytes to hold and give it back once it is drained, so the buffers are
+ * shared between connections and reused across messages.
+ * <p>
+ * At most {@code maxPooledBuffers} free buffers are retained; {@link #acquire()} allocates a new buffer when none is
+ * free (a miss), and {@link #release(ByteBuffer)} discards buffers beyond the bound.  The counters are exposed for
+ * monitoring.
+ */
+public class ByteBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+
+    /**
+     * Constructs a pool.
+     *
+     * @param bufferSize the capacity of each buffer
+     * @param maxPooledBuffers the maximum number of free buffers retained
+     */
+    public ByteBufferPool(int bufferSize, int maxPooledBuffers) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive");
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Returns a cleared buffer of capacity {@link #getBufferSize()}, taken from the pool if possible.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf != null) {
+            freeCount.decrementAndGet();
+            hits.increment();
+            buf.clear();
+            return buf;
+        }
+        misses.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()} to the pool.  The caller must not use it afterwards.
+     *
+     * @param buf the buffer; null is ignored
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null) return;
+        if (buf.capacity() != bufferSize || !buf.isDirect()) {
+            discards.increment();
+            return;
+        }
+        if (freeCount.incrementAndGet() > maxPooledBuffers) {
+            freeCount.decrementAndGet();
+            discards.increment();
+            return;
+        }
+        free.add(buf);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of free buffers currently held by the pool.
+     */
+    public int getPooledCount() {
+        return freeCount.get();
+    }
+
+    /**
+     * Returns the number of calls to {@link #acquire()} served from the pool.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of calls to {@link #acquire()} which allocated a new buffer.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of released buffers dropped because the pool was full.
+     */
+    public long getDiscards() {
+        return discards.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBufferPool[bufferSize=" + bufferSize + ", pooled=" + getPooledCount() + ", hits=" + getHits()
+            + ", misses=" + getMisses() + ", discards=" + getDiscards() + "]";
+    }
+}
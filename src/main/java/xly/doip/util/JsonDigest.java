@@ -0,0 +1,82 @@
+package xly.doip.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+/**
+ * Digests of text and JSON, so that caches can be keyed by credentials without keeping the credentials themselves.
+ */
+public class JsonDigest {
+
+    private JsonDigest() {
+    }
+
+    /**
+     * Appends JSON with the members of objects sorted by name, so that the same JSON always gives the same text
+     * whatever the order in which its members were added.
+     *
+     * @param sb the builder to append to
+     * @param json the JSON
+     */
+    public static void appendCanonical(StringBuilder sb, JsonElement json) {
+        if (json.isJsonObject()) {
+            Map<String, JsonElement> sorted = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> member : json.getAsJsonObject().entrySet()) {
+                sorted.put(member.getKey(), member.getValue());
+            }
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, JsonElement> member : sorted.entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(GsonUtility.getGson().toJson(member.getKey())).append(':');
+                appendCanonical(sb, member.getValue());
+            }
+            sb.append('}');
+        } else if (json.isJsonArray()) {
+            JsonArray array = json.getAsJsonArray();
+            sb.append('[');
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) sb.append(',');
+                appendCanonical(sb, array.get(i));
+            }
+            sb.append(']');
+        } else {
+            sb.append(GsonUtility.getGson().toJson(json));
+        }
+    }
+
+    /**
+     * Returns the SHA-256 digest of the canonical form of JSON; see {@link #appendCanonical(StringBuilder, JsonElement)}.
+     *
+     * @param json the JSON
+     * @return the digest, in unpadded base64url
+     */
+    public static String sha256(JsonElement json) {
+        StringBuilder sb = new StringBuilder();
+        appendCanonical(sb, json);
+        return sha256(sb.toString());
+    }
+
+    /**
+     * Returns the SHA-256 digest of the UTF-8 encoding of text.
+     *
+     * @param text the text
+     * @return the digest, in unpadded base64url
+     */
+    public static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package xly.doip.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of latencies, in the manner of HdrHistogram.  Latencies are counted in microseconds, in
+ * buckets whose width grows with the size of the values they hold, so that each value is known to within 1/64 of
+ * itself (about 1.6%) from a microsecond up to about 71 minutes; longer latencies are counted as 71 minutes, though the
+ * exact maximum and mean are kept.  The buckets are a fixed array of counters, so recording is lock-free and allocates
+ * nothing, and the histogram never grows.
+ * <p>
+ * Percentiles are read from a {@link #snapshot()}, taken while recording continues.
+ */
+public class LatencyHistogram {
+    // values below 2 * HALF are counted exactly; above, each power of two is split into HALF buckets
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF = 1 << (SUB_BUCKET_BITS - 1);
+    private static final long MAX_MICROS = (1L << 32) - 1;
+    private static final int SIZE = indexOf(MAX_MICROS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds; negative values are counted as zero
+     */
+    public void recordNanos(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(Math.min(nanos / 1000, MAX_MICROS)));
+        count.increment();
+        sumNanos.add(nanos);
+        if (nanos > maxNanos.get()) maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Returns the number of latencies recorded.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the counts and percentiles recorded so far.
+     */
+    public LatencySnapshot snapshot() {
+        long[] snapshot = new long[SIZE];
+        long total = 0;
+        for (int i = 0; i < SIZE; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        double meanMicros = total == 0 ? 0 : sumNanos.sum() / 1000.0 / count.sum();
+        return new LatencySnapshot(total, meanMicros, valueAtPercentile(snapshot, total, 50), valueAtPercentile(snapshot, total, 90),
+            valueAtPercentile(snapshot, total, 99), valueAtPercentile(snapshot, total, 99.9), maxNanos.get() / 1000.0);
+    }
+
+    private static long valueAtPercentile(long[] snapshot, long total, double percentile) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return highestValueAt(i);
+        }
+        return highestValueAt(snapshot.length - 1);
+    }
+
+    static int indexOf(long micros) {
+        if (micros < 2 * HALF) return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (micros >>> shift);
+    }
+
+    static long highestValueAt(int index) {
+        if (index < 2 * HALF) return index;
+        int shift = index / HALF - 1;
+        long subBucket = index - (long) shift * HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,62 @@
+package xly.doip.util;
+
+import javax.management.ConstructorParameters;
+
+/**
+ * The counts and percentiles of a {@link LatencyHistogram} at one moment, in microseconds.  Percentiles are the highest
+ * value of the bucket they fall in, so they overstate the true value by at most 1/64 of it.
+ */
+public class LatencySnapshot {
+    private final long count;
+    private final double meanMicros;
+    private final long p50Micros;
+    private final long p90Micros;
+    private final long p99Micros;
+    private final long p999Micros;
+    private final double maxMicros;
+
+    @ConstructorParameters({ "count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros", "maxMicros" })
+    public LatencySnapshot(long count, double meanMicros, long p50Micros, long p90Micros, long p99Micros, long p999Micros, double maxMicros) {
+        this.count = count;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p90Micros = p90Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public long getP90Micros() {
+        return p90Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public long getP999Micros() {
+        return p999Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1fus, p50=%dus, p90=%dus, p99=%dus, p99.9=%dus, max=%.1fus",
+            count, meanMicros, p50Micros, p90Micros, p99Micros, p999Micros, maxMicros);
+    }
+}
@@ -0,0 +1,129 @@
+package xly.doip.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import xly.doip.FileTransferTarget;
+
+/**
+ * A buffered output stream over a blocking channel, whose buffer is a direct {@link ByteBuffer} taken from a
+ * {@link ByteBufferPool} on the first write and given back on each {@link #flush()}.  Bytes are copied once, into the
+ * direct buffer, and written to the channel from there, and an idle connection holds no buffer.
+ * <p>
+ * Not thread-safe; callers writing from several threads must serialize whole messages themselves.
+ */
+public class PooledChannelOutputStream extends OutputStream implements FileTransferTarget {
+    private final WritableByteChannel channel;
+    private final ByteBufferPool pool;
+    private final LongAdder bytesWritten;
+    private ByteBuffer buf;
+
+    /**
+     * Constructs a stream writing to the given channel.
+     *
+     * @param channel a channel in blocking mode, unless {@link #writeFully(ByteBuffer)} and
+     *                {@link #transferFully(FileChannel, long, long)} are overridden
+     * @param pool the pool from which to take the buffer
+     */
+    public PooledChannelOutputStream(WritableByteChannel channel, ByteBufferPool pool) {
+        this(channel, pool, null);
+    }
+
+    /**
+     * Constructs a stream writing to the given channel, adding the number of bytes written to a counter.
+     *
+     * @param channel a channel in blocking mode, unless {@link #writeFully(ByteBuffer)} and
+     *                {@link #transferFully(FileChannel, long, long)} are overridden
+     * @param pool the pool from which to take the buffer
+     * @param bytesWritten the counter, or null
+     */
+    public PooledChannelOutputStream(WritableByteChannel channel, ByteBufferPool pool, LongAdder bytesWritten) {
+        this.channel = channel;
+        this.pool = pool;
+        this.bytesWritten = bytesWritten;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buf == null) buf = pool.acquire();
+        else if (!buf.hasRemaining()) drain();
+        buf.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (buf == null) buf = pool.acquire();
+        while (len > 0) {
+            if (!buf.hasRemaining()) drain();
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void drain() throws IOException {
+        buf.flip();
+        int count = buf.remaining();
+        writeFully(buf);
+        if (bytesWritten != null) bytesWritten.add(count);
+        buf.clear();
+    }
+
+    /**
+     * Writes all remaining bytes of a buffer to the channel.  Subclasses writing to a non-blocking channel override
+     * this to wait for the channel to become writable.
+     *
+     * @param src the bytes to write
+     * @throws IOException
+     */
+    protected void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    /**
+     * Writes a region of a file to the channel after the buffer has been flushed.  Subclasses writing to a
+     * non-blocking channel override this to wait for the channel to become writable.
+     *
+     * @param file the file
+     * @param position the position in the file of the first byte to write
+     * @param count the number of bytes to write
+     * @throws IOException
+     */
+    protected void transferFully(FileChannel file, long position, long count) throws IOException {
+        FileTransferTarget.transfer(file, position, count, channel);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buf == null) return;
+        try {
+            drain();
+        } finally {
+            pool.release(buf);
+            buf = null;
+        }
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        flush();
+        transferFully(file, position, count);
+        if (bytesWritten != null) bytesWritten.add(count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
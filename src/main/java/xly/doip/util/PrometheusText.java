@@ -0,0 +1,89 @@
+package xly.doip.util;
+
+import java.util.Arrays;
+
+/**
+ * Writes metrics in the Prometheus text exposition format, for the scrape endpoints of the DOIP server and client.
+ */
+public class PrometheusText {
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * Starts a metric family.
+     *
+     * @param name the metric name
+     * @param type {@code counter}, {@code gauge} or {@code summary}
+     * @param help a description of the metric
+     * @return this
+     */
+    public PrometheusText family(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * Writes a sample.
+     *
+     * @param name the metric name
+     * @param value the value
+     * @param labels alternating label names and values
+     * @return this
+     */
+    public PrometheusText sample(String name, double value, String... labels) {
+        sb.append(name);
+        if (labels.length > 0) {
+            sb.append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) sb.append(',');
+                sb.append(labels[i]).append("=\"");
+                escape(labels[i + 1]);
+                sb.append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) sb.append((long) value);
+        else sb.append(value);
+        sb.append('\n');
+        return this;
+    }
+
+    /**
+     * Writes the samples of a summary of latencies, in seconds.
+     *
+     * @param name the metric name
+     * @param snapshot the latencies
+     * @param labels alternating label names and values, to which the quantile is added
+     * @return this
+     */
+    public PrometheusText summary(String name, LatencySnapshot snapshot, String... labels) {
+        String[] quantileLabels = Arrays.copyOf(labels, labels.length + 2);
+        quantileLabels[labels.length] = "quantile";
+        quantileLabels[labels.length + 1] = "0.5";
+        sample(name, snapshot.getP50Micros() / 1e6, quantileLabels);
+        quantileLabels[labels.length + 1] = "0.9";
+        sample(name, snapshot.getP90Micros() / 1e6, quantileLabels);
+        quantileLabels[labels.length + 1] = "0.99";
+        sample(name, snapshot.getP99Micros() / 1e6, quantileLabels);
+        quantileLabels[labels.length + 1] = "0.999";
+        sample(name, snapshot.getP999Micros() / 1e6, quantileLabels);
+        sample(name + "_sum", snapshot.getMeanMicros() * snapshot.getCount() / 1e6, labels);
+        sample(name + "_count", snapshot.getCount(), labels);
+        return this;
+    }
+
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else sb.append(c);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
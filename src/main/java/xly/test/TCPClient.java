@@ -1,8 +1,6 @@
 package xly.test;
 
-import xly.doip.InDoipSegment;
 import xly.doip.client.*;
-import xly.doip.client.transport.DoipClientResponse;
 
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
@@ -29,9 +27,8 @@ public class TCPClient {
                 DoipClient client = new DoipClient();
                 ServiceInfo serviceInfo = new ServiceInfo("test/1.2.66", "127.0.0.1", 8888);
                 AuthenticationInfo authInfo = new TokenAuthenticationInfo("client", null);
-                DoipClientResponse result = client.getLHS("test/1.2.66", authInfo, serviceInfo);
-//                System.out.println(result.getStatus());
-//                for (InDoipSegment i : result.getOutput()) System.out.println(i.getJson());
+                ServiceInfo result = client.getLHS("test/1.2.66", authInfo, serviceInfo);
+//                System.out.println(result.ipAddress + ":" + result.port);
                 client.close();
                 cdl.countDown();
             } catch (Exception e) {
@@ -0,0 +1,111 @@
+package xly.test;
+
+import xly.doip.DoipConstants;
+import xly.doip.DoipRequestHeaders;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.client.transport.DoipConnection;
+import xly.doip.client.transport.TransportDoipClient;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接负载测试：在固定堆大小下（例如 -Xmx256m），打开大量空闲连接和若干活跃连接，
+ * 观察不同执行模式下服务端能容纳的连接数、请求数、堆占用、GC 次数与耗时，以及连接缓冲池的命中/未命中次数。
+ *
+ * 用法: TestConnectionLoad [platform|virtual|nio|nio-virtual] [空闲连接数] [活跃连接数] [秒数]
+ */
+public class TestConnectionLoad {
+    static int processMillis = 20; // 模拟处理器中阻塞的磁盘/数据库 I/O
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "virtual";
+        int idle = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int active = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        DoipServerConfig config = new DoipServerConfig();
+        config.port = 0;
+        config.backlog = 1024;
+        config.useVirtualThreads = mode.endsWith("virtual");
+        config.useNio = mode.startsWith("nio");
+        DoipServer server = new DoipServer(config, (req, resp) -> {
+            try {
+                Thread.sleep(processMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            resp.setAttribute("echo", req.getTargetId());
+        });
+        server.init();
+
+        List<Socket> idleSockets = new ArrayList<>();
+        for (int i = 0; i < idle; i++) {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), 10_000);
+            idleSockets.add(socket);
+        }
+
+        TransportDoipClient client = new TransportDoipClient();
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long gcCountStart = gcCount();
+        long gcMillisStart = gcMillis();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < active; i++) {
+            Thread thread = Thread.ofVirtual().start(() -> {
+                try (DoipConnection conn = client.connect(InetAddress.getLoopbackAddress(), server.getPort())) {
+                    DoipRequestHeaders headers = new DoipRequestHeaders();
+                    headers.targetId = "test";
+                    headers.operationId = DoipConstants.OP_HELLO;
+                    while (System.currentTimeMillis() < deadline) {
+                        try (DoipClientResponse resp = conn.sendCompactRequest(headers)) {
+                            completed.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+
+        long gcCount = gcCount() - gcCountStart;
+        long gcMillis = gcMillis() - gcMillisStart;
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long usedMb = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+        System.out.println("mode=" + mode + " idle=" + idle + " active=" + active);
+        System.out.println("requests/s=" + completed.get() / seconds + " failedConnections=" + failed.get());
+        System.out.println("heapUsedMB=" + usedMb + " maxHeapMB=" + rt.maxMemory() / (1024 * 1024) + " platformThreads=" + Thread.activeCount());
+        System.out.println("gcCount=" + gcCount + " gcMillis=" + gcMillis);
+        System.out.println("server " + server.getBufferPool());
+        System.out.println("client " + client.getBufferPool());
+
+        for (Socket socket : idleSockets) socket.close();
+        client.close();
+        server.shutdown();
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += gc.getCollectionCount();
+        return count;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += gc.getCollectionTime();
+        return millis;
+    }
+}
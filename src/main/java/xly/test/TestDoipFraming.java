@@ -0,0 +1,123 @@
+package xly.test;
+
+import xly.doip.InDoipMessageImpl;
+import xly.doip.InDoipSegment;
+import xly.doip.OutDoipMessageImpl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * 文本分帧与二进制分帧的编解码对比：对小消息（只有一个 JSON 段的紧凑请求）、中等消息（64KB 的 JSON 段，
+ * 用 getJsonWriter 流式写出）和大消息（JSON 段加 16MB 字节段），分别测量写出和解析的消息数/秒与 MB/s，
+ * 以及每条消息在线上的字节数。全部在内存中进行，不含网络开销。
+ *
+ * 用法: TestDoipFraming [每轮总数据量(MB)，默认 256]
+ */
+public class TestDoipFraming {
+    static final String SMALL_JSON = "{\"requestId\":\"4f1c1b2e-6a0e-4c1d-9d55-0d3c5f6a7b8c\",\"operationId\":\"0.DOIP/Op.Retrieve\","
+        + "\"targetId\":\"20.500.123/abc\",\"attributes\":{\"element\":\"content\"}}";
+
+    public static void main(String[] args) throws Exception {
+        long volume = (args.length > 0 ? Long.parseLong(args[0]) : 256) << 20;
+        Shape[] shapes = { new Shape("small", 0, 0), new Shape("json-64KB", 64 * 1024, 0), new Shape("bytes-16MB", 0, 16 << 20) };
+        for (Shape shape : shapes) {
+            for (boolean binary : new boolean[] { false, true }) {
+                byte[] encoded = encode(shape, binary, new ByteArrayOutputStream());
+                // 每轮的消息数使总数据量约为 volume
+                int repeat = (int) Math.max(10, volume / encoded.length);
+                String framing = binary ? "binary" : "text";
+                runEncode(shape, binary, repeat); // 预热
+                long start = System.nanoTime();
+                runEncode(shape, binary, repeat);
+                report(shape, framing, "write", encoded.length, repeat, System.nanoTime() - start);
+                runDecode(encoded, binary, repeat); // 预热
+                start = System.nanoTime();
+                long total = runDecode(encoded, binary, repeat);
+                report(shape, framing, "read", encoded.length, repeat, System.nanoTime() - start);
+                if (total == 0) throw new AssertionError();
+            }
+        }
+    }
+
+    static void report(Shape shape, String framing, String direction, int size, int repeat, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-11s %-7s %-6s wire=%-9d %12.0f msg/s %9.1f MB/s%n",
+            shape.name, framing, direction, size, repeat / seconds, (double) size * repeat / seconds / (1024 * 1024));
+    }
+
+    static void runEncode(Shape shape, boolean binary, int repeat) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (int i = 0; i < repeat; i++) {
+            bout.reset();
+            encode(shape, binary, bout);
+        }
+    }
+
+    /**
+     * 按服务器写响应的方式（合并刷新）写出一条消息。
+     */
+    static byte[] encode(Shape shape, boolean binary, ByteArrayOutputStream bout) throws IOException {
+        OutDoipMessageImpl out = new OutDoipMessageImpl(bout, null, true, binary);
+        out.writeJson(SMALL_JSON);
+        if (shape.jsonSize > 0) {
+            try (Writer writer = out.getJsonWriter()) {
+                writer.write('[');
+                for (int written = 1; written < shape.jsonSize - 64; written += shape.element.length() + 1) {
+                    if (written > 1) writer.write(',');
+                    writer.write(shape.element);
+                }
+                writer.write(']');
+            }
+        }
+        if (shape.bytesSize > 0) {
+            try (OutputStream bytesOut = out.getBytesOutputStream()) {
+                for (int written = 0; written < shape.bytesSize; written += shape.data.length) {
+                    bytesOut.write(shape.data);
+                }
+            }
+        }
+        out.close();
+        return bout.toByteArray();
+    }
+
+    /**
+     * 按客户端读响应的方式解析：JSON 段解析为 JsonElement，字节段用 transferTo 读完。
+     */
+    static long runDecode(byte[] encoded, boolean binary, int repeat) throws IOException {
+        long total = 0;
+        for (int i = 0; i < repeat; i++) {
+            InDoipMessageImpl message = new InDoipMessageImpl(new PushbackInputStream(new BufferedInputStream(new ByteArrayInputStream(encoded))), binary);
+            for (InDoipSegment segment : message) {
+                if (segment.isJson()) {
+                    total += segment.getJson().isJsonNull() ? 0 : 1;
+                } else {
+                    total += segment.getInputStream().transferTo(OutputStream.nullOutputStream());
+                }
+            }
+            message.close();
+        }
+        return total;
+    }
+
+    static class Shape {
+        final String name;
+        final int jsonSize;
+        final int bytesSize;
+        final String element = "{\"id\":\"20.500.123/abc\",\"type\":\"Document\",\"attributes\":{\"content\":{\"name\":\"x\"}}}";
+        final byte[] data = new byte[8192];
+
+        Shape(String name, int jsonSize, int bytesSize) {
+            this.name = name;
+            this.jsonSize = jsonSize;
+            this.bytesSize = bytesSize;
+            Arrays.fill(data, (byte) 'x');
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package xly.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import xly.doip.DoipConstants;
+import xly.doip.client.DigitalObject;
+import xly.doip.client.DoipClient;
+import xly.doip.client.FederatedSearch;
+import xly.doip.client.FederatedSearchConfig;
+import xly.doip.client.FederatedSearchResults;
+import xly.doip.client.QueryParams;
+import xly.doip.client.RepositorySearchStats;
+import xly.doip.client.ServiceInfo;
+import xly.doip.client.SortField;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * FederatedSearch 合并正确性测试：本地启动两个假仓库，各自持有一批病人对象（属性 age，部分 age 相同），按请求里的
+ * sortFields 排序后返回结果；没有 sortFields 时故意打乱顺序返回。检查：
+ * 1. 不排序的 searchIds 发给仓库的是 "id"，合并结果按 id 全局有序；
+ * 2. 按 age 排序的 search 发给仓库的是 "age,id"，合并结果与把两个仓库的对象放在一起排序的结果一致（age 相同时按 id）；
+ * 3. 分页时每个仓库只需返回前 (pageNumber + 1) * pageSize 个，取出的页与全局排序的对应切片一致；
+ * 4. 一个仓库超过时间预算时被排除，结果标记为部分结果。
+ *
+ * 用法: TestFederatedSearch [每个仓库的对象数, 默认 200]
+ */
+public class TestFederatedSearch {
+    static final ConcurrentLinkedQueue<String> receivedSortFields = new ConcurrentLinkedQueue<>();
+    static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        List<JsonObject> all = new ArrayList<>();
+        List<JsonObject> objectsA = objects("hospitalA", count, 1, all);
+        List<JsonObject> objectsB = objects("hospitalB", count, 2, all);
+        DoipServer serverA = startRepository(objectsA, 0);
+        DoipServer serverB = startRepository(objectsB, 0);
+        DoipServer slow = startRepository(objects("hospitalC", count, 3, new ArrayList<>()), 3000);
+        ServiceInfo a = new ServiceInfo("test/hospitalA", "127.0.0.1", serverA.getPort());
+        ServiceInfo b = new ServiceInfo("test/hospitalB", "127.0.0.1", serverB.getPort());
+        ServiceInfo c = new ServiceInfo("test/hospitalC", "127.0.0.1", slow.getPort());
+
+        try (DoipClient client = new DoipClient()) {
+            FederatedSearch search = new FederatedSearch(client);
+
+            // 1. 不排序：仓库收到 id 排序，合并后按 id 有序
+            List<String> expectedIds = new ArrayList<>();
+            for (JsonObject o : all) expectedIds.add(o.get("id").getAsString());
+            Collections.sort(expectedIds);
+            receivedSortFields.clear();
+            List<String> ids = new ArrayList<>();
+            try (FederatedSearchResults<String> results = search.searchIds(List.of(a, b), "*", null, null)) {
+                for (String id : results) ids.add(id);
+                check(!results.isPartial(), "searchIds 不应是部分结果");
+            }
+            check(receivedSortFields.size() == 2 && receivedSortFields.stream().allMatch("id"::equals), "searchIds 发给仓库的 sortFields " + receivedSortFields);
+            check(ids.equals(expectedIds), "searchIds 合并顺序");
+
+            // 2. 按 age 排序：仓库收到 age,id，合并顺序与全局排序一致
+            List<String> expectedByAge = sortedIds(all, false);
+            receivedSortFields.clear();
+            QueryParams byAge = new QueryParams(0, -1, List.of(new SortField("age")));
+            check(ids(search.search(List.of(a, b), "*", byAge, null)).equals(expectedByAge), "按 age 排序的合并顺序");
+            check(receivedSortFields.stream().allMatch("age,id"::equals), "search 发给仓库的 sortFields " + receivedSortFields);
+
+            List<String> expectedByAgeDesc = sortedIds(all, true);
+            QueryParams byAgeDesc = new QueryParams(0, -1, List.of(new SortField("age", true)));
+            check(ids(search.search(List.of(a, b), "*", byAgeDesc, null)).equals(expectedByAgeDesc), "按 age 倒序的合并顺序");
+
+            // 3. 分页
+            for (int page = 0; page < 4; page++) {
+                QueryParams paged = new QueryParams(page, 7, List.of(new SortField("age")));
+                List<String> expectedPage = expectedByAge.subList(page * 7, Math.min(expectedByAge.size(), page * 7 + 7));
+                check(ids(search.search(List.of(a, b), "*", paged, null)).equals(expectedPage), "第 " + page + " 页");
+            }
+
+            // 4. 超时的仓库被排除
+            FederatedSearchConfig config = new FederatedSearchConfig();
+            config.responseTimeoutMs = 500;
+            FederatedSearch withBudget = new FederatedSearch(client, config);
+            try (FederatedSearchResults<DigitalObject> results = withBudget.search(List.of(a, b, c), "*", byAge, null)) {
+                List<String> got = new ArrayList<>();
+                for (DigitalObject dobj : results) got.add(dobj.id);
+                check(got.equals(expectedByAge), "排除超时仓库后的合并顺序");
+                check(results.isPartial(), "应标记为部分结果");
+                List<RepositorySearchStats> timedOut = results.getTimedOutRepositories();
+                check(timedOut.size() == 1 && timedOut.get(0).getServiceInfo() == c, "超时的仓库 " + timedOut);
+                for (RepositorySearchStats stats : results.getRepositoryStats()) System.out.println(stats);
+            }
+        } finally {
+            serverA.shutdown();
+            serverB.shutdown();
+            slow.shutdown();
+        }
+        System.out.println(failures == 0 ? "全部通过" : failures + " 项失败");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    static void check(boolean ok, String what) {
+        if (!ok) failures++;
+        System.out.println((ok ? "通过 " : "失败 ") + what);
+    }
+
+    static List<String> ids(FederatedSearchResults<DigitalObject> results) {
+        List<String> ids = new ArrayList<>();
+        try (results) {
+            for (DigitalObject dobj : results) ids.add(dobj.id);
+        }
+        return ids;
+    }
+
+    static List<JsonObject> objects(String prefix, int count, int seed, List<JsonObject> all) {
+        Random random = new Random(seed);
+        List<JsonObject> objects = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            JsonObject dobj = new JsonObject();
+            dobj.addProperty("id", "test/" + prefix + "/" + i);
+            dobj.addProperty("type", "Patient");
+            JsonObject attributes = new JsonObject();
+            attributes.addProperty("age", random.nextInt(90)); // 取值范围小，保证两个仓库间有大量相同的 age
+            dobj.add("attributes", attributes);
+            objects.add(dobj);
+            all.add(dobj);
+        }
+        return objects;
+    }
+
+    static List<String> sortedIds(List<JsonObject> objects, boolean descending) {
+        List<JsonObject> sorted = new ArrayList<>(objects);
+        sorted.sort(comparator("age" + (descending ? " DESC" : "") + ",id"));
+        List<String> ids = new ArrayList<>();
+        for (JsonObject o : sorted) ids.add(o.get("id").getAsString());
+        return ids;
+    }
+
+    /**
+     * 按 "age DESC,id" 形式的 sortFields 排序；只支持 id 和数值属性
+     */
+    static Comparator<JsonObject> comparator(String sortFields) {
+        Comparator<JsonObject> result = null;
+        for (String field : sortFields.split(",")) {
+            boolean descending = field.endsWith(" DESC");
+            String name = descending ? field.substring(0, field.length() - 5) : field;
+            Comparator<JsonObject> next = "id".equals(name)
+                ? Comparator.comparing(o -> o.get("id").getAsString())
+                : Comparator.comparingInt(o -> o.getAsJsonObject("attributes").get(name).getAsInt());
+            if (descending) next = next.reversed();
+            result = result == null ? next : result.thenComparing(next);
+        }
+        return result;
+    }
+
+    /**
+     * 假仓库：按收到的 sortFields 排序；没有 sortFields 时打乱顺序，暴露依赖仓库默认顺序的合并
+     */
+    static DoipServer startRepository(List<JsonObject> objects, long delayMs) throws Exception {
+        DoipServerConfig config = new DoipServerConfig();
+        config.port = 0;
+        DoipServer server = new DoipServer(config, (req, resp) -> {
+            if (!DoipConstants.OP_SEARCH.equals(req.getOperationId())) {
+                resp.setStatus(DoipConstants.STATUS_DECLINED);
+                return;
+            }
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String sortFields = req.getAttributeAsString("sortFields");
+            receivedSortFields.add(String.valueOf(sortFields));
+            List<JsonObject> sorted = new ArrayList<>(objects);
+            if (sortFields == null) Collections.shuffle(sorted);
+            else sorted.sort(comparator(sortFields));
+            int pageSize = req.getAttributes().get("pageSize").getAsInt();
+            if (pageSize >= 0 && pageSize < sorted.size()) sorted = sorted.subList(0, pageSize);
+            boolean idsOnly = "id".equals(req.getAttributeAsString("type"));
+            JsonArray results = new JsonArray();
+            for (JsonObject o : sorted) {
+                if (idsOnly) results.add(o.get("id"));
+                else results.add(o);
+            }
+            JsonObject body = new JsonObject();
+            body.addProperty("size", objects.size());
+            body.add("results", results);
+            resp.writeCompactOutput(body);
+        });
+        server.init();
+        return server;
+    }
+}
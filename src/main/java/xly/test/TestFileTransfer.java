@@ -0,0 +1,107 @@
+package xly.test;
+
+import xly.doip.DoipRequestHeaders;
+import xly.doip.InDoipSegment;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.client.transport.DoipConnection;
+import xly.doip.client.transport.TransportDoipClient;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文件传输吞吐量测试：服务端用 writeBytes(InputStream)（原有方式）或 writeBytes(FileChannel, ...)（零拷贝）
+ * 发送同一个文件，客户端读取并丢弃，输出 MB/s 以及服务端处理线程每 GB 消耗的 CPU 时间。
+ *
+ * 用法: TestFileTransfer [blocking|nio] [文件大小MB，默认 1024] [次数，默认 3]
+ */
+public class TestFileTransfer {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "blocking";
+        long sizeMb = args.length > 1 ? Long.parseLong(args[1]) : 1024;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Path file = Files.createTempFile("doip-transfer", ".bin");
+        try {
+            writeFile(file, sizeMb * 1024 * 1024);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            AtomicLong serverCpuNanos = new AtomicLong();
+            DoipServerConfig config = new DoipServerConfig();
+            config.port = 0;
+            config.useNio = mode.equals("nio");
+            DoipServer server = new DoipServer(config, (req, resp) -> {
+                long cpuStart = threads.getCurrentThreadCpuTime();
+                try {
+                    if ("channel".equals(req.getTargetId())) {
+                        resp.getOutput().writeBytes(file, 0, Files.size(file));
+                    } else {
+                        try (InputStream in = Files.newInputStream(file)) {
+                            resp.getOutput().writeBytes(in);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                serverCpuNanos.addAndGet(threads.getCurrentThreadCpuTime() - cpuStart);
+            });
+            server.init();
+
+            TransportDoipClient client = new TransportDoipClient();
+            try (DoipConnection conn = client.connect(InetAddress.getLoopbackAddress(), server.getPort())) {
+                for (String target : new String[] { "stream", "channel", "stream", "channel" }) {
+                    serverCpuNanos.set(0);
+                    long bytes = 0;
+                    long start = System.nanoTime();
+                    for (int i = 0; i < rounds; i++) {
+                        bytes += retrieve(conn, target);
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    double gb = bytes / (1024.0 * 1024 * 1024);
+                    System.out.printf("mode=%s path=%-7s %.1f MB/s  server CPU %.0f ms/GB%n",
+                        mode, target, bytes / seconds / (1024 * 1024), serverCpuNanos.get() / 1e6 / gb);
+                }
+            }
+            client.close();
+            server.shutdown();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    static long retrieve(DoipConnection conn, String target) throws Exception {
+        DoipRequestHeaders headers = new DoipRequestHeaders();
+        headers.targetId = target;
+        headers.operationId = "0.DOIP/Op.Retrieve";
+        long bytes = 0;
+        try (DoipClientResponse resp = conn.sendCompactRequest(headers)) {
+            for (InDoipSegment segment : resp.getOutput()) {
+                if (!segment.isJson()) bytes += segment.getInputStream().transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        return bytes;
+    }
+
+    static void writeFile(Path file, long size) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+        for (int i = 0; i < buf.capacity(); i++) buf.put((byte) i);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (size > 0) {
+                buf.clear();
+                if (buf.remaining() > size) buf.limit((int) size);
+                size -= channel.write(buf);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package xly.test;
+
+import com.google.gson.JsonObject;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleResolver;
+import net.handle.hdllib.HandleValue;
+import xly.doip.client.DoipClient;
+import xly.doip.client.DoipClientConfig;
+import xly.doip.client.DoipException;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DoipClient 句柄解析缓存测试：用本地桩解析器（每次解析耗时 100ms 并计数）代替句柄服务器，连接本地 DOIP 服务，检查
+ * 并发解析合并、TTL 过期、未找到结果的短期缓存以及过期前的后台刷新。每项检查输出 PASS/FAIL。
+ *
+ * 用法: TestHandleResolutionCache
+ */
+public class TestHandleResolutionCache {
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        DoipServerConfig serverConfig = new DoipServerConfig();
+        serverConfig.port = 0;
+        DoipServer server = new DoipServer(serverConfig, (req, resp) -> resp.writeCompactOutput(new JsonObject()));
+        server.init();
+
+        StubResolver resolver = new StubResolver();
+        // test/target -> DOIPService test/service (TTL 2s) -> DOIPServiceInfo (TTL 1 小时)
+        resolver.add("test/target", "DOIPService", "test/service", 2);
+        JsonObject attributes = new JsonObject();
+        attributes.addProperty("ipAddress", "127.0.0.1");
+        attributes.addProperty("port", server.getPort());
+        JsonObject serviceInfo = new JsonObject();
+        serviceInfo.addProperty("id", "test/service");
+        serviceInfo.addProperty("type", "0.TYPE/DOIPServiceInfo");
+        serviceInfo.add("attributes", attributes);
+        resolver.add("test/service", "0.TYPE/DOIPServiceInfo", serviceInfo.toString(), 3600);
+
+        DoipClientConfig config = new DoipClientConfig();
+        config.handleCacheNegativeTtlMs = 500;
+        config.handleCacheRefreshFraction = 0.5;
+        ExecutorService exec = Executors.newFixedThreadPool(50);
+        try (DoipClient client = new DoipClient(config, resolver)) {
+            // 1. 50 个并发请求只解析一次
+            int ok = concurrently(exec, 50, () -> client.hello("test/target", null));
+            check("50 concurrent hellos succeed", ok == 50);
+            check("concurrent lookups coalesced: target resolved once (" + resolver.count("test/target") + ")", resolver.count("test/target") == 1);
+            check("service resolved once (" + resolver.count("test/service") + ")", resolver.count("test/service") == 1);
+            long loaded = System.nanoTime();
+
+            // 2. 未找到的句柄：并发合并，结果缓存 500ms
+            int found = concurrently(exec, 50, () -> client.hello("test/missing", null));
+            check("missing handle fails", found == 0);
+            check("missing handle resolved once (" + resolver.count("test/missing") + ")", resolver.count("test/missing") == 1);
+            concurrently(exec, 10, () -> client.hello("test/missing", null));
+            check("negative result cached", resolver.count("test/missing") == 1);
+            Thread.sleep(600);
+            concurrently(exec, 1, () -> client.hello("test/missing", null));
+            check("negative result expires (" + resolver.count("test/missing") + ")", resolver.count("test/missing") == 2);
+
+            // 3. 进入 TTL 后半段时读取，触发后台刷新，调用方不等待
+            Thread.sleep(Math.max(0, 1300 - (System.nanoTime() - loaded) / 1000000));
+            long start = System.nanoTime();
+            client.hello("test/target", null);
+            long ms = (System.nanoTime() - start) / 1000000;
+            check("read in refresh window is not blocked (" + ms + "ms)", ms < 100);
+            Thread.sleep(300);
+            check("hot entry refreshed in background (" + resolver.count("test/target") + ")", resolver.count("test/target") == 2);
+
+            // 4. 不再访问，TTL 到期后重新解析
+            Thread.sleep(2200);
+            start = System.nanoTime();
+            client.hello("test/target", null);
+            ms = (System.nanoTime() - start) / 1000000;
+            check("expired entry resolved again (" + resolver.count("test/target") + ", " + ms + "ms)", resolver.count("test/target") == 3 && ms >= 100);
+            check("service entry (TTL 1 hour) not resolved again", resolver.count("test/service") == 1);
+        } finally {
+            exec.shutdown();
+            server.shutdown();
+        }
+        System.out.println(failures == 0 ? "ALL PASSED" : failures + " FAILED");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    interface Call {
+        void call() throws DoipException;
+    }
+
+    static int concurrently(ExecutorService exec, int n, Call call) throws Exception {
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            futures.add(exec.submit(() -> {
+                try {
+                    call.call();
+                    return true;
+                } catch (DoipException e) {
+                    return false;
+                }
+            }));
+        }
+        int ok = 0;
+        for (Future<Boolean> f : futures) if (f.get()) ok++;
+        return ok;
+    }
+
+    static void check(String name, boolean passed) {
+        if (!passed) failures++;
+        System.out.println((passed ? "PASS " : "FAIL ") + name);
+    }
+
+    /**
+     * 桩解析器：返回预设的句柄值，每次解析耗时 100ms 并按句柄计数。
+     */
+    static class StubResolver extends HandleResolver {
+        private final Map<String, HandleValue[]> values = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+        void add(String handle, String type, String data, int ttlSeconds) {
+            HandleValue value = new HandleValue(1, type, data);
+            value.setTTLType(HandleValue.TTL_TYPE_RELATIVE);
+            value.setTTL(ttlSeconds);
+            values.put(handle, new HandleValue[] { value });
+        }
+
+        int count(String handle) {
+            AtomicInteger count = counts.get(handle);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public HandleValue[] resolveHandle(String handle, String[] types, int[] indexes) throws HandleException {
+            counts.computeIfAbsent(handle, h -> new AtomicInteger()).incrementAndGet();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            HandleValue[] result = values.get(handle);
+            if (result == null) throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST, handle);
+            return result;
+        }
+    }
+}
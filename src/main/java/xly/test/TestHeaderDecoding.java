@@ -0,0 +1,79 @@
+package xly.test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import xly.doip.DoipHeadersDecoder;
+import xly.doip.DoipRequestHeadersWithRequestId;
+import xly.doip.DoipResponseHeadersWithRequestId;
+import xly.doip.InDoipSegmentFromInputStream;
+import xly.doip.util.GsonUtility;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 初始段头部解析测试：对典型的小请求和小响应，比较旧方式（JsonParser 建树 + List.contains 检查属性 + Gson 反射绑定）
+ * 与 DoipHeadersDecoder（JsonReader 单遍流式解析）的每秒解析次数。
+ *
+ * 用法: TestHeaderDecoding [每轮解析次数，默认 1000000]
+ */
+public class TestHeaderDecoding {
+
+    static final List<String> acceptableRequestProperties = Stream.of(DoipRequestHeadersWithRequestId.class.getFields())
+        .map(Field::getName)
+        .collect(Collectors.toList());
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        byte[] request = ("{\"requestId\":\"12345\",\"clientId\":\"test/client\",\"targetId\":\"test/1\","
+            + "\"operationId\":\"0.DOIP/Op.Retrieve\",\"attributes\":{\"includeElementData\":true},"
+            + "\"authentication\":{\"password\":\"secret\"}}").getBytes(StandardCharsets.UTF_8);
+        byte[] response = ("{\"requestId\":\"12345\",\"status\":\"0.DOIP/Status.001\","
+            + "\"output\":{\"id\":\"test/1\",\"type\":\"Document\",\"attributes\":{\"content\":{\"name\":\"x\"}}}}")
+            .getBytes(StandardCharsets.UTF_8);
+        for (int round = 0; round < 3; round++) { // 第一轮为预热
+            System.out.println("round " + round);
+            run("request  tree+gson", n, () -> oldRequest(request));
+            run("request  decoder  ", n, () -> DoipHeadersDecoder.decodeRequest(segment(request)));
+            run("response tree+gson", n, () -> oldResponse(response));
+            run("response decoder  ", n, () -> DoipHeadersDecoder.decodeResponse(segment(response)));
+        }
+    }
+
+    interface Decode {
+        Object decode() throws IOException;
+    }
+
+    static void run(String name, int n, Decode decode) throws IOException {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sink += decode.decode().hashCode() & 1;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %s %,12.0f ops/s  (%d)%n", name, n / seconds, sink);
+    }
+
+    static InDoipSegmentFromInputStream segment(byte[] bytes) {
+        return new InDoipSegmentFromInputStream(true, new ByteArrayInputStream(bytes));
+    }
+
+    static DoipRequestHeadersWithRequestId oldRequest(byte[] bytes) throws IOException {
+        JsonElement el = JsonParser.parseReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        for (String key : el.getAsJsonObject().keySet()) {
+            if (!acceptableRequestProperties.contains(key)) throw new IOException("Unexpected request property " + key);
+        }
+        return GsonUtility.getGson().fromJson(el, DoipRequestHeadersWithRequestId.class);
+    }
+
+    static DoipResponseHeadersWithRequestId oldResponse(byte[] bytes) {
+        JsonElement el = JsonParser.parseReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        return GsonUtility.getGson().fromJson(el, DoipResponseHeadersWithRequestId.class);
+    }
+}
@@ -0,0 +1,134 @@
+package xly.test;
+
+import xly.doip.InDoipMessageImpl;
+import xly.doip.InDoipSegment;
+import xly.doip.OutDoipMessageImpl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+
+/**
+ * InDoipMessageImpl 读取吞吐量测试：对 1KB、1MB、1GB 的字节段，分别用逐字节 read()、
+ * 数组 read(byte[])、transferTo 和 skip 读取，输出 MB/s。逐字节 read() 对应改动前所有读取方式的开销。
+ *
+ * 用法: TestInDoipMessageRead [最大段大小(字节)，默认 1GB]
+ */
+public class TestInDoipMessageRead {
+    static final int CHUNK_SIZE = 8192;
+
+    public static void main(String[] args) throws Exception {
+        long maxSize = args.length > 0 ? Long.parseLong(args[0]) : 1L << 30;
+        long[] sizes = { 1024, 1024 * 1024, 1L << 30 };
+        for (long size : sizes) {
+            if (size > maxSize) continue;
+            // 小段重复多次，使每轮总数据量约 256MB
+            int repeat = (int) Math.max(1, (256L << 20) / size);
+            for (String mode : new String[] { "read()", "read(byte[])", "transferTo", "skip" }) {
+                run(mode, size, repeat); // 预热
+                long start = System.nanoTime();
+                long total = run(mode, size, repeat);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("segment=%-10d mode=%-13s %.1f MB/s%n", size, mode, total / seconds / (1024 * 1024));
+            }
+        }
+    }
+
+    static long run(String mode, long size, int repeat) throws IOException {
+        long total = 0;
+        for (int i = 0; i < repeat; i++) {
+            InDoipMessageImpl message = new InDoipMessageImpl(new PushbackInputStream(new BufferedInputStream(messageStream(size))));
+            for (InDoipSegment segment : message) {
+                if (segment.isJson()) continue;
+                InputStream in = segment.getInputStream();
+                switch (mode) {
+                case "read()":
+                    while (in.read() >= 0) total++;
+                    break;
+                case "read(byte[])":
+                    byte[] buf = new byte[64 * 1024];
+                    int r;
+                    while ((r = in.read(buf)) > 0) total += r;
+                    break;
+                case "transferTo":
+                    total += in.transferTo(OutputStream.nullOutputStream());
+                    break;
+                default:
+                    total += in.skip(Long.MAX_VALUE);
+                }
+            }
+            message.close();
+        }
+        return total;
+    }
+
+    /**
+     * 生成一个包含一个 JSON 段和一个 size 字节的字节段的序列化 DOIP 消息，不在内存中保存整个消息。
+     */
+    static InputStream messageStream(long size) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        OutDoipMessageImpl out = new OutDoipMessageImpl(head);
+        out.writeJson("{\"operationId\":\"0.DOIP/Op.Retrieve\",\"targetId\":\"test\"}");
+        head.write('@');
+        byte[] data = new byte[CHUNK_SIZE];
+        Arrays.fill(data, (byte) 'x');
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        chunk.write(("\n" + CHUNK_SIZE + "\n").getBytes());
+        chunk.write(data);
+        long fullChunks = size / CHUNK_SIZE;
+        int lastChunk = (int) (size % CHUNK_SIZE);
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        if (lastChunk > 0) {
+            tail.write(("\n" + lastChunk + "\n").getBytes());
+            tail.write(data, 0, lastChunk);
+        }
+        tail.write("\n#\n#\n".getBytes());
+        return new RepeatingInputStream(head.toByteArray(), chunk.toByteArray(), fullChunks, tail.toByteArray());
+    }
+
+    /**
+     * 依次输出 head、count 次 middle、tail。
+     */
+    static class RepeatingInputStream extends InputStream {
+        private final byte[] middle;
+        private final byte[] tail;
+        private long remainingMiddle;
+        private ByteArrayInputStream curr;
+        private int part;
+
+        RepeatingInputStream(byte[] head, byte[] middle, long count, byte[] tail) {
+            this.middle = middle;
+            this.tail = tail;
+            this.remainingMiddle = count;
+            this.curr = new ByteArrayInputStream(head);
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            while (true) {
+                int r = curr.read(b, off, len);
+                if (r >= 0 || len == 0) return r;
+                if (part == 0 && remainingMiddle > 0) {
+                    remainingMiddle--;
+                    curr = new ByteArrayInputStream(middle);
+                } else if (part == 0) {
+                    part = 1;
+                    curr = new ByteArrayInputStream(tail);
+                } else {
+                    return -1;
+                }
+            }
+        }
+    }
+}
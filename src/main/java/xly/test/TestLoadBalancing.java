@@ -0,0 +1,183 @@
+package xly.test;
+
+import com.google.gson.JsonObject;
+import xly.LHS.Backend;
+import xly.LHS.BalancingStrategy;
+import xly.LHS.LoadBalancerConfig;
+import xly.LHS.LocalServer;
+import xly.doip.DoipConstants;
+import xly.doip.DoipRequestHeaders;
+import xly.doip.client.DoipClient;
+import xly.doip.client.ServiceInfo;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LHS 负载均衡基准测试：本地启动 4 个后端 DOIP 服务（各自只能并发处理 2 个请求，其中一个处理时间是其他的 5 倍）和一个
+ * LHS（{@link LocalServer}）。客户端按 Zipf 分布（热点 targetId）选择目标，先向 LHS 发 Op.GetLHS，再把请求发给选中的
+ * 后端。对每种策略输出各后端分到的请求比例、吞吐量以及端到端延迟的 p50/p99/p99.9/最大值。最后停掉一个后端，检查主动探测
+ * 能否把它排除。
+ *
+ * 用法: TestLoadBalancing [每种策略的请求数, 默认 4000] [并发客户端数, 默认 32]
+ */
+public class TestLoadBalancing {
+    static final long[] SERVICE_MS = { 2, 2, 2, 10 };
+    static final int[] WEIGHTS = { 3, 3, 3, 1 };
+    static final int TARGETS = 1000;
+    static double[] zipfCdf;
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        zipfCdf = zipfCdf(TARGETS, 1.1);
+
+        List<DoipServer> backends = new ArrayList<>();
+        LoadBalancerConfig lbConfig = new LoadBalancerConfig();
+        lbConfig.probeIntervalMs = 200;
+        lbConfig.probeTimeoutMs = 500;
+        for (int i = 0; i < SERVICE_MS.length; i++) {
+            DoipServer backend = startBackend(SERVICE_MS[i], 2);
+            backends.add(backend);
+            LoadBalancerConfig.BackendConfig bc = new LoadBalancerConfig.BackendConfig();
+            bc.serviceId = "test/backend" + i;
+            bc.ipAddress = "127.0.0.1";
+            bc.port = backend.getPort();
+            bc.weight = WEIGHTS[i];
+            lbConfig.backends.add(bc);
+        }
+        LocalServer lhs = new LocalServer(lbConfig);
+        DoipServerConfig lhsConfig = new DoipServerConfig();
+        lhsConfig.port = 0;
+        DoipServer lhsServer = new DoipServer(lhsConfig, lhs);
+        lhsServer.init();
+        ServiceInfo lhsInfo = new ServiceInfo("test/lhs", "127.0.0.1", lhsServer.getPort());
+        Thread.sleep(500); // 等待第一轮探测
+
+        System.out.println("后端处理时间(ms)=" + Arrays.toString(SERVICE_MS) + " 权重=" + Arrays.toString(WEIGHTS)
+            + " 每个后端并发上限=2 请求数=" + requests + " 并发=" + concurrency);
+        try (DoipClient client = new DoipClient()) {
+            // 预热
+            run(client, lhs, lhsInfo, "round-robin", lbConfig, 500, concurrency, false);
+            for (String strategy : new String[] { "round-robin", "least-outstanding", "weighted", "consistent-hash" }) {
+                run(client, lhs, lhsInfo, strategy, lbConfig, requests, concurrency, true);
+            }
+
+            // 停掉 backend1，探测应在约 2 个探测周期后把它标记为不健康
+            backends.get(1).shutdown();
+            long start = System.currentTimeMillis();
+            while (lhs.getRegistry().getHealthyBackends().size() == SERVICE_MS.length && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(20);
+            }
+            System.out.println("backend1 停止后 " + (System.currentTimeMillis() - start) + "ms 被排除, 健康后端数="
+                + lhs.getRegistry().getHealthyBackends().size());
+            run(client, lhs, lhsInfo, "least-outstanding", lbConfig, requests / 4, concurrency, true);
+        } finally {
+            lhsServer.shutdown();
+            lhs.shutdown();
+            for (DoipServer backend : backends) backend.shutdown();
+        }
+        System.exit(0);
+    }
+
+    static void run(DoipClient client, LocalServer lhs, ServiceInfo lhsInfo, String strategy, LoadBalancerConfig lbConfig,
+                    int requests, int concurrency, boolean print) throws Exception {
+        lhs.setStrategy(BalancingStrategy.forName(strategy, lbConfig));
+        long[] before = lhs.getRegistry().getBackends().stream().mapToLong(Backend::getAssignments).toArray();
+        long[] latencies = new long[requests];
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long start = System.nanoTime();
+        for (int c = 0; c < concurrency; c++) {
+            Thread.ofVirtual().start(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests) {
+                    String targetId = "test/patient" + zipf();
+                    long t0 = System.nanoTime();
+                    try {
+                        ServiceInfo backend = client.getLHS(targetId, null, lhsInfo);
+                        DoipRequestHeaders headers = new DoipRequestHeaders();
+                        headers.targetId = targetId;
+                        headers.operationId = DoipConstants.OP_RETRIEVE;
+                        try (DoipClientResponse resp = client.performOperation(headers, null, backend)) {
+                            if (!DoipConstants.STATUS_OK.equals(resp.getStatus())) errors.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                    latencies[i] = System.nanoTime() - t0;
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        if (!print) return;
+        List<Backend> all = lhs.getRegistry().getBackends();
+        StringBuilder shares = new StringBuilder();
+        for (int b = 0; b < all.size(); b++) {
+            long n = all.get(b).getAssignments() - before[b];
+            shares.append(String.format("%5.1f%% ", 100.0 * n / requests));
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-18s 分布[%s] 吞吐=%6.0f/s p50=%5.2fms p99=%6.2fms p99.9=%6.2fms max=%6.2fms 错误=%d%n",
+            strategy, shares.toString().trim(), requests / (elapsed / 1e9),
+            ms(latencies[requests / 2]), ms(latencies[(int) (requests * 0.99)]), ms(latencies[(int) (requests * 0.999)]),
+            ms(latencies[requests - 1]), errors.get());
+    }
+
+    static DoipServer startBackend(long serviceMs, int capacity) throws Exception {
+        Semaphore permits = new Semaphore(capacity, true);
+        DoipServerConfig config = new DoipServerConfig();
+        config.port = 0;
+        DoipServer server = new DoipServer(config, (req, resp) -> {
+            // 探测请求同样排队，探测延迟能反映后端负载
+            try {
+                permits.acquire();
+                try {
+                    Thread.sleep(serviceMs);
+                } finally {
+                    permits.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            JsonObject dobj = new JsonObject();
+            dobj.addProperty("id", req.getTargetId());
+            dobj.addProperty("type", "Patient");
+            resp.writeCompactOutput(dobj);
+        });
+        server.init();
+        return server;
+    }
+
+    static double[] zipfCdf(int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1 / Math.pow(k, s);
+            cdf[k - 1] = sum;
+        }
+        for (int k = 0; k < n; k++) cdf[k] /= sum;
+        return cdf;
+    }
+
+    static int zipf() {
+        int i = Arrays.binarySearch(zipfCdf, ThreadLocalRandom.current().nextDouble());
+        return i >= 0 ? i : -i - 1;
+    }
+
+    static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,229 @@
+package xly.test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import xly.doip.DoipConstants;
+import xly.doip.OutDoipMessage;
+import xly.doip.client.AsyncDoipClient;
+import xly.doip.client.AuthenticationInfo;
+import xly.doip.client.DigitalObject;
+import xly.doip.client.DoipClient;
+import xly.doip.client.DoipClientConfig;
+import xly.doip.client.DoipException;
+import xly.doip.client.PasswordAuthenticationInfo;
+import xly.doip.client.ServiceInfo;
+import xly.doip.client.TokenAuthenticationInfo;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+import xly.doip.util.GsonUtility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 客户端对象缓存（DoipClientConfig.objectCache）的正确性测试。服务端开启 Op.Retrieve 响应缓存以提供 etag；后端处理器
+ * 校验口令（用户名 u 的口令是 pw-u，clientId c 的令牌是 tk-c），在返回的对象里写明是替谁读取的（asUserId、用户名或
+ * clientId），并统计被调用的次数。检查：
+ * 1. 未命中时请求服务端，之后在 TTL 内命中，每次返回独立的副本；
+ * 2. 身份隔离：不同用户、不同 asUserId 各自缓存；口令或令牌错误的调用不会拿到别人缓存的对象，而是被服务端拒绝；
+ * 3. 过期后带 etag 重新验证，对象未变时服务端答 notModified 且不调用后端；其他客户端修改后重新取回新值；自己（包括
+ *    包装它的 AsyncDoipClient）修改后立即可见；
+ * 4. 并发取回同一个未缓存对象只发一次请求；
+ * 5. 超出堆上限时淘汰最久未用的对象，被淘汰的对象再次取回时重新请求。
+ *
+ * 用法: TestObjectCache
+ */
+public class TestObjectCache {
+    static final Map<String, JsonObject> store = new ConcurrentHashMap<>();
+    static final AtomicInteger calls = new AtomicInteger();
+    static final String FILLER = "x".repeat(8 * 1024);
+    static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        DoipServerConfig serverConfig = new DoipServerConfig();
+        serverConfig.port = 0;
+        serverConfig.retrieveCacheMaxBytes = 16 << 20;
+        DoipServer server = new DoipServer(serverConfig, (req, resp) -> {
+            calls.incrementAndGet();
+            String viewer = authenticate(req.getClientId(), req.getAuthentication());
+            if (viewer == null) {
+                resp.setStatus(DoipConstants.STATUS_UNAUTHENTICATED);
+                resp.commit();
+                return;
+            }
+            String targetId = req.getTargetId();
+            if (DoipConstants.OP_UPDATE.equals(req.getOperationId())) {
+                JsonObject dobj = req.getInput().iterator().next().getJson().getAsJsonObject();
+                store.put(targetId, dobj);
+                resp.writeCompactOutput(dobj);
+                return;
+            }
+            try {
+                Thread.sleep(30); // 让并发的取回有机会合并
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            JsonObject stored = store.get(targetId);
+            if (stored == null) {
+                resp.setStatus(DoipConstants.STATUS_NOT_FOUND);
+                resp.commit();
+                return;
+            }
+            JsonObject dobj = stored.deepCopy();
+            dobj.getAsJsonObject("attributes").addProperty("viewer", viewer);
+            OutDoipMessage out = resp.getOutput();
+            out.writeJson(dobj);
+        });
+        server.init();
+        ServiceInfo serviceInfo = new ServiceInfo("test/objects", "127.0.0.1", server.getPort());
+
+        DoipClientConfig config = new DoipClientConfig();
+        config.objectCache = true;
+        config.objectCacheTtlMs = 300;
+        config.objectCacheMaxHeapBytes = 200 * 1024; // 每个对象约 17KB，能放下约 11 个
+        for (int i = 0; i < 40; i++) put("o/" + i, "v" + i);
+
+        try (DoipClient client = new DoipClient(config); DoipClient other = new DoipClient()) {
+            // 1. 未命中与命中
+            int before = calls.get();
+            DigitalObject first = client.retrieve("o/1", null, serviceInfo);
+            DigitalObject second = client.retrieve("o/1", null, serviceInfo);
+            check(calls.get() - before == 1, "第二次取回命中缓存");
+            check(first != second && "v1".equals(value(second)) && "anonymous".equals(viewer(second)), "返回独立的副本");
+            first.attributes.addProperty("value", "mutated");
+            check("v1".equals(value(client.retrieve("o/1", null, serviceInfo))), "修改副本不影响缓存");
+
+            // 2. 身份隔离
+            AuthenticationInfo alice = new PasswordAuthenticationInfo("alice", "pw-alice");
+            AuthenticationInfo aliceWrong = new PasswordAuthenticationInfo("alice", "wrong");
+            AuthenticationInfo bob = new PasswordAuthenticationInfo("bob", "pw-bob");
+            AuthenticationInfo aliceAsCarol = new PasswordAuthenticationInfo("alice", "pw-alice", "carol");
+            check("alice".equals(viewer(client.retrieve("o/2", alice, serviceInfo))), "alice 读到自己的");
+            check("bob".equals(viewer(client.retrieve("o/2", bob, serviceInfo))), "bob 不复用 alice 的缓存");
+            check("carol".equals(viewer(client.retrieve("o/2", aliceAsCarol, serviceInfo))), "asUserId 不同时分别缓存");
+            check("anonymous".equals(viewer(client.retrieve("o/2", null, serviceInfo))), "匿名不复用登录用户的缓存");
+            check(rejected(client, "o/2", aliceWrong, serviceInfo), "口令错误时被服务端拒绝，而不是拿到 alice 的缓存");
+            AuthenticationInfo token = new TokenAuthenticationInfo("svc", "tk-svc");
+            AuthenticationInfo wrongToken = new TokenAuthenticationInfo("svc", "stolen");
+            check("svc".equals(viewer(client.retrieve("o/3", token, serviceInfo))), "令牌正确时读到");
+            check(rejected(client, "o/3", wrongToken, serviceInfo), "同一 clientId 令牌错误时被服务端拒绝");
+            before = calls.get();
+            client.retrieve("o/2", new PasswordAuthenticationInfo("alice", "pw-alice"), serviceInfo);
+            check(calls.get() == before, "同样的口令（不同的实例）命中缓存");
+
+            // 3. 过期后重新验证
+            Thread.sleep(400);
+            Map<String, Long> counters = client.getMetrics().getObjectCache();
+            long revalidations = counters.get("revalidations");
+            long notModified = counters.get("notModified");
+            before = calls.get();
+            check("v1".equals(value(client.retrieve("o/1", null, serviceInfo))), "过期后仍返回原值");
+            counters = client.getMetrics().getObjectCache();
+            check(counters.get("revalidations") == revalidations + 1 && counters.get("notModified") == notModified + 1, "过期后带 etag 重新验证，答 notModified");
+            check(calls.get() == before, "notModified 由服务端缓存应答，不调用后端");
+            DigitalObject changed = object("o/1", "v1-changed");
+            other.update(changed, null, serviceInfo);
+            check("v1".equals(value(client.retrieve("o/1", null, serviceInfo))), "TTL 内仍是旧值");
+            Thread.sleep(400);
+            check("v1-changed".equals(value(client.retrieve("o/1", null, serviceInfo))), "过期后取回其他客户端修改的新值");
+            client.update(object("o/1", "v1-own"), null, serviceInfo);
+            check("v1-own".equals(value(client.retrieve("o/1", null, serviceInfo))), "自己的修改立即可见");
+            new AsyncDoipClient(client).update(object("o/1", "v1-async"), null, serviceInfo).get();
+            check("v1-async".equals(value(client.retrieve("o/1", null, serviceInfo))), "通过 AsyncDoipClient 的修改也立即可见");
+
+            // 4. 并发合并
+            before = calls.get();
+            long coalesced = client.getMetrics().getObjectCache().get("coalesced");
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            List<Future<String>> futures = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                futures.add(executor.submit(() -> value(client.retrieve("o/4", null, serviceInfo))));
+            }
+            boolean allSame = true;
+            for (Future<String> future : futures) allSame &= "v4".equals(future.get());
+            executor.shutdown();
+            check(allSame, "并发取回的结果正确");
+            check(calls.get() - before == 1, "并发取回只请求一次，实际 " + (calls.get() - before));
+            check(client.getMetrics().getObjectCache().get("coalesced") > coalesced, "计入合并次数");
+
+            // 5. 淘汰
+            long evictions = client.getMetrics().getObjectCache().get("evictions");
+            for (int i = 10; i < 40; i++) client.retrieve("o/" + i, null, serviceInfo);
+            counters = client.getMetrics().getObjectCache();
+            System.out.println(counters);
+            check(counters.get("evictions") > evictions, "超出上限时淘汰");
+            check(counters.get("heapBytes") <= config.objectCacheMaxHeapBytes, "堆占用不超过上限");
+            // 服务端也有缓存，这里看客户端缓存自己的计数
+            long hits = counters.get("hits");
+            long misses = counters.get("misses");
+            client.retrieve("o/39", null, serviceInfo);
+            check(client.getMetrics().getObjectCache().get("hits") == hits + 1, "最近取回的对象仍命中");
+            client.retrieve("o/10", null, serviceInfo);
+            check(client.getMetrics().getObjectCache().get("misses") == misses + 1, "最早取回的对象已被淘汰，重新请求");
+        } finally {
+            server.shutdown();
+        }
+        System.out.println(failures == 0 ? "全部通过" : failures + " 项失败");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * 返回替谁读取，凭据不对时返回 null
+     */
+    static String authenticate(String clientId, JsonElement authentication) {
+        if (authentication == null || !authentication.isJsonObject()) return clientId == null ? "anonymous" : null;
+        JsonObject auth = authentication.getAsJsonObject();
+        String user;
+        if (auth.has("username")) {
+            user = auth.get("username").getAsString();
+            if (!auth.has("password") || !("pw-" + user).equals(auth.get("password").getAsString())) return null;
+        } else if (auth.has("token") && clientId != null) {
+            user = clientId;
+            if (!("tk-" + clientId).equals(auth.get("token").getAsString())) return null;
+        } else {
+            return null;
+        }
+        return auth.has("asUserId") ? auth.get("asUserId").getAsString() : user;
+    }
+
+    static boolean rejected(DoipClient client, String targetId, AuthenticationInfo authInfo, ServiceInfo serviceInfo) {
+        try {
+            client.retrieve(targetId, authInfo, serviceInfo);
+            return false;
+        } catch (DoipException e) {
+            return DoipConstants.STATUS_UNAUTHENTICATED.equals(e.getStatusCode());
+        }
+    }
+
+    static void check(boolean ok, String what) {
+        if (!ok) failures++;
+        System.out.println((ok ? "通过 " : "失败 ") + what);
+    }
+
+    static DigitalObject object(String id, String value) {
+        DigitalObject dobj = new DigitalObject();
+        dobj.id = id;
+        dobj.type = "Document";
+        dobj.setAttribute("value", value);
+        dobj.setAttribute("filler", FILLER);
+        return dobj;
+    }
+
+    static void put(String id, String value) {
+        store.put(id, GsonUtility.getGson().toJsonTree(object(id, value)).getAsJsonObject());
+    }
+
+    static String value(DigitalObject dobj) {
+        return dobj.attributes.get("value").getAsString();
+    }
+
+    static String viewer(DigitalObject dobj) {
+        return dobj.attributes.get("viewer").getAsString();
+    }
+}
@@ -0,0 +1,162 @@
+package xly.test;
+
+import xly.doip.OutDoipMessageImpl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * OutDoipMessageImpl 写出测试：按服务端的方式（BufferedOutputStream 包装 socket 输出流）通过本地回环 socket 写出典型响应
+ * （另一端由线程读取并丢弃），统计每个响应落到 socket 上的 write 次数（每次对应一次系统调用）以及吞吐量 MB/s，
+ * 比较默认模式（每段 flush）与合并模式（仅在关闭时 flush）。
+ *
+ * 用法: TestOutDoipMessageWrite [小响应场景的响应数，默认 100000；MB 级场景为其 1/1000]
+ */
+public class TestOutDoipMessageWrite {
+
+    public static void main(String[] args) throws Exception {
+        int responses = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             Socket server = serverSocket.accept()) {
+            Thread drain = new Thread(() -> {
+                try (InputStream in = client.getInputStream()) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+            run(server.getOutputStream(), responses);
+        }
+    }
+
+    static void run(OutputStream socketOut, int responses) throws IOException {
+        for (String scenario : new String[] { "json-only", "json+4x1KB", "json+1MB", "stream-16MB", "write(int)-64KB" }) {
+            for (boolean coalesce : new boolean[] { false, true }) {
+                int n = scenario.contains("MB") ? Math.max(1, responses / 1000) : responses;
+                run(scenario, coalesce, n, new CountingOutputStream(socketOut)); // 预热
+                CountingOutputStream socket = new CountingOutputStream(socketOut);
+                long start = System.nanoTime();
+                run(scenario, coalesce, n, socket);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-16s coalesce=%-5s writes/response=%-7.1f %.1f MB/s%n",
+                    scenario, coalesce, socket.writes / (double) n, socket.bytes / seconds / (1024 * 1024));
+            }
+        }
+    }
+
+    static void run(String scenario, boolean coalesce, int n, OutputStream socket) throws IOException {
+        byte[] small = new byte[1024];
+        byte[] large = new byte[1024 * 1024];
+        Arrays.fill(small, (byte) 'x');
+        Arrays.fill(large, (byte) 'y');
+        String initial = "{\"requestId\":\"1\",\"status\":\"0.DOIP/Status.001\",\"output\":{\"id\":\"test/1\",\"type\":\"Document\"}}";
+        for (int i = 0; i < n; i++) {
+            OutDoipMessageImpl out = new OutDoipMessageImpl(new BufferedOutputStream(socket), null, coalesce);
+            out.writeJson(initial);
+            switch (scenario) {
+            case "json+4x1KB":
+                for (int j = 0; j < 4; j++) {
+                    out.writeJson("{\"id\":\"el" + j + "\"}");
+                    out.writeBytes(small);
+                }
+                break;
+            case "json+1MB":
+                out.writeJson("{\"id\":\"el\"}");
+                out.writeBytes(large);
+                break;
+            case "stream-16MB":
+                out.writeJson("{\"id\":\"el\"}");
+                out.writeBytes(new RepeatingInputStream(large, 16));
+                break;
+            case "write(int)-64KB":
+                out.writeJson("{\"id\":\"el\"}");
+                try (OutputStream bytes = out.getBytesOutputStream()) {
+                    for (int j = 0; j < 64 * 1024; j++) bytes.write('z');
+                }
+                break;
+            default:
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * 包装 socket 输出流，统计 write 调用次数和字节数。
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        long writes;
+        long bytes;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writes++;
+            bytes++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            bytes += len;
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // 不关闭 socket
+        }
+    }
+
+    /**
+     * 将同一数组重复输出 count 次，像文件一样每次 read 尽量填满调用方的缓冲区。
+     */
+    static class RepeatingInputStream extends InputStream {
+        private final byte[] data;
+        private int remaining;
+        private ByteArrayInputStream curr;
+
+        RepeatingInputStream(byte[] data, int count) {
+            this.data = data;
+            this.remaining = count;
+            this.curr = new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int total = 0;
+            while (total < len) {
+                int r = curr.read(b, off + total, len - total);
+                if (r > 0) {
+                    total += r;
+                } else if (remaining > 0) {
+                    remaining--;
+                    curr = new ByteArrayInputStream(data);
+                } else {
+                    break;
+                }
+            }
+            return total == 0 && len > 0 ? -1 : total;
+        }
+    }
+}
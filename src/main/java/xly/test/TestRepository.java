@@ -0,0 +1,294 @@
+package xly.test;
+
+import xly.doip.client.DigitalObject;
+import xly.doip.client.DoipClient;
+import xly.doip.client.DoipException;
+import xly.doip.client.Element;
+import xly.doip.client.ServiceInfo;
+import xly.doip.repository.RepositoryConfig;
+import xly.doip.repository.RepositoryProcessor;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 磁盘仓库 RepositoryProcessor 的吞吐量与延迟测试：经由 DoipServer 和 DoipClient，对元素大小为
+ * 1KB、64KB、1MB、64MB、1GB 的对象依次测量 create、retrieve（取回元素字节）、只改属性的 update
+ * （服务端复制原有元素）和替换元素的 update，输出每秒操作数、MB/s 以及延迟的 p50/p99/最大值。
+ * 最后重启仓库，输出从日志重放恢复索引的耗时，并做一次压缩。
+ *
+ * 测量之前先做一遍正确性检查（见 {@link #verifyRecovery(String)}）：模拟崩溃时最后一条记录只写了一半，
+ * 重新打开、压缩、再重启后，每个对象的属性和元素字节都必须与写入的一致。
+ *
+ * 用法: TestRepository [blocking|nio] [每种大小的数据量MB，默认 1024] [仓库目录，默认临时目录]
+ */
+public class TestRepository {
+    static final long[] SIZES = { 1L << 10, 64L << 10, 1L << 20, 64L << 20, 1L << 30 };
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "blocking";
+        long volume = (args.length > 1 ? Long.parseLong(args[1]) : 1024) << 20;
+        Path dir = args.length > 2 ? Paths.get(args[2]) : Files.createTempDirectory("doip-repository");
+        RepositoryConfig repositoryConfig = new RepositoryConfig();
+        repositoryConfig.directory = dir.toString();
+        repositoryConfig.compactionIntervalMs = 0; // 压缩在最后单独测量
+        verifyRecovery(mode);
+        try {
+            RepositoryProcessor repository = new RepositoryProcessor(repositoryConfig);
+            DoipServer server = start(repository, mode);
+            ServiceInfo serviceInfo = new ServiceInfo(repositoryConfig.serviceId, "127.0.0.1", server.getPort());
+            DoipClient client = new DoipClient();
+            for (long size : SIZES) {
+                // 小对象的个数设上限，避免 1KB 时跑上百万次；大对象至少 3 次
+                int count = (int) Math.max(3, Math.min(5000, volume / size));
+                String prefix = "bench/" + size + "/";
+                Stats create = new Stats("create", size);
+                for (int i = 0; i < count; i++) {
+                    DigitalObject dobj = object(prefix + i, "v0", size, i);
+                    long start = System.nanoTime();
+                    client.create(dobj, null, serviceInfo);
+                    create.add(System.nanoTime() - start);
+                }
+                Stats retrieve = new Stats("retrieve", size);
+                for (int i = 0; i < count; i++) {
+                    long start = System.nanoTime();
+                    long read;
+                    try (InputStream in = client.retrieveElement(prefix + i, "data", null, serviceInfo)) {
+                        read = in.transferTo(OutputStream.nullOutputStream());
+                    }
+                    retrieve.add(System.nanoTime() - start);
+                    if (read != size) throw new AssertionError("read " + read + " of " + size);
+                }
+                Stats updateAttributes = new Stats("update-attributes", size);
+                for (int i = 0; i < count; i++) {
+                    DigitalObject dobj = object(prefix + i, "v1", size, i);
+                    dobj.elements.get(0).in = null; // 不重发元素，服务端保留原有字节
+                    long start = System.nanoTime();
+                    client.update(dobj, null, serviceInfo);
+                    updateAttributes.add(System.nanoTime() - start);
+                }
+                Stats updateElement = new Stats("update-element", size);
+                for (int i = 0; i < count; i++) {
+                    DigitalObject dobj = object(prefix + i, "v2", size, i + 1);
+                    long start = System.nanoTime();
+                    client.update(dobj, null, serviceInfo);
+                    updateElement.add(System.nanoTime() - start);
+                }
+                System.out.println(mode + " " + create);
+                System.out.println(mode + " " + retrieve);
+                System.out.println(mode + " " + updateAttributes);
+                System.out.println(mode + " " + updateElement);
+                for (int i = 0; i < count; i++) {
+                    client.delete(prefix + i, null, serviceInfo);
+                }
+            }
+            System.out.println("before restart " + repository.snapshot());
+            server.shutdown();
+            repository.shutdown();
+
+            long start = System.nanoTime();
+            repository = new RepositoryProcessor(repositoryConfig);
+            System.out.printf("recovery %.1f ms %s%n", (System.nanoTime() - start) / 1e6, repository.snapshot());
+            start = System.nanoTime();
+            int compacted = repository.compact();
+            System.out.printf("compaction of %d segments %.1f ms %s%n", compacted, (System.nanoTime() - start) / 1e6, repository.snapshot());
+            repository.shutdown();
+            client.close();
+        } finally {
+            if (args.length <= 2) deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * 正确性检查：写入一批对象（多次更新、部分删除，使已封存的段里有足够的垃圾），运行中复制仓库目录以模拟崩溃，
+     * 把副本中未封存的 .log 从最后一条记录中间截断，然后在副本上重新打开仓库、压缩、再重启，每一步都逐个核对对象。
+     */
+    static void verifyRecovery(String mode) throws Exception {
+        Path dir = Files.createTempDirectory("doip-repository-verify");
+        Path crashed = Files.createTempDirectory("doip-repository-crashed");
+        RepositoryConfig config = new RepositoryConfig();
+        config.directory = dir.toString();
+        config.segmentSizeBytes = 1 << 20;
+        config.maxBufferedBytes = 64 << 10;
+        config.compactionIntervalMs = 0;
+        int count = 200;
+        try (DoipClient client = new DoipClient()) {
+            RepositoryProcessor repository = new RepositoryProcessor(config);
+            DoipServer server = start(repository, mode);
+            ServiceInfo serviceInfo = new ServiceInfo(config.serviceId, "127.0.0.1", server.getPort());
+            for (int version = 0; version < 3; version++) {
+                for (int i = 0; i < count; i++) {
+                    DigitalObject dobj = object("verify/" + i, "v" + version, elementSize(i), i + version);
+                    if (version == 0) client.create(dobj, null, serviceInfo);
+                    else client.update(dobj, null, serviceInfo);
+                }
+            }
+            for (int i = 0; i < count; i += 10) client.delete("verify/" + i, null, serviceInfo);
+            // 最后一条记录：元素 40KB，缓冲后写进共享的活动段，截断时从它的元素中间切开
+            client.create(object("verify/torn", "v0", 40 << 10, 1), null, serviceInfo);
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) Files.copy(file, crashed.resolve(file.getFileName()));
+            }
+            server.shutdown();
+            repository.shutdown();
+
+            Path log;
+            try (Stream<Path> files = Files.list(crashed)) {
+                log = files.filter(p -> p.toString().endsWith(".log")).max(Comparator.naturalOrder()).orElseThrow();
+            }
+            try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+                file.setLength(file.length() - (20 << 10));
+            }
+
+            config.directory = crashed.toString();
+            repository = new RepositoryProcessor(config);
+            server = start(repository, mode);
+            serviceInfo = new ServiceInfo(config.serviceId, "127.0.0.1", server.getPort());
+            System.out.println("verify after crash " + repository.snapshot());
+            if (repository.snapshot().get("truncatedBytes") <= 0) throw new AssertionError("torn record not truncated");
+            if (client.retrieve("verify/torn", null, serviceInfo) != null) throw new AssertionError("torn record recovered");
+            verifyObjects(client, serviceInfo, count, "after crash");
+            int compacted = repository.compact();
+            if (compacted == 0) throw new AssertionError("nothing compacted");
+            verifyObjects(client, serviceInfo, count, "after compaction of " + compacted + " segments");
+            server.shutdown();
+            repository.shutdown();
+
+            repository = new RepositoryProcessor(config);
+            server = start(repository, mode);
+            serviceInfo = new ServiceInfo(config.serviceId, "127.0.0.1", server.getPort());
+            verifyObjects(client, serviceInfo, count, "after restart");
+            server.shutdown();
+            repository.shutdown();
+        } finally {
+            deleteRecursively(dir);
+            deleteRecursively(crashed);
+        }
+    }
+
+    static long elementSize(int i) {
+        // 多数对象缓冲后写进共享段，每 7 个有一个超过 maxBufferedBytes，有自己的段
+        return i % 7 == 0 ? (100 << 10) + i : (i * 997L) % 20_000;
+    }
+
+    static void verifyObjects(DoipClient client, ServiceInfo serviceInfo, int count, String when) throws IOException, DoipException {
+        for (int i = 0; i < count; i++) {
+            String id = "verify/" + i;
+            DigitalObject dobj = client.retrieve(id, null, serviceInfo);
+            if (i % 10 == 0) {
+                if (dobj != null) throw new AssertionError(id + " deleted but found " + when);
+                continue;
+            }
+            if (dobj == null || !"v2".equals(dobj.attributes.get("version").getAsString())) {
+                throw new AssertionError(id + " wrong version " + when);
+            }
+            try (InputStream in = client.retrieveElement(id, "data", null, serviceInfo);
+                 InputStream expected = new PatternInputStream(elementSize(i), i + 2)) {
+                if (!Arrays.equals(in.readAllBytes(), expected.readAllBytes())) throw new AssertionError(id + " wrong bytes " + when);
+            }
+        }
+        System.out.println("verify " + when + ": " + count + " objects ok");
+    }
+
+    static DoipServer start(RepositoryProcessor repository, String mode) throws Exception {
+        DoipServerConfig config = new DoipServerConfig();
+        config.port = 0;
+        config.useNio = mode.equals("nio");
+        DoipServer server = new DoipServer(config, repository);
+        server.init();
+        return server;
+    }
+
+    static DigitalObject object(String id, String version, long size, int seed) {
+        DigitalObject dobj = new DigitalObject();
+        dobj.id = id;
+        dobj.type = "Document";
+        dobj.setAttribute("version", version);
+        Element element = new Element();
+        element.id = "data";
+        element.type = "application/octet-stream";
+        element.in = new PatternInputStream(size, seed);
+        dobj.elements = new ArrayList<>();
+        dobj.elements.add(element);
+        return dobj;
+    }
+
+    /**
+     * 按规律生成指定长度的字节，避免 1GB 的元素占用堆内存
+     */
+    static class PatternInputStream extends InputStream {
+        private final byte[] pattern = new byte[64 * 1024];
+        private long remaining;
+        private int offset;
+
+        PatternInputStream(long length, int seed) {
+            for (int i = 0; i < pattern.length; i++) pattern[i] = (byte) (i * 31 + seed);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) return -1;
+            remaining--;
+            int b = pattern[offset] & 0xFF;
+            offset = (offset + 1) % pattern.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) return -1;
+            int n = (int) Math.min(Math.min(len, remaining), pattern.length - offset);
+            System.arraycopy(pattern, offset, b, off, n);
+            offset = (offset + n) % pattern.length;
+            remaining -= n;
+            return n;
+        }
+    }
+
+    static class Stats {
+        final String operation;
+        final long size;
+        final List<Long> nanos = new ArrayList<>();
+
+        Stats(String operation, long size) {
+            this.operation = operation;
+            this.size = size;
+        }
+
+        void add(long elapsed) {
+            nanos.add(elapsed);
+        }
+
+        @Override
+        public String toString() {
+            long[] sorted = nanos.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            double seconds = Arrays.stream(sorted).sum() / 1e9;
+            return String.format("%-17s size=%-10d n=%-5d %9.1f ops/s %8.1f MB/s  p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms",
+                operation, size, sorted.length, sorted.length / seconds, sorted.length * (double) size / seconds / (1024 * 1024),
+                sorted[sorted.length / 2] / 1e6, sorted[Math.min(sorted.length - 1, sorted.length * 99 / 100)] / 1e6, sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package xly.test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import xly.doip.DoipConstants;
+import xly.doip.InDoipSegment;
+import xly.doip.client.AuthenticationInfo;
+import xly.doip.client.DoipClient;
+import xly.doip.client.PasswordAuthenticationInfo;
+import xly.doip.client.ServiceInfo;
+import xly.doip.client.transport.DoipClientResponse;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Op.Retrieve 响应缓存（CachingDoipProcessor 及其 W-TinyLFU 准入策略）的正确性测试。后端处理器把对象放在内存里，
+ * 只允许用户 admin 读取 secret/ 下的对象，并统计被调用的次数，据此判断请求是否由缓存应答。检查：
+ * 1. 命中：第二次取回不调用后端，etag 不变；ifNoneMatch 等于 etag 时返回 notModified；
+ * 2. 不同身份、不同属性的请求各自缓存，互不复用；
+ * 3. ifNoneMatch 不能绕过后端：用别的对象的 etag 去取不存在的对象仍然 404，去取无权读取的对象仍然 401，
+ *    admin 缓存过的对象换成别的用户带着 admin 拿到的 etag 来取也仍然 401；
+ * 4. 更新一个对象只让它自己的缓存失效，etag 随之改变，其他对象仍然命中；
+ * 5. 准入：顺序扫描大量只读一次的对象，其间持续读取一组热点对象（间隔大到纯 LRU 会把它们淘汰），热点对象仍大多命中，
+ *    缓存大小不超过上限。
+ *
+ * 用法: TestRetrieveCache [扫描的对象数, 默认 5000]
+ */
+public class TestRetrieveCache {
+    static final Map<String, String> store = new ConcurrentHashMap<>();
+    static final AtomicInteger calls = new AtomicInteger();
+    static final String FILLER = "x".repeat(1000);
+    static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        int scan = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        DoipServerConfig config = new DoipServerConfig();
+        config.port = 0;
+        config.retrieveCacheMaxBytes = 256 * 1024; // 每个响应约 2.3KB，可缓存约 100 个
+        config.retrieveCacheMaxEntryBytes = 16 * 1024;
+        DoipServer server = new DoipServer(config, (req, resp) -> {
+            calls.incrementAndGet();
+            String targetId = req.getTargetId();
+            if (targetId.startsWith("secret/") && !isAdmin(req.getAuthentication())) {
+                resp.setStatus(DoipConstants.STATUS_UNAUTHENTICATED);
+                resp.commit();
+                return;
+            }
+            if (DoipConstants.OP_UPDATE.equals(req.getOperationId())) {
+                store.put(targetId, req.getAttributeAsString("value"));
+                resp.commit();
+                return;
+            }
+            String value = store.get(targetId);
+            if (value == null) {
+                resp.setStatus(DoipConstants.STATUS_NOT_FOUND);
+                resp.commit();
+                return;
+            }
+            resp.writeCompactOutput(new JsonPrimitive(value + FILLER));
+        });
+        server.init();
+        ServiceInfo serviceInfo = new ServiceInfo("test/cache", "127.0.0.1", server.getPort());
+        AuthenticationInfo admin = new PasswordAuthenticationInfo("admin", "pw");
+        AuthenticationInfo alice = new PasswordAuthenticationInfo("alice", "pw");
+        store.put("a", "va");
+        store.put("b", "vb");
+        store.put("secret/1", "s1");
+
+        try (DoipClient client = new DoipClient()) {
+            // 1. 命中与 notModified
+            int before = calls.get();
+            Response first = retrieve(client, serviceInfo, "a", null, null, null);
+            Response second = retrieve(client, serviceInfo, "a", null, null, null);
+            check(first.status.equals(DoipConstants.STATUS_OK) && "va".equals(first.value), "首次取回");
+            check(first.etag != null && first.etag.equals(second.etag), "etag 不变");
+            check(calls.get() - before == 1, "第二次由缓存应答");
+            Response notModified = retrieve(client, serviceInfo, "a", null, first.etag, null);
+            check(notModified.notModified && notModified.value == null && calls.get() - before == 1, "ifNoneMatch 命中时返回 notModified");
+
+            // 2. 不同身份和属性分别缓存
+            before = calls.get();
+            Response asAlice = retrieve(client, serviceInfo, "a", alice, null, null);
+            Response withAttribute = retrieve(client, serviceInfo, "a", null, null, "extra");
+            check(calls.get() - before == 2, "不同身份、不同属性的请求不复用缓存");
+            check(!asAlice.etag.equals(first.etag) && !withAttribute.etag.equals(first.etag), "不同变体的 etag 不同");
+
+            // 3. ifNoneMatch 不能绕过后端
+            before = calls.get();
+            Response missing = retrieve(client, serviceInfo, "missing", null, first.etag, null);
+            check(missing.status.equals(DoipConstants.STATUS_NOT_FOUND) && !missing.notModified, "不存在的对象仍然 404，而不是 notModified");
+            Response denied = retrieve(client, serviceInfo, "secret/1", null, first.etag, null);
+            check(denied.status.equals(DoipConstants.STATUS_UNAUTHENTICATED) && !denied.notModified, "无权读取的对象仍然 401");
+            check(calls.get() - before == 2, "以上请求都交给了后端");
+            Response asAdmin = retrieve(client, serviceInfo, "secret/1", admin, null, null);
+            check("s1".equals(asAdmin.value), "admin 可以读取 secret/1");
+            Response replayed = retrieve(client, serviceInfo, "secret/1", alice, asAdmin.etag, null);
+            check(replayed.status.equals(DoipConstants.STATUS_UNAUTHENTICATED) && !replayed.notModified, "其他用户带 admin 的 etag 仍然 401");
+
+            // 4. 更新只让被更新的对象失效
+            retrieve(client, serviceInfo, "b", null, null, null);
+            JsonObject update = new JsonObject();
+            update.addProperty("value", "va2");
+            try (DoipClientResponse response = client.performOperation("a", DoipConstants.OP_UPDATE, null, update, serviceInfo)) {
+                check(response.getStatus().equals(DoipConstants.STATUS_OK), "更新 a");
+            }
+            before = calls.get();
+            Response updated = retrieve(client, serviceInfo, "a", null, first.etag, null);
+            check("va2".equals(updated.value) && !updated.etag.equals(first.etag), "更新后取回新值和新 etag");
+            retrieve(client, serviceInfo, "b", null, null, null);
+            check(calls.get() - before == 1, "b 的缓存不受 a 的更新影响");
+
+            // 5. 准入：热点对象不被一次性扫描冲掉
+            for (int i = 0; i < 50; i++) store.put("hot/" + i, "h" + i);
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 50; i++) retrieve(client, serviceInfo, "hot/" + i, null, null, null);
+            }
+            for (int i = 0; i < scan; i++) store.put("scan/" + i, "s" + i);
+            // 每 3 个扫描对象夹一次热点对象：两次读取同一热点对象之间有约 200 个不同的对象，纯 LRU 会把它们全部淘汰
+            for (int i = 0; i < scan; i++) {
+                retrieve(client, serviceInfo, "scan/" + i, null, null, null);
+                if (i % 3 == 0) retrieve(client, serviceInfo, "hot/" + (i / 3) % 50, null, null, null);
+            }
+            before = calls.get();
+            for (int i = 0; i < 50; i++) retrieve(client, serviceInfo, "hot/" + i, null, null, null);
+            int hotMisses = calls.get() - before;
+            System.out.println("扫描 " + scan + " 个对象后热点对象未命中 " + hotMisses + "/50");
+            check(hotMisses <= 5, "热点对象在扫描后仍大多命中");
+            Map<String, Long> counters = server.getMetrics().getRetrieveCache();
+            System.out.println(counters);
+            check(counters.get("bytes") <= config.retrieveCacheMaxBytes, "缓存大小不超过上限");
+            check(counters.get("rejections") > 0, "扫描的对象有被拒绝准入的");
+        } finally {
+            server.shutdown();
+        }
+        System.out.println(failures == 0 ? "全部通过" : failures + " 项失败");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    static boolean isAdmin(JsonElement authentication) {
+        return authentication != null && authentication.isJsonObject()
+            && authentication.getAsJsonObject().has("username")
+            && "admin".equals(authentication.getAsJsonObject().get("username").getAsString());
+    }
+
+    static void check(boolean ok, String what) {
+        if (!ok) failures++;
+        System.out.println((ok ? "通过 " : "失败 ") + what);
+    }
+
+    static class Response {
+        String status;
+        String etag;
+        boolean notModified;
+        String value;
+    }
+
+    static Response retrieve(DoipClient client, ServiceInfo serviceInfo, String targetId, AuthenticationInfo authInfo, String ifNoneMatch, String extra) throws Exception {
+        JsonObject attributes = new JsonObject();
+        if (ifNoneMatch != null) attributes.addProperty(DoipConstants.IF_NONE_MATCH_ATT, ifNoneMatch);
+        if (extra != null) attributes.addProperty("extra", extra);
+        try (DoipClientResponse response = client.performOperation(targetId, DoipConstants.OP_RETRIEVE, authInfo, attributes, serviceInfo)) {
+            Response res = new Response();
+            res.status = response.getStatus();
+            JsonObject responseAttributes = response.getAttributes(); // 错误响应没有属性
+            if (responseAttributes != null) {
+                res.etag = response.getAttributeAsString(DoipConstants.ETAG_ATT);
+                JsonElement notModified = responseAttributes.get(DoipConstants.NOT_MODIFIED_ATT);
+                res.notModified = notModified != null && notModified.getAsBoolean();
+            }
+            Iterator<InDoipSegment> segments = response.getOutput().iterator();
+            JsonElement output = segments.hasNext() ? segments.next().getJson() : null;
+            if (output != null && DoipConstants.STATUS_OK.equals(res.status)) {
+                res.value = output.getAsString().substring(0, output.getAsString().length() - FILLER.length());
+            }
+            return res;
+        }
+    }
+}
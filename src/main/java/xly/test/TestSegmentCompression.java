@@ -0,0 +1,169 @@
+package xly.test;
+
+import xly.doip.InDoipMessageImpl;
+import xly.doip.InDoipSegment;
+import xly.doip.OutDoipMessageImpl;
+import xly.doip.SegmentCompression;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 段压缩的效果与开销：对 64KB 的 JSON 段、4MB 的文本字节段和 4MB 的随机字节段（不可压缩，应被跳过），
+ * 分别在不压缩、Deflater 级别 1 和级别 6 下测量写出与解析的 MB/s、线上字节数和压缩比，
+ * 以及 SegmentCompression 统计的压缩/解压 CPU 时间。全部在内存中进行，不含网络开销；
+ * 在带宽受限的链路上，线上字节数的减少才是主要收益。
+ *
+ * 用法: TestSegmentCompression [每轮总数据量(MB)，默认 256] [binary]
+ */
+public class TestSegmentCompression {
+    static final String HEADER = "{\"requestId\":\"4f1c1b2e\",\"status\":\"0.DOIP/Status.001\"}";
+    static final String ELEMENT = "{\"id\":\"20.500.123/abc\",\"type\":\"Document\",\"attributes\":{\"content\":{\"name\":\"x\",\"size\":12345}}}";
+
+    public static void main(String[] args) throws Exception {
+        long volume = (args.length > 0 ? Long.parseLong(args[0]) : 256) << 20;
+        boolean binary = args.length > 1 && args[1].equals("binary");
+        Shape[] shapes = { new Shape("json-64KB", 64 * 1024, null), new Shape("text-4MB", 0, text(4 << 20)), new Shape("random-4MB", 0, random(4 << 20)) };
+        int[] levels = { 0, 1, 6 };
+        for (Shape shape : shapes) {
+            for (int level : levels) {
+                byte[] encoded = encode(shape, binary, compression(level), new ByteArrayOutputStream());
+                int repeat = (int) Math.max(5, volume / shape.size());
+                runEncode(shape, binary, level, repeat); // 预热
+                SegmentCompression stats = compression(level);
+                long start = System.nanoTime();
+                for (int i = 0; i < repeat; i++) encode(shape, binary, stats, new ByteArrayOutputStream(encoded.length + 64));
+                long writeNanos = System.nanoTime() - start;
+                runDecode(encoded, binary, null, repeat); // 预热
+                start = System.nanoTime();
+                long total = runDecode(encoded, binary, stats, repeat);
+                long readNanos = System.nanoTime() - start;
+                // 文本分帧下未压缩的 JSON 段读出时带有终止符前的换行
+                if (total < (long) shape.size() * repeat || total > (long) (shape.size() + 1) * repeat) throw new AssertionError("decoded " + total);
+                report(shape, level, encoded.length, repeat, writeNanos, readNanos, stats);
+            }
+        }
+    }
+
+    static SegmentCompression compression(int level) {
+        return level == 0 ? null : new SegmentCompression(level, 1024);
+    }
+
+    static void runEncode(Shape shape, boolean binary, int level, int repeat) throws IOException {
+        SegmentCompression compression = compression(level);
+        for (int i = 0; i < repeat; i++) encode(shape, binary, compression, new ByteArrayOutputStream());
+    }
+
+    static void report(Shape shape, int level, int wire, int repeat, long writeNanos, long readNanos, SegmentCompression stats) {
+        double mb = (double) shape.size() * repeat / (1024 * 1024);
+        System.out.printf("%-10s level=%d wire=%-9d ratio=%6.2f write=%8.1f MB/s read=%8.1f MB/s", shape.name, level, wire,
+            (double) shape.size() / wire, mb / (writeNanos / 1e9), mb / (readNanos / 1e9));
+        if (stats != null) {
+            Map<String, Long> counters = stats.snapshot();
+            // 每 MB 原始数据的压缩、解压 CPU 毫秒数
+            System.out.printf(" cpu/MB: deflate=%.2fms inflate=%.2fms compressed=%d incompressible=%d",
+                counters.get("compressionNanos") / 1e6 / mb, counters.get("decompressionNanos") / 1e6 / mb,
+                counters.get("compressedSegments"), counters.get("incompressibleSegments"));
+        }
+        System.out.println();
+    }
+
+    /**
+     * 按服务器写响应的方式（合并刷新）写出：初始段不压缩，之后是一个 JSON 段或字节段。
+     */
+    static byte[] encode(Shape shape, boolean binary, SegmentCompression compression, ByteArrayOutputStream bout) throws IOException {
+        OutDoipMessageImpl out = new OutDoipMessageImpl(bout, null, true, binary);
+        out.setCompression(compression);
+        out.writeJson(HEADER);
+        if (shape.jsonSize > 0) {
+            try (Writer writer = out.getJsonWriter()) {
+                writer.write(shape.json);
+            }
+        } else {
+            try (OutputStream bytesOut = out.getBytesOutputStream()) {
+                for (int off = 0; off < shape.bytes.length; off += 8192) {
+                    bytesOut.write(shape.bytes, off, Math.min(8192, shape.bytes.length - off));
+                }
+            }
+        }
+        out.close();
+        return bout.toByteArray();
+    }
+
+    /**
+     * 按客户端读响应的方式解析，返回初始段之后读出的字节数。
+     */
+    static long runDecode(byte[] encoded, boolean binary, SegmentCompression stats, int repeat) throws IOException {
+        long total = 0;
+        byte[] buf = new byte[64 * 1024];
+        for (int i = 0; i < repeat; i++) {
+            InDoipMessageImpl message = new InDoipMessageImpl(new PushbackInputStream(new BufferedInputStream(new ByteArrayInputStream(encoded))), binary);
+            message.setCompression(stats);
+            boolean first = true;
+            for (InDoipSegment segment : message) {
+                if (first) {
+                    segment.getJson();
+                    first = false;
+                    continue;
+                }
+                int n;
+                while ((n = segment.getInputStream().read(buf)) > 0) total += n;
+            }
+            message.close();
+        }
+        return total;
+    }
+
+    static byte[] text(int size) {
+        StringBuilder sb = new StringBuilder(size + 200);
+        Random random = new Random(1);
+        while (sb.length() < size) {
+            sb.append("Patient ").append(random.nextInt(100000)).append(" visited on 2024-").append(1 + random.nextInt(12))
+                .append('-').append(1 + random.nextInt(28)).append(", diagnosis code ").append((char) ('A' + random.nextInt(26)))
+                .append(random.nextInt(100)).append(".\n");
+        }
+        byte[] res = new byte[size];
+        System.arraycopy(sb.toString().getBytes(), 0, res, 0, size);
+        return res;
+    }
+
+    static byte[] random(int size) {
+        byte[] res = new byte[size];
+        new Random(2).nextBytes(res);
+        return res;
+    }
+
+    static class Shape {
+        final String name;
+        final int jsonSize;
+        final String json;
+        final byte[] bytes;
+
+        Shape(String name, int jsonSize, byte[] bytes) {
+            this.name = name;
+            this.jsonSize = jsonSize;
+            this.bytes = bytes;
+            if (jsonSize > 0) {
+                StringBuilder sb = new StringBuilder("[");
+                while (sb.length() < jsonSize - ELEMENT.length() - 2) {
+                    if (sb.length() > 1) sb.append(',');
+                    sb.append(ELEMENT);
+                }
+                this.json = sb.append(']').toString();
+            } else {
+                this.json = null;
+            }
+        }
+
+        int size() {
+            return json != null ? json.length() : bytes.length;
+        }
+    }
+}
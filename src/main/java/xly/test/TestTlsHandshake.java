@@ -0,0 +1,129 @@
+package xly.test;
+
+import com.google.gson.JsonObject;
+import xly.doip.DoipConstants;
+import xly.doip.DoipRequestHeaders;
+import xly.doip.client.transport.ConnectionOptions;
+import xly.doip.client.transport.DoipConnection;
+import xly.doip.client.transport.DoipConnectionImpl;
+import xly.doip.client.transport.TransportDoipClient;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+import xly.doip.util.tls.AutoSelfSignedKeyManager;
+import xly.doip.util.tls.TlsProtocolAndCipherSuiteConfigurationUtil;
+
+import javax.net.ssl.SSLSocket;
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+/**
+ * TLS 握手代价：本地启动一个 TLS 的 DOIP 服务，反复“建立连接 + 发送一个 Op.Hello + 关闭”，比较
+ * 明文 TCP、每次新建 SSLContext 的完整握手、以及按 ConnectionOptions 复用 SSLContext 的会话恢复，
+ * 分别在不带和带客户端证书时的延迟（平均/p50/p99），并统计实际恢复了会话的连接比例。
+ *
+ * 用法: TestTlsHandshake [每种方式的连接数, 默认 500]
+ */
+public class TestTlsHandshake {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        DoipServerConfig tlsServerConfig = new DoipServerConfig();
+        tlsServerConfig.port = 0;
+        tlsServerConfig.useTls = true;
+        tlsServerConfig.useVirtualThreads = true;
+        DoipServer tlsServer = new DoipServer(tlsServerConfig, (req, resp) -> {
+            JsonObject output = new JsonObject();
+            output.addProperty("clientCertId", req.getConnectionClientId());
+            resp.writeCompactOutput(output);
+        });
+        tlsServer.init();
+        DoipServerConfig plainServerConfig = new DoipServerConfig();
+        plainServerConfig.port = 0;
+        plainServerConfig.useVirtualThreads = true;
+        DoipServer plainServer = new DoipServer(plainServerConfig, (req, resp) -> resp.writeCompactOutput(new JsonObject()));
+        plainServer.init();
+
+        // 客户端证书事先生成，完整握手的耗时中不含生成证书
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair clientKeys = kpg.generateKeyPair();
+        X509Certificate clientCert = new AutoSelfSignedKeyManager("test/client", clientKeys.getPublic(), clientKeys.getPrivate()).getCertificate();
+
+        System.out.println("每种方式的连接数=" + connections);
+        try (TransportDoipClient client = new TransportDoipClient()) {
+            InetAddress address = InetAddress.getLoopbackAddress();
+            ConnectionOptions plain = options(plainServer.getPort(), false, null);
+            ConnectionOptions tls = options(tlsServer.getPort(), true, null);
+            ConnectionOptions tlsWithCert = options(tlsServer.getPort(), true, clientKeys);
+
+            // 预热
+            run(client, connections / 5, () -> client.connect(plain), null);
+            run(client, connections / 5, () -> client.connect(address, tlsServer.getPort(),
+                TlsProtocolAndCipherSuiteConfigurationUtil.getAllTrustingClientSSLContext(), 5000, 5000), null);
+            run(client, connections / 5, () -> client.connect(tls), null);
+
+            run(client, connections, () -> client.connect(plain), "明文 TCP");
+            run(client, connections, () -> client.connect(address, tlsServer.getPort(),
+                TlsProtocolAndCipherSuiteConfigurationUtil.getAllTrustingClientSSLContext(), 5000, 5000), "TLS 完整握手");
+            run(client, connections, () -> client.connect(tls), "TLS 会话恢复");
+            run(client, connections, () -> client.connect(address, tlsServer.getPort(), null,
+                new AutoSelfSignedKeyManager("test/client", clientCert, clientKeys.getPrivate()), 5000, 5000), "TLS 完整握手+客户端证书");
+            run(client, connections, () -> client.connect(tlsWithCert), "TLS 会话恢复+客户端证书");
+        } finally {
+            tlsServer.shutdown();
+            plainServer.shutdown();
+        }
+        System.exit(0);
+    }
+
+    static ConnectionOptions options(int port, boolean useTls, KeyPair clientKeys) {
+        ConnectionOptions options = new ConnectionOptions();
+        options.address = "127.0.0.1";
+        options.port = port;
+        options.useTls = useTls;
+        options.connectTimeoutMs = 5000;
+        options.readTimeoutMs = 5000;
+        if (clientKeys != null) {
+            options.clientId = "test/client";
+            options.clientPublicKey = clientKeys.getPublic();
+            options.clientPrivateKey = clientKeys.getPrivate();
+        }
+        return options;
+    }
+
+    interface Connector {
+        DoipConnection connect() throws Exception;
+    }
+
+    static void run(TransportDoipClient client, int connections, Connector connector, String label) throws Exception {
+        long[] latencies = new long[connections];
+        int resumed = 0;
+        Long firstCreationTime = null;
+        for (int i = 0; i < connections; i++) {
+            long t0 = System.nanoTime();
+            try (DoipConnection connection = connector.connect()) {
+                DoipRequestHeaders headers = new DoipRequestHeaders();
+                headers.targetId = "test/service";
+                headers.operationId = DoipConstants.OP_HELLO;
+                connection.sendCompactRequest(headers).close();
+                latencies[i] = System.nanoTime() - t0;
+                // 恢复的会话沿用原会话的创建时间
+                if (((DoipConnectionImpl) connection).getSocket() instanceof SSLSocket socket) {
+                    long creationTime = socket.getSession().getCreationTime();
+                    if (firstCreationTime == null) firstCreationTime = creationTime;
+                    else if (creationTime == firstCreationTime) resumed++;
+                }
+            }
+        }
+        if (label == null) return;
+        Arrays.sort(latencies);
+        long sum = 0;
+        for (long l : latencies) sum += l;
+        System.out.printf("%-22s 平均=%7.2fms p50=%7.2fms p99=%7.2fms 会话恢复=%d/%d%n", label, sum / (double) connections / 1e6,
+            latencies[connections / 2] / 1e6, latencies[(int) (connections * 0.99)] / 1e6, resumed, connections - 1);
+    }
+}
@@ -0,0 +1,126 @@
+package xly.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import xly.doip.DoipConstants;
+import xly.doip.client.DoipClient;
+import xly.doip.client.DoipClientConfig;
+import xly.doip.client.SearchResults;
+import xly.doip.client.ServiceInfo;
+import xly.doip.server.DoipServer;
+import xly.doip.server.DoipServerConfig;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP 与 TCP 的延迟对比：本地启动一个同时监听 TCP 和 UDP 的 DOIP 服务，分别用 TCP（连接池）和 UDP 发送小的紧凑请求
+ * （Op.GetLHS），输出单线程延迟的 p50/p99/p99.9 以及并发吞吐量。再发送响应超出数据报上限的 Op.Search，检查服务端置
+ * 截断标志、客户端自动改用 TCP 重发的路径，并给出这条路径的代价。
+ *
+ * 用法: TestUdpLatency [每种方式的请求数, 默认 5000] [并发客户端数, 默认 16]
+ */
+public class TestUdpLatency {
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        DoipServerConfig serverConfig = new DoipServerConfig();
+        serverConfig.port = 0;
+        serverConfig.listenUdp = true;
+        DoipServer server = new DoipServer(serverConfig, (req, resp) -> {
+            if (DoipConstants.OP_SEARCH.equals(req.getOperationId())) {
+                // 约 4KB 的结果，超出默认 1232 字节的数据报上限
+                JsonArray results = new JsonArray();
+                for (int i = 0; i < 100; i++) results.add("test/patient-record-" + i);
+                JsonObject output = new JsonObject();
+                output.addProperty("size", results.size());
+                output.add("results", results);
+                resp.writeCompactOutput(output);
+            } else {
+                JsonObject output = new JsonObject();
+                output.addProperty("serviceId", "test/backend");
+                output.addProperty("ipAddress", "127.0.0.1");
+                output.addProperty("port", 9000);
+                resp.writeCompactOutput(output);
+            }
+        });
+        server.init();
+        ServiceInfo serviceInfo = new ServiceInfo("test/service", "127.0.0.1", server.getPort());
+
+        DoipClientConfig udpConfig = new DoipClientConfig();
+        udpConfig.useUdp = true;
+        System.out.println("请求数=" + requests + " 并发=" + concurrency);
+        try (DoipClient tcpClient = new DoipClient(); DoipClient udpClient = new DoipClient(udpConfig)) {
+            // 预热
+            latency(tcpClient, serviceInfo, DoipConstants.OP_GETLHS, 1000, false, "");
+            latency(udpClient, serviceInfo, DoipConstants.OP_GETLHS, 1000, false, "");
+
+            latency(tcpClient, serviceInfo, DoipConstants.OP_GETLHS, requests, true, "TCP  GetLHS");
+            latency(udpClient, serviceInfo, DoipConstants.OP_GETLHS, requests, true, "UDP  GetLHS");
+            throughput(tcpClient, serviceInfo, requests, concurrency, "TCP  GetLHS");
+            throughput(udpClient, serviceInfo, requests, concurrency, "UDP  GetLHS");
+
+            // 截断后回退到 TCP：多一次 UDP 往返
+            latency(tcpClient, serviceInfo, DoipConstants.OP_SEARCH, requests / 5, true, "TCP  Search(4KB)");
+            latency(udpClient, serviceInfo, DoipConstants.OP_SEARCH, requests / 5, true, "UDP→TCP Search(4KB)");
+        } finally {
+            server.shutdown();
+        }
+        System.exit(0);
+    }
+
+    static void latency(DoipClient client, ServiceInfo serviceInfo, String operationId, int requests, boolean print, String label) throws Exception {
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long t0 = System.nanoTime();
+            call(client, serviceInfo, operationId, i);
+            latencies[i] = System.nanoTime() - t0;
+        }
+        if (!print) return;
+        Arrays.sort(latencies);
+        long sum = 0;
+        for (long l : latencies) sum += l;
+        System.out.printf("%-20s 平均=%6.1fus p50=%6.1fus p99=%7.1fus p99.9=%7.1fus%n", label, sum / (double) requests / 1e3,
+            us(latencies[requests / 2]), us(latencies[(int) (requests * 0.99)]), us(latencies[(int) (requests * 0.999)]));
+    }
+
+    static void throughput(DoipClient client, ServiceInfo serviceInfo, int requests, int concurrency, String label) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long start = System.nanoTime();
+        for (int c = 0; c < concurrency; c++) {
+            Thread.ofVirtual().start(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests) {
+                    try {
+                        call(client, serviceInfo, DoipConstants.OP_GETLHS, i);
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        System.out.printf("%-20s 并发吞吐=%7.0f/s 错误=%d%n", label, requests / ((System.nanoTime() - start) / 1e9), errors.get());
+    }
+
+    static void call(DoipClient client, ServiceInfo serviceInfo, String operationId, int i) throws Exception {
+        if (DoipConstants.OP_SEARCH.equals(operationId)) {
+            try (SearchResults<String> results = client.searchIds("test/service", "type:Patient", null, null, serviceInfo)) {
+                if (results.size() != 100) throw new IllegalStateException("wrong search result");
+            }
+        } else {
+            client.getLHS("test/patient" + i, null, serviceInfo);
+        }
+    }
+
+    static double us(long nanos) {
+        return nanos / 1e3;
+    }
+}